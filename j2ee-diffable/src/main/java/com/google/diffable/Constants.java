@@ -33,5 +33,8 @@ public final class Constants {
 	
 	/** The attribute name of the diffable guive injector */
 	public static final String DIFFABLE_GUICE_INJECTOR = "diffable.DiffableGuiceInjector";
+	
+	/** The charset of Diffable responses and of the stored artifacts sent in them */
+	public static final String RESPONSE_CHARSET = "UTF-8";
 
 }
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A StoredArtifact held in a ByteBuffer, such as a slice of a memory-mapped
+ * file.
+ * 
+ * @author joshua Harrison
+ */
+public class BufferArtifact implements StoredArtifact {
+	
+	private final ByteBuffer buffer;
+	
+	/**
+	 * @param buffer The artifact, from its position to its limit.  The buffer
+	 *     itself is never modified.
+	 */
+	public BufferArtifact(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public long getLength() {
+		return buffer.remaining();
+	}
+
+	@Override
+	public void writeTo(WritableByteChannel channel) throws IOException {
+		ByteBuffer view = buffer.duplicate();
+		while (view.hasRemaining()) {
+			channel.write(view);
+		}
+	}
+
+	@Override
+	public byte[] getBytes() {
+		byte[] contents = new byte[buffer.remaining()];
+		buffer.duplicate().get(contents);
+		return contents;
+	}
+}
@@ -0,0 +1,304 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.google.diffable.config.MessageProvider;
+import com.google.diffable.utils.IOUtils;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * A VersionStore which splits versions into content-defined chunks and
+ * stores each distinct chunk once, addressed by its SHA-1, in a 'chunks'
+ * folder shared by the whole resource store.  A version is kept as
+ * '[hash].chunks', listing the chunks to concatenate to rebuild it.  Since
+ * chunk boundaries depend only on the surrounding bytes, an edit only
+ * changes the chunks around it, so near-identical versions of a resource, and
+ * copies of the same file managed under different paths, share nearly all of
+ * their chunks.
+ * 
+ * Artifacts are stored as plain files, as in the FileVersionStore, and
+ * '.version' files left by the FileVersionStore are still read, so an
+ * existing store can be switched over in place.  Chunks that are no longer
+ * referenced by any version are removed when the store is initialized.
+ * 
+ * To use it, bind it in the Diffable config properties:
+ * com.google.diffable.data.VersionStore=com.google.diffable.data.ChunkVersionStore
+ * 
+ * @author joshua Harrison
+ */
+@Singleton
+public class ChunkVersionStore extends FileVersionStore
+implements VersionStore {
+	
+	private static final String CHUNK_LIST_EXTENSION = ".chunks";
+	
+	private static final String CHUNK_FOLDER = "chunks";
+	
+	/**
+	 * The gear table used by the rolling boundary hash.  It is generated from
+	 * a fixed seed since boundaries must be the same across restarts for
+	 * chunks to be shared.
+	 */
+	private static final long[] GEAR = new long[256];
+	static {
+		Random random = new Random(0x6469666661626c65L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+	
+	@Inject
+	private MessageProvider provider;
+	
+	@Inject(optional=true)
+	private Logger logger = Logger.getLogger(ChunkVersionStore.class);
+	
+	/**
+	 * The average chunk size, which must be a power of two.  Chunks are
+	 * between a quarter and eight times this size.
+	 */
+	@Inject(optional=true) @Named("ChunkAverageSize")
+	private int averageChunkSize = 8192;
+	
+	private File chunkFolder = null;
+	
+	@Override
+	public void initialize(File resourceStore) throws IOException {
+		super.initialize(resourceStore);
+		chunkFolder = new File(resourceStore, CHUNK_FOLDER);
+		chunkFolder.mkdir();
+		collectGarbage();
+	}
+	
+	@Override
+	public boolean hasVersion(File resourceFolder, String version) {
+		return getChunkList(resourceFolder, version).exists() ||
+			super.hasVersion(resourceFolder, version);
+	}
+	
+	@Override
+	public synchronized void putVersion(File resourceFolder, String version,
+			                            byte[] contents) throws IOException {
+		StringBuilder chunkList = new StringBuilder();
+		int start = 0;
+		while (start < contents.length) {
+			int end = nextBoundary(contents, start);
+			String chunkHash = hashChunk(contents, start, end);
+			File chunk = getChunkFile(chunkHash);
+			if (!chunk.exists()) {
+				chunk.getParentFile().mkdir();
+				byte[] chunkContents = new byte[end - start];
+				System.arraycopy(contents, start, chunkContents, 0,
+						         chunkContents.length);
+				// Write under a temporary name first so a partially written
+				// chunk is never mistaken for a complete one.
+				IOUtils.writeAtomically(chunk, chunkContents);
+			}
+			chunkList.append(chunkHash).append(' ')
+				.append(end - start).append('\n');
+			start = end;
+		}
+		IOUtils.writeAtomically(getChunkList(resourceFolder, version),
+			chunkList.toString().getBytes("US-ASCII"));
+		// Drop any full copy so the version is only stored once.
+		super.deleteVersion(resourceFolder, version);
+	}
+	
+	@Override
+	public byte[] getVersion(File resourceFolder, String version)
+	throws IOException {
+		File chunkList = getChunkList(resourceFolder, version);
+		if (!chunkList.exists()) {
+			return super.getVersion(resourceFolder, version);
+		}
+		String[] lines =
+			new String(IOUtils.read(chunkList), "US-ASCII").split("\n");
+		int length = 0;
+		for (String line : lines) {
+			if (line.length() > 0) {
+				length += Integer.parseInt(line.substring(line.indexOf(' ') + 1));
+			}
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+		for (String line : lines) {
+			if (line.length() > 0) {
+				out.write(IOUtils.read(
+					getChunkFile(line.substring(0, line.indexOf(' ')))));
+			}
+		}
+		return out.toByteArray();
+	}
+	
+	@Override
+	public List<String> getVersions(File resourceFolder) {
+		List<String> versions = super.getVersions(resourceFolder);
+		String[] names = resourceFolder.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.endsWith(CHUNK_LIST_EXTENSION)) {
+					versions.add(name.substring(
+						0, name.length() - CHUNK_LIST_EXTENSION.length()));
+				}
+			}
+		}
+		return versions;
+	}
+	
+	@Override
+	public void deleteVersion(File resourceFolder, String version) {
+		getChunkList(resourceFolder, version).delete();
+		super.deleteVersion(resourceFolder, version);
+	}
+	
+	@Override
+	protected boolean isVersionFile(String name) {
+		return name.endsWith(CHUNK_LIST_EXTENSION) || super.isVersionFile(name);
+	}
+	
+	/**
+	 * Finds the end of the chunk starting at start using a gear hash over
+	 * the bytes since the minimum chunk size.
+	 */
+	int nextBoundary(byte[] contents, int start) {
+		int minSize = averageChunkSize / 4;
+		int maxSize = averageChunkSize * 8;
+		long mask = averageChunkSize - 1;
+		int end = Math.min(contents.length, start + maxSize);
+		if (end - start <= minSize) {
+			return end;
+		}
+		long hash = 0;
+		for (int i = start + minSize; i < end; i++) {
+			hash = (hash << 1) + GEAR[contents[i] & 0xff];
+			// Test the high bits, which depend on the most recent bytes.
+			if (((hash >>> 40) & mask) == 0) {
+				return i + 1;
+			}
+		}
+		return end;
+	}
+	
+	private String hashChunk(byte[] contents, int start, int end)
+	throws IOException {
+		try {
+			MessageDigest sha = MessageDigest.getInstance("SHA-1");
+			sha.update(contents, start, end - start);
+			byte[] digest = sha.digest();
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+				   .append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException exc) {
+			throw new IOException(exc.getMessage());
+		}
+	}
+	
+	/**
+	 * Deletes every chunk not listed by any version in the resource store.
+	 */
+	private void collectGarbage() throws IOException {
+		Set<String> referenced = new HashSet<String>();
+		// Resource folders may be nested in shard folders, so every folder
+		// outside of the chunk folder is searched for chunk lists.
+		ArrayList<File> folders = new ArrayList<File>();
+		folders.add(resourceStore);
+		while (!folders.isEmpty()) {
+			File folder = folders.remove(folders.size() - 1);
+			File[] children = folder.listFiles();
+			if (children == null) {
+				continue;
+			}
+			for (File child : children) {
+				if (child.isDirectory()) {
+					if (!child.equals(chunkFolder)) {
+						folders.add(child);
+					}
+				} else if (child.getName().endsWith(CHUNK_LIST_EXTENSION)) {
+					addChunks(child, referenced);
+				}
+			}
+		}
+		int deleted = 0;
+		File[] prefixes = chunkFolder.listFiles();
+		if (prefixes != null) {
+			for (File prefix : prefixes) {
+				File[] chunks = prefix.listFiles();
+				if (chunks != null) {
+					for (File chunk : chunks) {
+						if (!referenced.contains(chunk.getName())) {
+							chunk.delete();
+							deleted++;
+						}
+					}
+				}
+			}
+		}
+		provider.debug(logger, "chunkstore.collected",
+				       Integer.toString(deleted),
+				       Integer.toString(referenced.size()));
+	}
+	
+	private void addChunks(File chunkList, Set<String> referenced)
+	throws IOException {
+		for (String line :
+			new String(IOUtils.read(chunkList), "US-ASCII").split("\n")) {
+			if (line.length() > 0) {
+				referenced.add(line.substring(0, line.indexOf(' ')));
+			}
+		}
+	}
+	
+	private File getChunkList(File resourceFolder, String version) {
+		return new File(resourceFolder, version + CHUNK_LIST_EXTENSION);
+	}
+	
+	private File getChunkFile(String chunkHash) {
+		return new File(new File(chunkFolder, chunkHash.substring(0, 2)),
+				        chunkHash);
+	}
+	
+	/**
+	 * Returns the number of distinct chunks in the store.
+	 */
+	int getChunkCount() {
+		int count = 0;
+		File[] prefixes = chunkFolder.listFiles();
+		if (prefixes != null) {
+			for (File prefix : prefixes) {
+				String[] chunks = prefix.list();
+				count += chunks == null ? 0 : chunks.length;
+			}
+		}
+		return count;
+	}
+}
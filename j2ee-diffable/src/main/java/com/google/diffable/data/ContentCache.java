@@ -0,0 +1,298 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.diffable.Constants;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * A least recently used cache of resource contents and delta bodies, bounded
+ * by an estimate of the heap it occupies rather than by a number of entries.
+ * Strings are charged two bytes per character and byte arrays their length,
+ * each plus a fixed per entry overhead for the key and map entry.  Values
+ * larger than the whole capacity are never cached.
+ * 
+ * Keys are formed from the hash of a managed resource's path followed by a
+ * '/' and the name of the cached item, so that everything cached for a
+ * resource can be dropped with removeResource.
+ * 
+ * With ResourceCacheOffHeap set, values are held in direct buffers outside
+ * of the Java heap, strings encoded in Constants.RESPONSE_CHARSET, so large
+ * resources don't pile up in the old generation.  Off-heap values are
+ * counted against the same capacity, and the JVM's direct memory limit
+ * (-XX:MaxDirectMemorySize) must leave room for it.
+ * 
+ * @author joshua Harrison
+ */
+@Singleton
+public class ContentCache {
+	
+	/** The estimated overhead of a cache entry besides its key and value. */
+	private static final int ENTRY_OVERHEAD = 64;
+	
+	/** The maximum estimated size in bytes of the cached entries. */
+	@Inject(optional=true) @Named(value="ResourceCacheSize")
+	private long capacity = 64L * 1024 * 1024;
+	
+	/** If true, values are held in direct buffers rather than on the heap. */
+	@Inject(optional=true) @Named(value="ResourceCacheOffHeap")
+	private boolean offHeap = false;
+	
+	private final LinkedHashMap<String, Object> entries =
+		new LinkedHashMap<String, Object>(16, 0.75f, true);
+	
+	private long size = 0;
+	private long offHeapSize = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	
+	public ContentCache() {}
+	
+	/**
+	 * @param capacity The maximum estimated size of the cached entries in
+	 *     bytes.
+	 */
+	public ContentCache(long capacity) {
+		this.capacity = capacity;
+	}
+	
+	/**
+	 * @param capacity The maximum estimated size of the cached entries in
+	 *     bytes.
+	 * @param offHeap If true, values are held in direct buffers.
+	 */
+	public ContentCache(long capacity, boolean offHeap) {
+		this.capacity = capacity;
+		this.offHeap = offHeap;
+	}
+	
+	/**
+	 * @return The cached string, or null if it isn't cached.
+	 */
+	public synchronized String getString(String key) {
+		Object value = get(key);
+		if (value instanceof OffHeapString) {
+			return ((OffHeapString) value).decode();
+		}
+		return value instanceof String ? (String) value : null;
+	}
+	
+	/**
+	 * @return A read-only view of the cached bytes, or null if they aren't
+	 *     cached.  Off-heap values are returned without being copied.
+	 */
+	public synchronized ByteBuffer getBuffer(String key) {
+		Object value = get(key);
+		if (value instanceof ByteBuffer) {
+			return ((ByteBuffer) value).asReadOnlyBuffer();
+		} else if (value instanceof byte[]) {
+			return ByteBuffer.wrap((byte[]) value).asReadOnlyBuffer();
+		}
+		return null;
+	}
+	
+	public synchronized void put(String key, String value) {
+		if (offHeap) {
+			putValue(key, new OffHeapString(value));
+		} else {
+			putValue(key, value);
+		}
+	}
+	
+	/**
+	 * Caches the passed in bytes.  On the heap the array is kept as is, so it
+	 * must not be modified afterwards.
+	 */
+	public synchronized void put(String key, byte[] value) {
+		if (offHeap) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect(value.length);
+			buffer.put(value);
+			buffer.flip();
+			putValue(key, buffer);
+		} else {
+			putValue(key, value);
+		}
+	}
+	
+	public synchronized void remove(String key) {
+		Object value = entries.remove(key);
+		if (value != null) {
+			release(key, value);
+		}
+	}
+	
+	/**
+	 * Removes every entry cached for the resource with the given path hash.
+	 */
+	public synchronized void removeResource(String resourceHash) {
+		String prefix = resourceHash + "/";
+		Iterator<Map.Entry<String, Object>> iterator =
+			entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Object> entry = iterator.next();
+			if (entry.getKey().startsWith(prefix)) {
+				release(entry.getKey(), entry.getValue());
+				iterator.remove();
+			}
+		}
+	}
+	
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+		offHeapSize = 0;
+	}
+	
+	/**
+	 * @return The estimated size in bytes of the cached entries.
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+	
+	/**
+	 * @return The number of bytes of the cached entries held outside of the
+	 *     heap, which are included in getSize.
+	 */
+	public synchronized long getOffHeapSize() {
+		return offHeapSize;
+	}
+	
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+	
+	public long getCapacity() {
+		return capacity;
+	}
+	
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	/**
+	 * @return The number of entries removed to make room for others.
+	 */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	
+	private Object get(String key) {
+		Object value = entries.get(key);
+		if (value == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return value;
+	}
+	
+	private void putValue(String key, Object value) {
+		remove(key);
+		long weight = weigh(key, value);
+		if (weight > capacity) {
+			return;
+		}
+		entries.put(key, value);
+		size += weight;
+		offHeapSize += getOffHeapLength(value);
+		// The map is in access order, so its first entries are the least
+		// recently used ones.
+		Iterator<Map.Entry<String, Object>> iterator =
+			entries.entrySet().iterator();
+		while (size > capacity) {
+			Map.Entry<String, Object> eldest = iterator.next();
+			release(eldest.getKey(), eldest.getValue());
+			iterator.remove();
+			evictions++;
+		}
+	}
+	
+	private void release(String key, Object value) {
+		size -= weigh(key, value);
+		offHeapSize -= getOffHeapLength(value);
+	}
+	
+	private static long weigh(String key, Object value) {
+		long valueSize;
+		if (value instanceof String) {
+			valueSize = 2L * ((String) value).length();
+		} else if (value instanceof byte[]) {
+			valueSize = ((byte[]) value).length;
+		} else {
+			valueSize = getOffHeapLength(value);
+		}
+		return 2L * key.length() + valueSize + ENTRY_OVERHEAD;
+	}
+	
+	private static long getOffHeapLength(Object value) {
+		if (value instanceof ByteBuffer) {
+			return ((ByteBuffer) value).capacity();
+		} else if (value instanceof OffHeapString) {
+			return ((OffHeapString) value).encoded.capacity();
+		}
+		return 0;
+	}
+	
+	/**
+	 * A string held encoded in a direct buffer.
+	 */
+	private static class OffHeapString {
+		private final ByteBuffer encoded;
+		
+		public OffHeapString(String value) {
+			byte[] bytes = encode(value);
+			encoded = ByteBuffer.allocateDirect(bytes.length);
+			encoded.put(bytes);
+			encoded.flip();
+		}
+		
+		public String decode() {
+			byte[] bytes = new byte[encoded.remaining()];
+			encoded.duplicate().get(bytes);
+			try {
+				return new String(bytes, Constants.RESPONSE_CHARSET);
+			} catch (UnsupportedEncodingException exc) {
+				throw new IllegalStateException(exc);
+			}
+		}
+		
+		private static byte[] encode(String value) {
+			try {
+				return value.getBytes(Constants.RESPONSE_CHARSET);
+			} catch (UnsupportedEncodingException exc) {
+				throw new IllegalStateException(exc);
+			}
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The content encodings Diffable can store precompressed variants of its
+ * responses in.  Variants are compressed once, at the highest level, when
+ * they are generated, so serving them costs no compression at all.
+ * 
+ * @author joshua Harrison
+ */
+public enum ContentEncoding {
+	GZIP("gzip", ".gz"),
+	DEFLATE("deflate", ".deflate");
+	
+	private final String name;
+	private final String suffix;
+	
+	private ContentEncoding(String name, String suffix) {
+		this.name = name;
+		this.suffix = suffix;
+	}
+	
+	/**
+	 * @return The name of the encoding in the Content-Encoding header.
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * @return The suffix added to the name of an artifact to name its
+	 *     variant in this encoding.
+	 */
+	public String getSuffix() {
+		return suffix;
+	}
+	
+	/**
+	 * Compresses the contents at the highest compression level.
+	 * 
+	 * @param contents The contents to compress.
+	 * @return The contents in this encoding.
+	 */
+	public byte[] encode(byte[] contents) throws IOException {
+		ByteArrayOutputStream bytes =
+			new ByteArrayOutputStream(contents.length / 3 + 64);
+		DeflaterOutputStream out;
+		if (this == GZIP) {
+			out = new GZIPOutputStream(bytes) {
+				{
+					def.setLevel(Deflater.BEST_COMPRESSION);
+				}
+			};
+		} else {
+			// The 'deflate' content encoding is the zlib format.
+			out = new DeflaterOutputStream(bytes,
+				new Deflater(Deflater.BEST_COMPRESSION));
+		}
+		out.write(contents);
+		out.close();
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Parses an Accept-Encoding header.
+	 * 
+	 * @param header The header, which may be null.
+	 * @return The encodings the client accepts, most preferred first.  Gzip
+	 *     is preferred over deflate when the client weighs them the same.
+	 */
+	public static List<ContentEncoding> parseAcceptEncoding(String header) {
+		ArrayList<ContentEncoding> accepted = new ArrayList<ContentEncoding>();
+		if (header == null) {
+			return accepted;
+		}
+		float[] weights = new float[values().length];
+		boolean[] listed = new boolean[weights.length];
+		float wildcard = 0;
+		for (String part : header.split(",")) {
+			String[] params = part.split(";");
+			String coding = params[0].trim().toLowerCase(Locale.US);
+			float weight = 1;
+			for (int i = 1; i < params.length; i++) {
+				String param = params[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						weight = Float.parseFloat(param.substring(2));
+					} catch (NumberFormatException exc) {
+						weight = 0;
+					}
+				}
+			}
+			if (coding.equals("*")) {
+				wildcard = weight;
+			}
+			for (ContentEncoding encoding : values()) {
+				if (encoding.name.equals(coding) ||
+					(encoding == GZIP && coding.equals("x-gzip"))) {
+					weights[encoding.ordinal()] = weight;
+					listed[encoding.ordinal()] = true;
+				}
+			}
+		}
+		for (ContentEncoding encoding : values()) {
+			int index = encoding.ordinal();
+			float weight = listed[index] ? weights[index] : wildcard;
+			if (weight <= 0) {
+				continue;
+			}
+			weights[index] = weight;
+			// Insert after the encodings weighed at least as much.
+			int position = 0;
+			while (position < accepted.size() &&
+				   weights[accepted.get(position).ordinal()] >= weight) {
+				position++;
+			}
+			accepted.add(position, encoding);
+		}
+		return accepted;
+	}
+}
@@ -0,0 +1,300 @@
+/**
+ * Copyright 2010 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.google.diffable.config.MessageProvider;
+import com.google.diffable.exceptions.StackTracePrinter;
+import com.google.diffable.utils.IOUtils;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * Estimates how often clients request deltas from each old version of each
+ * managed resource, so that the FileResourceManager only generates the
+ * deltas clients actually ask for when a new version is stored, and leaves
+ * the rest to be generated on demand.
+ * 
+ * The requests are counted in a count-min sketch of fixed size, so stray or
+ * forged version hashes can't grow it.  Every PopularityDecayRequests
+ * requests all of the counts are halved, letting versions clients have
+ * moved on from cool off.  The FileResourceManager saves the sketch in the
+ * resource store along with its manifest, so the counts survive restarts.
+ * 
+ * @author joshua Harrison
+ */
+@Singleton
+public class DeltaPopularity {
+	
+	/** The number of rows of counters, each indexed by a different hash. */
+	private static final int DEPTH = 4;
+	
+	/** Identifies a saved sketch. */
+	private static final int MAGIC = 0x44504f50;
+	
+	@Inject
+	private StackTracePrinter printer;
+	
+	@Inject
+	private MessageProvider provider;
+	
+	@Inject(optional=true)
+	private Logger logger = Logger.getLogger(DeltaPopularity.class);
+	
+	/**
+	 * The number of old versions of a resource, besides the one its new
+	 * version replaces, whose deltas are generated when the new version is
+	 * stored: those clients requested deltas from most often.  Zero, the
+	 * default, disables the sketch, and deltas are generated from every
+	 * retained version.
+	 */
+	@Inject(optional=true) @Named(value="HotDeltaVersions")
+	private int hotVersions = 0;
+	
+	/** The number of counters in each row of the sketch. */
+	@Inject(optional=true) @Named(value="PopularitySketchWidth")
+	private int width = 4096;
+	
+	/** The number of requests counted before all counts are halved. */
+	@Inject(optional=true) @Named(value="PopularityDecayRequests")
+	private int decayRequests = 100000;
+	
+	/**
+	 * The minimum number of milliseconds between two saves of the sketch,
+	 * so that it isn't written out every time the manifest is.
+	 */
+	@Inject(optional=true) @Named(value="PopularitySaveInterval")
+	private long saveInterval = 60 * 1000;
+	
+	private int[][] counters = null;
+	
+	/** The requests counted since the counts were last halved. */
+	private int requests = 0;
+	
+	private File sketchFile = null;
+	
+	private boolean dirty = false;
+	
+	private long lastSaved = 0;
+	
+	/**
+	 * @return True if only the deltas from the hot versions are generated
+	 *     ahead of time.
+	 */
+	public boolean isEnabled() {
+		return hotVersions > 0;
+	}
+	
+	/**
+	 * Counts a request for a delta.
+	 * 
+	 * @param resourceHash The hash of the managed resource's path.
+	 * @param oldVersion The hash of the version the client holds.
+	 */
+	public synchronized void record(String resourceHash, String oldVersion) {
+		if (!isEnabled() || oldVersion == null) {
+			return;
+		}
+		int[][] rows = getCounters();
+		int hash = spread((resourceHash + "_" + oldVersion).hashCode());
+		int step = spread(hash) | 1;
+		for (int row = 0; row < DEPTH; row++) {
+			int column = ((hash + row * step) & 0x7fffffff) % width;
+			if (rows[row][column] < Integer.MAX_VALUE) {
+				rows[row][column]++;
+			}
+		}
+		dirty = true;
+		if (++requests >= decayRequests) {
+			for (int[] row : rows) {
+				for (int column = 0; column < width; column++) {
+					row[column] >>>= 1;
+				}
+			}
+			requests = 0;
+		}
+	}
+	
+	/**
+	 * @param resourceHash The hash of the managed resource's path.
+	 * @param oldVersion The hash of an old version.
+	 * @return The decayed number of requests for deltas from the old
+	 *     version, which may be overestimated but never underestimated.
+	 */
+	public synchronized int estimate(String resourceHash, String oldVersion) {
+		int[][] rows = getCounters();
+		int hash = spread((resourceHash + "_" + oldVersion).hashCode());
+		int step = spread(hash) | 1;
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++) {
+			int column = ((hash + row * step) & 0x7fffffff) % width;
+			estimate = Math.min(estimate, rows[row][column]);
+		}
+		return estimate;
+	}
+	
+	/**
+	 * Picks the old versions of a resource whose deltas should be generated
+	 * when its new version is stored.  Clients only start asking for deltas
+	 * from a version once it has been replaced, so the version being
+	 * replaced is always picked, whatever its count.
+	 * 
+	 * @param resourceHash The hash of the managed resource's path.
+	 * @param olderVersions The hashes of the retained versions older than
+	 *     the new version, oldest first.
+	 * @return The version being replaced followed by up to HotDeltaVersions
+	 *     of the others, most requested first.  All of the older versions
+	 *     if the sketch is disabled.
+	 */
+	public List<String> getHotVersions(String resourceHash,
+			                           List<String> olderVersions) {
+		if (!isEnabled() || olderVersions.isEmpty()) {
+			return olderVersions;
+		}
+		List<String> hot = new ArrayList<String>();
+		hot.add(olderVersions.get(olderVersions.size() - 1));
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		List<String> requested = new ArrayList<String>();
+		for (String version :
+			 olderVersions.subList(0, olderVersions.size() - 1)) {
+			int count = estimate(resourceHash, version);
+			if (count > 0) {
+				counts.put(version, count);
+				requested.add(version);
+			}
+		}
+		Collections.sort(requested, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				return counts.get(b).compareTo(counts.get(a));
+			}
+		});
+		hot.addAll(requested.subList(0,
+			Math.min(hotVersions, requested.size())));
+		return hot;
+	}
+	
+	/**
+	 * Loads the sketch saved in a file, which it is saved to from then on.
+	 * A missing or unreadable file, or one saved with another width, leaves
+	 * every count at zero.
+	 * 
+	 * @param file The file the sketch is saved in.
+	 */
+	public synchronized void load(File file) {
+		sketchFile = file;
+		counters = null;
+		requests = 0;
+		dirty = false;
+		if (!isEnabled() || !file.exists()) {
+			return;
+		}
+		try {
+			DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(IOUtils.read(file)));
+			if (in.readInt() != MAGIC || in.readInt() != width) {
+				return;
+			}
+			int savedRequests = in.readInt();
+			int[][] rows = new int[DEPTH][width];
+			for (int[] row : rows) {
+				for (int column = 0; column < width; column++) {
+					row[column] = in.readInt();
+				}
+			}
+			counters = rows;
+			requests = savedRequests;
+		} catch (IOException exc) {
+			provider.error(logger, "popularity.cantload",
+				           file.getAbsolutePath());
+			printer.print(exc);
+		}
+	}
+	
+	/**
+	 * Saves the sketch if it changed since it was loaded or last saved, and
+	 * wasn't saved in the last PopularitySaveInterval milliseconds.
+	 */
+	public synchronized void save() {
+		if (System.currentTimeMillis() - lastSaved >= saveInterval) {
+			flush();
+		}
+	}
+	
+	/**
+	 * Saves the sketch if it changed since it was loaded or last saved.
+	 */
+	public synchronized void flush() {
+		if (!dirty || sketchFile == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		ByteArrayOutputStream bytes =
+			new ByteArrayOutputStream(12 + DEPTH * width * 4);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(width);
+			out.writeInt(requests);
+			for (int[] row : getCounters()) {
+				for (int count : row) {
+					out.writeInt(count);
+				}
+			}
+			out.flush();
+			IOUtils.writeAtomically(sketchFile, bytes.toByteArray());
+			dirty = false;
+			lastSaved = now;
+		} catch (IOException exc) {
+			provider.error(logger, "popularity.cantsave",
+				           sketchFile.getAbsolutePath());
+			printer.print(exc);
+		}
+	}
+	
+	private int[][] getCounters() {
+		if (counters == null) {
+			counters = new int[DEPTH][width];
+		}
+		return counters;
+	}
+	
+	/**
+	 * Mixes the bits of a hash code, as in the finalizer of MurmurHash3.
+	 */
+	private static int spread(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		return hash ^ (hash >>> 16);
+	}
+}
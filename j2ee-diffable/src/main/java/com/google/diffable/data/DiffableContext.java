@@ -20,6 +20,7 @@ import java.io.Serializable;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class defines the diffable context which contains
@@ -41,9 +42,18 @@ public class DiffableContext implements Serializable {
 	/**
 	 * Cache for storing the most recent version of a managed resource. Used by
 	 * the tag to insert the current version of a resource into the page
-	 * context.
+	 * context.  It is read without locking, so single versions are put in
+	 * place in a concurrent map, and several at once are put in a copy that
+	 * replaces it.
 	 */
-	private Map<File, String> currentVersions = 
+	private volatile Map<File, String> currentVersions = 
+		new ConcurrentHashMap<File, String>();
+	
+	/**
+	 * The identifiers of managed resources, as assigned by the resource
+	 * manager.  Used by the tag to link to a resource.
+	 */
+	private Map<File, String> resourceHashes = 
 		new HashMap<File, String>();
 
 	/**
@@ -91,8 +101,25 @@ public class DiffableContext implements Serializable {
 	 * @param resource the resource
 	 * @param currentVersion the current version
 	 */
-	public void setCurrentVersion(File resource, String currentVersion) {
-		currentVersions.put(resource, currentVersion);
+	public synchronized void setCurrentVersion(File resource,
+			                                  String currentVersion) {
+		if (currentVersion == null) {
+			currentVersions.remove(resource);
+		} else {
+			currentVersions.put(resource, currentVersion);
+		}
+	}
+
+	/**
+	 * Sets the current versions of several resources at once, so the
+	 * resources are never seen with some of the versions set and not others
+	 * @param versions the current versions by resource
+	 */
+	public synchronized void setCurrentVersions(Map<File, String> versions) {
+		Map<File, String> updated =
+			new ConcurrentHashMap<File, String>(currentVersions);
+		updated.putAll(versions);
+		currentVersions = updated;
 	}
 
 	/**
@@ -104,4 +131,76 @@ public class DiffableContext implements Serializable {
 		
 		return currentVersions.get(resource);
 	}
+	
+	/**
+	 * Sets the identifier of a resource
+	 * @param resource the resource
+	 * @param resourceHash the identifier of the resource
+	 */
+	public void setResourceHash(File resource, String resourceHash) {
+		resourceHashes.put(resource, resourceHash);
+	}
+	
+	/**
+	 * Returns the identifier of a resource
+	 * @param resource the resource
+	 * @return the identifier of the resource, or null if it isn't managed
+	 */
+	public String getResourceHash(File resource) {
+		return resourceHashes.get(resource);
+	}
+	
+	/**
+	 * Returns the key of a resource in the resource store, which is its path
+	 * relative to the first resource folder holding it, with '/' separators,
+	 * so the store stays valid wherever the web app is deployed.  Resources
+	 * outside the resource folders, or shadowed by a resource with the same
+	 * relative path in an earlier resource folder, are keyed by their
+	 * absolute path.
+	 * @param resource the resource
+	 * @return the key of the resource
+	 */
+	public String getResourceKey(File resource) {
+		String path = resource.getAbsolutePath();
+		if (resourceFolders == null) {
+			return path;
+		}
+		for (int i = 0; i < resourceFolders.size(); i++) {
+			String folder =
+				resourceFolders.get(i).getAbsolutePath() + File.separator;
+			if (path.startsWith(folder)) {
+				String relative = path.substring(folder.length());
+				for (int j = 0; j < i; j++) {
+					if (new File(resourceFolders.get(j), relative).exists()) {
+						return path;
+					}
+				}
+				return relative.replace(File.separatorChar, '/');
+			}
+		}
+		return path;
+	}
+	
+	/**
+	 * Returns the resource with the given key.  A relative key resolves to
+	 * the first resource folder holding it, or to the first resource folder
+	 * if none do.
+	 * @param key the key of the resource
+	 * @return the resource
+	 */
+	public File getResource(String key) {
+		File resource = new File(key);
+		if (resource.isAbsolute() || resourceFolders == null ||
+			resourceFolders.isEmpty()) {
+			return resource;
+		}
+		String relative = key.replace('/', File.separatorChar);
+		for (File folder : resourceFolders) {
+			File candidate = new File(folder, relative);
+			if (candidate.exists()) {
+				return candidate;
+			}
+		}
+		return new File(resourceFolders.get(0), relative);
+	}
 }
@@ -16,34 +16,50 @@
 package com.google.diffable.data;
 
 import java.io.File;
-import java.io.FileFilter;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringWriter;
-import java.math.BigInteger;
-import java.security.DigestInputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.log4j.Logger;
 
 import com.google.diffable.Constants;
 import com.google.diffable.config.MessageProvider;
 import com.google.diffable.diff.Differ;
-import com.google.diffable.diff.JSONHelper;
+import com.google.diffable.diff.FingerprintDiffer;
+import com.google.diffable.diff.token.TokenDiff;
+import com.google.diffable.diff.vcdiff.VCDiff;
 import com.google.diffable.exceptions.ResourceManagerException;
 import com.google.diffable.exceptions.StackTracePrinter;
+import com.google.diffable.scripts.ResponseRenderer;
+import com.google.diffable.utils.DigestUtils;
 import com.google.diffable.utils.IOUtils;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -59,6 +75,44 @@ import com.google.inject.name.Named;
 @Singleton
 public class FileResourceManager implements ResourceManager {
 	
+	/** The length of the name of each level of shard folders. */
+	private static final int SHARD_NAME_LENGTH = 2;
+	
+	/**
+	 * Appended to the hash of a version to name the precompressed variants
+	 * of its full response.
+	 */
+	private static final String FULL_RESPONSE_SUFFIX = ".full";
+	
+	/** The name of the artifact holding the history of a resource's versions. */
+	private static final String HISTORY_ARTIFACT = "versions.history";
+	
+	/** Prefixes the cache keys of the fingerprints of versions. */
+	private static final String FINGERPRINT_PREFIX = "fingerprint/";
+	
+	/**
+	 * The name of the artifact holding the hash of the latest version of a
+	 * resource once all of its deltas have been stored.
+	 */
+	private static final String PUBLISHED_ARTIFACT = "latest.published";
+	
+	/** The name of the lock held while preparing a shared resource store. */
+	private static final String STORE_LOCK = "store";
+	
+	/**
+	 * The latest version of a managed resource, as read in by
+	 * readInAndCopyLatestVersion.
+	 */
+	private static class IngestedVersion {
+		final String hash;
+		final String contents;
+		
+		IngestedVersion(String hash, String contents) {
+			this.hash = hash;
+			this.contents = contents;
+		}
+	}
+	
 	@Inject
 	private StackTracePrinter printer;
 	
@@ -70,13 +124,16 @@ public class FileResourceManager implements ResourceManager {
 	
 	/** 
 	 * This property dictates whether the string data for the latest version of
-	 * a given resource is stored in memory or read from disk.
+	 * a given resource, and the bodies of requested deltas, are kept in the
+	 * content cache or always read from disk.  The heap used by the cache is
+	 * bounded by the ResourceCacheSize property.
 	 */
 	@Inject(optional=true) @Named(value="KeepResourcesInMemory")
 	private boolean keepResourcesInMemory = true;
 	
-	/** The map of resource content */
-	private Map<File, String> resourceContents = new HashMap<File, String>();
+	/** The cache of resource contents and delta bodies. */
+	@Inject
+	private ContentCache cache;
 	
 	/** Used to reference managed resources by their path hash. */
 	private Map<String, File> hashsToResources = new HashMap<String, File>();
@@ -88,11 +145,38 @@ public class FileResourceManager implements ResourceManager {
 	/** The resource store */
 	private File resourceStore = null;
 	
+	/**
+	 * The number of levels of shard folders between the resource store and
+	 * the resource folders.  Each level is named by the next two hex digits
+	 * of the resource folder's hash, e.g. 'ab/cd/abcd...' for a depth of 2,
+	 * which keeps directories small in stores with a very large number of
+	 * managed resources.  Existing resource folders are moved to match when
+	 * the manager is initialized.
+	 */
+	@Inject(optional=true) @Named(value="ResourceStoreShardDepth")
+	private int shardDepth = 0;
+	
 	/** The diffable context */
 	private DiffableContext diffableCtx;
 	
 	/** The differ */
 	private Differ differ = null;
+	
+	/** The differ used for the resource types listed in TokenDiffTypes. */
+	@Inject
+	private TokenDiff tokenDiffer;
+	
+	/**
+	 * A comma separated list of resource types (as named in
+	 * ResourceRequest.ResourceTypes) whose deltas should be generated with
+	 * the token-aware differ, e.g. "JAVASCRIPT,CSS".  By default all
+	 * resources use the injected differ.
+	 */
+	@Inject(optional=true) @Named(value="TokenDiffTypes")
+	private String tokenDiffTypes = null;
+	
+	/** The parsed form of tokenDiffTypes. */
+	private EnumSet<ResourceRequest.ResourceTypes> tokenDiffTypeSet = null;
 
 	/**
 	 * If the manifest is null, the resource manager cannot be used, and
@@ -100,128 +184,532 @@ public class FileResourceManager implements ResourceManager {
 	 */
 	private Properties manifest = null;
 	
+	/** Persists the manifest as a checkpoint and a journal of changes. */
+	private ManifestJournal journal = null;
+	
+	/**
+	 * The number of manifest changes batched before they are written to the
+	 * manifest journal together.
+	 */
+	@Inject(optional=true) @Named(value="ManifestBatchSize")
+	private int manifestBatchSize = 256;
+	
+	/**
+	 * The number of milliseconds after which batched manifest changes are
+	 * written even if the batch isn't full.
+	 */
+	@Inject(optional=true) @Named(value="ManifestFlushInterval")
+	private long manifestFlushInterval = 1000;
+	
+	/**
+	 * The number of records in the manifest journal after which the whole
+	 * manifest is written out again and the journal emptied.
+	 */
+	@Inject(optional=true) @Named(value="ManifestCheckpointRecords")
+	private int manifestCheckpointRecords = 10000;
+	
+	/** Writes batched manifest changes. */
+	private Timer manifestTimer = null;
+	
+	/**
+	 * The last known size, last modified time and version of each managed
+	 * resource, letting unchanged resources skip validation on startup.
+	 */
+	private ResourceIndex index = null;
+	
+	/**
+	 * The number of threads reading and hashing the managed resources that
+	 * can't be trusted from the index on startup.
+	 */
+	@Inject(optional=true) @Named(value="StartupThreads")
+	private int startupThreads = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * The digest naming the versions of a resource after its contents,
+	 * either MURMUR3 or any MessageDigest algorithm.  MURMUR3 hashes several
+	 * times faster than MD5, but shouldn't be used if resources may be
+	 * crafted to collide.  Changing the digest gives every resource a new
+	 * version the next time it changes.
+	 */
+	@Inject(optional=true) @Named(value="ContentDigest")
+	private String contentDigest = "MD5";
+	
+	/**
+	 * If true, gzip and deflate variants of the rendered response for each
+	 * delta and for the latest version of each resource are stored when
+	 * they are generated, and served to clients accepting them.
+	 */
+	@Inject(optional=true) @Named(value="PrecompressResponses")
+	private boolean precompressResponses = false;
+	
+	/** Renders the responses to store precompressed variants of. */
+	@Inject
+	private ResponseRenderer renderer;
+	
+	/**
+	 * If true, a requested delta that doesn't exist is generated on demand
+	 * when its old version is still stored, rather than sending the latest
+	 * version of the resource in its place.
+	 */
+	@Inject(optional=true) @Named(value="OnDemandDeltas")
+	private boolean onDemandDeltas = true;
+	
+	/**
+	 * The number of milliseconds a request waits for its delta to be
+	 * generated on demand.  If the delta isn't ready by then the latest
+	 * version is sent instead, and the delta is stored for later requests
+	 * once it is generated.
+	 */
+	@Inject(optional=true) @Named(value="DeltaWaitMillis")
+	private long deltaWaitMillis = 2000;
+	
+	/**
+	 * If true, each new version only gets deltas from the versions 1, 2, 4,
+	 * 8... releases behind it, which are kept until one of their versions
+	 * expires.  A client further behind is sent a chain of at most log N of
+	 * these deltas, applied one after the other, so storing a version takes
+	 * O(log N) diffs rather than one per retained version.
+	 */
+	@Inject(optional=true) @Named(value="SkipDeltas")
+	private boolean skipDeltas = false;
+	
+	/** The number of threads generating deltas on demand. */
+	@Inject(optional=true) @Named(value="DeltaGenerationThreads")
+	private int deltaThreads = 2;
+	
+	/** The on demand delta generations in progress, by folder and name. */
+	private Map<String, FutureTask<Object>> pendingDeltas =
+		new HashMap<String, FutureTask<Object>>();
+	
+	/** Runs on demand delta generations. */
+	private ExecutorService deltaExecutor = null;
+	
+	/** Decides which old versions are deleted when a new one is stored. */
+	@Inject
+	private RetentionPolicy retentionPolicy;
+	
+	/** The store holding versions and deltas within the resource folders. */
+	@Inject
+	private VersionStore store;
+	
+	/**
+	 * If true, the resource store is shared by several servers, e.g. over
+	 * NFS.  Only the server holding a resource's lock stores its versions
+	 * and deltas, and the others use the version it publishes rather than
+	 * generating the deltas again.  Each server keeps its own manifest and
+	 * resource index, named after StoreNodeName.
+	 */
+	@Inject(optional=true) @Named(value="SharedResourceStore")
+	private boolean sharedStore = false;
+	
+	/**
+	 * The name of this server among those sharing the resource store, which
+	 * must be a valid file name.  Defaults to the host name.
+	 */
+	@Inject(optional=true) @Named(value="StoreNodeName")
+	private String nodeName = null;
+	
+	/** The locks of a shared resource store, or null if it isn't shared. */
+	private StoreLocks locks = null;
+	
+	/**
+	 * Fetches the deltas other servers have generated, and advertises the
+	 * ones stored here, if ReplicationPeers is set.
+	 */
+	@Inject
+	private PeerReplicator replicator;
+	
+	/**
+	 * Shares generated deltas and their rendered responses with the other
+	 * servers, if RemoteCacheServers is set.
+	 */
+	@Inject
+	private RemoteArtifactCache remoteCache;
+	
+	/**
+	 * Picks the old versions whose deltas are generated when a version is
+	 * stored, if HotDeltaVersions is set.  Ignored when SkipDeltas is set.
+	 */
+	@Inject
+	private DeltaPopularity popularity;
+	
+	/**
+	 * The versions of the staged release by managed resource, or null if no
+	 * release is staged.
+	 */
+	private Map<File, String> stagedVersions = null;
+	
+	/**
+	 * The versions of the staged release that weren't stored before it was
+	 * staged, by managed resource, which are deleted if it is aborted.
+	 */
+	private Map<File, String> unreleasedVersions = null;
+	
+	/** Stages the release in the background. */
+	private Future<?> staging = null;
+	
+	/** Runs the staging of releases. */
+	private ExecutorService releaseExecutor = null;
+	
 	/** A map relating managed resources to their corresponding resource folders. */
 	private Map<File, File> managedResouceFolders = new HashMap<File, File>();
 	
 	/**
-	 * A private inner class used for filtering the contents of a managed
-	 * resource folder.  It collects the versions of a managed resource not
-	 * including the latest version and deletes deltas as it goes.
-	 * @author joshua Harrison
-	 *
+	 * In a shared store, the resource's lock is waited for before the
+	 * manager's lock is taken, so requests are still served while another
+	 * server holds it.
 	 */
-	private class VersionFilter implements FileFilter {
-		
-		private static final String VERSION_FILE_EXTENSION = "version";
-		
-		private String currentHash = null;
-		private File currentFile = null;
-		
-		public VersionFilter(String currentHash) {
-			this.currentHash = currentHash;
-		}
-		
-		public File getCurrentFile() {
-			return this.currentFile;
-		}
-		
-		@Override
-		public boolean accept(File current) {
-			String extension = current.getName().split("\\.")[1];
-			if (extension.equals(VERSION_FILE_EXTENSION)) {
-				// Return false for the current version.
-				if (current.getAbsolutePath().contains(this.currentHash)) {
-					this.currentFile = current;
-					return false;
-				} else {
-					return true;
+	@Override
+	public void deleteResource(File resource) {
+		if (isManaged(resource)) {
+			StoreLocks.Lease lease = null;
+			try {
+				lease = lockResource(resource, true);
+				deleteLockedResource(resource);
+			} catch (Exception exc) {
+				provider.error(logger, "filemgr.cantcleanupresource",
+						       resource.getAbsolutePath());
+				printer.print(exc);
+			} finally {
+				if (lease != null) {
+					lease.release();
 				}
-			} else {
-				// Delete old deltas.
-				current.delete();
-				return false;
 			}
 		}
 	}
-
-	@Override
-	public synchronized void deleteResource(File resource) {
-		if (isManaged(resource)) {
-			manifest.remove(resource.getAbsolutePath());
-			cleanUpResource(resource);
+	
+	/**
+	 * Does the work of deleteResource, holding the resource's lock if the
+	 * store is shared.
+	 */
+	private synchronized void deleteLockedResource(File resource)
+	throws Exception {
+		if (!isManaged(resource)) {
+			return;
 		}
+		// Look up the resource's folder before forgetting its hash.
+		cleanUpResource(resource);
+		manifestRemoveAndSave(diffableCtx.getResourceKey(resource));
 	}
 
 	@Override
 	public List<File> getManagedResources() {
 		ArrayList<File> managedResources = new ArrayList<File>();
 		for (Object key : manifest.keySet()) {
-			managedResources.add(new File(key.toString()));
+			managedResources.add(diffableCtx.getResource(key.toString()));
 		}
 		return managedResources;
 	}
 
 	@Override
-	public synchronized void getResource(ResourceRequest request)
+	public void getResource(ResourceRequest request)
 			throws ResourceManagerException {
+		// Missing deltas are generated without holding the manager's lock,
+		// so other requests are served while this one waits for its delta.
+		Future<?> generation = findResource(request, onDemandDeltas);
+		if (generation != null) {
+			try {
+				generation.get(deltaWaitMillis, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException exc) {
+				provider.debug(logger, "filemgr.deltawaitexpired",
+						       request.getOldVersionHash() + "_" +
+						       request.getNewVersionHash() + ".diff",
+						       request.getResourceHash());
+			} catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException exc) {
+				// The generation logs its own failures.
+			}
+			findResource(request, false);
+		}
+	}
+	
+	/**
+	 * Fulfills a resource request, unless the requested delta is missing
+	 * and can be generated.
+	 * 
+	 * @param request The request to fulfill.
+	 * @param generate If true, a missing delta to the latest version is
+	 *     generated rather than sending the latest version in its place.
+	 * @return The generation of the requested delta if the request wasn't
+	 *     fulfilled, or null.
+	 */
+	private synchronized Future<?> findResource(ResourceRequest request,
+			                                    boolean generate) {
 		File resource = hashsToResources.get(request.getResourceHash());
 		if (resource != null) {
 			provider.debug(logger, "filemgr.getresource",
 					       request.getResourceHash(),
 					       resource.getAbsolutePath());
+			File folder = managedResouceFolders.get(resource);
 			if (request.isDiff()) {
-				File folder = managedResouceFolders.get(resource);
-				File diff = new File(
-					folder.getAbsolutePath() + File.separator +
-					request.getOldVersionHash() + "_" +
-					request.getNewVersionHash() + ".diff");
-				if (diff.exists()) {
-					request.setResponse(readFileContents(diff));
+				String deltaName = request.getOldVersionHash() + "_" +
+					request.getNewVersionHash() + ".diff";
+				if (openVariant(request, folder, deltaName)) {
+					return null;
+				}
+				StoredArtifact diff = openDelta(
+					request.getResourceHash(), folder, deltaName);
+				String chain = diff == null && skipDeltas ?
+					getDeltaChain(request, resource, folder) : null;
+				if (diff != null) {
+					request.setArtifact(diff);
+				} else if (chain != null) {
+					request.setResponse(chain);
+				} else if (generate && canGenerateDelta(request, resource)) {
+					return generateDelta(resource, folder,
+						request.getOldVersionHash(),
+						request.getNewVersionHash());
 				} else {
 					// If the diff being requested cannot be located, then the
 					// response should be set to the whole string of the latest
 					// version of the resource.  This means that in the worst
 					// case, if a diff can't be located, the client will still
 					// execute the latest version of the resource.
-					if (keepResourcesInMemory) {
-						request.setResponse(
-							"[" +
-							JSONHelper.quote(resourceContents.get(resource)) +
-							"]");
-					} else {
-						String contents = readFileContents(resource);
-						request.setResponse(
-							"[" +
-							JSONHelper.quote(contents) +
-							"]");
-					}
+					request.setFallback(diffableCtx.getCurrentVersion(resource),
+						getLatestContents(request.getResourceHash(), resource));
 				}
 			} else {
-				if (keepResourcesInMemory) {
-					request.setResponse(resourceContents.get(resource));
-				} else {
-					request.setResponse(readFileContents(resource));
+				if (openVariant(request, folder,
+						diffableCtx.getCurrentVersion(resource) +
+						FULL_RESPONSE_SUFFIX)) {
+					request.setNewVersionHash(
+						diffableCtx.getCurrentVersion(resource));
+					return null;
 				}
+				request.setResponse(
+					getLatestContents(request.getResourceHash(), resource));
 				request.setNewVersionHash(diffableCtx.getCurrentVersion(resource));
 			}
 		}
+		return null;
+	}
+	
+	/**
+	 * Joins the skip deltas leading from the requested old version to the
+	 * latest version, taking the longest stored delta at each step.
+	 * 
+	 * @return A JSON array of the deltas, or null if the old version isn't
+	 *     retained or a step is missing.
+	 */
+	private String getDeltaChain(ResourceRequest request, File resource,
+			                     File resourceFolder) {
+		String latestHash = request.getNewVersionHash();
+		if (!latestHash.equals(diffableCtx.getCurrentVersion(resource))) {
+			return null;
+		}
+		List<String> versions = new ArrayList<String>();
+		try {
+			for (VersionRecord record : readHistory(resourceFolder,
+					System.currentTimeMillis())) {
+				versions.add(record.getVersion());
+			}
+		} catch (IOException exc) {
+			return null;
+		}
+		int position = versions.indexOf(request.getOldVersionHash());
+		int latest = versions.indexOf(latestHash);
+		if (position < 0 || position >= latest) {
+			return null;
+		}
+		StringBuilder chain = new StringBuilder("[");
+		while (position < latest) {
+			StoredArtifact delta = null;
+			int skip = Integer.highestOneBit(latest - position) * 2;
+			while (delta == null && skip > 1) {
+				skip /= 2;
+				delta = openDelta(request.getResourceHash(), resourceFolder,
+					versions.get(position) + "_" +
+					versions.get(position + skip) + ".diff");
+			}
+			if (delta == null) {
+				return null;
+			}
+			position += skip;
+			try {
+				if (chain.length() > 1) {
+					chain.append(',');
+				}
+				chain.append(new String(delta.getBytes(),
+					Constants.RESPONSE_CHARSET));
+			} catch (IOException exc) {
+				return null;
+			}
+		}
+		return chain.append(']').toString();
+	}
+	
+	/**
+	 * @return True if the delta requested is to the latest version of the
+	 *     resource, from a version still in the version store.
+	 */
+	private boolean canGenerateDelta(ResourceRequest request, File resource) {
+		String oldVersion = request.getOldVersionHash();
+		String newVersion = request.getNewVersionHash();
+		// The hashes come straight from the request, so make sure they
+		// can't name anything but a version.
+		if (oldVersion == null || !isHex(oldVersion) ||
+			oldVersion.equals(newVersion) ||
+			!newVersion.equals(diffableCtx.getCurrentVersion(resource))) {
+			return false;
+		}
+		return store.hasVersion(
+			managedResouceFolders.get(resource), oldVersion);
+	}
+	
+	/**
+	 * Starts generating a delta between a stored version of a resource and
+	 * its latest version, unless it is already being generated, in which
+	 * case the running generation is returned so concurrent requests for
+	 * the same delta share it.
+	 * 
+	 * @return The generation of the delta.
+	 */
+	private Future<?> generateDelta(final File resource,
+			                        final File resourceFolder,
+			                        final String oldVersion,
+			                        final String latestHash) {
+		final String deltaName = oldVersion + "_" + latestHash + ".diff";
+		final String key = resourceFolder.getName() + "/" + deltaName;
+		FutureTask<Object> generation = pendingDeltas.get(key);
+		if (generation != null) {
+			return generation;
+		}
+		provider.debug(logger, "filemgr.deltaondemand",
+				       deltaName, resource.getAbsolutePath());
+		generation = new FutureTask<Object>(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					computeDelta(resource, resourceFolder, oldVersion,
+							     latestHash, deltaName);
+				} catch (Exception exc) {
+					provider.error(logger, "filemgr.deltaerror",
+							       resource.getAbsolutePath(), latestHash);
+					printer.print(exc);
+				} finally {
+					synchronized (FileResourceManager.this) {
+						pendingDeltas.remove(key);
+					}
+				}
+			}
+		}, null);
+		pendingDeltas.put(key, generation);
+		getDeltaExecutor().execute(generation);
+		return generation;
+	}
+	
+	/**
+	 * Generates and stores a delta.  The versions are read and the delta
+	 * stored while holding the manager's lock, but the delta is computed
+	 * without it.  The delta isn't stored if the resource changed in the
+	 * mean time, since putResource will have deleted the deltas to the
+	 * version it was computed for.
+	 */
+	private void computeDelta(File resource, File resourceFolder,
+			                  String oldVersion, String latestHash,
+			                  String deltaName) throws Exception {
+		String oldContent;
+		String currentContent;
+		Differ resourceDiffer;
+		synchronized (this) {
+			oldContent = readVersion(resourceFolder, oldVersion);
+			currentContent = readVersion(resourceFolder, latestHash);
+			resourceDiffer = getDiffer(resource);
+		}
+		if (oldContent == null || currentContent == null) {
+			return;
+		}
+		// Another server sharing the store may have generated it since it
+		// was requested.  Deltas are named after both of their versions, so
+		// one stored by any server is as good as this one.
+		if (locks != null && store.hasArtifact(resourceFolder, deltaName)) {
+			return;
+		}
+		String diff = diff(resourceDiffer, hashResourcePath(resource),
+			oldVersion, oldContent, currentContent);
+		synchronized (this) {
+			if (!latestHash.equals(diffableCtx.getCurrentVersion(resource))) {
+				return;
+			}
+			provider.debug(logger, "filemgr.deltagenerated",
+				           deltaName, resource.getAbsolutePath());
+			store.putArtifact(resourceFolder, deltaName,
+				diff.getBytes(Constants.RESPONSE_CHARSET));
+			if (precompressResponses) {
+				putVariants(resourceFolder, deltaName, renderer.renderDelta(
+					hashResourcePath(resource), diff), null);
+			}
+		}
+	}
+	
+	/**
+	 * @return The executor running on demand delta generations, creating it
+	 *     on first use.
+	 */
+	private synchronized ExecutorService getDeltaExecutor() {
+		if (deltaExecutor == null) {
+			deltaExecutor = Executors.newFixedThreadPool(deltaThreads,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "deltaGenerator");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		}
+		return deltaExecutor;
+	}
+	
+	/**
+	 * Stops the threads staging releases and generating deltas on demand,
+	 * waiting briefly for the work in progress to be stored.  Then stops
+	 * the manifest timer, writes the batched manifest changes and the delta
+	 * popularity, and closes the manifest journal.
+	 */
+	@Override
+	public void shutdown() {
+		ExecutorService[] executors;
+		synchronized (this) {
+			executors = new ExecutorService[] {releaseExecutor, deltaExecutor};
+			releaseExecutor = null;
+			deltaExecutor = null;
+			if (manifestTimer != null) {
+				manifestTimer.cancel();
+				manifestTimer = null;
+			}
+		}
+		for (ExecutorService executor : executors) {
+			if (executor == null) {
+				continue;
+			}
+			executor.shutdown();
+			try {
+				executor.awaitTermination(
+					deltaWaitMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			flushManifest();
+			popularity.flush();
+			if (journal != null) {
+				journal.close();
+			}
+		}
 	}
 
 	@Override
 	public boolean hasResourceChanged(File resource)
 			throws ResourceManagerException {
 		
-		// To know if a resource has change, we save the last modified date of the resource in corresponding
-		// resource folder, so we will be able to check if the resource has change by comparing the last modified date
-		// of the resource and the last modified date of the resource folder
+		// A resource is unchanged as long as its size, last modified time and
+		// file key still match the ones recorded when it was last read.
 		if (isManaged(resource)) {
-			if (managedResouceFolders.containsKey(resource) && (
-				resource.lastModified() ==
-				managedResouceFolders.get(resource).lastModified())) {
-				return false;
-			} else {
-				return true;
-			}
+			return !managedResouceFolders.containsKey(resource) ||
+				index.getTrustedVersion(resource) == null;
 		} else {
 			throw new ResourceManagerException(
 				provider.error("filemgr.filenotmanaged", 
@@ -231,7 +719,7 @@ public class FileResourceManager implements ResourceManager {
 
 	@Override
 	public boolean isManaged(File resource) {
-		if (manifest.containsKey(resource.getAbsolutePath())) {
+		if (manifest.containsKey(diffableCtx.getResourceKey(resource))) {
 			return true;
 		} else {
 			return false;
@@ -240,6 +728,38 @@ public class FileResourceManager implements ResourceManager {
 
 	@Override
 	public synchronized void putResource(File resource) throws ResourceManagerException {
+		// In a shared store, a resource locked by another server is left
+		// for it to publish, and picked up the next time it is put.  The
+		// lock isn't waited for, so requests aren't held up meanwhile.
+		StoreLocks.Lease lease;
+		try {
+			lease = lockResource(resource, false);
+		} catch (Exception exc) {
+			printer.print(exc);
+			throw new ResourceManagerException(
+				provider.error("filemgr.cantlock",
+						       resource.getAbsolutePath()));
+		}
+		if (locks != null && lease == null) {
+			provider.debug(logger, "filemgr.resourcelocked",
+					       resource.getAbsolutePath());
+			return;
+		}
+		try {
+			updateResource(resource);
+		} finally {
+			if (lease != null) {
+				lease.release();
+			}
+		}
+	}
+	
+	/**
+	 * Does the work of putResource, holding the resource's lock if the
+	 * store is shared.
+	 */
+	private void updateResource(File resource)
+	throws ResourceManagerException {
 		// Creates any artifacts necessary for managing a resource.  If all
 		// artifacts are already setup, this call is a no-op.
 		try {
@@ -257,18 +777,19 @@ public class FileResourceManager implements ResourceManager {
 			provider.info(logger, "filemgr.resourcechanged",
 					      resource.getAbsolutePath());
 			try {
-				String latestHash = readInAndCopyLatestVersion(resource, false);
+				IngestedVersion latest =
+					readInAndCopyLatestVersion(resource, false);
 
-				// If the latest hash is not null, then the actual contents of
+				// If there is a latest version, then the actual contents of
 				// the managed resource have changes, and new diffs must be
 				// generated.
-				if (latestHash != null) {
+				if (latest != null) {
 					provider.info(logger, "filemgr.gendeltas",
 						      	  resource.getAbsolutePath());
-					generateDeltas(resource, latestHash);
+					generateDeltas(resource, latest.hash, latest.contents);
 					// Update the Diffable context so it can correctly identify
 					// the most recent version of this resource.
-					diffableCtx.setCurrentVersion(resource, latestHash);
+					diffableCtx.setCurrentVersion(resource, latest.hash);
 				}
 			} catch (Exception exc) {
 				printer.print(exc);
@@ -326,7 +847,18 @@ public class FileResourceManager implements ResourceManager {
 				// If the resource store exists, attempt to open the manifest file,
 				// and if one doesn't exist, create it.
 				this.resourceStore = resourceStore;
+				prepareStore();
 				initializeManifest();
+				if (replicator.isEnabled()) {
+					replicator.setSource(new PeerReplicator.ArtifactSource() {
+						@Override
+						public byte[] getArtifact(String resourceHash,
+								                  String name)
+						throws IOException {
+							return getReplicaArtifact(resourceHash, name);
+						}
+					});
+				}
 				provider.info(logger, "filemgr.resourcestore",
 						      resourceStore.getAbsolutePath());
 				break;
@@ -341,144 +873,1363 @@ public class FileResourceManager implements ResourceManager {
 	}
 	
 	/**
-	 * The FileResourceManager uses a manifest file to persist information
-	 * about the resources it is managing.  The file keeps track of which file
-	 * system resources are managed along with which versions of each exist.
+	 * Moves the resource folders to the current shard depth and initializes
+	 * the version store.  If the store is shared, this is done holding the
+	 * store's lock so that servers starting together take turns.
 	 * 
-	 * This function is called once when Diffable first loads. If a manifest
-	 * does not yet exist, one is created.  If one does exist, it is loaded into
-	 * memory and checked against the file system for consistency. If a resource
-	 * that was managed cannot be found, then the corresponding resource manager
-	 * resources will be freed. If resource manager resources, such as diffs or
-	 * versions, have been removed from the file system outside of Diffable, the
-	 * manifest will be updated to reflect reality.
+	 * @throws ResourceManagerException If the store is shared but the
+	 *     version store assumes it is the only writer: the PackVersionStore
+	 *     appends to its packs unlocked, and the ChunkVersionStore deletes
+	 *     the chunks its own versions don't use.
 	 */
-	private void initializeManifest() {
-		// If the manifest does not yet exist, create it.
-		File manifestFile = 
-			new File(resourceStore.getAbsolutePath() + "/diffable.manifest");
-		manifest = new Properties();
-		if (!manifestFile.exists()) {
+	private void prepareStore() throws ResourceManagerException {
+		StoreLocks.Lease lease = null;
+		if (sharedStore && (store instanceof PackVersionStore ||
+				            store instanceof ChunkVersionStore)) {
+			throw new ResourceManagerException(
+				provider.error("filemgr.storenotshared",
+						       store.getClass().getSimpleName()));
+		}
+		if (sharedStore) {
+			locks = new StoreLocks(resourceStore);
+			if (nodeName == null) {
+				try {
+					nodeName = InetAddress.getLocalHost().getHostName();
+				} catch (UnknownHostException exc) {
+					nodeName = "localhost";
+				}
+			}
 			try {
-				manifestFile.createNewFile();
-				provider.debug(logger, "filemgr.createmanifest",
-							   manifestFile.getAbsolutePath());
+				lease = locks.acquire(STORE_LOCK, true);
 			} catch (IOException exc) {
-				provider.error(logger, "filemgr.cantcreatemanifest",
-							   manifestFile.getAbsolutePath());
+				provider.error(logger, "filemgr.cantlock",
+						       resourceStore.getAbsolutePath());
 				printer.print(exc);
 			}
 		} else {
-			FileInputStream is = null;
-			FileOutputStream out = null;
-			try {
-				is = new FileInputStream(manifestFile);
-				manifest.load(is);
-				Set<Object> keys = manifest.keySet();
-				// Each of the keys in the properties file should be the
-				// absolute path of a managed resource file. The value should
-				// be the hash of that file path.
-				for (Object key : keys) {
-					String path = key.toString();
-					
-					// Check to make sure the file still exists.  If it doesn't
-					// clean up all remaining resources and remove the entry.
-					File managedResource = new File(path);
-					if (!managedResource.exists()) {
-						cleanUpResource(managedResource);
-						keys.remove(key);
-					} else {
-						// Call putResource, which will make sure all necessary
-						// artifacts are created and the resource is properly
-						// managed.
-						putResource(managedResource);
-						
-						// Explicitly retrieve the hash of the current version
-						// of the managed resource and pass it to the Diffable
-						// tag on start up.
-						String latestHash =
-							readInAndCopyLatestVersion(managedResource, true);
-						// Update the Diffable context so it can correctly identify
-						// the most recent version of this resource.
-						diffableCtx.setCurrentVersion(managedResource, latestHash);
-					}
-				}
-				out = new FileOutputStream(manifestFile);
-				manifest.store(out, null);
-			} catch (Exception exc) {
-				provider.error(logger, "manifest.cantload",
-						       manifestFile.getAbsolutePath());
-				printer.print(exc);
-			}finally{
-				IOUtils.close(is);
-				IOUtils.close(out);
-			}
+			locks = null;
 		}
-	}
-	
+		try {
+			migrateResourceFolders();
+			store.initialize(resourceStore);
+		} catch (IOException exc) {
+			provider.error(logger, "filemgr.cantinitstore",
+					       resourceStore.getAbsolutePath());
+			printer.print(exc);
+		} finally {
+			if (lease != null) {
+				lease.release();
+			}
+		}
+	}
+	
+	/**
+	 * @return The name of a file this server keeps in the resource store,
+	 *     prefixed by the server's name if the store is shared.
+	 */
+	private String getStoreFileName(String name) {
+		return locks == null ? "diffable." + name :
+			"diffable." + nodeName + "." + name;
+	}
+	
+	/**
+	 * Locks a managed resource for this server, if the store is shared.
+	 * 
+	 * @param resource The managed resource.
+	 * @param wait If true, waits for another server to release the lock.
+	 * @return The lease on the lock, or null if the store isn't shared or
+	 *     wait is false and the lock is held.
+	 */
+	private StoreLocks.Lease lockResource(File resource, boolean wait)
+	throws Exception {
+		if (locks == null) {
+			return null;
+		}
+		return locks.acquire(hashResourcePath(resource), wait);
+	}
+	
+	/**
+	 * Reads an artifact of a managed resource for a peer.
+	 * 
+	 * @param resourceHash The hash of the managed resource's path.
+	 * @param name The name of the artifact.
+	 * @return The artifact, or null if the resource isn't managed or the
+	 *     artifact isn't stored.
+	 */
+	private synchronized byte[] getReplicaArtifact(String resourceHash,
+			                                       String name)
+	throws IOException {
+		File resource = hashsToResources.get(resourceHash);
+		File resourceFolder =
+			resource == null ? null : managedResouceFolders.get(resource);
+		return resourceFolder == null ? null :
+			store.getArtifact(resourceFolder, name);
+	}
+	
+	/**
+	 * The FileResourceManager uses a manifest file to persist information
+	 * about the resources it is managing.  The file keeps track of which file
+	 * system resources are managed along with which versions of each exist.
+	 * 
+	 * This function is called once when Diffable first loads. If a manifest
+	 * does not yet exist, one is created.  If one does exist, it is loaded into
+	 * memory and checked against the file system for consistency. If a resource
+	 * that was managed cannot be found, then the corresponding resource manager
+	 * resources will be freed. If resource manager resources, such as diffs or
+	 * versions, have been removed from the file system outside of Diffable, the
+	 * manifest will be updated to reflect reality.
+	 */
+	private void initializeManifest() {
+		// If the manifest does not yet exist, create it.
+		File manifestFile =
+			new File(resourceStore, getStoreFileName("manifest"));
+		journal = new ManifestJournal(manifestFile, manifestCheckpointRecords);
+		index = new ResourceIndex(
+			new File(resourceStore, getStoreFileName("index")));
+		try {
+			index.load();
+		} catch (IOException exc) {
+			printer.print(exc);
+		}
+		popularity.load(
+			new File(resourceStore, getStoreFileName("popularity")));
+		manifest = new Properties();
+		if (journal.isNew()) {
+			try {
+				journal.load();
+				journal.checkpoint();
+				provider.debug(logger, "filemgr.createmanifest",
+							   manifestFile.getAbsolutePath());
+			} catch (IOException exc) {
+				provider.error(logger, "filemgr.cantcreatemanifest",
+							   manifestFile.getAbsolutePath());
+				printer.print(exc);
+			}
+		} else {
+			try {
+				// Loading replays the journal over the last checkpoint,
+				// dropping any change torn by a crash.
+				manifest = journal.load();
+				// Each of the keys in the properties file should be the key
+				// of a managed resource file. The value should be the hash
+				// identifying it.
+				List<File> untrusted = new ArrayList<File>();
+				int migrated = 0;
+				for (Object key : new ArrayList<Object>(manifest.keySet())) {
+					String path = key.toString();
+					File managedResource = diffableCtx.getResource(path);
+					if (!managedResource.exists() &&
+						new File(path).isAbsolute()) {
+						// The store may have been moved to another host
+						// along with the resources.
+						File moved = findMovedResource(path);
+						if (moved != null) {
+							provider.info(logger, "manifest.relocated",
+								          path, moved.getAbsolutePath());
+							managedResource = moved;
+						}
+					}
+					
+					// Manifests used to be keyed by absolute paths.  Those
+					// entries are keyed relative to the resource folders
+					// instead, keeping their hashes so neither the store nor
+					// the identifiers cached by clients change.
+					String resourceKey =
+						diffableCtx.getResourceKey(managedResource);
+					if (!resourceKey.equals(path)) {
+						manifest.put(resourceKey, manifest.remove(key));
+						migrated++;
+					}
+					
+					// Check to make sure the file still exists.  If it doesn't
+					// clean up all remaining resources and remove the entry.
+					if (!managedResource.exists()) {
+						cleanUpResource(managedResource);
+						manifest.remove(resourceKey);
+						continue;
+					}
+					// Resources that haven't changed since they were indexed
+					// are registered without being read.
+					String trusted = index.getTrustedVersion(managedResource);
+					if (trusted != null && restoreResource(
+							managedResource, trusted)) {
+						continue;
+					}
+					untrusted.add(managedResource);
+				}
+				// The rest are read and hashed in parallel, then validated
+				// one at a time.
+				Map<File, ResourceIndex.Entry> checksums =
+					readChecksums(untrusted);
+				for (File managedResource : untrusted) {
+					validateResource(
+						managedResource, checksums.get(managedResource));
+				}
+				if (migrated > 0) {
+					provider.info(logger, "manifest.migrated",
+						          Integer.toString(migrated));
+				}
+				// Fold the recovered journal into a fresh checkpoint.
+				journal.checkpoint();
+				index.save();
+			} catch (Exception exc) {
+				provider.error(logger, "manifest.cantload",
+						       manifestFile.getAbsolutePath());
+				printer.print(exc);
+			}
+		}
+		startManifestTimer();
+	}
+	
+	/**
+	 * Looks for a resource keyed by an absolute path that no longer exists
+	 * in the resource folders, taking the longest trailing part of the path
+	 * found in one of them.  A file whose key is already in the manifest is
+	 * managed in its own right, so it is never taken.
+	 * 
+	 * @param path The absolute path the resource was keyed by.
+	 * @return The resource, or null if no resource folder holds it.
+	 */
+	private File findMovedResource(String path) {
+		List<File> folders = diffableCtx.getResourceFolders();
+		if (folders == null) {
+			return null;
+		}
+		String[] parts = path.replace(File.separatorChar, '/').split("/");
+		for (int start = 1; start < parts.length; start++) {
+			StringBuilder suffix = new StringBuilder(parts[start]);
+			for (int i = start + 1; i < parts.length; i++) {
+				suffix.append(File.separatorChar).append(parts[i]);
+			}
+			for (File folder : folders) {
+				File candidate = new File(folder, suffix.toString());
+				if (candidate.isFile() && !manifest.containsKey(
+						diffableCtx.getResourceKey(candidate))) {
+					return candidate;
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Starts the timer writing batched manifest changes, replacing any timer
+	 * left from a previous initialization.
+	 */
+	private void startManifestTimer() {
+		if (manifestTimer != null) {
+			manifestTimer.cancel();
+		}
+		manifestTimer = new Timer("manifestJournal", true);
+		manifestTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				flushManifest();
+			}
+		}, manifestFlushInterval, manifestFlushInterval);
+	}
+	
+	/**
+	 * Registers a managed resource on startup, trusting that it still holds
+	 * the version recorded in the resource index.
+	 * 
+	 * @return False if the version is no longer stored, in which case the
+	 *     resource must be validated.
+	 */
+	private boolean restoreResource(File resource, String version)
+	throws Exception {
+		String hash = hashResourcePath(resource);
+		File resourceFolder = getManagedResourceFolder(resource, hash);
+		if (!resourceFolder.exists() ||
+			!store.hasVersion(resourceFolder, version)) {
+			return false;
+		}
+		hashsToResources.put(hash, resource);
+		diffableCtx.setResourceHash(resource, hash);
+		managedResouceFolders.put(resource, resourceFolder);
+		diffableCtx.setCurrentVersion(resource, version);
+		precompressResource(resource, version);
+		return true;
+	}
+	
+	/**
+	 * Reads and hashes resources in parallel.
+	 * 
+	 * @param resources The resources to read.
+	 * @return For each resource that could be read, its hash and its state
+	 *     taken before it was read.
+	 */
+	private Map<File, ResourceIndex.Entry> readChecksums(List<File> resources)
+	throws InterruptedException {
+		Map<File, ResourceIndex.Entry> checksums =
+			new HashMap<File, ResourceIndex.Entry>();
+		if (resources.isEmpty()) {
+			return checksums;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(
+			Math.max(1, Math.min(startupThreads, resources.size())));
+		try {
+			Map<File, Future<ResourceIndex.Entry>> results =
+				new HashMap<File, Future<ResourceIndex.Entry>>();
+			for (final File resource : resources) {
+				results.put(resource, executor.submit(
+					new Callable<ResourceIndex.Entry>() {
+						@Override
+						public ResourceIndex.Entry call() {
+							FileStat stat = FileStat.of(resource);
+							byte[] contents = readResource(resource);
+							String checksum = contents == null ? null :
+								getChecksum(resource, contents);
+							return checksum == null ? null :
+								new ResourceIndex.Entry(checksum, stat, 0);
+						}
+					}));
+			}
+			for (Map.Entry<File, Future<ResourceIndex.Entry>> result :
+				 results.entrySet()) {
+				try {
+					checksums.put(result.getKey(), result.getValue().get());
+				} catch (ExecutionException exc) {
+					printer.print(exc.getCause());
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+		return checksums;
+	}
+	
+	/**
+	 * Validates a managed resource on startup that couldn't be trusted from
+	 * the resource index.  If its contents are a stored version that becomes
+	 * the current version, otherwise the new version is stored and its
+	 * deltas generated as putResource would.
+	 * 
+	 * @param resource The managed resource.
+	 * @param checksum The hash and state of the resource as read by
+	 *     readChecksums, or null if it couldn't be read.
+	 */
+	private void validateResource(File resource, ResourceIndex.Entry checksum)
+	throws Exception {
+		StoreLocks.Lease lease = lockResource(resource, true);
+		try {
+			validateLockedResource(resource, checksum);
+		} finally {
+			if (lease != null) {
+				lease.release();
+			}
+		}
+	}
+	
+	/**
+	 * Does the work of validateResource, holding the resource's lock if the
+	 * store is shared.
+	 */
+	private void validateLockedResource(File resource,
+			                            ResourceIndex.Entry checksum)
+	throws Exception {
+		createResourceArtifacts(resource);
+		File resourceFolder = managedResouceFolders.get(resource);
+		if (checksum != null &&
+			store.hasVersion(resourceFolder, checksum.version)) {
+			index.put(resource, checksum.version, checksum.stat);
+			diffableCtx.setCurrentVersion(resource, checksum.version);
+			precompressResource(resource, checksum.version);
+			return;
+		}
+		IngestedVersion latest = readInAndCopyLatestVersion(resource, false);
+		if (latest != null) {
+			provider.info(logger, "filemgr.gendeltas",
+				      	  resource.getAbsolutePath());
+			generateDeltas(resource, latest.hash, latest.contents);
+			diffableCtx.setCurrentVersion(resource, latest.hash);
+			precompressResource(resource, latest.hash);
+		}
+	}
+	
+	/**
+	 * Writes the batched manifest changes to the manifest journal.
+	 */
+	public synchronized void flushManifest() {
+		if (journal == null) {
+			return;
+		}
+		try {
+			journal.flush();
+			index.save();
+			popularity.save();
+		} catch (IOException exc) {
+			provider.error(logger, "manifest.cantsave",
+				           resourceStore.getAbsolutePath() + File.separator +
+				           getStoreFileName("manifest"));
+			printer.print(exc);
+		}
+	}
+	
+	/**
+	 * Stages an upcoming release in the background.  The release folder is
+	 * laid out like the resource folders, and each file in it holds the next
+	 * version of the managed resource with the same key.  Its version is
+	 * stored and the deltas to it from the versions the retention policy
+	 * will keep are generated, but the current versions are left alone
+	 * until commitRelease switches them all at once.  Files for resources
+	 * that aren't managed yet are skipped, since no client holds an older
+	 * version of them.
+	 * 
+	 * @param releaseFolder The folder holding the release.
+	 * @throws ResourceManagerException If a release is being staged.
+	 */
+	public synchronized void stageRelease(File releaseFolder)
+	throws ResourceManagerException {
+		if (staging != null && !staging.isDone()) {
+			throw new ResourceManagerException(
+				provider.error("filemgr.releasebusy"));
+		}
+		final Map<File, File> release = new LinkedHashMap<File, File>();
+		findReleaseFiles(releaseFolder, "", release);
+		final Map<File, String> versions = new LinkedHashMap<File, String>();
+		final Map<File, String> unreleased = new HashMap<File, String>();
+		provider.info(logger, "filemgr.stagingrelease",
+				      Integer.toString(release.size()),
+				      releaseFolder.getAbsolutePath());
+		stagedVersions = versions;
+		unreleasedVersions = unreleased;
+		staging = getReleaseExecutor().submit(new Runnable() {
+			@Override
+			public void run() {
+				for (Map.Entry<File, File> file : release.entrySet()) {
+					if (Thread.currentThread().isInterrupted()) {
+						return;
+					}
+					File resource = file.getKey();
+					try {
+						String version = stageResource(resource,
+							file.getValue(), unreleased);
+						if (version != null) {
+							synchronized (FileResourceManager.this) {
+								versions.put(resource, version);
+							}
+						}
+					} catch (Exception exc) {
+						if (Thread.currentThread().isInterrupted()) {
+							return;
+						}
+						provider.error(logger, "filemgr.cantstageresource",
+								       resource.getAbsolutePath());
+						printer.print(exc);
+					}
+				}
+				provider.info(logger, "filemgr.releasestaged",
+						      Integer.toString(versions.size()));
+			}
+		});
+	}
+	
+	/**
+	 * @return True if a release is staged and all of its deltas have been
+	 *     generated.
+	 */
+	public synchronized boolean isReleaseStaged() {
+		return staging != null && staging.isDone() && !staging.isCancelled();
+	}
+	
+	/**
+	 * @return The versions staged so far by managed resource, which is
+	 *     empty if no release is staged.
+	 */
+	public synchronized Map<File, String> getStagedVersions() {
+		return stagedVersions == null ? new HashMap<File, String>() :
+			new LinkedHashMap<File, String>(stagedVersions);
+	}
+	
+	/**
+	 * Makes the versions of the staged release the current versions of
+	 * their resources, switching them all in the DiffableContext at once,
+	 * and expires the versions the retention policy drops.  The deltas to
+	 * the previous versions are kept until deltas are next generated, so
+	 * pages rendered before the switch are still served.  The release's
+	 * files are expected to replace the resources afterwards, at which
+	 * point they are recognized as the current versions.
+	 * 
+	 * In a shared store, the resources of the release are all locked before
+	 * the manager's lock is taken, in the same order on every server.
+	 * 
+	 * @throws ResourceManagerException If no release is staged, it is
+	 *     still being staged, or its resources couldn't be locked.
+	 */
+	public void commitRelease() throws ResourceManagerException {
+		Future<?> committed;
+		Map<String, File> resources = new TreeMap<String, File>();
+		synchronized (this) {
+			if (staging == null) {
+				throw new ResourceManagerException(
+					provider.error("filemgr.norelease"));
+			}
+			if (!isReleaseStaged()) {
+				throw new ResourceManagerException(
+					provider.error("filemgr.releasenotready"));
+			}
+			committed = staging;
+			for (File resource : stagedVersions.keySet()) {
+				try {
+					resources.put(hashResourcePath(resource), resource);
+				} catch (Exception exc) {
+					printer.print(exc);
+				}
+			}
+		}
+		List<StoreLocks.Lease> leases = new ArrayList<StoreLocks.Lease>();
+		try {
+			if (locks != null) {
+				for (Map.Entry<String, File> resource : resources.entrySet()) {
+					try {
+						leases.add(locks.acquire(resource.getKey(), true));
+					} catch (IOException exc) {
+						printer.print(exc);
+						throw new ResourceManagerException(
+							provider.error("filemgr.cantlock",
+								resource.getValue().getAbsolutePath()));
+					}
+				}
+			}
+			commitLockedRelease(committed);
+		} finally {
+			for (StoreLocks.Lease lease : leases) {
+				lease.release();
+			}
+		}
+	}
+	
+	/**
+	 * Does the work of commitRelease, holding the locks of the release's
+	 * resources if the store is shared.
+	 * 
+	 * @param committed The staging of the release being committed.
+	 * @throws ResourceManagerException If the release was aborted or
+	 *     replaced while its resources were being locked.
+	 */
+	private synchronized void commitLockedRelease(Future<?> committed)
+	throws ResourceManagerException {
+		if (staging != committed) {
+			throw new ResourceManagerException(
+				provider.error("filemgr.norelease"));
+		}
+		Map<File, String> released = new HashMap<File, String>();
+		for (Map.Entry<File, String> staged : stagedVersions.entrySet()) {
+			File resource = staged.getKey();
+			String version = staged.getValue();
+			if (!isManaged(resource) ||
+				version.equals(diffableCtx.getCurrentVersion(resource))) {
+				continue;
+			}
+			try {
+				String hash = hashResourcePath(resource);
+				File resourceFolder = getManagedResourceFolder(resource, hash);
+				byte[] contents = store.getVersion(resourceFolder, version);
+				if (contents == null) {
+					continue;
+				}
+				writeHistory(resourceFolder, expireVersions(resource,
+					resourceFolder, version, contents.length));
+				cache.removeResource(hash);
+				if (keepResourcesInMemory) {
+					cache.put(hash + "/" + version, new String(contents));
+				}
+				precompressResource(resource, version);
+				publishVersion(resourceFolder, version);
+				released.put(resource, version);
+			} catch (Exception exc) {
+				provider.error(logger, "filemgr.cantcommitresource",
+						       resource.getAbsolutePath());
+				printer.print(exc);
+			}
+		}
+		diffableCtx.setCurrentVersions(released);
+		provider.info(logger, "filemgr.releasecommitted",
+				      Integer.toString(released.size()));
+		stagedVersions = null;
+		unreleasedVersions = null;
+		staging = null;
+	}
+	
+	/**
+	 * Abandons the staged release, stopping its staging if it is still
+	 * running.  The versions it stored are deleted along with the deltas
+	 * and responses rendered for them, so that deploying one of them later
+	 * ingests it as a new version, unless it has already become the
+	 * current version.  Staging only stores while holding the manager's
+	 * lock, and stops once interrupted, so nothing more is stored for the
+	 * release afterwards.  In a shared store, each resource is locked
+	 * before its version is deleted, outside the manager's lock.
+	 */
+	public void abortRelease() {
+		Map<File, String> unreleased = new HashMap<File, String>();
+		synchronized (this) {
+			if (staging != null) {
+				staging.cancel(true);
+				provider.info(logger, "filemgr.releaseaborted");
+			}
+			if (unreleasedVersions != null) {
+				unreleased.putAll(unreleasedVersions);
+			}
+			stagedVersions = null;
+			unreleasedVersions = null;
+			staging = null;
+		}
+		for (Map.Entry<File, String> version : unreleased.entrySet()) {
+			File resource = version.getKey();
+			StoreLocks.Lease lease = null;
+			try {
+				lease = lockResource(resource, true);
+				deleteUnreleasedVersion(resource, version.getValue());
+			} catch (Exception exc) {
+				provider.error(logger, "filemgr.cantabortresource",
+						       resource.getAbsolutePath());
+				printer.print(exc);
+			} finally {
+				if (lease != null) {
+					lease.release();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Deletes a version stored by an aborted release, and the artifacts
+	 * rendered for it, unless it is the current version of its resource
+	 * here or, in a shared store, the version another server published.
+	 * 
+	 * @param resource The managed resource.
+	 * @param version The hash of the version.
+	 */
+	private synchronized void deleteUnreleasedVersion(File resource,
+			                                          String version)
+	throws Exception {
+		if (!isManaged(resource) ||
+			version.equals(diffableCtx.getCurrentVersion(resource))) {
+			return;
+		}
+		String hash = hashResourcePath(resource);
+		File resourceFolder = getManagedResourceFolder(resource, hash);
+		if (locks != null &&
+			version.equals(getPublishedVersion(resourceFolder))) {
+			return;
+		}
+		provider.debug(logger, "filemgr.versionunreleased",
+				       version, resource.getAbsolutePath());
+		store.deleteVersion(resourceFolder, version);
+		for (String name : store.getArtifacts(resourceFolder)) {
+			if (name.startsWith(version + FULL_RESPONSE_SUFFIX) ||
+				name.contains("_" + version + ".diff")) {
+				store.deleteArtifact(resourceFolder, name);
+			}
+		}
+		cache.removeResource(hash);
+	}
+	
+	/**
+	 * Finds the files of a release, recursively, by the resources they are
+	 * the next versions of.
+	 */
+	private void findReleaseFiles(File folder, String prefix,
+			                      Map<File, File> release) {
+		File[] children = folder.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			String key = prefix + child.getName();
+			if (child.isDirectory()) {
+				findReleaseFiles(child, key + "/", release);
+				continue;
+			}
+			File resource = diffableCtx.getResource(key);
+			if (isManaged(resource)) {
+				release.put(resource, child);
+			} else {
+				provider.debug(logger, "filemgr.releaseunmanaged",
+						       child.getAbsolutePath());
+			}
+		}
+	}
+	
+	/**
+	 * Stores the next version of a managed resource and generates the
+	 * deltas to it, holding the manager's lock only while the store is
+	 * read or written.  In a shared store, the resource is locked for the
+	 * whole of it, as it is while a new version is put.
+	 * 
+	 * @param resource The managed resource.
+	 * @param file The file holding the next version.
+	 * @param unreleased Collects the next version if it wasn't stored yet.
+	 * @return The hash of the next version, or null if it couldn't be read
+	 *     or the staging was interrupted.
+	 */
+	private String stageResource(File resource, File file,
+			                     Map<File, String> unreleased)
+	throws Exception {
+		byte[] contents = readResource(file);
+		String version = contents == null ? null : getChecksum(file, contents);
+		if (version == null) {
+			return null;
+		}
+		StoreLocks.Lease lease = lockResource(resource, true);
+		try {
+			return stageLockedResource(resource, version, contents,
+				                       unreleased);
+		} finally {
+			if (lease != null) {
+				lease.release();
+			}
+		}
+	}
+	
+	/**
+	 * Does the work of stageResource, holding the resource's lock if the
+	 * store is shared.
+	 */
+	private String stageLockedResource(File resource, String version,
+			                           byte[] contents,
+			                           Map<File, String> unreleased)
+	throws Exception {
+		String hash;
+		File resourceFolder;
+		List<String> oldVersions;
+		Differ resourceDiffer;
+		synchronized (this) {
+			if (!isManaged(resource)) {
+				return null;
+			}
+			hash = hashResourcePath(resource);
+			resourceFolder = getManagedResourceFolder(resource, hash);
+			if (version.equals(diffableCtx.getCurrentVersion(resource))) {
+				return version;
+			}
+			if (Thread.currentThread().isInterrupted()) {
+				return null;
+			}
+			if (!store.hasVersion(resourceFolder, version)) {
+				unreleased.put(resource, version);
+			}
+			store.putVersion(resourceFolder, version, contents);
+			oldVersions = getRetainedVersions(resourceFolder, version,
+				contents.length);
+			if (skipDeltas) {
+				oldVersions = getSkipVersions(oldVersions);
+			} else {
+				oldVersions = popularity.getHotVersions(hash, oldVersions);
+			}
+			resourceDiffer = getDiffer(resource);
+		}
+		String currentContent = new String(contents);
+		for (String oldVersion : oldVersions) {
+			if (Thread.currentThread().isInterrupted()) {
+				return null;
+			}
+			String deltaName = oldVersion + "_" + version + ".diff";
+			String oldContent;
+			synchronized (this) {
+				if (store.hasArtifact(resourceFolder, deltaName)) {
+					continue;
+				}
+				oldContent = readVersion(resourceFolder, oldVersion);
+			}
+			if (oldContent == null) {
+				continue;
+			}
+			String diff = diff(resourceDiffer, hash, oldVersion, oldContent,
+				currentContent);
+			synchronized (this) {
+				if (Thread.currentThread().isInterrupted()) {
+					return null;
+				}
+				provider.debug(logger, "filemgr.deltagenerated",
+					           deltaName, resource.getAbsolutePath());
+				store.putArtifact(resourceFolder, deltaName,
+					diff.getBytes(Constants.RESPONSE_CHARSET));
+				if (precompressResponses) {
+					putVariants(resourceFolder, deltaName,
+						renderer.renderDelta(hash, diff), null);
+				}
+			}
+		}
+		synchronized (this) {
+			if (Thread.currentThread().isInterrupted()) {
+				return null;
+			}
+			precompressResource(resource, version);
+		}
+		return version;
+	}
+	
+	/**
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param version The hash of a new version.
+	 * @param size The size of the new version in bytes.
+	 * @return The hashes of the stored versions the retention policy would
+	 *     keep if the new version were stored now, besides the new version.
+	 */
+	private List<String> getRetainedVersions(File resourceFolder,
+			                                 String version, long size)
+	throws IOException {
+		long now = System.currentTimeMillis();
+		List<VersionRecord> history = readHistory(resourceFolder, now);
+		for (Iterator<VersionRecord> iterator = history.iterator();
+		     iterator.hasNext();) {
+			if (iterator.next().getVersion().equals(version)) {
+				iterator.remove();
+			}
+		}
+		history.add(new VersionRecord(version, now, size));
+		List<String> expired = retentionPolicy.getExpiredVersions(history, now);
+		List<String> retained = new ArrayList<String>();
+		for (VersionRecord record : history) {
+			if (!record.getVersion().equals(version) &&
+				!expired.contains(record.getVersion())) {
+				retained.add(record.getVersion());
+			}
+		}
+		return retained;
+	}
+	
+	/**
+	 * @param olderVersions The hashes of the retained versions older than
+	 *     the latest version, oldest first.
+	 * @return The versions 1, 2, 4, 8... releases behind the latest version,
+	 *     from which its skip deltas are generated.
+	 */
+	private List<String> getSkipVersions(List<String> olderVersions) {
+		List<String> versions = new ArrayList<String>();
+		for (int back = 1; back <= olderVersions.size(); back *= 2) {
+			versions.add(olderVersions.get(olderVersions.size() - back));
+		}
+		return versions;
+	}
+	
+	/**
+	 * Deletes the artifacts of a managed resource other than the skip
+	 * deltas, and their variants, between versions still in its history.
+	 * 
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param history The history of the retained versions, oldest first.
+	 */
+	private void deleteStaleArtifacts(File resourceFolder,
+			                          List<VersionRecord> history) {
+		Map<String, Integer> positions = new HashMap<String, Integer>();
+		for (VersionRecord record : history) {
+			positions.put(record.getVersion(), positions.size());
+		}
+		for (String name : store.getArtifacts(resourceFolder)) {
+			int end = name.indexOf(".diff");
+			int separator = name.indexOf('_');
+			Integer from = null;
+			Integer to = null;
+			if (separator > 0 && separator < end) {
+				from = positions.get(name.substring(0, separator));
+				to = positions.get(name.substring(separator + 1, end));
+			}
+			int skip = from == null || to == null ? 0 : to - from;
+			if (skip <= 0 || Integer.bitCount(skip) != 1) {
+				store.deleteArtifact(resourceFolder, name);
+			}
+		}
+	}
+	
+	/**
+	 * @return The executor staging releases, creating it on first use.
+	 */
+	private synchronized ExecutorService getReleaseExecutor() {
+		if (releaseExecutor == null) {
+			releaseExecutor = Executors.newSingleThreadExecutor(
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "releaseStager");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		}
+		return releaseExecutor;
+	}
+	
+	/**
+	 * This function generates deltas between the latest version of a managed
+	 * resource and all the previous versions of that resource.  It also deletes
+	 * all deprecated diffs so that only deltas bringing older versions to the
+	 * latest version are stored in the managed resource folder.
+	 * 
+	 * @param resource The managed resource.
+	 * @param latestHash The hash of the contents of the latest version of the
+	 *     resource.
+	 * @param currentContent The contents of the latest version if they were
+	 *     just read, or null to read them from the store.
+	 */
+	private void generateDeltas(File resource, final String latestHash,
+			                    String currentContent) {
+		try {
+			String hash = hashResourcePath(resource);
+			File resourceFolder = getManagedResourceFolder(resource, hash);
+			// Get the current content from memory or from the version file.
+			if (currentContent == null && keepResourcesInMemory) {
+		        currentContent = cache.getString(hash + "/" + latestHash);
+			}
+			if (currentContent == null) {
+				currentContent = readVersion(resourceFolder, latestHash);
+			}
+			// Record the new version in the resource's history and delete
+			// the old versions the retention policy expires, so deltas are
+			// only generated from the versions that are kept.
+			List<VersionRecord> history = expireVersions(resource,
+				resourceFolder, latestHash, currentContent == null ? 0 :
+				currentContent.getBytes().length);
+			// Collect the old versions of the managed resource and delete
+			// the deprecated diffs.
+			List<String> oldVersions = new ArrayList<String>();
+			for (VersionRecord record : history) {
+				if (!record.getVersion().equals(latestHash)) {
+					oldVersions.add(record.getVersion());
+				}
+			}
+			if (skipDeltas) {
+				oldVersions = getSkipVersions(oldVersions);
+				deleteStaleArtifacts(resourceFolder, history);
+			} else {
+				// The deltas from versions clients rarely hold are left
+				// to be generated on demand.
+				oldVersions = popularity.getHotVersions(hash, oldVersions);
+				store.deleteArtifacts(resourceFolder);
+			}
+			writeHistory(resourceFolder, history);
+            if (currentContent != null) {
+            	Map<String, byte[]> stored =
+            		new LinkedHashMap<String, byte[]>();
+            	// Deltas found in the remote cache are used as they are, and
+            	// the others are cached once they are stored.
+            	Map<String, byte[]> cached = remoteCache.isEnabled() ?
+            		remoteCache.getAll(hash,
+            			getArtifactNames(oldVersions, latestHash)) : null;
+            	// Deltas a peer advertised for this version are fetched, all
+            	// in one request, rather than generated.
+            	Map<String, byte[]> replicated = replicator.isEnabled() ?
+            		fetchAdvertised(hash, latestHash, oldVersions, cached) :
+            		null;
+            	Map<String, byte[]> generated =
+            		new LinkedHashMap<String, byte[]>();
+            	// For each of the old versions, get the content and generate a
+            	// diff between the old version and the newest version.
+				for (String version : oldVersions) {
+					String deltaName = version + "_" + latestHash + ".diff";
+					if (cached != null && cached.containsKey(deltaName)) {
+						putCachedDelta(resource, resourceFolder, deltaName,
+							           cached, stored);
+						continue;
+					}
+					if (replicated != null &&
+						replicated.containsKey(deltaName)) {
+						putReplicatedDelta(resource, resourceFolder, deltaName,
+							               replicated, stored);
+						continue;
+					}
+					String oldContent = readVersion(resourceFolder, version);
+					if (oldContent == null) {
+						continue;
+					}
+					String diff = diff(getDiffer(resource), hash, version,
+						oldContent, currentContent);
+					provider.debug(logger, "filemgr.deltagenerated",
+							       deltaName, resource.getAbsolutePath());
+					byte[] delta = diff.getBytes(Constants.RESPONSE_CHARSET);
+					store.putArtifact(resourceFolder, deltaName, delta);
+					generated.put(deltaName, delta);
+					if (precompressResponses) {
+						putVariants(resourceFolder, deltaName,
+							renderer.renderDelta(hash, diff), generated);
+					}
+				}
+				stored.putAll(generated);
+				precompressResource(resource, latestHash);
+				publishVersion(resourceFolder, latestHash);
+				if (replicator.isEnabled() && !stored.isEmpty()) {
+					replicator.advertise(hash, latestHash, stored);
+				}
+				if (cached != null && !generated.isEmpty()) {
+					remoteCache.putAll(hash, generated);
+				}
+            }
+
+		} catch (Exception exc) {
+			provider.error(logger, "filemgr.deltaerror",
+					       resource.getAbsolutePath(), latestHash);
+			printer.print(exc);
+		}
+		
+		
+	}
+	
+	/**
+	 * Fetches the deltas to the latest version of a managed resource that a
+	 * peer advertised, and their precompressed variants, in one request.
+	 * 
+	 * @param hash The hash of the resource's path.
+	 * @param latestHash The hash of the latest version.
+	 * @param oldVersions The versions whose deltas are wanted.
+	 * @param cached The artifacts found in the remote cache, which aren't
+	 *     fetched, or null.
+	 * @return The artifacts fetched, by name.
+	 */
+	private Map<String, byte[]> fetchAdvertised(String hash, String latestHash,
+			                                    List<String> oldVersions,
+			                                    Map<String, byte[]> cached) {
+		Set<String> advertised =
+			replicator.getAdvertisedArtifacts(hash, latestHash);
+		if (advertised == null) {
+			return null;
+		}
+		List<String> names = new ArrayList<String>();
+		for (String name : getArtifactNames(oldVersions, latestHash)) {
+			String deltaName = name.substring(0, name.indexOf(".diff") + 5);
+			if (advertised.contains(name) &&
+				(cached == null || !cached.containsKey(deltaName))) {
+				names.add(name);
+			}
+		}
+		return names.isEmpty() ? null :
+			replicator.fetchAll(hash, latestHash, names);
+	}
+	
+	/**
+	 * Stores a delta fetched from a peer, along with its precompressed
+	 * variants, rendering those that weren't fetched.
+	 * 
+	 * @param resource The managed resource.
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param deltaName The name of the delta.
+	 * @param replicated The artifacts fetched from the peer, by name.
+	 * @param stored Collects the artifacts stored.
+	 */
+	private void putReplicatedDelta(File resource, File resourceFolder,
+			                        String deltaName,
+			                        Map<String, byte[]> replicated,
+			                        Map<String, byte[]> stored)
+	throws Exception {
+		String hash = hashResourcePath(resource);
+		byte[] delta = replicated.get(deltaName);
+		provider.debug(logger, "filemgr.deltareplicated",
+				       deltaName, resource.getAbsolutePath());
+		store.putArtifact(resourceFolder, deltaName, delta);
+		stored.put(deltaName, delta);
+		if (!precompressResponses) {
+			return;
+		}
+		byte[] response = null;
+		for (ContentEncoding encoding : ContentEncoding.values()) {
+			String name = deltaName + encoding.getSuffix();
+			byte[] variant = replicated.get(name);
+			if (variant == null) {
+				if (response == null) {
+					response = renderer.renderDelta(hash,
+						new String(delta, Constants.RESPONSE_CHARSET));
+				}
+				variant = encoding.encode(response);
+			}
+			store.putArtifact(resourceFolder, name, variant);
+			stored.put(name, variant);
+		}
+	}
+	
 	/**
-	 * This function generates deltas between the latest version of a managed
-	 * resource and all the previous versions of that resource.  It also deletes
-	 * all deprecated diffs so that only deltas bringing older versions to the
-	 * latest version are stored in the managed resource folder.
+	 * @return The names of the deltas from the old versions to the latest
+	 *     version, each followed by the names of its precompressed variants
+	 *     if responses are precompressed.
+	 */
+	private List<String> getArtifactNames(List<String> oldVersions,
+			                              String latestHash) {
+		List<String> names = new ArrayList<String>();
+		for (String version : oldVersions) {
+			String deltaName = version + "_" + latestHash + ".diff";
+			names.add(deltaName);
+			if (precompressResponses) {
+				for (ContentEncoding encoding : ContentEncoding.values()) {
+					names.add(deltaName + encoding.getSuffix());
+				}
+			}
+		}
+		return names;
+	}
+	
+	/**
+	 * Stores a delta, and its precompressed variants, found in the remote
+	 * cache.  Variants that weren't cached are rendered from the delta.
 	 * 
 	 * @param resource The managed resource.
-	 * @param latestHash The hash of the contents of the latest version of the
-	 *     resource.
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param deltaName The name of the delta.
+	 * @param cached The artifacts found in the remote cache.
+	 * @param stored Collects the artifacts stored.
 	 */
-	private void generateDeltas(File resource, final String latestHash) {
-		// Create a file filter that only returns old versions of a managed
-		// resource.  It also deletes deprecated diffs as it's going.
-		VersionFilter filter = new VersionFilter(latestHash);
-		try {
-			String hash = hashResourcePath(resource);
-			File resourceFolder = getManagedResourceFolder(resource, hash);
-			File[] oldVersions = resourceFolder.listFiles(filter);
-			File currentVersion = filter.getCurrentFile();
-			String currentContent = null;
-			// Get the current content from memory or from the version file.
-			if (keepResourcesInMemory) {
-		        currentContent = this.resourceContents.get(resource);
-			} else {
-				currentContent = readFileContents(currentVersion);
+	private void putCachedDelta(File resource, File resourceFolder,
+			                    String deltaName, Map<String, byte[]> cached,
+			                    Map<String, byte[]> stored)
+	throws Exception {
+		provider.debug(logger, "filemgr.deltacached",
+				       deltaName, resource.getAbsolutePath());
+		byte[] delta = cached.get(deltaName);
+		store.putArtifact(resourceFolder, deltaName, delta);
+		stored.put(deltaName, delta);
+		if (!precompressResponses) {
+			return;
+		}
+		byte[] response = null;
+		for (ContentEncoding encoding : ContentEncoding.values()) {
+			String name = deltaName + encoding.getSuffix();
+			byte[] variant = cached.get(name);
+			if (variant == null) {
+				if (response == null) {
+					response = renderer.renderDelta(hashResourcePath(resource),
+						new String(delta, Constants.RESPONSE_CHARSET));
+				}
+				variant = encoding.encode(response);
 			}
-            if (currentContent != null && oldVersions != null) {
-            	// For each of the old versions, get the content and generate a
-            	// diff between the old version and the newest version.
-				for (File version : oldVersions) {
-					String oldContent = readFileContents(version);
-					String diff =
-						differ.getDiffAsString(oldContent.toString(),
-								               currentContent);
-					File newDelta = new File(
-						resourceFolder.getAbsolutePath() + File.separator +
-						version.getName().split("\\.")[0] + "_" +
-						latestHash + ".diff");
-					provider.debug(logger, "filemgr.deltagenerated",
-							       newDelta.getAbsolutePath(),
-							       resource.getAbsolutePath());
-					newDelta.createNewFile();
-					FileOutputStream out = null;
-					try{
-						out = new FileOutputStream(newDelta);
-						out.write(diff.getBytes());
-					}
-					finally{
-						IOUtils.close(out);
+			store.putArtifact(resourceFolder, name, variant);
+			stored.put(name, variant);
+		}
+	}
+	
+	/**
+	 * Records that a version is the latest version of a managed resource
+	 * and that its deltas are all stored, if the store is shared.  Since
+	 * generating deltas deletes the old artifacts first, including this
+	 * one, a version is only published once it is complete.
+	 * 
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param version The hash of the latest version.
+	 */
+	private void publishVersion(File resourceFolder, String version)
+	throws IOException {
+		if (locks == null) {
+			return;
+		}
+		store.putArtifact(resourceFolder, PUBLISHED_ARTIFACT,
+			version.getBytes("US-ASCII"));
+	}
+	
+	/**
+	 * @param resourceFolder The folder of the managed resource.
+	 * @return The hash of the published version of the resource, or null if
+	 *     none is published.
+	 */
+	private String getPublishedVersion(File resourceFolder)
+	throws IOException {
+		byte[] contents = store.getArtifact(resourceFolder, PUBLISHED_ARTIFACT);
+		return contents == null ? null : new String(contents, "US-ASCII");
+	}
+	
+	/**
+	 * Records a new latest version in the history of a managed resource and
+	 * deletes the versions that the retention policy expires.
+	 * 
+	 * @param resource The managed resource.
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param latestHash The hash of the latest version.
+	 * @param latestSize The size of the latest version in bytes.
+	 * @return The history of the versions that were kept, oldest first.
+	 */
+	private List<VersionRecord> expireVersions(File resource,
+			File resourceFolder, String latestHash, long latestSize)
+	throws IOException {
+		long now = System.currentTimeMillis();
+		List<VersionRecord> history = readHistory(resourceFolder, now);
+		for (Iterator<VersionRecord> iterator = history.iterator();
+		     iterator.hasNext();) {
+			if (iterator.next().getVersion().equals(latestHash)) {
+				iterator.remove();
+			}
+		}
+		history.add(new VersionRecord(latestHash, now, latestSize));
+		List<String> expired = retentionPolicy.getExpiredVersions(history, now);
+		expired.remove(latestHash);
+		for (Iterator<VersionRecord> iterator = history.iterator();
+		     iterator.hasNext();) {
+			String version = iterator.next().getVersion();
+			if (expired.contains(version)) {
+				provider.debug(logger, "filemgr.versionexpired",
+						       version, resource.getAbsolutePath());
+				store.deleteVersion(resourceFolder, version);
+				iterator.remove();
+			}
+		}
+		return history;
+	}
+	
+	/**
+	 * Reads the history of the versions of a managed resource, as written by
+	 * writeHistory.  Stored versions missing from the history, such as those
+	 * stored before histories were kept, are added as the oldest versions,
+	 * stored now.
+	 * 
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param now The current time in milliseconds.
+	 * @return The history of the stored versions, oldest first.
+	 */
+	private List<VersionRecord> readHistory(File resourceFolder, long now)
+	throws IOException {
+		List<String> stored = store.getVersions(resourceFolder);
+		List<VersionRecord> history = new ArrayList<VersionRecord>();
+		byte[] contents = store.getArtifact(resourceFolder, HISTORY_ARTIFACT);
+		if (contents != null) {
+			for (String line : new String(contents, "UTF-8").split("\n")) {
+				String[] fields = line.trim().split(" ");
+				if (fields.length == 3 && stored.remove(fields[0])) {
+					try {
+						history.add(new VersionRecord(fields[0],
+							Long.parseLong(fields[1]),
+							Long.parseLong(fields[2])));
+					} catch (NumberFormatException exc) {
+						stored.add(fields[0]);
 					}
 				}
-            }
-            
-            // Ensure that the resource folder last modified date match with the resource last modified date
-            resourceFolder.setLastModified(resource.lastModified());
-    		
-		} catch (Exception exc) {
-			provider.error(logger, "filemgr.deltaerror",
-					       resource.getAbsolutePath(), latestHash);
-			printer.print(exc);
+			}
 		}
-		
-		
+		List<VersionRecord> unrecorded = new ArrayList<VersionRecord>();
+		for (String version : stored) {
+			byte[] versionContents = store.getVersion(resourceFolder, version);
+			unrecorded.add(new VersionRecord(version, now,
+				versionContents == null ? 0 : versionContents.length));
+		}
+		history.addAll(0, unrecorded);
+		return history;
+	}
+	
+	/**
+	 * Stores the history of the versions of a managed resource as an
+	 * artifact, with a line per version holding its hash, the time it was
+	 * stored and its size.
+	 * 
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param history The history of the stored versions, oldest first.
+	 */
+	private void writeHistory(File resourceFolder, List<VersionRecord> history)
+	throws IOException {
+		StringBuilder contents = new StringBuilder();
+		for (VersionRecord record : history) {
+			contents.append(record.getVersion()).append(' ')
+				.append(record.getStoredTime()).append(' ')
+				.append(record.getSize()).append('\n');
+		}
+		store.putArtifact(resourceFolder, HISTORY_ARTIFACT,
+			contents.toString().getBytes("UTF-8"));
+	}
+	
+	/**
+	 * Stores the precompressed variants of the response for the latest
+	 * version of a resource, unless they are already stored or responses
+	 * aren't precompressed.
+	 * 
+	 * @param resource The managed resource.
+	 * @param latestHash The hash of the latest version of the resource.
+	 */
+	private void precompressResource(File resource, String latestHash)
+	throws Exception {
+		if (!precompressResponses || latestHash == null) {
+			return;
+		}
+		String hash = hashResourcePath(resource);
+		File resourceFolder = getManagedResourceFolder(resource, hash);
+		String name = latestHash + FULL_RESPONSE_SUFFIX;
+		if (store.hasArtifact(resourceFolder,
+				              name + ContentEncoding.GZIP.getSuffix())) {
+			return;
+		}
+		String contents = keepResourcesInMemory ?
+			cache.getString(hash + "/" + latestHash) : null;
+		if (contents == null) {
+			contents = readVersion(resourceFolder, latestHash);
+		}
+		if (contents != null) {
+			putVariants(resourceFolder, name,
+				renderer.renderResource(hash, contents, latestHash), null);
+		}
+	}
+	
+	/**
+	 * Compresses a rendered response in every content encoding and stores
+	 * the results next to the artifact it was rendered from.
+	 * 
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param name The name of the artifact the response was rendered from.
+	 * @param response The rendered response.
+	 * @param stored If not null, collects the variants stored.
+	 */
+	private void putVariants(File resourceFolder, String name,
+			                 byte[] response, Map<String, byte[]> stored)
+	throws IOException {
+		for (ContentEncoding encoding : ContentEncoding.values()) {
+			byte[] variant = encoding.encode(response);
+			store.putArtifact(resourceFolder, name + encoding.getSuffix(),
+					          variant);
+			if (stored != null) {
+				stored.put(name + encoding.getSuffix(), variant);
+			}
+		}
+	}
+	
+	/**
+	 * Sets the response of the request to a stored precompressed variant of
+	 * the named response, in the encoding the client prefers most.
+	 * 
+	 * @param request The request to respond to.
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param name The name of the artifact the response was rendered from.
+	 * @return True if a variant was found.
+	 */
+	private boolean openVariant(ResourceRequest request, File resourceFolder,
+			                    String name) {
+		if (!precompressResponses) {
+			return false;
+		}
+		for (ContentEncoding encoding : request.getAcceptedEncodings()) {
+			StoredArtifact variant =
+				openArtifact(resourceFolder, name + encoding.getSuffix());
+			if (variant != null) {
+				request.setEncodedArtifact(variant, encoding);
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Chooses the differ for a resource based on its file extension.  Types
+	 * listed in TokenDiffTypes use the token-aware differ, everything else
+	 * uses the injected differ.
+	 * 
+	 * @param resource The managed resource.
+	 * @return The differ to generate the resource's deltas with.
+	 */
+	private Differ getDiffer(File resource) {
+		if (tokenDiffTypes == null) {
+			return differ;
+		}
+		if (tokenDiffTypeSet == null) {
+			tokenDiffTypeSet =
+				EnumSet.noneOf(ResourceRequest.ResourceTypes.class);
+			for (String type : tokenDiffTypes.split(",")) {
+				try {
+					tokenDiffTypeSet.add(ResourceRequest.ResourceTypes.valueOf(
+						type.trim().toUpperCase(Locale.US)));
+				} catch (IllegalArgumentException exc) {
+					provider.error(logger, "filemgr.unknowntype", type);
+				}
+			}
+		}
+		String name = resource.getName();
+		ResourceRequest.ResourceTypes type = ResourceRequest.extensionMap.get(
+			name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.US));
+		if (type != null && tokenDiffTypeSet.contains(type)) {
+			return tokenDiffer;
+		}
+		return differ;
 	}
 	
 	/**
@@ -490,14 +2241,17 @@ public class FileResourceManager implements ResourceManager {
 	private void createResourceArtifacts(File resource)
 	throws Exception {
 		// If the resource is unmanaged, make sure there are no artifacts
-		// that will get in the way of managing it.
-		if (!isManaged(resource)) {
+		// that will get in the way of managing it.  In a shared store the
+		// artifacts may belong to another server, so they are kept and
+		// reused if they are published.
+		if (!isManaged(resource) && locks == null) {
 			cleanUpResource(resource);
 		}
 		
 		String resourceNameHash = hashResourcePath(resource);
 		// Set up the reverse mapping of hashs to resources.
 		hashsToResources.put(resourceNameHash, resource);
+		diffableCtx.setResourceHash(resource, resourceNameHash);
 		
 		File resourceFolder =
 			getManagedResourceFolder(resource, resourceNameHash);
@@ -511,96 +2265,203 @@ public class FileResourceManager implements ResourceManager {
 		// Otherwise, create the managed resource folder for the given resource
 		// and copy over the most recent version.
 		} else {
-			resourceFolder.mkdir();
-			// Ensure that the resourceFolder last modified date match with the resource last modified date
-			resourceFolder.setLastModified(resource.lastModified());
+			resourceFolder.mkdirs();
 			
 			this.managedResouceFolders.put(resource, resourceFolder);
-			manifestPutAndSave(resource.getAbsolutePath(), resourceNameHash);
+			manifestPutAndSave(
+				diffableCtx.getResourceKey(resource), resourceNameHash);
 			
-			String latestHash = readInAndCopyLatestVersion(resource, false);
+			IngestedVersion latest =
+				readInAndCopyLatestVersion(resource, false);
 			// Update the Diffable context so it can correctly identify
 			// the most recent version of this resource.
-			diffableCtx.setCurrentVersion(resource, latestHash);
+			if (latest != null) {
+				diffableCtx.setCurrentVersion(resource, latest.hash);
+				precompressResource(resource, latest.hash);
+				publishVersion(resourceFolder, latest.hash);
+			}
 		}
 	}
 
 	/**
 	 * Utility method for getting the contents of a managed resource and copying
 	 * the current version of that resource into the corresponding managed
-	 * resource folder.
+	 * resource folder.  The resource is read once, and the same bytes are
+	 * hashed, stored as the version and decoded.  The fingerprint later diffs
+	 * against the version will need is built from the decoded contents right
+	 * away.
 	 * 
 	 * @param resource The managed resource to read.
-	 * @param force If true, this function will return the hash and copy the
-	 *     latest version into the resource folder even if it already exists.
-	 * @return The hash of the contents of latest version of the resource, or
-	 *     null if the resource hasn't changed (based on the hash of the
-	 *     resource's contents).
+	 * @param force If true, this function will return the latest version and
+	 *     copy it into the resource folder even if it already exists.
+	 * @return The latest version of the resource, or null if the resource
+	 *     hasn't changed (based on the hash of the resource's contents) or
+	 *     couldn't be read.  A version that is stored but isn't the current
+	 *     one, such as one a staged release stored, is returned so that
+	 *     the resource switches to it.
 	 * @throws Exception
 	 */
-	private String readInAndCopyLatestVersion(File resource, boolean force)
+	private IngestedVersion readInAndCopyLatestVersion(File resource,
+			                                           boolean force)
 	throws Exception {
 		String hash = hashResourcePath(resource);
-		StringBuilder resourceContents = new StringBuilder();
-		String resourceContentsHash =
-			readAndGetChecksum(resource, resourceContents);
+		// Take the state of the resource before reading, so a change made
+		// while reading is noticed.
+		FileStat stat = FileStat.of(resource);
+		byte[] resourceBytes = readResource(resource);
+		String resourceContentsHash = resourceBytes == null ? null :
+			getChecksum(resource, resourceBytes);
+		if (resourceContentsHash == null) {
+			return null;
+		}
+		index.put(resource, resourceContentsHash, stat);
 		
 		File resourceFolder = getManagedResourceFolder(resource, hash);
 
-		File version =
-			new File(resourceFolder.getAbsolutePath() + File.separator +
-					 resourceContentsHash + ".version");
 		// If the actual contents of the file haven't changed then return null
-		// to indicate this to consumers of this function.  Since the names of
-		// version files correspond to the MD5 cache of the file's contents, the
-		// existence of the version file can be used to see whether the contents
-		// have changed.
-		if (!version.exists() || force) {
-			version.createNewFile();
-			FileOutputStream out = null;
-			try {
-				out = new FileOutputStream(version);
-				out.write(resourceContents.toString().getBytes());
-			}finally{
-				IOUtils.close(out);
-			}
-			
-			if (keepResourcesInMemory) {
-				this.resourceContents.put(
-					resource, resourceContents.toString());
+		// to indicate this to consumers of this function.  Since versions
+		// are named after the hash of the file's contents, the existence
+		// of the version can be used to see whether the contents have
+		// changed.
+		if (store.hasVersion(resourceFolder, resourceContentsHash) && !force) {
+			if (locks == null) {
+				if (resourceContentsHash.equals(
+						diffableCtx.getCurrentVersion(resource))) {
+					return null;
+				}
+			// In a shared store, a version published by another server is
+			// used as it is.  One stored but never published, say by a
+			// server that died generating its deltas, is ingested again.
+			} else if (resourceContentsHash.equals(
+					getPublishedVersion(resourceFolder))) {
+				adoptVersion(resource, hash, resourceContentsHash,
+					         resourceBytes);
+				return null;
 			}
-			
-		} else {
-			resourceContentsHash = null;
 		}
+		store.putVersion(resourceFolder, resourceContentsHash, resourceBytes);
+		// A version deployed before its release is committed or aborted
+		// is current from now on, so an abort keeps it.
+		if (unreleasedVersions != null &&
+			resourceContentsHash.equals(unreleasedVersions.get(resource))) {
+			unreleasedVersions.remove(resource);
+		}
+		String resourceContents = new String(resourceBytes);
 		
-		// Ensure that the resourceFolder last modified date match with the resource last modified date
-		resourceFolder.setLastModified(resource.lastModified());
-		
-		return resourceContentsHash;
-		
-		
+		// Everything cached for the resource, including the deltas that are
+		// about to be regenerated, belongs to older versions.
+		cache.removeResource(hash);
+		if (keepResourcesInMemory) {
+			cache.put(hash + "/" + resourceContentsHash, resourceContents);
+		}
+		Differ resourceDiffer = getDiffer(resource);
+		if (resourceDiffer instanceof FingerprintDiffer) {
+			cache.put(getFingerprintKey(hash, resourceContentsHash),
+				((FingerprintDiffer) resourceDiffer).getFingerprint(
+					resourceContents));
+		}
+		return new IngestedVersion(resourceContentsHash, resourceContents);
 	}
 	
 	/**
-	 * Utility function for obtaining the MD5 hash of a given file's absolute
-	 * path.  This is then used for uniquely identifying the managed resource
-	 * within the FileResourceManager.
+	 * Makes a version published in a shared store the current version of a
+	 * managed resource, unless it already is.
 	 * 
 	 * @param resource The managed resource.
-	 * @return A hex string representing a hash of the file's absolute path.
+	 * @param hash The hash of the resource's path.
+	 * @param version The hash of the published version.
+	 * @param contents The contents of the published version.
+	 */
+	private void adoptVersion(File resource, String hash, String version,
+			                  byte[] contents) {
+		if (version.equals(diffableCtx.getCurrentVersion(resource))) {
+			return;
+		}
+		provider.info(logger, "filemgr.adoptversion",
+			          version, resource.getAbsolutePath());
+		cache.removeResource(hash);
+		if (keepResourcesInMemory) {
+			cache.put(hash + "/" + version, new String(contents));
+		}
+		diffableCtx.setCurrentVersion(resource, version);
+	}
+	
+	/**
+	 * Diffs an old version of a managed resource against the latest version,
+	 * handing the differ the old version's fingerprint if it takes one.
+	 * Fingerprints are cached apart from the rest of the resource's cache
+	 * entries, since they stay valid for as long as their version is kept.
+	 * 
+	 * On demand deltas are generated on several threads.  VCDiff and
+	 * TokenDiff keep their state per call, but other differs may keep it
+	 * between calls, so they are only used by one thread at a time.
+	 * 
+	 * @param resourceDiffer The differ for the resource.
+	 * @param hash The hash of the resource's path.
+	 * @param version The hash of the old version.
+	 * @param oldContent The contents of the old version.
+	 * @param currentContent The contents of the latest version.
+	 * @return The delta.
+	 */
+	private String diff(Differ resourceDiffer, String hash, String version,
+			            String oldContent, String currentContent) {
+		if (resourceDiffer.getClass() == VCDiff.class ||
+			resourceDiffer.getClass() == TokenDiff.class) {
+			return diffWith(resourceDiffer, hash, version, oldContent,
+				            currentContent);
+		}
+		synchronized (resourceDiffer) {
+			return diffWith(resourceDiffer, hash, version, oldContent,
+				            currentContent);
+		}
+	}
+	
+	private String diffWith(Differ resourceDiffer, String hash,
+			                String version, String oldContent,
+			                String currentContent) {
+		if (!(resourceDiffer instanceof FingerprintDiffer)) {
+			return resourceDiffer.getDiffAsString(oldContent, currentContent);
+		}
+		FingerprintDiffer fingerprintDiffer =
+			(FingerprintDiffer) resourceDiffer;
+		String key = getFingerprintKey(hash, version);
+		byte[] fingerprint;
+		ByteBuffer cached = cache.getBuffer(key);
+		if (cached != null) {
+			fingerprint = new byte[cached.remaining()];
+			cached.get(fingerprint);
+		} else {
+			fingerprint = fingerprintDiffer.getFingerprint(oldContent);
+			cache.put(key, fingerprint);
+		}
+		return fingerprintDiffer.getDiffAsString(
+			oldContent, fingerprint, currentContent);
+	}
+	
+	private static String getFingerprintKey(String hash, String version) {
+		return FINGERPRINT_PREFIX + hash + "/" + version;
+	}
+	
+	/**
+	 * Utility function for obtaining the MD5 hash of a given file's key,
+	 * which is its path relative to the resource folders.  This is then used
+	 * for uniquely identifying the managed resource within the
+	 * FileResourceManager.  Managed resources keep the hash recorded in the
+	 * manifest, even if it was made from an absolute path.
+	 * 
+	 * @param resource The managed resource.
+	 * @return A hex string representing a hash of the file's key.
 	 * @throws Exception
 	 */
 	private String hashResourcePath(File resource)
 	throws Exception {
-		if (manifest.containsKey(resource.getAbsolutePath())) {
-			return manifest.getProperty(resource.getAbsolutePath());
+		String key = diffableCtx.getResourceKey(resource);
+		if (manifest.containsKey(key)) {
+			return manifest.getProperty(key);
 		} else {
 			try {
-				byte[] filePathBytes = resource.getAbsolutePath().getBytes();
 				MessageDigest md5 = MessageDigest.getInstance("MD5");
-				md5.update(filePathBytes, 0, filePathBytes.length);
-				return new BigInteger(1, md5.digest()).toString(16);
+				return DigestUtils.toHex(md5.digest(key.getBytes("UTF-8")));
 			} catch (Exception exc) {
 				provider.error(logger, "filemgr.pathhasherror",
 					       	   resource.getAbsolutePath());
@@ -631,38 +2492,148 @@ public class FileResourceManager implements ResourceManager {
 	}
 	
 	/**
-	 * Reads the contents of a file into the passed in StringBuffer and returns
-	 * the checksum of the file.
+	 * Reads a version of a managed resource from the version store.
 	 * 
-	 * @param toRead The file to read.
-	 * @param fileContent A StringBuilder used to hold the contents of the file
-	 *     being read.
-	 * @return A hex representation of the md5 checksum of the file's contents. 
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param version The hash of the version.
+	 * @return The version's content, or null if it isn't stored or can't be
+	 *     read.
 	 */
-	private String readAndGetChecksum(File toRead, StringBuilder fileContent) {
-		InputStream in = null; 
+	private String readVersion(File resourceFolder, String version) {
 		try {
-			MessageDigest md = MessageDigest.getInstance("MD5");
-			in = new FileInputStream(toRead);
-			in = new DigestInputStream(in, md);
-			Reader rd = new InputStreamReader(in);
-			char[] buf = new char[IOUtils.BUFFER_SIZE];
-			int num = 0;
-			while ((num = rd.read(buf, 0, buf.length)) != -1) {
-				fileContent.append(buf, 0, num);
+			byte[] contents = store.getVersion(resourceFolder, version);
+			return contents == null ? null : new String(contents);
+		} catch (IOException exc) {
+			provider.error(logger, "filemgr.readerror",
+				           resourceFolder.getAbsolutePath() + File.separator +
+				           version);
+			printer.print(exc);
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the contents of the latest version of a managed resource from
+	 * the content cache, reading them from the version store (or, failing
+	 * that, from the resource itself) and caching them on a miss.
+	 * 
+	 * @param hash The hash of the managed resource's path.
+	 * @param resource The managed resource.
+	 * @return The contents, or null if they can't be read.
+	 */
+	private String getLatestContents(String hash, File resource) {
+		String version = diffableCtx.getCurrentVersion(resource);
+		String key = hash + "/" + version;
+		String contents = keepResourcesInMemory ? cache.getString(key) : null;
+		if (contents == null) {
+			contents = readVersion(managedResouceFolders.get(resource), version);
+			if (contents == null) {
+				return readFileContents(resource);
 			}
-			
-			return new BigInteger(1, md.digest()).toString(16);
-		} catch (NoSuchAlgorithmException exc) {
-			provider.error(
-				logger, "filemgr.contenthasherror", toRead.getAbsolutePath());
+			if (keepResourcesInMemory) {
+				cache.put(key, contents);
+			}
+		}
+		return contents;
+	}
+	
+	/**
+	 * Opens a delta of a managed resource, serving it from the content cache
+	 * when its body is cached there and caching it otherwise.
+	 * 
+	 * @param resourceHash The hash of the managed resource's path.
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param deltaName The name of the delta.
+	 * @return A handle on the delta, or null if it isn't stored or can't be
+	 *     read.
+	 */
+	private StoredArtifact openDelta(String resourceHash, File resourceFolder,
+			                         String deltaName) {
+		if (!keepResourcesInMemory) {
+			return openArtifact(resourceFolder, deltaName);
+		}
+		String key = resourceHash + "/" + deltaName;
+		ByteBuffer body = cache.getBuffer(key);
+		if (body == null) {
+			StoredArtifact delta = openArtifact(resourceFolder, deltaName);
+			if (delta == null) {
+				return null;
+			}
+			if (delta.getLength() > cache.getCapacity()) {
+				return delta;
+			}
+			byte[] contents;
+			try {
+				contents = delta.getBytes();
+			} catch (IOException exc) {
+				provider.error(logger, "filemgr.readerror",
+					           resourceFolder.getAbsolutePath() +
+					           File.separator + deltaName);
+				printer.print(exc);
+				return null;
+			}
+			cache.put(key, contents);
+			body = ByteBuffer.wrap(contents);
+		}
+		// Off-heap bodies are served straight from their direct buffers.
+		return new BufferArtifact(body);
+	}
+	
+	/**
+	 * Opens an artifact of a managed resource in the version store.
+	 * 
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param name The name of the artifact.
+	 * @return A handle on the artifact, or null if it isn't stored or can't
+	 *     be opened.
+	 */
+	private StoredArtifact openArtifact(File resourceFolder, String name) {
+		try {
+			return store.openArtifact(resourceFolder, name);
+		} catch (IOException exc) {
+			provider.error(logger, "filemgr.readerror",
+				           resourceFolder.getAbsolutePath() + File.separator +
+				           name);
 			printer.print(exc);
+		}
+		return null;
+	}
+	
+	/**
+	 * Reads the raw contents of a file.
+	 * 
+	 * @param toRead The file to read.
+	 * @return The contents of the file, or null if it couldn't be read.
+	 */
+	private byte[] readResource(File toRead) {
+		try {
+			return IOUtils.read(toRead);
 		} catch (IOException exc) {
 			provider.error(
 				logger, "filemgr.readerror", toRead.getAbsolutePath());
 			printer.print(exc);
-		}finally{
-			IOUtils.close(in);
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the checksum of the raw contents of a file, hashed in a single
+	 * call.
+	 * 
+	 * @param toRead The file the contents were read from.
+	 * @param contents The contents of the file.
+	 * @return A fixed width hex representation of the checksum of the file's
+	 *     contents, using the configured content digest, or null if the
+	 *     digest isn't available.
+	 */
+	private String getChecksum(File toRead, byte[] contents) {
+		try {
+			MessageDigest md = DigestUtils.getDigest(contentDigest);
+			return DigestUtils.toHex(md.digest(contents));
+		} catch (NoSuchAlgorithmException exc) {
+			provider.error(
+				logger, "filemgr.contenthasherror", toRead.getAbsolutePath());
+			printer.print(exc);
 		}
 		return null;
 	}
@@ -676,6 +2647,9 @@ public class FileResourceManager implements ResourceManager {
 	 */
 	private void cleanUpResource(File toClean) { 
 		String path = toClean.getAbsolutePath();
+		if (index != null) {
+			index.remove(toClean);
+		}
 		String hash = null;
 		try {
 			hash = hashResourcePath(toClean);
@@ -685,17 +2659,14 @@ public class FileResourceManager implements ResourceManager {
 			printer.print(exc);
 		}
 		if (hash != null) {
+			cache.removeResource(hash);
+			cache.removeResource(FINGERPRINT_PREFIX + hash);
 			File resourceFolder = getManagedResourceFolder(toClean, hash);
 			if (resourceFolder.exists()) {
-				for (File file : resourceFolder.listFiles()) {
-					provider.debug(logger, "manifest.deletefile",
-							       file.getAbsolutePath(), path);
-					file.delete();
-				}
 				provider.debug(logger, "manifest.deletefolder",
 					           resourceFolder.getAbsolutePath(),
 					           path);
-				resourceFolder.delete();
+				store.deleteResource(resourceFolder);
 			}
 		}
 	}
@@ -710,30 +2681,130 @@ public class FileResourceManager implements ResourceManager {
 	 *     are stored.
 	 */
 	private File getManagedResourceFolder(File resource, String hash) {
-		return new File(this.resourceStore, hash);
+		File parent = this.resourceStore;
+		for (int i = 0; i < shardDepth &&
+			 hash.length() > (i + 1) * SHARD_NAME_LENGTH; i++) {
+			parent = new File(parent, hash.substring(
+				i * SHARD_NAME_LENGTH, (i + 1) * SHARD_NAME_LENGTH));
+		}
+		return new File(parent, hash);
+	}
+	
+	/**
+	 * Moves every resource folder in the resource store, whether it is
+	 * sharded or not, to where getManagedResourceFolder expects it under the
+	 * current shard depth, then removes any shard folders left empty.
+	 */
+	private void migrateResourceFolders() {
+		ArrayList<File> resourceFolders = new ArrayList<File>();
+		findResourceFolders(resourceStore, resourceFolders);
+		int moved = 0;
+		for (File resourceFolder : resourceFolders) {
+			File target =
+				getManagedResourceFolder(null, resourceFolder.getName());
+			if (!target.equals(resourceFolder)) {
+				target.getParentFile().mkdirs();
+				if (resourceFolder.renameTo(target)) {
+					moved++;
+				} else {
+					provider.error(logger, "filemgr.cantmoveresource",
+							       resourceFolder.getAbsolutePath(),
+							       target.getAbsolutePath());
+				}
+			}
+		}
+		removeEmptyShards(resourceStore);
+		if (moved > 0) {
+			provider.info(logger, "filemgr.shardedstore",
+					      Integer.toString(moved),
+					      resourceStore.getAbsolutePath(),
+					      Integer.toString(shardDepth));
+		}
+	}
+	
+	/**
+	 * Collects the resource folders under the given folder, descending into
+	 * shard folders.  Both are named in hex, and only shard folders have
+	 * names as short as SHARD_NAME_LENGTH.
+	 */
+	private void findResourceFolders(File folder, List<File> resourceFolders) {
+		File[] children = folder.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			String name = child.getName();
+			if (!child.isDirectory() || !isHex(name)) {
+				continue;
+			}
+			if (name.length() == SHARD_NAME_LENGTH) {
+				findResourceFolders(child, resourceFolders);
+			} else {
+				resourceFolders.add(child);
+			}
+		}
+	}
+	
+	private void removeEmptyShards(File folder) {
+		File[] children = folder.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			String name = child.getName();
+			if (child.isDirectory() && name.length() == SHARD_NAME_LENGTH &&
+				isHex(name)) {
+				removeEmptyShards(child);
+				// Only succeeds once the shard is empty.
+				child.delete();
+			}
+		}
+	}
+	
+	private static boolean isHex(String name) {
+		for (int i = 0; i < name.length(); i++) {
+			if (Character.digit(name.charAt(i), 16) < 0) {
+				return false;
+			}
+		}
+		return name.length() > 0;
 	}
 
 	/**
 	 * Utility function for adding a value to the manifest and persisting to
-	 * disk.
+	 * disk.  The change is batched with others and written to the manifest
+	 * journal once the batch is full or the flush interval passes.
 	 * 
-	 * @param key The key to add.
-	 * @param value The value to add.
+	 * @param key The key of the value to add to the manifest.
+	 * @param value The value to add to the manifest.
 	 */
 	private void manifestPutAndSave(String key, String value) {
 		manifest.put(key, value);
-		File manifestFile = new File(this.resourceStore , "diffable.manifest");
-		FileOutputStream out = null;
 		try {
-			out = new FileOutputStream(manifestFile);
-			manifest.store(out, null);
-			out.close();
+			journal.put(key, value);
+		} catch (IOException exc) {
+			printer.print(exc);
+		}
+		if (journal.getPendingRecords() >= manifestBatchSize) {
+			flushManifest();
+		}
+	}
+	
+	/**
+	 * Utility function for removing a value from the manifest and persisting
+	 * the change to disk, the same way as manifestPutAndSave.
+	 * 
+	 * @param key The key of the value to remove from the manifest.
+	 */
+	private void manifestRemoveAndSave(String key) {
+		manifest.remove(key);
+		try {
+			journal.remove(key);
 		} catch (IOException exc) {
-			provider.error(logger, "manifest.cantsave",
-					       manifestFile.getAbsolutePath());
 			printer.print(exc);
-		}finally{
-			IOUtils.close(out);
+		}
+		if (journal.getPendingRecords() >= manifestBatchSize) {
+			flushManifest();
 		}
 	}
 }
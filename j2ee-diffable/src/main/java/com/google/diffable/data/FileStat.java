@@ -0,0 +1,106 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+
+/**
+ * The size, last modified time and file key of a resource, which together
+ * identify one state of the resource without reading it.  The file key
+ * (the device and inode on Unix) catches a resource replaced by another
+ * file with the same size and last modified time, as deployment tools that
+ * preserve timestamps do.  It is only available on Java 7 and later, so it
+ * is looked up reflectively and is null elsewhere.
+ * 
+ * @author joshua Harrison
+ */
+class FileStat {
+	private static Method toPath;
+	private static Method readAttributes;
+	private static Method fileKeyMethod;
+	private static Class<?> attributesClass;
+	private static Object noLinkOptions;
+	
+	static {
+		try {
+			Class<?> pathClass = Class.forName("java.nio.file.Path");
+			Class<?> linkOptionClass =
+				Class.forName("java.nio.file.LinkOption");
+			attributesClass = Class.forName(
+				"java.nio.file.attribute.BasicFileAttributes");
+			noLinkOptions = Array.newInstance(linkOptionClass, 0);
+			toPath = File.class.getMethod("toPath");
+			readAttributes = Class.forName("java.nio.file.Files").getMethod(
+				"readAttributes", pathClass, Class.class,
+				noLinkOptions.getClass());
+			fileKeyMethod = attributesClass.getMethod("fileKey");
+		} catch (Exception exc) {
+			toPath = null;
+		}
+	}
+	
+	final long size;
+	final long lastModified;
+	final String fileKey;
+	
+	FileStat(long size, long lastModified, String fileKey) {
+		this.size = size;
+		this.lastModified = lastModified;
+		this.fileKey = fileKey;
+	}
+	
+	/**
+	 * @return The current state of the resource.
+	 */
+	static FileStat of(File resource) {
+		return new FileStat(resource.length(), resource.lastModified(),
+			getFileKey(resource));
+	}
+	
+	private static String getFileKey(File resource) {
+		if (toPath == null) {
+			return null;
+		}
+		try {
+			Object attributes = readAttributes.invoke(null,
+				toPath.invoke(resource), attributesClass, noLinkOptions);
+			Object key = fileKeyMethod.invoke(attributes);
+			return key == null ? null : key.toString().replace(' ', '_');
+		} catch (Exception exc) {
+			// The resource is missing or unreadable, which the size and last
+			// modified time already reflect.
+			return null;
+		}
+	}
+	
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof FileStat)) {
+			return false;
+		}
+		FileStat stat = (FileStat) other;
+		return size == stat.size && lastModified == stat.lastModified &&
+			(fileKey == null ? stat.fileKey == null :
+			 fileKey.equals(stat.fileKey));
+	}
+	
+	@Override
+	public int hashCode() {
+		return (int) (size ^ lastModified);
+	}
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.diffable.utils.IOUtils;
+import com.google.inject.Singleton;
+
+/**
+ * The default VersionStore.  Every version is kept in full as
+ * '[hash].version' in the resource folder, and every artifact is a file of
+ * the same name in the resource folder.  Files are written under a
+ * temporary name and renamed into place, so a version or artifact is never
+ * read half written, even by another server sharing the store.
+ * 
+ * @author joshua Harrison
+ */
+@Singleton
+public class FileVersionStore implements VersionStore {
+	
+	protected static final String VERSION_FILE_EXTENSION = ".version";
+	
+	/** The root folder of the resource store. */
+	protected File resourceStore = null;
+
+	@Override
+	public void initialize(File resourceStore) throws IOException {
+		this.resourceStore = resourceStore;
+	}
+	
+	@Override
+	public boolean hasVersion(File resourceFolder, String version) {
+		return getVersionFile(resourceFolder, version).exists();
+	}
+
+	@Override
+	public void putVersion(File resourceFolder, String version,
+			               byte[] contents) throws IOException {
+		IOUtils.writeAtomically(
+			getVersionFile(resourceFolder, version), contents);
+	}
+
+	@Override
+	public byte[] getVersion(File resourceFolder, String version)
+	throws IOException {
+		File versionFile = getVersionFile(resourceFolder, version);
+		return versionFile.exists() ? IOUtils.read(versionFile) : null;
+	}
+
+	@Override
+	public List<String> getVersions(File resourceFolder) {
+		ArrayList<String> versions = new ArrayList<String>();
+		String[] names = resourceFolder.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.endsWith(VERSION_FILE_EXTENSION)) {
+					versions.add(name.substring(
+						0, name.length() - VERSION_FILE_EXTENSION.length()));
+				}
+			}
+		}
+		return versions;
+	}
+
+	@Override
+	public void deleteVersion(File resourceFolder, String version) {
+		getVersionFile(resourceFolder, version).delete();
+	}
+
+	@Override
+	public boolean hasArtifact(File resourceFolder, String name) {
+		return new File(resourceFolder, name).exists();
+	}
+
+	@Override
+	public void putArtifact(File resourceFolder, String name,
+			                byte[] contents) throws IOException {
+		IOUtils.writeAtomically(new File(resourceFolder, name), contents);
+	}
+
+	@Override
+	public byte[] getArtifact(File resourceFolder, String name)
+	throws IOException {
+		File artifact = new File(resourceFolder, name);
+		return artifact.exists() ? IOUtils.read(artifact) : null;
+	}
+
+	@Override
+	public StoredArtifact openArtifact(File resourceFolder, String name)
+	throws IOException {
+		File artifact = new File(resourceFolder, name);
+		if (!artifact.exists()) {
+			return null;
+		}
+		try {
+			return new FileArtifact(new FileInputStream(artifact));
+		} catch (FileNotFoundException exc) {
+			// Deleted since it was checked for.
+			return null;
+		}
+	}
+
+	@Override
+	public List<String> getArtifacts(File resourceFolder) {
+		ArrayList<String> artifacts = new ArrayList<String>();
+		File[] files = resourceFolder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isFile() && !isVersionFile(file.getName())) {
+					artifacts.add(file.getName());
+				}
+			}
+		}
+		return artifacts;
+	}
+
+	@Override
+	public void deleteArtifact(File resourceFolder, String name) {
+		new File(resourceFolder, name).delete();
+	}
+
+	@Override
+	public void deleteArtifacts(File resourceFolder) {
+		File[] files = resourceFolder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!isVersionFile(file.getName())) {
+					file.delete();
+				}
+			}
+		}
+	}
+
+	@Override
+	public void deleteResource(File resourceFolder) {
+		File[] files = resourceFolder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		resourceFolder.delete();
+	}
+	
+	/**
+	 * @param name The name of a file in a resource folder.
+	 * @return True if the file holds a version rather than an artifact.
+	 */
+	protected boolean isVersionFile(String name) {
+		return name.endsWith(VERSION_FILE_EXTENSION);
+	}
+	
+	protected File getVersionFile(File resourceFolder, String version) {
+		return new File(resourceFolder, version + VERSION_FILE_EXTENSION);
+	}
+	
+	/**
+	 * An artifact file, opened when the handle is created so that it can
+	 * still be sent if it is replaced in the meantime.  The file is sent
+	 * with FileChannel.transferTo, which lets the operating system copy it
+	 * straight to channels it can write to directly.
+	 */
+	private static class FileArtifact implements StoredArtifact {
+		private final FileInputStream in;
+		private final long length;
+		
+		FileArtifact(FileInputStream in) throws IOException {
+			this.in = in;
+			this.length = in.getChannel().size();
+		}
+
+		@Override
+		public long getLength() {
+			return length;
+		}
+
+		@Override
+		public void writeTo(WritableByteChannel channel) throws IOException {
+			try {
+				FileChannel file = in.getChannel();
+				long position = 0;
+				while (position < length) {
+					position += file.transferTo(
+						position, length - position, channel);
+				}
+			} finally {
+				IOUtils.close(in);
+			}
+		}
+
+		@Override
+		public byte[] getBytes() throws IOException {
+			try {
+				byte[] contents = new byte[(int) length];
+				ByteBuffer buffer = ByteBuffer.wrap(contents);
+				FileChannel file = in.getChannel();
+				int read = 0;
+				while (buffer.hasRemaining() && read >= 0) {
+					read = file.read(buffer);
+				}
+				return contents;
+			} finally {
+				IOUtils.close(in);
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * The default RetentionPolicy, which keeps versions of a resource from the
+ * latest backwards for as long as they are within all of the configured
+ * limits, and deletes the rest, so that versions are always evicted oldest
+ * first.  Each limit is disabled when set to zero, which is the default, so
+ * by default every version is kept.
+ * 
+ * @author joshua Harrison
+ */
+public class LimitRetentionPolicy implements RetentionPolicy {
+	
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+	
+	/** The maximum number of versions kept, including the latest. */
+	@Inject(optional=true) @Named(value="RetainVersions")
+	private int maxVersions = 0;
+	
+	/**
+	 * The number of days for which a version is kept after it was last the
+	 * latest version.
+	 */
+	@Inject(optional=true) @Named(value="RetainDays")
+	private int maxDays = 0;
+	
+	/**
+	 * The maximum number of bytes of versions kept for a resource, including
+	 * the latest.
+	 */
+	@Inject(optional=true) @Named(value="RetainBytes")
+	private long maxBytes = 0;
+	
+	public LimitRetentionPolicy() {}
+	
+	/**
+	 * @param maxVersions The maximum number of versions kept, or 0.
+	 * @param maxDays The number of days versions are kept for, or 0.
+	 * @param maxBytes The maximum size of the versions kept, or 0.
+	 */
+	public LimitRetentionPolicy(int maxVersions, int maxDays, long maxBytes) {
+		this.maxVersions = maxVersions;
+		this.maxDays = maxDays;
+		this.maxBytes = maxBytes;
+	}
+
+	@Override
+	public List<String> getExpiredVersions(List<VersionRecord> history,
+			                               long now) {
+		List<String> expired = new ArrayList<String>();
+		int kept = 0;
+		long keptBytes = 0;
+		boolean expiring = false;
+		// The latest version always counts against the limits, but is
+		// never expired.
+		for (int i = history.size() - 1; i >= 0; i--) {
+			VersionRecord record = history.get(i);
+			kept++;
+			keptBytes += record.getSize();
+			if (!expiring && i < history.size() - 1) {
+				expiring =
+					(maxVersions > 0 && kept > maxVersions) ||
+					(maxDays > 0 &&
+					 now - record.getStoredTime() > maxDays * MILLIS_PER_DAY) ||
+					(maxBytes > 0 && keptBytes > maxBytes);
+			}
+			if (expiring) {
+				expired.add(record.getVersion());
+			}
+		}
+		return expired;
+	}
+}
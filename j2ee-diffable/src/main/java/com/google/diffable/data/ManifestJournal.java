@@ -0,0 +1,250 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+import com.google.diffable.utils.IOUtils;
+
+/**
+ * Persists the manifest of the FileResourceManager as a checkpoint, in the
+ * Properties format the manifest has always been stored in, followed by a
+ * journal of the puts and removes made since.  Changes are appended to the
+ * journal in batches, so managing a resource doesn't rewrite the whole
+ * manifest, and the journal is folded into a new checkpoint once it grows
+ * long enough.
+ * 
+ * Each journal record is framed by its length and a CRC32 of its contents,
+ * so a record torn by a crash is detected when the journal is replayed and
+ * it and anything after it is dropped.  Checkpoints are written to a
+ * temporary file which is synced and renamed over the old one, so the
+ * checkpoint is always complete.
+ * 
+ * The journal isn't thread safe; the FileResourceManager synchronizes
+ * access to it.
+ * 
+ * @author joshua Harrison
+ */
+class ManifestJournal {
+	
+	private static final byte PUT = 'P';
+	private static final byte REMOVE = 'R';
+	
+	private final File checkpointFile;
+	private final File journalFile;
+	private final int checkpointRecords;
+	
+	/** The manifest, as loaded and then kept up to date by the manager. */
+	private Properties manifest = null;
+	
+	/** The records not yet written to the journal. */
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private int pendingRecords = 0;
+	
+	/** The number of records in the journal file. */
+	private int journalRecords = 0;
+	
+	private FileOutputStream journalOut = null;
+	
+	/**
+	 * @param checkpointFile The manifest file.
+	 * @param checkpointRecords The number of journal records after which
+	 *     flush writes a new checkpoint.
+	 */
+	public ManifestJournal(File checkpointFile, int checkpointRecords) {
+		this.checkpointFile = checkpointFile;
+		this.journalFile = new File(checkpointFile.getPath() + ".journal");
+		this.checkpointRecords = checkpointRecords;
+	}
+	
+	/**
+	 * @return True if neither a checkpoint nor a journal exist yet.
+	 */
+	public boolean isNew() {
+		return !checkpointFile.exists() && !journalFile.exists();
+	}
+	
+	/**
+	 * Loads the checkpoint and replays the journal over it.
+	 * 
+	 * @return The manifest.  Changes to it must be recorded with put and
+	 *     remove, and it is written out as is when checkpointing.
+	 */
+	public Properties load() throws IOException {
+		manifest = new Properties();
+		if (checkpointFile.exists()) {
+			FileInputStream in = new FileInputStream(checkpointFile);
+			try {
+				manifest.load(in);
+			} finally {
+				IOUtils.close(in);
+			}
+		}
+		journalRecords = 0;
+		if (journalFile.exists()) {
+			DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(IOUtils.read(journalFile)));
+			while (replayRecord(in)) {
+				journalRecords++;
+			}
+		}
+		return manifest;
+	}
+	
+	/**
+	 * Applies the next journal record to the manifest.
+	 * 
+	 * @return False at the end of the journal or at a torn record.
+	 */
+	private boolean replayRecord(DataInputStream in) throws IOException {
+		byte[] record;
+		int checksum;
+		try {
+			int length = in.readInt();
+			checksum = in.readInt();
+			if (length < 0 || length > in.available()) {
+				return false;
+			}
+			record = new byte[length];
+			in.readFully(record);
+		} catch (EOFException exc) {
+			return false;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		if ((int) crc.getValue() != checksum) {
+			return false;
+		}
+		DataInputStream fields =
+			new DataInputStream(new ByteArrayInputStream(record));
+		byte type = fields.readByte();
+		String key = fields.readUTF();
+		if (type == PUT) {
+			manifest.setProperty(key, fields.readUTF());
+		} else if (type == REMOVE) {
+			manifest.remove(key);
+		}
+		return true;
+	}
+	
+	/**
+	 * Records that a key was put in the manifest.  The record is written on
+	 * the next flush.
+	 */
+	public void put(String key, String value) throws IOException {
+		append(PUT, key, value);
+	}
+	
+	/**
+	 * Records that a key was removed from the manifest.  The record is
+	 * written on the next flush.
+	 */
+	public void remove(String key) throws IOException {
+		append(REMOVE, key, null);
+	}
+	
+	private void append(byte type, String key, String value)
+	throws IOException {
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream fields = new DataOutputStream(record);
+		fields.writeByte(type);
+		fields.writeUTF(key);
+		if (value != null) {
+			fields.writeUTF(value);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.toByteArray());
+		DataOutputStream out = new DataOutputStream(pending);
+		out.writeInt(record.size());
+		out.writeInt((int) crc.getValue());
+		record.writeTo(out);
+		pendingRecords++;
+	}
+	
+	/**
+	 * @return The number of records waiting for the next flush.
+	 */
+	public int getPendingRecords() {
+		return pendingRecords;
+	}
+	
+	/**
+	 * Appends the pending records to the journal in one write and syncs it,
+	 * then writes a new checkpoint if the journal has grown long enough.
+	 */
+	public void flush() throws IOException {
+		if (pendingRecords == 0) {
+			return;
+		}
+		if (journalOut == null) {
+			journalOut = new FileOutputStream(journalFile, true);
+		}
+		pending.writeTo(journalOut);
+		journalOut.getChannel().force(false);
+		journalRecords += pendingRecords;
+		pending.reset();
+		pendingRecords = 0;
+		if (journalRecords >= checkpointRecords) {
+			checkpoint();
+		}
+	}
+	
+	/**
+	 * Writes the whole manifest as a new checkpoint and empties the journal.
+	 * Pending records are dropped since the checkpoint includes them.
+	 */
+	public void checkpoint() throws IOException {
+		File tempFile = new File(checkpointFile.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tempFile);
+		try {
+			manifest.store(out, null);
+			out.getFD().sync();
+		} finally {
+			IOUtils.close(out);
+		}
+		if (!tempFile.renameTo(checkpointFile)) {
+			// Some platforms won't rename over an existing file.
+			checkpointFile.delete();
+			if (!tempFile.renameTo(checkpointFile)) {
+				throw new IOException("Can't replace " + checkpointFile);
+			}
+		}
+		close();
+		journalOut = new FileOutputStream(journalFile, false);
+		journalOut.getChannel().force(false);
+		journalRecords = 0;
+		pending.reset();
+		pendingRecords = 0;
+	}
+	
+	/**
+	 * Closes the journal file.  Pending records are not written.
+	 */
+	public void close() {
+		IOUtils.close(journalOut);
+		journalOut = null;
+	}
+}
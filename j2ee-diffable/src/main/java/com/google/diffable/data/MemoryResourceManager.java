@@ -0,0 +1,551 @@
+/**
+ * Copyright 2010 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.google.diffable.Constants;
+import com.google.diffable.config.BaseModule;
+import com.google.diffable.config.MessageProvider;
+import com.google.diffable.diff.Differ;
+import com.google.diffable.exceptions.ResourceManagerException;
+import com.google.diffable.exceptions.StackTracePrinter;
+import com.google.diffable.utils.DigestUtils;
+import com.google.diffable.utils.IOUtils;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * A ResourceManager that keeps every version and delta in memory and never
+ * writes to disk, for servers whose resource store would be thrown away
+ * with them anyway.  It is selected by setting the property
+ * 'com.google.diffable.data.ResourceManager' to this class.
+ * 
+ * The whole store can be exported as a binary snapshot and imported again,
+ * so a snapshot baked at build time (see main) can be loaded at startup
+ * from ResourceSnapshotPath in a single sequential read.  Snapshots key
+ * resources by their path relative to the resource folders, so they can be
+ * loaded wherever the web app is deployed.  Resources are decoded with a
+ * fixed charset, recorded in the snapshot, so the deltas baked on one
+ * machine apply to the same text wherever the snapshot is loaded.
+ * 
+ * @author joshua Harrison
+ */
+@Singleton
+public class MemoryResourceManager implements ResourceManager {
+	
+	/** Starts every snapshot. */
+	private static final int SNAPSHOT_MAGIC = 0x4446534e;
+	
+	/** The version of the snapshot format. */
+	private static final int SNAPSHOT_VERSION = 2;
+	
+	/**
+	 * A version of a managed resource.
+	 */
+	private static class Version {
+		final byte[] contents;
+		final long storedTime;
+		
+		Version(byte[] contents, long storedTime) {
+			this.contents = contents;
+			this.storedTime = storedTime;
+		}
+	}
+	
+	/**
+	 * Everything kept about a managed resource.
+	 */
+	private static class ManagedResource {
+		final String key;
+		final String hash;
+		final File resource;
+		
+		/** The hash of the latest version. */
+		String current = null;
+		
+		/** The decoded latest version, once it has been needed. */
+		String latest = null;
+		
+		/**
+		 * The state of the resource when it was last read, or null if it
+		 * hasn't been read since it was imported.
+		 */
+		FileStat stat = null;
+		
+		/** When stat was taken. */
+		long statTime = 0;
+		
+		/** The stored versions, oldest first. */
+		final LinkedHashMap<String, Version> versions =
+			new LinkedHashMap<String, Version>();
+		
+		/** The deltas to the latest version, by old version. */
+		final Map<String, byte[]> deltas = new HashMap<String, byte[]>();
+		
+		ManagedResource(String key, String hash, File resource) {
+			this.key = key;
+			this.hash = hash;
+			this.resource = resource;
+		}
+	}
+	
+	@Inject
+	private StackTracePrinter printer;
+	
+	@Inject
+	private MessageProvider provider;
+	
+	@Inject(optional=true)
+	private Logger logger = Logger.getLogger(MemoryResourceManager.class);
+	
+	/**
+	 * The snapshot imported when the manager is initialized, if it exists.
+	 * If the path starts with 'file://' it is absolute, otherwise it is
+	 * relative to the web app folder.
+	 */
+	@Inject(optional=true) @Named(value="ResourceSnapshotPath")
+	private String snapshotPath = null;
+	
+	/** The digest naming versions, as in the FileResourceManager. */
+	@Inject(optional=true) @Named(value="ContentDigest")
+	private String contentDigest = "MD5";
+	
+	/**
+	 * The charset resources are decoded with before they are diffed and
+	 * served, replaced by the one recorded in an imported snapshot.
+	 */
+	private String charset = Constants.RESPONSE_CHARSET;
+	
+	/** Decides which old versions are dropped when a new one is stored. */
+	@Inject
+	private RetentionPolicy retentionPolicy;
+	
+	/** The diffable context */
+	private DiffableContext diffableCtx;
+	
+	/** The differ */
+	private Differ differ = null;
+	
+	/** The managed resources by key. */
+	private Map<String, ManagedResource> resources =
+		new LinkedHashMap<String, ManagedResource>();
+	
+	/** The managed resources by the hash of their key. */
+	private Map<String, ManagedResource> hashsToResources =
+		new HashMap<String, ManagedResource>();
+	
+	@Override
+	public ResourceManager initialize(String baseDir, DiffableContext ctx)
+	throws ResourceManagerException {
+		diffableCtx = ctx;
+		if (snapshotPath == null) {
+			return this;
+		}
+		File snapshot = snapshotPath.startsWith(
+			Constants.FILE_URI_SCHEME_PREFIX) ? new File(snapshotPath.substring(
+				Constants.FILE_URI_SCHEME_PREFIX.length())) :
+			new File(baseDir, snapshotPath);
+		if (snapshot.exists()) {
+			try {
+				// The snapshot is read in one go and parsed from memory.
+				importSnapshot(new ByteArrayInputStream(IOUtils.read(snapshot)));
+				provider.info(logger, "memmgr.snapshotloaded",
+						      Integer.toString(resources.size()),
+						      snapshot.getAbsolutePath());
+			} catch (IOException exc) {
+				printer.print(exc);
+				throw new ResourceManagerException(provider.error(
+					"memmgr.cantloadsnapshot", snapshot.getAbsolutePath()));
+			}
+		}
+		return this;
+	}
+	
+	@Override @Inject
+	public void setDiffer(Differ differ) {
+		this.differ = differ;
+	}
+	
+	@Override
+	public synchronized boolean isManaged(File resource) {
+		return resources.containsKey(diffableCtx.getResourceKey(resource));
+	}
+	
+	@Override
+	public synchronized void putResource(File resource)
+	throws ResourceManagerException {
+		String key = diffableCtx.getResourceKey(resource);
+		ManagedResource managed = resources.get(key);
+		try {
+			if (managed == null) {
+				managed = new ManagedResource(key, hash("MD5",
+					key.getBytes("UTF-8")), resource);
+				resources.put(key, managed);
+				hashsToResources.put(managed.hash, managed);
+				diffableCtx.setResourceHash(resource, managed.hash);
+			}
+			long now = System.currentTimeMillis();
+			FileStat stat = FileStat.of(resource);
+			byte[] contents = IOUtils.read(resource);
+			String version = hash(contentDigest, contents);
+			managed.stat = stat;
+			managed.statTime = now;
+			if (!version.equals(managed.current)) {
+				provider.info(logger, "filemgr.gendeltas",
+						      resource.getAbsolutePath());
+				putVersion(managed, version, contents, now);
+			}
+		} catch (Exception exc) {
+			printer.print(exc);
+			throw new ResourceManagerException(provider.error(
+				"filemgr.cantloadlatest", resource.getAbsolutePath()));
+		}
+	}
+	
+	/**
+	 * Stores a new latest version of a managed resource, drops the versions
+	 * the retention policy expires and generates the deltas from the rest.
+	 */
+	private void putVersion(ManagedResource managed, String version,
+			                byte[] contents, long now) throws IOException {
+		managed.versions.remove(version);
+		managed.versions.put(version, new Version(contents, now));
+		List<VersionRecord> history = new ArrayList<VersionRecord>();
+		for (Map.Entry<String, Version> stored :
+			 managed.versions.entrySet()) {
+			history.add(new VersionRecord(stored.getKey(),
+				stored.getValue().storedTime,
+				stored.getValue().contents.length));
+		}
+		for (String expired :
+			 retentionPolicy.getExpiredVersions(history, now)) {
+			if (!expired.equals(version)) {
+				managed.versions.remove(expired);
+			}
+		}
+		managed.deltas.clear();
+		String currentContent = new String(contents, charset);
+		for (Map.Entry<String, Version> stored :
+			 managed.versions.entrySet()) {
+			if (stored.getKey().equals(version)) {
+				continue;
+			}
+			String diff = differ.getDiffAsString(
+				new String(stored.getValue().contents, charset),
+				currentContent);
+			managed.deltas.put(stored.getKey(),
+				diff.getBytes(Constants.RESPONSE_CHARSET));
+		}
+		managed.current = version;
+		managed.latest = currentContent;
+		diffableCtx.setCurrentVersion(managed.resource, version);
+	}
+	
+	@Override
+	public synchronized boolean hasResourceChanged(File resource)
+	throws ResourceManagerException {
+		ManagedResource managed =
+			resources.get(diffableCtx.getResourceKey(resource));
+		if (managed == null) {
+			throw new ResourceManagerException(provider.error(
+				"filemgr.filenotmanaged", resource.getAbsolutePath()));
+		}
+		// The recorded state is only trusted if the resource was last
+		// modified comfortably before it was taken.
+		FileStat stat = FileStat.of(resource);
+		if (managed.stat != null && managed.stat.equals(stat) &&
+			stat.lastModified <
+			managed.statTime - ResourceIndex.TIMESTAMP_RESOLUTION) {
+			return false;
+		}
+		// Otherwise, such as after a snapshot was imported, the contents
+		// are compared.
+		try {
+			long now = System.currentTimeMillis();
+			String version = hash(contentDigest, IOUtils.read(resource));
+			if (version.equals(managed.current)) {
+				managed.stat = stat;
+				managed.statTime = now;
+				return false;
+			}
+		} catch (Exception exc) {
+			printer.print(exc);
+		}
+		return true;
+	}
+	
+	@Override
+	public synchronized void getResource(ResourceRequest request)
+	throws ResourceManagerException {
+		ManagedResource managed =
+			hashsToResources.get(request.getResourceHash());
+		if (managed == null || managed.current == null) {
+			return;
+		}
+		provider.debug(logger, "filemgr.getresource",
+				       request.getResourceHash(),
+				       managed.resource.getAbsolutePath());
+		if (request.isDiff()) {
+			byte[] delta = managed.current.equals(
+				request.getNewVersionHash()) ?
+				managed.deltas.get(request.getOldVersionHash()) : null;
+			if (delta != null) {
+				request.setArtifact(new BufferArtifact(ByteBuffer.wrap(delta)));
+			} else {
+				// As in the FileResourceManager, a missing delta is answered
+				// with the latest version.
+				request.setFallback(managed.current, getLatest(managed));
+			}
+		} else {
+			request.setResponse(getLatest(managed));
+			request.setNewVersionHash(managed.current);
+		}
+	}
+	
+	/**
+	 * @return The decoded latest version of a managed resource, which is
+	 *     kept once it has been decoded.
+	 */
+	private String getLatest(ManagedResource managed)
+	throws ResourceManagerException {
+		if (managed.latest == null) {
+			try {
+				managed.latest = new String(
+					managed.versions.get(managed.current).contents, charset);
+			} catch (IOException exc) {
+				printer.print(exc);
+				throw new ResourceManagerException(provider.error(
+					"filemgr.cantloadlatest",
+					managed.resource.getAbsolutePath()));
+			}
+		}
+		return managed.latest;
+	}
+	
+	/**
+	 * Does nothing, since the manager holds no threads or files.
+	 */
+	@Override
+	public void shutdown() {
+	}
+	
+	@Override
+	public synchronized void deleteResource(File resource) {
+		ManagedResource managed =
+			resources.remove(diffableCtx.getResourceKey(resource));
+		if (managed != null) {
+			hashsToResources.remove(managed.hash);
+		}
+	}
+	
+	@Override
+	public synchronized List<File> getManagedResources() {
+		List<File> managedResources = new ArrayList<File>();
+		for (ManagedResource managed : resources.values()) {
+			managedResources.add(managed.resource);
+		}
+		return managedResources;
+	}
+	
+	/**
+	 * Writes every managed resource, with its versions and deltas, to a
+	 * snapshot.
+	 * 
+	 * @param out The stream to write the snapshot to, which is left open.
+	 */
+	public synchronized void exportSnapshot(OutputStream out)
+	throws IOException {
+		DataOutputStream data = new DataOutputStream(
+			new BufferedOutputStream(out, IOUtils.BUFFER_SIZE));
+		data.writeInt(SNAPSHOT_MAGIC);
+		data.writeInt(SNAPSHOT_VERSION);
+		data.writeUTF(charset);
+		data.writeInt(resources.size());
+		for (ManagedResource managed : resources.values()) {
+			data.writeUTF(managed.key);
+			data.writeUTF(managed.hash);
+			data.writeUTF(managed.current == null ? "" : managed.current);
+			data.writeInt(managed.versions.size());
+			for (Map.Entry<String, Version> version :
+				 managed.versions.entrySet()) {
+				data.writeUTF(version.getKey());
+				data.writeLong(version.getValue().storedTime);
+				writeBytes(data, version.getValue().contents);
+			}
+			data.writeInt(managed.deltas.size());
+			for (Map.Entry<String, byte[]> delta : managed.deltas.entrySet()) {
+				data.writeUTF(delta.getKey());
+				writeBytes(data, delta.getValue());
+			}
+		}
+		data.flush();
+	}
+	
+	/**
+	 * Replaces the managed resources with those in a snapshot written by
+	 * exportSnapshot.  Resources missing from the resource folders are
+	 * skipped.
+	 * 
+	 * @param in The stream to read the snapshot from, which is left open.
+	 * @throws IOException If the stream can't be read or isn't a snapshot,
+	 *     in which case the managed resources are left as they were.
+	 */
+	public synchronized void importSnapshot(InputStream in)
+	throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != SNAPSHOT_MAGIC ||
+			data.readInt() != SNAPSHOT_VERSION) {
+			throw new IOException("Not a Diffable snapshot");
+		}
+		String snapshotCharset = data.readUTF();
+		try {
+			Charset.forName(snapshotCharset);
+		} catch (IllegalArgumentException exc) {
+			throw new IOException("Unsupported snapshot charset " +
+				snapshotCharset);
+		}
+		Map<String, ManagedResource> imported =
+			new LinkedHashMap<String, ManagedResource>();
+		for (int i = data.readInt(); i > 0; i--) {
+			String key = data.readUTF();
+			String hash = data.readUTF();
+			ManagedResource managed = new ManagedResource(
+				key, hash, diffableCtx.getResource(key));
+			String current = data.readUTF();
+			managed.current = current.length() == 0 ? null : current;
+			for (int j = data.readInt(); j > 0; j--) {
+				String version = data.readUTF();
+				long storedTime = data.readLong();
+				managed.versions.put(version,
+					new Version(readBytes(data), storedTime));
+			}
+			for (int j = data.readInt(); j > 0; j--) {
+				String version = data.readUTF();
+				managed.deltas.put(version, readBytes(data));
+			}
+			if (managed.resource.exists()) {
+				imported.put(key, managed);
+			}
+		}
+		resources = imported;
+		charset = snapshotCharset;
+		hashsToResources = new HashMap<String, ManagedResource>();
+		for (ManagedResource managed : resources.values()) {
+			hashsToResources.put(managed.hash, managed);
+			diffableCtx.setResourceHash(managed.resource, managed.hash);
+			if (managed.current != null) {
+				diffableCtx.setCurrentVersion(
+					managed.resource, managed.current);
+			}
+		}
+	}
+	
+	private static void writeBytes(DataOutputStream data, byte[] bytes)
+	throws IOException {
+		data.writeInt(bytes.length);
+		data.write(bytes);
+	}
+	
+	private static byte[] readBytes(DataInputStream data) throws IOException {
+		int length = data.readInt();
+		if (length < 0) {
+			throw new IOException("Corrupt Diffable snapshot");
+		}
+		byte[] bytes = new byte[length];
+		data.readFully(bytes);
+		return bytes;
+	}
+	
+	private static String hash(String algorithm, byte[] contents)
+	throws Exception {
+		MessageDigest md = DigestUtils.getDigest(algorithm);
+		return DigestUtils.toHex(md.digest(contents));
+	}
+	
+	/**
+	 * Puts every file in a set of folders, recursively.
+	 */
+	private void putFolder(File folder) throws ResourceManagerException {
+		File[] children = folder.listFiles();
+		if (children == null) {
+			return;
+		}
+		Arrays.sort(children);
+		for (File child : children) {
+			if (child.isDirectory()) {
+				putFolder(child);
+			} else {
+				putResource(child);
+			}
+		}
+	}
+	
+	/**
+	 * Bakes a snapshot at build time.  The snapshot is loaded first if it
+	 * exists, so the new snapshot also holds the deltas from the versions
+	 * it held.
+	 * 
+	 * Usage: MemoryResourceManager snapshot resourceFolder...
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: MemoryResourceManager " +
+				"snapshot resourceFolder...");
+			System.exit(1);
+		}
+		List<File> folders = new ArrayList<File>();
+		for (int i = 1; i < args.length; i++) {
+			folders.add(new File(args[i]).getAbsoluteFile());
+		}
+		DiffableContext ctx = new DiffableContext();
+		ctx.setFolder(folders);
+		MemoryResourceManager mgr = Guice.createInjector(new BaseModule())
+			.getInstance(MemoryResourceManager.class);
+		mgr.initialize(new File(".").getAbsolutePath(), ctx);
+		File snapshot = new File(args[0]);
+		if (snapshot.exists()) {
+			mgr.importSnapshot(new ByteArrayInputStream(IOUtils.read(snapshot)));
+		}
+		for (File folder : folders) {
+			mgr.putFolder(folder);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		mgr.exportSnapshot(out);
+		IOUtils.writeAtomically(snapshot.getAbsoluteFile(), out.toByteArray());
+	}
+}
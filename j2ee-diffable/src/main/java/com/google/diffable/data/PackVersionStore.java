@@ -0,0 +1,790 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.google.diffable.config.MessageProvider;
+import com.google.diffable.utils.DigestUtils;
+import com.google.diffable.utils.IOUtils;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * A VersionStore which keeps everything stored for a resource in a single
+ * append-only pack file, 'pack.[generation].data', with a fixed-width index
+ * of its entries in 'pack.[generation].idx', instead of one file per version
+ * and artifact.  Both files are memory-mapped when a resource is first
+ * accessed, and only the mappings of the most recently used packs are kept.
+ * Entries are looked up in the mapped index itself, through a table of the
+ * latest record of each key.
+ * 
+ * Index keys are sized for the names of deltas between versions named by
+ * the ContentDigest, and storing a longer key fails.  An index written for
+ * shorter keys, under another ContentDigest, is compacted into the current
+ * layout the first time a longer key is stored.
+ * 
+ * Storing or deleting an entry appends to the data file and/or the index,
+ * and the last index record for a key wins.  Once the data superseded this
+ * way outweighs the live data, the pack is compacted into the next
+ * generation; the new index is renamed into place last, so the newest
+ * generation with an index is always complete.
+ * 
+ * Versions and artifacts left as loose files by the FileVersionStore are
+ * moved into the pack the first time their resource is accessed.
+ * 
+ * To use it, bind it in the Diffable config properties:
+ * com.google.diffable.data.VersionStore=com.google.diffable.data.PackVersionStore
+ * 
+ * @author joshua Harrison
+ */
+@Singleton
+public class PackVersionStore implements VersionStore {
+	
+	private static final String PACK_PREFIX = "pack.";
+	private static final String DATA_EXTENSION = ".data";
+	private static final String INDEX_EXTENSION = ".idx";
+	private static final String TEMP_EXTENSION = ".tmp";
+	
+	/**
+	 * The header identifying an index file, followed by the number of bytes
+	 * its records hold for a key.
+	 */
+	private static final byte[] INDEX_MAGIC = {
+		'D', 'I', 'F', 'F', 'I', 'D', 'X', '2'};
+	static final int INDEX_HEADER_SIZE = INDEX_MAGIC.length + 4;
+	
+	/** The number of records a new index file is extended to hold. */
+	private static final int INITIAL_RECORDS = 64;
+	
+	private static final Charset KEY_CHARSET = Charset.forName("US-ASCII");
+	
+	private static final byte VERSION = 1;
+	private static final byte ARTIFACT = 2;
+	
+	/** Set in the type of a record deleting an entry of that type. */
+	private static final byte DELETED = (byte) 0x80;
+	
+	@Inject
+	private MessageProvider provider;
+	
+	@Inject(optional=true)
+	private Logger logger = Logger.getLogger(PackVersionStore.class);
+	
+	/** The number of packs to keep mapped. */
+	@Inject(optional=true) @Named("PackCacheSize")
+	private int packCacheSize = 1024;
+	
+	/**
+	 * Packs are only compacted once they hold at least this many bytes of
+	 * superseded data.
+	 */
+	@Inject(optional=true) @Named("PackMinDeadBytes")
+	private long minDeadBytes = 65536;
+	
+	/** The digest naming versions, which the key length is sized for. */
+	@Inject(optional=true) @Named("ContentDigest")
+	private String contentDigest = "MD5";
+	
+	private Layout layout = null;
+	
+	private final LinkedHashMap<File, Pack> packs =
+		new LinkedHashMap<File, Pack>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+	
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<File, Pack> e) {
+				return size() > packCacheSize;
+			}
+		};
+	
+	@Override
+	public void initialize(File resourceStore) throws IOException {
+	}
+	
+	@Override
+	public synchronized boolean hasVersion(File resourceFolder,
+			                               String version) {
+		return has(resourceFolder, VERSION, version);
+	}
+
+	@Override
+	public synchronized void putVersion(File resourceFolder, String version,
+			                            byte[] contents) throws IOException {
+		getPack(resourceFolder).put(VERSION, version, contents);
+	}
+
+	@Override
+	public synchronized byte[] getVersion(File resourceFolder, String version)
+	throws IOException {
+		return getPack(resourceFolder).get(VERSION, version);
+	}
+
+	@Override
+	public synchronized List<String> getVersions(File resourceFolder) {
+		try {
+			return getPack(resourceFolder).getKeys(VERSION);
+		} catch (IOException exc) {
+			return new ArrayList<String>();
+		}
+	}
+
+	@Override
+	public synchronized void deleteVersion(File resourceFolder,
+			                               String version) {
+		delete(resourceFolder, VERSION, version);
+	}
+
+	@Override
+	public synchronized boolean hasArtifact(File resourceFolder, String name) {
+		return has(resourceFolder, ARTIFACT, name);
+	}
+
+	@Override
+	public synchronized void putArtifact(File resourceFolder, String name,
+			                             byte[] contents) throws IOException {
+		getPack(resourceFolder).put(ARTIFACT, name, contents);
+	}
+
+	@Override
+	public synchronized byte[] getArtifact(File resourceFolder, String name)
+	throws IOException {
+		return getPack(resourceFolder).get(ARTIFACT, name);
+	}
+
+	/**
+	 * Returns a slice of the pack's mapping, which stays valid even if the
+	 * pack is compacted before the artifact is sent.
+	 */
+	@Override
+	public synchronized StoredArtifact openArtifact(File resourceFolder,
+			                                        String name)
+	throws IOException {
+		ByteBuffer slice = getPack(resourceFolder).slice(ARTIFACT, name);
+		return slice == null ? null : new BufferArtifact(slice);
+	}
+
+	@Override
+	public synchronized List<String> getArtifacts(File resourceFolder) {
+		try {
+			return getPack(resourceFolder).getKeys(ARTIFACT);
+		} catch (IOException exc) {
+			return new ArrayList<String>();
+		}
+	}
+
+	@Override
+	public synchronized void deleteArtifact(File resourceFolder, String name) {
+		delete(resourceFolder, ARTIFACT, name);
+	}
+
+	@Override
+	public synchronized void deleteArtifacts(File resourceFolder) {
+		try {
+			Pack pack = getPack(resourceFolder);
+			for (String name : pack.getKeys(ARTIFACT)) {
+				pack.delete(ARTIFACT, name);
+			}
+			pack.compactIfWasteful();
+		} catch (IOException exc) {
+			// Leave the artifacts; they will be replaced when regenerated.
+		}
+	}
+
+	@Override
+	public synchronized void deleteResource(File resourceFolder) {
+		packs.remove(resourceFolder);
+		File[] files = resourceFolder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		resourceFolder.delete();
+	}
+	
+	/**
+	 * Rewrites the pack of a resource without its superseded data.
+	 * 
+	 * @param resourceFolder The folder of the managed resource.
+	 */
+	public synchronized void compact(File resourceFolder) throws IOException {
+		getPack(resourceFolder).compact();
+	}
+	
+	/**
+	 * @return The total size of the pack files of a resource.
+	 */
+	synchronized long getPackSize(File resourceFolder) throws IOException {
+		Pack pack = getPack(resourceFolder);
+		return pack.dataLength + pack.indexLength;
+	}
+	
+	private boolean has(File resourceFolder, byte type, String key) {
+		try {
+			return getPack(resourceFolder).find(type, key) >= 0;
+		} catch (IOException exc) {
+			return false;
+		}
+	}
+	
+	private void delete(File resourceFolder, byte type, String key) {
+		try {
+			Pack pack = getPack(resourceFolder);
+			pack.delete(type, key);
+			pack.compactIfWasteful();
+		} catch (IOException exc) {
+			// The entry stays; deleting is only an optimization here.
+		}
+	}
+	
+	private Pack getPack(File resourceFolder) throws IOException {
+		Pack pack = packs.get(resourceFolder);
+		if (pack == null) {
+			pack = new Pack(resourceFolder);
+			packs.put(resourceFolder, pack);
+		}
+		return pack;
+	}
+	
+	/**
+	 * @return The layout of the indexes of new and compacted packs.
+	 */
+	private Layout getLayout() {
+		if (layout == null) {
+			layout = new Layout(getMaxKeyLength());
+		}
+		return layout;
+	}
+	
+	/**
+	 * @return The longest key the index of a new pack holds: the name of a
+	 *     precompressed delta between two versions named by the
+	 *     ContentDigest.
+	 */
+	int getMaxKeyLength() {
+		int digestLength = 0;
+		try {
+			digestLength =
+				DigestUtils.getDigest(contentDigest).getDigestLength();
+		} catch (NoSuchAlgorithmException exc) {
+			// The resource manager reports the unknown digest.
+		}
+		if (digestLength <= 0) {
+			// As long as a SHA-512 hash.
+			digestLength = 64;
+		}
+		int suffixLength = 0;
+		for (ContentEncoding encoding : ContentEncoding.values()) {
+			suffixLength =
+				Math.max(suffixLength, encoding.getSuffix().length());
+		}
+		return 4 * digestLength + "_.diff".length() + suffixLength;
+	}
+	
+	/**
+	 * @return The size of the records of new and compacted indexes.
+	 */
+	int getRecordSize() {
+		return getLayout().recordSize;
+	}
+	
+	private byte[] getKeyBytes(String key) throws IOException {
+		byte[] keyBytes = key.getBytes(KEY_CHARSET);
+		int maxKeyLength = getLayout().maxKeyLength;
+		if (keyBytes.length > maxKeyLength) {
+			throw new IOException("Pack key of " + keyBytes.length +
+				" bytes is longer than the " + maxKeyLength +
+				" bytes allowed with the " + contentDigest +
+				" ContentDigest: " + key);
+		}
+		return keyBytes;
+	}
+	
+	/**
+	 * The layout of the records of an index: the entry type, the two byte
+	 * key length, the key padded to maxKeyLength bytes, the offset of the
+	 * entry in the data file and its length.
+	 */
+	private static class Layout {
+		static final int KEY_POSITION = 3;
+		final int maxKeyLength;
+		final int offsetPosition;
+		final int lengthPosition;
+		final int recordSize;
+		
+		Layout(int maxKeyLength) {
+			this.maxKeyLength = maxKeyLength;
+			offsetPosition = KEY_POSITION + maxKeyLength;
+			lengthPosition = offsetPosition + 8;
+			recordSize = lengthPosition + 4;
+		}
+		
+		byte[] createHeader() {
+			ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER_SIZE);
+			header.put(INDEX_MAGIC);
+			header.putInt(maxKeyLength);
+			return header.array();
+		}
+		
+		byte[] createRecord(byte type, byte[] keyBytes, long offset,
+				            int length) {
+			ByteBuffer record = ByteBuffer.allocate(recordSize);
+			record.put(type);
+			record.putShort((short) keyBytes.length);
+			record.put(keyBytes);
+			record.putLong(offsetPosition, offset);
+			record.putInt(lengthPosition, length);
+			return record.array();
+		}
+	}
+	
+	/**
+	 * The pack of a single resource: the mapped data and index files, and a
+	 * table of the latest index record of each key.
+	 */
+	private class Pack {
+		private final File folder;
+		private int generation = 0;
+		private MappedByteBuffer data = null;
+		private long dataLength = 0;
+		private Layout layout = getLayout();
+		
+		/**
+		 * The mapped index, which extends past the records with zeros so
+		 * that records can be appended without remapping it every time.
+		 */
+		private MappedByteBuffer index = null;
+		
+		/** The length of the header and valid records of the index. */
+		private long indexLength = 0;
+		private long liveBytes = 0;
+		
+		/**
+		 * An open addressing table of the latest record of each key, holding
+		 * the record's number plus one, or zero in an empty slot.
+		 */
+		private int[] slots = new int[16];
+		private int keys = 0;
+		
+		Pack(File folder) throws IOException {
+			this.folder = folder;
+			// Use the newest generation with an index, and delete anything
+			// left over from other generations or an interrupted compaction.
+			String[] names = folder.list();
+			if (names == null) {
+				return;
+			}
+			for (String name : names) {
+				if (name.startsWith(PACK_PREFIX) &&
+					name.endsWith(INDEX_EXTENSION)) {
+					try {
+						generation = Math.max(generation, Integer.parseInt(
+							name.substring(PACK_PREFIX.length(),
+								name.length() - INDEX_EXTENSION.length())));
+					} catch (NumberFormatException exc) {
+						// Not one of ours.
+					}
+				}
+			}
+			for (String name : names) {
+				if (name.startsWith(PACK_PREFIX) &&
+					!getDataFile(generation).getName().equals(name) &&
+					!getIndexFile(generation).getName().equals(name)) {
+					new File(folder, name).delete();
+				}
+			}
+			loadIndex();
+			importLooseFiles(names);
+		}
+		
+		private void loadIndex() throws IOException {
+			File indexFile = getIndexFile(generation);
+			File dataFile = getDataFile(generation);
+			if (!indexFile.exists()) {
+				// Data without an index can't be read back.
+				dataFile.delete();
+				return;
+			}
+			dataLength = dataFile.length();
+			RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+			try {
+				byte[] magic = new byte[INDEX_MAGIC.length];
+				if (file.length() < INDEX_HEADER_SIZE) {
+					throw new IOException("Bad pack index " + indexFile);
+				}
+				file.readFully(magic);
+				int maxKeyLength = file.readInt();
+				if (!Arrays.equals(magic, INDEX_MAGIC) ||
+					maxKeyLength <= 0 || maxKeyLength > 0xffff) {
+					throw new IOException("Bad pack index " + indexFile);
+				}
+				layout = new Layout(maxKeyLength);
+				index = file.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, file.length());
+			} finally {
+				IOUtils.close(file);
+			}
+			long valid = INDEX_HEADER_SIZE;
+			int record = 0;
+			while (valid + layout.recordSize <= index.capacity() &&
+				   getType(record) != 0 &&
+				   getOffset(record) + getLength(record) <= dataLength) {
+				// Records whose data never made it to disk end the index.
+				addRecord(record++);
+				valid += layout.recordSize;
+			}
+			// Clear a torn or dangling tail so appends stay aligned.
+			for (int i = (int) valid; i < index.capacity(); i++) {
+				index.put(i, (byte) 0);
+			}
+			indexLength = valid;
+		}
+		
+		private void importLooseFiles(String[] names) throws IOException {
+			for (String name : names) {
+				if (name.startsWith(PACK_PREFIX)) {
+					continue;
+				}
+				File file = new File(folder, name);
+				if (!file.isFile()) {
+					continue;
+				}
+				if (name.endsWith(FileVersionStore.VERSION_FILE_EXTENSION)) {
+					put(VERSION, name.substring(0, name.length() -
+						FileVersionStore.VERSION_FILE_EXTENSION.length()),
+						IOUtils.read(file));
+				} else {
+					put(ARTIFACT, name, IOUtils.read(file));
+				}
+				file.delete();
+			}
+		}
+		
+		private int getPosition(int record) {
+			return INDEX_HEADER_SIZE + record * layout.recordSize;
+		}
+		
+		private byte getType(int record) {
+			return index.get(getPosition(record));
+		}
+		
+		private boolean isLive(int record) {
+			return (getType(record) & DELETED) == 0;
+		}
+		
+		private long getOffset(int record) {
+			return index.getLong(getPosition(record) + layout.offsetPosition);
+		}
+		
+		private int getLength(int record) {
+			return index.getInt(getPosition(record) + layout.lengthPosition);
+		}
+		
+		private int getKeyLength(int record) {
+			int keyLength = index.getShort(getPosition(record) + 1) & 0xffff;
+			return Math.min(keyLength, layout.maxKeyLength);
+		}
+		
+		private byte[] getKey(int record) {
+			byte[] key = new byte[getKeyLength(record)];
+			ByteBuffer view = index.duplicate();
+			view.position(getPosition(record) + Layout.KEY_POSITION);
+			view.get(key);
+			return key;
+		}
+		
+		private boolean hasKey(int record, byte[] key) {
+			if (getKeyLength(record) != key.length) {
+				return false;
+			}
+			int position = getPosition(record) + Layout.KEY_POSITION;
+			for (int i = 0; i < key.length; i++) {
+				if (index.get(position + i) != key[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * @return The slot of the table holding the key's latest record, or
+		 *     the empty slot it would go in.
+		 */
+		private int findSlot(byte[] key) {
+			int hash = 0;
+			for (byte b : key) {
+				hash = 31 * hash + b;
+			}
+			hash ^= hash >>> 16;
+			hash *= 0x85ebca6b;
+			hash ^= hash >>> 13;
+			int mask = slots.length - 1;
+			int slot = hash & mask;
+			while (slots[slot] != 0 && !hasKey(slots[slot] - 1, key)) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+		
+		/**
+		 * @return The number of the record holding the entry, or -1 if there
+		 *     is no such entry.
+		 */
+		int find(byte type, String key) {
+			if (index == null) {
+				return -1;
+			}
+			int record = slots[findSlot(key.getBytes(KEY_CHARSET))] - 1;
+			return record >= 0 && getType(record) == type ? record : -1;
+		}
+		
+		/**
+		 * Makes a record the latest one of its key.
+		 */
+		private void addRecord(int record) {
+			int slot = findSlot(getKey(record));
+			int previous = slots[slot] - 1;
+			if (previous < 0) {
+				keys++;
+			} else if (isLive(previous)) {
+				liveBytes -= getLength(previous);
+			}
+			slots[slot] = record + 1;
+			if (isLive(record)) {
+				liveBytes += getLength(record);
+			}
+			if (keys * 2 > slots.length) {
+				int[] old = slots;
+				slots = new int[old.length * 2];
+				for (int entry : old) {
+					if (entry != 0) {
+						slots[findSlot(getKey(entry - 1))] = entry;
+					}
+				}
+			}
+		}
+		
+		byte[] get(byte type, String key) {
+			ByteBuffer slice = slice(type, key);
+			if (slice == null) {
+				return null;
+			}
+			byte[] contents = new byte[slice.remaining()];
+			slice.get(contents);
+			return contents;
+		}
+		
+		/**
+		 * @return A read only view of the entry in the mapped data file, or
+		 *     null if there is no such entry.
+		 */
+		ByteBuffer slice(byte type, String key) {
+			int record = find(type, key);
+			return record < 0 ? null : slice(record);
+		}
+		
+		private ByteBuffer slice(int record) {
+			long offset = getOffset(record);
+			int length = getLength(record);
+			if (data == null || offset + length > data.capacity()) {
+				mapData();
+			}
+			ByteBuffer view = data.duplicate();
+			view.position((int) offset);
+			view.limit((int) (offset + length));
+			return view.slice();
+		}
+		
+		void put(byte type, String key, byte[] contents) throws IOException {
+			byte[] keyBytes = getKeyBytes(key);
+			if (keyBytes.length > layout.maxKeyLength) {
+				// The index was written for another ContentDigest.
+				compact();
+			}
+			folder.mkdirs();
+			long offset = dataLength;
+			RandomAccessFile dataFile =
+				new RandomAccessFile(getDataFile(generation), "rw");
+			try {
+				dataFile.seek(offset);
+				dataFile.write(contents);
+			} finally {
+				IOUtils.close(dataFile);
+			}
+			dataLength += contents.length;
+			// A key only ever holds one entry, whatever its type.
+			appendRecord(type, keyBytes, offset, contents.length);
+		}
+		
+		void delete(byte type, String key) throws IOException {
+			int record = find(type, key);
+			if (record >= 0) {
+				appendRecord((byte) (type | DELETED), getKey(record), 0, 0);
+			}
+		}
+		
+		List<String> getKeys(byte type) {
+			ArrayList<String> keys = new ArrayList<String>();
+			for (int entry : slots) {
+				if (entry != 0 && getType(entry - 1) == type) {
+					keys.add(new String(getKey(entry - 1), KEY_CHARSET));
+				}
+			}
+			return keys;
+		}
+		
+		void compactIfWasteful() throws IOException {
+			long deadBytes = dataLength - liveBytes;
+			if (deadBytes >= minDeadBytes && deadBytes > liveBytes) {
+				compact();
+			}
+		}
+		
+		/**
+		 * Copies the live entries into the next generation of the pack,
+		 * whose index has the current layout.
+		 */
+		void compact() throws IOException {
+			long oldSize = dataLength + indexLength;
+			int next = generation + 1;
+			Layout compacted = layout.maxKeyLength > getLayout().maxKeyLength ?
+				new Layout(layout.maxKeyLength) : getLayout();
+			File dataTemp = new File(
+				getDataFile(next).getPath() + TEMP_EXTENSION);
+			File indexTemp = new File(
+				getIndexFile(next).getPath() + TEMP_EXTENSION);
+			RandomAccessFile dataFile = new RandomAccessFile(dataTemp, "rw");
+			RandomAccessFile indexFile = new RandomAccessFile(indexTemp, "rw");
+			long offset = 0;
+			try {
+				dataFile.setLength(0);
+				indexFile.setLength(0);
+				indexFile.write(compacted.createHeader());
+				for (int entry : index == null ? new int[0] : slots) {
+					if (entry == 0 || !isLive(entry - 1)) {
+						continue;
+					}
+					ByteBuffer slice = slice(entry - 1);
+					byte[] contents = new byte[slice.remaining()];
+					slice.get(contents);
+					dataFile.write(contents);
+					indexFile.write(compacted.createRecord(getType(entry - 1),
+						getKey(entry - 1), offset, contents.length));
+					offset += contents.length;
+				}
+			} finally {
+				IOUtils.close(dataFile);
+				IOUtils.close(indexFile);
+			}
+			// The index is renamed last; until then the old generation is
+			// the one that gets loaded.
+			if (!dataTemp.renameTo(getDataFile(next)) ||
+				!indexTemp.renameTo(getIndexFile(next))) {
+				dataTemp.delete();
+				indexTemp.delete();
+				getDataFile(next).delete();
+				throw new IOException("Cannot compact pack in " + folder);
+			}
+			getDataFile(generation).delete();
+			getIndexFile(generation).delete();
+			generation = next;
+			data = null;
+			index = null;
+			slots = new int[16];
+			keys = 0;
+			liveBytes = 0;
+			loadIndex();
+			provider.debug(logger, "packstore.compacted",
+					       folder.getAbsolutePath(), Long.toString(oldSize),
+					       Long.toString(dataLength + indexLength));
+		}
+		
+		private void mapData() {
+			RandomAccessFile dataFile = null;
+			try {
+				dataFile = new RandomAccessFile(getDataFile(generation), "r");
+				// The mapping stays valid once the file is closed.
+				data = dataFile.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, dataLength);
+			} catch (IOException exc) {
+				throw new IllegalStateException(
+					"Cannot map pack in " + folder, exc);
+			} finally {
+				IOUtils.close(dataFile);
+			}
+		}
+		
+		/**
+		 * Maps the index, extending the file to the given size with zeros.
+		 */
+		private void mapIndex(long size) throws IOException {
+			RandomAccessFile file =
+				new RandomAccessFile(getIndexFile(generation), "rw");
+			try {
+				index = file.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, size);
+			} finally {
+				IOUtils.close(file);
+			}
+		}
+		
+		private void appendRecord(byte type, byte[] keyBytes, long offset,
+				                  int length) throws IOException {
+			if (index == null) {
+				layout = getLayout();
+				IOUtils.write(getIndexFile(generation), layout.createHeader());
+				indexLength = INDEX_HEADER_SIZE;
+				mapIndex(indexLength + INITIAL_RECORDS * layout.recordSize);
+			} else if (indexLength + layout.recordSize > index.capacity()) {
+				mapIndex(Math.max(index.capacity() * 2L,
+					indexLength + layout.recordSize));
+			}
+			byte[] record = layout.createRecord(type, keyBytes, offset, length);
+			ByteBuffer view = index.duplicate();
+			view.position((int) indexLength + 1);
+			view.put(record, 1, record.length - 1);
+			// The type goes in last, since a record is valid once it is set.
+			index.put((int) indexLength, type);
+			addRecord((int) ((indexLength - INDEX_HEADER_SIZE) /
+				layout.recordSize));
+			indexLength += layout.recordSize;
+		}
+		
+		private File getDataFile(int generation) {
+			return new File(folder, PACK_PREFIX + generation + DATA_EXTENSION);
+		}
+		
+		private File getIndexFile(int generation) {
+			return new File(folder, PACK_PREFIX + generation + INDEX_EXTENSION);
+		}
+	}
+}
@@ -0,0 +1,610 @@
+/**
+ * Copyright 2010 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.log4j.Logger;
+
+import com.google.diffable.config.MessageProvider;
+import com.google.diffable.exceptions.StackTracePrinter;
+import com.google.diffable.utils.DigestUtils;
+import com.google.diffable.utils.IOUtils;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * Replicates generated artifacts between servers that don't share a
+ * resource store.  A server that has stored the deltas for a new version of
+ * a resource advertises them to its peers, listing the SHA-256 hash of
+ * each.  A peer that later ingests the same version fetches the advertised
+ * artifacts from the server that advertised them instead of generating
+ * them, all in one request, and only keeps those matching their hash.  A
+ * peer that fails to answer is skipped for ReplicationRetryInterval.
+ * 
+ * Peers talk through the DiffableServlet, under PATH_PREFIX.  Every request
+ * is signed with an HMAC of the shared ReplicationSecret over its method,
+ * path, time and body, and requests more than MAX_CLOCK_SKEW from the
+ * receiving server's clock are refused.  A server only serves the artifacts
+ * it has advertised itself.
+ * 
+ * Replication is enabled by setting ReplicationPeers, ReplicationUrl and
+ * ReplicationSecret.
+ * 
+ * @author joshua Harrison
+ */
+@Singleton
+public class PeerReplicator {
+	
+	/** Prefixes replication requests to the DiffableServlet. */
+	public static final String PATH_PREFIX = "replication/";
+	
+	/** The header holding the time a request was signed, in milliseconds. */
+	public static final String TIME_HEADER = "X-Diffable-Time";
+	
+	/** The header holding the signature of a request, in hex. */
+	public static final String SIGNATURE_HEADER = "X-Diffable-Signature";
+	
+	/** The path advertisements are posted to. */
+	static final String ADVERTISE_PATH = "advertise";
+	
+	/**
+	 * Prefixes the paths artifacts are fetched from, followed by the hash of
+	 * their resource.  The body of the request lists their names, a line
+	 * each, and the response holds the name, length and contents of each
+	 * one served.
+	 */
+	static final String ARTIFACTS_PATH = "artifacts/";
+	
+	/** How far a request's time may be from the receiving server's clock. */
+	static final long MAX_CLOCK_SKEW = 5 * 60 * 1000;
+	
+	private static final String CONTENT_DIGEST = "SHA-256";
+	
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	
+	private static final String CHARSET = "UTF-8";
+	
+	/**
+	 * Gives the replicator the artifacts it advertised, to serve to peers.
+	 */
+	interface ArtifactSource {
+		
+		/**
+		 * @param resourceHash The hash of the managed resource's path.
+		 * @param name The name of the artifact.
+		 * @return The contents of the artifact, or null if it isn't stored.
+		 */
+		byte[] getArtifact(String resourceHash, String name)
+		throws IOException;
+	}
+	
+	/**
+	 * The artifacts stored by a server for a version of a resource.
+	 */
+	static class Advertisement {
+		final String source;
+		final String version;
+		final Map<String, String> hashes;
+		
+		Advertisement(String source, String version,
+				      Map<String, String> hashes) {
+			this.source = source;
+			this.version = version;
+			this.hashes = hashes;
+		}
+	}
+	
+	/**
+	 * The response to a replication request.
+	 */
+	public static class Response {
+		private final int status;
+		private final byte[] body;
+		
+		Response(int status, byte[] body) {
+			this.status = status;
+			this.body = body;
+		}
+		
+		/** @return The HTTP status of the response. */
+		public int getStatus() {
+			return status;
+		}
+		
+		/** @return The body of the response, which may be empty. */
+		public byte[] getBody() {
+			return body;
+		}
+	}
+	
+	@Inject
+	private StackTracePrinter printer;
+	
+	@Inject
+	private MessageProvider provider;
+	
+	@Inject(optional=true)
+	private Logger logger = Logger.getLogger(PeerReplicator.class);
+	
+	/**
+	 * A comma separated list of the URLs of the DiffableServlets of the
+	 * other servers, e.g. "http://web2:8080/app/diffable".
+	 */
+	@Inject(optional=true) @Named(value="ReplicationPeers")
+	private String peers = null;
+	
+	/** The URL of this server's DiffableServlet, as its peers reach it. */
+	@Inject(optional=true) @Named(value="ReplicationUrl")
+	private String url = null;
+	
+	/** The secret shared by all the peers, which signs their requests. */
+	@Inject(optional=true) @Named(value="ReplicationSecret")
+	private String secret = null;
+	
+	/** The connect and read timeout of requests to peers, in milliseconds. */
+	@Inject(optional=true) @Named(value="ReplicationTimeout")
+	private int timeout = 2000;
+	
+	/** How long a peer that failed to answer is skipped, in milliseconds. */
+	@Inject(optional=true) @Named(value="ReplicationRetryInterval")
+	private long retryInterval = 30 * 1000;
+	
+	/** When each failed peer may be tried again. */
+	private final Map<String, Long> retryTimes = new HashMap<String, Long>();
+	
+	/** The latest advertisement this server made, by resource. */
+	private final Map<String, Advertisement> advertised =
+		new HashMap<String, Advertisement>();
+	
+	/** The latest advertisement received from a peer, by resource. */
+	private final Map<String, Advertisement> received =
+		new HashMap<String, Advertisement>();
+	
+	private ArtifactSource source = null;
+	
+	/** Posts advertisements, so ingestion doesn't wait on the peers. */
+	private ExecutorService executor = null;
+	
+	/**
+	 * @return True if replication is configured.
+	 */
+	public boolean isEnabled() {
+		return peers != null && url != null && secret != null;
+	}
+	
+	void setSource(ArtifactSource source) {
+		this.source = source;
+	}
+	
+	/**
+	 * Records the artifacts stored for a new version of a resource and
+	 * advertises them to the peers in the background.
+	 * 
+	 * @param resourceHash The hash of the managed resource's path.
+	 * @param version The hash of the new version.
+	 * @param artifacts The artifacts stored for the version, by name.
+	 */
+	void advertise(String resourceHash, String version,
+			       Map<String, byte[]> artifacts) {
+		Map<String, String> hashes = new LinkedHashMap<String, String>();
+		try {
+			for (Map.Entry<String, byte[]> artifact : artifacts.entrySet()) {
+				hashes.put(artifact.getKey(), hash(artifact.getValue()));
+			}
+		} catch (GeneralSecurityException exc) {
+			printer.print(exc);
+			return;
+		}
+		synchronized (advertised) {
+			advertised.put(resourceHash,
+				new Advertisement(url, version, hashes));
+		}
+		StringBuilder body = new StringBuilder();
+		body.append(url).append('\n')
+			.append(resourceHash).append(' ').append(version).append('\n');
+		for (Map.Entry<String, String> hash : hashes.entrySet()) {
+			body.append(hash.getKey()).append(' ')
+				.append(hash.getValue()).append('\n');
+		}
+		final byte[] contents;
+		try {
+			contents = body.toString().getBytes(CHARSET);
+		} catch (IOException exc) {
+			printer.print(exc);
+			return;
+		}
+		for (final String peer : getPeers()) {
+			getExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						send(peer, "POST", ADVERTISE_PATH, contents);
+					} catch (Exception exc) {
+						provider.error(logger, "replication.cantadvertise",
+								       peer);
+						printer.print(exc);
+					}
+				}
+			});
+		}
+	}
+	
+	/**
+	 * @param resourceHash The hash of the managed resource's path.
+	 * @param version The hash of the version.
+	 * @return The names of the artifacts a peer advertised for the version,
+	 *     or null if none did.
+	 */
+	Set<String> getAdvertisedArtifacts(String resourceHash, String version) {
+		synchronized (received) {
+			Advertisement advertisement = received.get(resourceHash);
+			if (advertisement == null ||
+				!advertisement.version.equals(version)) {
+				return null;
+			}
+			return advertisement.hashes.keySet();
+		}
+	}
+	
+	/**
+	 * Fetches the artifacts a peer advertised for a version of a resource,
+	 * in one request.
+	 * 
+	 * @param resourceHash The hash of the managed resource's path.
+	 * @param version The hash of the version.
+	 * @param names The names of the artifacts.
+	 * @return The contents of the artifacts that were advertised, fetched
+	 *     and matched their advertised hash, by name.
+	 */
+	Map<String, byte[]> fetchAll(String resourceHash, String version,
+			                     Collection<String> names) {
+		Map<String, byte[]> fetched = new LinkedHashMap<String, byte[]>();
+		Advertisement advertisement;
+		synchronized (received) {
+			advertisement = received.get(resourceHash);
+		}
+		if (advertisement == null || !advertisement.version.equals(version) ||
+			!isAvailable(advertisement.source)) {
+			return fetched;
+		}
+		StringBuilder body = new StringBuilder();
+		for (String name : names) {
+			if (advertisement.hashes.containsKey(name)) {
+				body.append(name).append('\n');
+			}
+		}
+		if (body.length() == 0) {
+			return fetched;
+		}
+		Map<String, byte[]> artifacts;
+		try {
+			artifacts = readArtifacts(send(advertisement.source, "POST",
+				ARTIFACTS_PATH + resourceHash,
+				body.toString().getBytes(CHARSET)));
+		} catch (Exception exc) {
+			fail(advertisement.source);
+			provider.error(logger, "replication.cantfetch",
+					       resourceHash, advertisement.source);
+			printer.print(exc);
+			return fetched;
+		}
+		for (Map.Entry<String, byte[]> artifact : artifacts.entrySet()) {
+			String name = artifact.getKey();
+			try {
+				if (!hash(artifact.getValue()).equals(
+						advertisement.hashes.get(name))) {
+					provider.error(logger, "replication.hashmismatch",
+							       name, advertisement.source);
+					continue;
+				}
+			} catch (GeneralSecurityException exc) {
+				printer.print(exc);
+				continue;
+			}
+			fetched.put(name, artifact.getValue());
+		}
+		return fetched;
+	}
+	
+	/**
+	 * Handles a replication request from a peer.
+	 * 
+	 * @param method The HTTP method of the request.
+	 * @param path The path of the request, following PATH_PREFIX.
+	 * @param time The value of the TIME_HEADER.
+	 * @param signature The value of the SIGNATURE_HEADER.
+	 * @param body The body of the request.
+	 * @return The response to send.
+	 */
+	public Response handle(String method, String path, String time,
+			               String signature, byte[] body) {
+		if (!isEnabled()) {
+			return new Response(404, new byte[0]);
+		}
+		try {
+			if (!isAuthentic(method, path, time, signature, body)) {
+				provider.error(logger, "replication.unauthorized", path);
+				return new Response(403, new byte[0]);
+			}
+			if ("POST".equals(method) && ADVERTISE_PATH.equals(path)) {
+				receive(new String(body, CHARSET));
+				return new Response(200, new byte[0]);
+			}
+			if ("POST".equals(method) && path.startsWith(ARTIFACTS_PATH)) {
+				return new Response(200, serveArtifacts(
+					path.substring(ARTIFACTS_PATH.length()),
+					new String(body, CHARSET)));
+			}
+		} catch (Exception exc) {
+			printer.print(exc);
+			return new Response(500, new byte[0]);
+		}
+		return new Response(404, new byte[0]);
+	}
+	
+	/**
+	 * Records an advertisement posted by a peer, in the format written by
+	 * advertise.
+	 */
+	private void receive(String body) {
+		String[] lines = body.split("\n");
+		if (lines.length < 2) {
+			return;
+		}
+		String[] resource = lines[1].split(" ");
+		if (resource.length != 2) {
+			return;
+		}
+		Map<String, String> hashes = new LinkedHashMap<String, String>();
+		for (int i = 2; i < lines.length; i++) {
+			String[] fields = lines[i].split(" ");
+			if (fields.length == 2 && isArtifactName(fields[0])) {
+				hashes.put(fields[0], fields[1]);
+			}
+		}
+		synchronized (received) {
+			received.put(resource[0],
+				new Advertisement(lines[0], resource[1], hashes));
+		}
+	}
+	
+	/**
+	 * @param resourceHash The hash of the managed resource's path.
+	 * @param names The names of the artifacts, a line each.
+	 * @return The artifacts this server advertised and still stores among
+	 *     them, as read by readArtifacts.
+	 */
+	private byte[] serveArtifacts(String resourceHash, String names)
+	throws IOException {
+		Set<String> served = new LinkedHashSet<String>();
+		synchronized (advertised) {
+			Advertisement advertisement = advertised.get(resourceHash);
+			for (String name : names.split("\n")) {
+				if (advertisement != null &&
+					advertisement.hashes.containsKey(name)) {
+					served.add(name);
+				}
+			}
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (String name : served) {
+			byte[] artifact = source == null ? null :
+				source.getArtifact(resourceHash, name);
+			if (artifact != null) {
+				out.writeUTF(name);
+				out.writeInt(artifact.length);
+				out.write(artifact);
+			}
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * Reads the artifacts in a response written by serveArtifacts.
+	 * 
+	 * @return The artifacts by name.
+	 * @throws IOException If the response is truncated.
+	 */
+	private static Map<String, byte[]> readArtifacts(byte[] response)
+	throws IOException {
+		Map<String, byte[]> artifacts = new LinkedHashMap<String, byte[]>();
+		DataInputStream in =
+			new DataInputStream(new ByteArrayInputStream(response));
+		while (in.available() > 0) {
+			String name = in.readUTF();
+			int length = in.readInt();
+			if (length < 0 || length > in.available()) {
+				throw new EOFException(name);
+			}
+			byte[] artifact = new byte[length];
+			in.readFully(artifact);
+			artifacts.put(name, artifact);
+		}
+		return artifacts;
+	}
+	
+	/**
+	 * Sends a signed request to a peer.
+	 * 
+	 * @return The body of the response.
+	 * @throws IOException If the request fails or isn't answered with 200.
+	 */
+	private byte[] send(String peer, String method, String path, byte[] body)
+	throws IOException, GeneralSecurityException {
+		String time = Long.toString(System.currentTimeMillis());
+		HttpURLConnection connection = (HttpURLConnection)
+			new URL(peer + "/" + PATH_PREFIX + path).openConnection();
+		connection.setConnectTimeout(timeout);
+		connection.setReadTimeout(timeout);
+		connection.setRequestMethod(method);
+		connection.setRequestProperty(TIME_HEADER, time);
+		connection.setRequestProperty(
+			SIGNATURE_HEADER, sign(method, path, time, body));
+		try {
+			if (body.length > 0) {
+				connection.setDoOutput(true);
+				OutputStream out = connection.getOutputStream();
+				try {
+					out.write(body);
+				} finally {
+					IOUtils.close(out);
+				}
+			}
+			if (connection.getResponseCode() != 200) {
+				throw new IOException(peer + "/" + PATH_PREFIX + path +
+					" returned " + connection.getResponseCode());
+			}
+			InputStream in = connection.getInputStream();
+			ByteArrayOutputStream contents = new ByteArrayOutputStream();
+			IOUtils.copy(in, contents, true);
+			return contents.toByteArray();
+		} finally {
+			connection.disconnect();
+		}
+	}
+	
+	private boolean isAuthentic(String method, String path, String time,
+			                    String signature, byte[] body)
+	throws GeneralSecurityException, IOException {
+		if (time == null || signature == null) {
+			return false;
+		}
+		try {
+			if (Math.abs(System.currentTimeMillis() - Long.parseLong(time)) >
+				MAX_CLOCK_SKEW) {
+				return false;
+			}
+		} catch (NumberFormatException exc) {
+			return false;
+		}
+		return MessageDigest.isEqual(
+			sign(method, path, time, body).getBytes(CHARSET),
+			signature.getBytes(CHARSET));
+	}
+	
+	String sign(String method, String path, String time, byte[] body)
+	throws GeneralSecurityException, IOException {
+		Mac mac = Mac.getInstance(MAC_ALGORITHM);
+		mac.init(new SecretKeySpec(secret.getBytes(CHARSET), MAC_ALGORITHM));
+		mac.update((method + "\n" + path + "\n" + time + "\n")
+			.getBytes(CHARSET));
+		return DigestUtils.toHex(mac.doFinal(body));
+	}
+	
+	private static String hash(byte[] contents)
+	throws GeneralSecurityException {
+		return DigestUtils.toHex(
+			MessageDigest.getInstance(CONTENT_DIGEST).digest(contents));
+	}
+	
+	/**
+	 * @return True if the name can only name an artifact within a resource
+	 *     folder.
+	 */
+	private static boolean isArtifactName(String name) {
+		if (name.length() == 0 || name.startsWith(".")) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (!Character.isLetterOrDigit(c) && c != '_' && c != '.') {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return True if the peer hasn't failed in the last
+	 *     ReplicationRetryInterval milliseconds.
+	 */
+	private boolean isAvailable(String peer) {
+		synchronized (retryTimes) {
+			Long retryTime = retryTimes.get(peer);
+			if (retryTime == null) {
+				return true;
+			}
+			if (retryTime.longValue() <= System.currentTimeMillis()) {
+				retryTimes.remove(peer);
+				return true;
+			}
+			return false;
+		}
+	}
+	
+	private void fail(String peer) {
+		synchronized (retryTimes) {
+			retryTimes.put(peer, System.currentTimeMillis() + retryInterval);
+		}
+	}
+	
+	private List<String> getPeers() {
+		List<String> list = new ArrayList<String>();
+		for (String peer : peers.split(",")) {
+			peer = peer.trim();
+			while (peer.endsWith("/")) {
+				peer = peer.substring(0, peer.length() - 1);
+			}
+			if (peer.length() > 0) {
+				list.add(peer);
+			}
+		}
+		return list;
+	}
+	
+	private synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "peerReplicator");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+}
@@ -0,0 +1,380 @@
+/**
+ * Copyright 2010 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.google.diffable.config.MessageProvider;
+import com.google.diffable.exceptions.StackTracePrinter;
+import com.google.diffable.utils.IOUtils;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * Shares generated artifacts, deltas and their rendered responses, between
+ * servers through a tier of cache servers speaking the memcached text
+ * protocol.  Artifacts are named after the versions they bring together, so
+ * any server ingesting the same version can use an artifact another server
+ * cached, and cached artifacts never need to be invalidated.
+ * 
+ * Each key is sent to one of RemoteCacheServers, chosen by its hash, and
+ * the keys bound for a server are fetched with a single multi-get.  The
+ * artifacts fetched or cached are also kept in a local near-cache of
+ * RemoteCacheNearSize bytes.  A server that fails or doesn't answer within
+ * RemoteCacheTimeout is skipped for RemoteCacheRetryInterval, and the
+ * artifacts it would have held are generated locally.
+ * 
+ * @author joshua Harrison
+ */
+@Singleton
+public class RemoteArtifactCache {
+	
+	/** Prefixes every key, so the cache servers can be shared. */
+	static final String KEY_PREFIX = "diffable:";
+	
+	private static final String CHARSET = "US-ASCII";
+	
+	/** The longest key the memcached protocol allows. */
+	private static final int MAX_KEY_LENGTH = 250;
+	
+	@Inject
+	private StackTracePrinter printer;
+	
+	@Inject
+	private MessageProvider provider;
+	
+	@Inject(optional=true)
+	private Logger logger = Logger.getLogger(RemoteArtifactCache.class);
+	
+	/**
+	 * A comma separated list of the cache servers, e.g.
+	 * "cache1:11211,cache2:11211".
+	 */
+	@Inject(optional=true) @Named(value="RemoteCacheServers")
+	private String servers = null;
+	
+	/** The connect and read timeout of cache requests, in milliseconds. */
+	@Inject(optional=true) @Named(value="RemoteCacheTimeout")
+	private int timeout = 250;
+	
+	/** How long a failed cache server is skipped, in milliseconds. */
+	@Inject(optional=true) @Named(value="RemoteCacheRetryInterval")
+	private long retryInterval = 30 * 1000;
+	
+	/** The expiration time of cached artifacts in seconds, or 0 for none. */
+	@Inject(optional=true) @Named(value="RemoteCacheExpiration")
+	private int expiration = 0;
+	
+	/** The maximum estimated size in bytes of the near-cache. */
+	@Inject(optional=true) @Named(value="RemoteCacheNearSize")
+	private long nearCacheSize = 8L * 1024 * 1024;
+	
+	private List<InetSocketAddress> addresses = null;
+	
+	/** When each failed cache server may be tried again. */
+	private final Map<InetSocketAddress, Long> retryTimes =
+		new HashMap<InetSocketAddress, Long>();
+	
+	private ContentCache nearCache = null;
+	
+	/**
+	 * @return True if cache servers are configured.
+	 */
+	public boolean isEnabled() {
+		return servers != null && servers.trim().length() > 0;
+	}
+	
+	/**
+	 * Fetches the cached artifacts of a resource, sending each cache server
+	 * a single request for all the artifacts it holds.
+	 * 
+	 * @param resourceHash The hash of the managed resource's path.
+	 * @param names The names of the artifacts.
+	 * @return The artifacts found, by name.  Artifacts held by a server
+	 *     that failed are missing.
+	 */
+	Map<String, byte[]> getAll(String resourceHash, Collection<String> names) {
+		Map<String, byte[]> found = new LinkedHashMap<String, byte[]>();
+		Map<InetSocketAddress, List<String>> requests =
+			new LinkedHashMap<InetSocketAddress, List<String>>();
+		for (String name : names) {
+			ByteBuffer near = getNearCache().getBuffer(
+				resourceHash + "/" + name);
+			if (near != null) {
+				byte[] contents = new byte[near.remaining()];
+				near.get(contents);
+				found.put(name, contents);
+				continue;
+			}
+			String key = getKey(resourceHash, name);
+			InetSocketAddress address = getServer(key);
+			if (key.length() > MAX_KEY_LENGTH || !isAvailable(address)) {
+				continue;
+			}
+			List<String> keys = requests.get(address);
+			if (keys == null) {
+				keys = new ArrayList<String>();
+				requests.put(address, keys);
+			}
+			keys.add(key);
+		}
+		String prefix = KEY_PREFIX + resourceHash + "/";
+		for (Map.Entry<InetSocketAddress, List<String>> request :
+			 requests.entrySet()) {
+			try {
+				Map<String, byte[]> values =
+					multiGet(request.getKey(), request.getValue());
+				for (Map.Entry<String, byte[]> value : values.entrySet()) {
+					if (value.getKey().startsWith(prefix)) {
+						String name =
+							value.getKey().substring(prefix.length());
+						found.put(name, value.getValue());
+						getNearCache().put(resourceHash + "/" + name,
+							value.getValue());
+					}
+				}
+			} catch (IOException exc) {
+				fail(request.getKey(), exc);
+			}
+		}
+		return found;
+	}
+	
+	/**
+	 * Caches the artifacts generated for a resource.  Artifacts are
+	 * written in a single request to each cache server, and those a server
+	 * refuses, e.g. for being too large, are only kept in the near-cache.
+	 * 
+	 * @param resourceHash The hash of the managed resource's path.
+	 * @param artifacts The artifacts, by name.
+	 */
+	void putAll(String resourceHash, Map<String, byte[]> artifacts) {
+		Map<InetSocketAddress, Map<String, byte[]>> requests =
+			new LinkedHashMap<InetSocketAddress, Map<String, byte[]>>();
+		for (Map.Entry<String, byte[]> artifact : artifacts.entrySet()) {
+			getNearCache().put(resourceHash + "/" + artifact.getKey(),
+				artifact.getValue());
+			String key = getKey(resourceHash, artifact.getKey());
+			InetSocketAddress address = getServer(key);
+			if (key.length() > MAX_KEY_LENGTH || !isAvailable(address)) {
+				continue;
+			}
+			Map<String, byte[]> values = requests.get(address);
+			if (values == null) {
+				values = new LinkedHashMap<String, byte[]>();
+				requests.put(address, values);
+			}
+			values.put(key, artifact.getValue());
+		}
+		for (Map.Entry<InetSocketAddress, Map<String, byte[]>> request :
+			 requests.entrySet()) {
+			try {
+				multiSet(request.getKey(), request.getValue());
+			} catch (IOException exc) {
+				fail(request.getKey(), exc);
+			}
+		}
+	}
+	
+	private static String getKey(String resourceHash, String name) {
+		return KEY_PREFIX + resourceHash + "/" + name;
+	}
+	
+	private synchronized ContentCache getNearCache() {
+		if (nearCache == null) {
+			nearCache = new ContentCache(nearCacheSize);
+		}
+		return nearCache;
+	}
+	
+	private synchronized List<InetSocketAddress> getServers() {
+		if (addresses == null) {
+			addresses = new ArrayList<InetSocketAddress>();
+			for (String server : servers.split(",")) {
+				server = server.trim();
+				if (server.length() == 0) {
+					continue;
+				}
+				int colon = server.lastIndexOf(':');
+				addresses.add(colon < 0 ?
+					new InetSocketAddress(server, 11211) :
+					new InetSocketAddress(server.substring(0, colon),
+						Integer.parseInt(server.substring(colon + 1))));
+			}
+		}
+		return addresses;
+	}
+	
+	/**
+	 * @return The cache server holding a key.  The key's String hash is
+	 *     used so every server picks the same cache server.
+	 */
+	private InetSocketAddress getServer(String key) {
+		List<InetSocketAddress> all = getServers();
+		return all.get((key.hashCode() & Integer.MAX_VALUE) % all.size());
+	}
+	
+	private boolean isAvailable(InetSocketAddress address) {
+		synchronized (retryTimes) {
+			Long retryTime = retryTimes.get(address);
+			if (retryTime == null) {
+				return true;
+			}
+			if (retryTime.longValue() <= System.currentTimeMillis()) {
+				retryTimes.remove(address);
+				return true;
+			}
+			return false;
+		}
+	}
+	
+	private void fail(InetSocketAddress address, IOException exc) {
+		synchronized (retryTimes) {
+			retryTimes.put(address, System.currentTimeMillis() + retryInterval);
+		}
+		provider.error(logger, "remotecache.unavailable",
+				       address.toString());
+		printer.print(exc);
+	}
+	
+	private Socket connect(InetSocketAddress address) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(address, timeout);
+			socket.setSoTimeout(timeout);
+			socket.setTcpNoDelay(true);
+		} catch (IOException exc) {
+			socket.close();
+			throw exc;
+		}
+		return socket;
+	}
+	
+	/**
+	 * Sends a get command for several keys and reads the values returned.
+	 */
+	private Map<String, byte[]> multiGet(InetSocketAddress address,
+			                             List<String> keys)
+	throws IOException {
+		Map<String, byte[]> values = new HashMap<String, byte[]>();
+		Socket socket = connect(address);
+		try {
+			StringBuilder command = new StringBuilder("get");
+			for (String key : keys) {
+				command.append(' ').append(key);
+			}
+			command.append("\r\n");
+			OutputStream out = socket.getOutputStream();
+			out.write(command.toString().getBytes(CHARSET));
+			out.flush();
+			InputStream in = new BufferedInputStream(
+				socket.getInputStream(), IOUtils.BUFFER_SIZE);
+			String line;
+			while (!"END".equals(line = readLine(in))) {
+				// VALUE <key> <flags> <bytes>
+				String[] parts = line.split(" ");
+				if (parts.length < 4 || !"VALUE".equals(parts[0])) {
+					throw new IOException("Unexpected reply: " + line);
+				}
+				byte[] value = new byte[Integer.parseInt(parts[3])];
+				readFully(in, value);
+				if (readLine(in).length() != 0) {
+					throw new IOException("Unterminated value: " + parts[1]);
+				}
+				values.put(parts[1], value);
+			}
+		} finally {
+			socket.close();
+		}
+		return values;
+	}
+	
+	/**
+	 * Sends set commands for several keys and reads their replies.
+	 */
+	private void multiSet(InetSocketAddress address,
+			              Map<String, byte[]> values)
+	throws IOException {
+		Socket socket = connect(address);
+		try {
+			OutputStream out = new BufferedOutputStream(
+				socket.getOutputStream(), IOUtils.BUFFER_SIZE);
+			for (Map.Entry<String, byte[]> value : values.entrySet()) {
+				out.write(("set " + value.getKey() + " 0 " + expiration +
+					" " + value.getValue().length + "\r\n").getBytes(CHARSET));
+				out.write(value.getValue());
+				out.write("\r\n".getBytes(CHARSET));
+			}
+			out.flush();
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			for (String key : values.keySet()) {
+				String reply = readLine(in);
+				if (!"STORED".equals(reply)) {
+					provider.debug(logger, "remotecache.notstored",
+							       key, reply);
+				}
+			}
+		} finally {
+			socket.close();
+		}
+	}
+	
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int previous = -1;
+		while (true) {
+			int next = in.read();
+			if (next < 0) {
+				throw new IOException("Connection closed by cache server");
+			}
+			if (previous == '\r' && next == '\n') {
+				byte[] bytes = line.toByteArray();
+				return new String(bytes, 0, bytes.length - 1, CHARSET);
+			}
+			line.write(next);
+			previous = next;
+		}
+	}
+	
+	private static void readFully(InputStream in, byte[] buffer)
+	throws IOException {
+		int offset = 0;
+		while (offset < buffer.length) {
+			int read = in.read(buffer, offset, buffer.length - offset);
+			if (read < 0) {
+				throw new IOException("Connection closed by cache server");
+			}
+			offset += read;
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.diffable.utils.IOUtils;
+
+/**
+ * A persisted index of what the FileResourceManager last knew about each
+ * managed resource: its size, last modified time and file key when it was
+ * read, and the hash of its contents.  Resources which still match their
+ * entry are trusted to still hold that version, so they don't have to be
+ * read and hashed again, either on startup or when checking for changes.
+ * 
+ * An entry is only trusted if the resource was last modified comfortably
+ * before the entry was made, since a resource modified within the
+ * resolution of its file system's timestamps of being read could have
+ * changed again without its last modified time changing.
+ * 
+ * The index is written to a temporary file which is renamed over the old
+ * one, one line per resource.  A corrupt line only costs its resource a
+ * validation.  The index isn't thread safe; the FileResourceManager
+ * synchronizes access to it.
+ * 
+ * @author joshua Harrison
+ */
+class ResourceIndex {
+	
+	/**
+	 * Resources modified less than this many milliseconds before they were
+	 * indexed aren't trusted.
+	 */
+	static final long TIMESTAMP_RESOLUTION = 2000;
+	
+	/** Written in place of the file key on platforms without one. */
+	private static final String NO_FILE_KEY = "-";
+	
+	private final File indexFile;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+	private boolean dirty = false;
+	
+	/**
+	 * What was known about a managed resource when it was last read.
+	 */
+	static class Entry {
+		final String version;
+		final FileStat stat;
+		final long indexed;
+		
+		Entry(String version, FileStat stat, long indexed) {
+			this.version = version;
+			this.stat = stat;
+			this.indexed = indexed;
+		}
+	}
+	
+	public ResourceIndex(File indexFile) {
+		this.indexFile = indexFile;
+	}
+	
+	/**
+	 * Loads the index, skipping any lines that can't be parsed.
+	 */
+	public void load() throws IOException {
+		entries.clear();
+		dirty = false;
+		if (!indexFile.exists()) {
+			return;
+		}
+		String contents = new String(IOUtils.read(indexFile), "UTF-8");
+		for (String line : contents.split("\n")) {
+			// version size lastModified fileKey indexed path
+			String[] fields = line.split(" ", 6);
+			if (fields.length < 6) {
+				continue;
+			}
+			try {
+				FileStat stat = new FileStat(Long.parseLong(fields[1]),
+					Long.parseLong(fields[2]),
+					NO_FILE_KEY.equals(fields[3]) ? null : fields[3]);
+				entries.put(fields[5], new Entry(fields[0], stat,
+					Long.parseLong(fields[4])));
+			} catch (NumberFormatException ignore) {}
+		}
+	}
+	
+	/**
+	 * Writes the index if it changed since it was loaded or last saved.
+	 */
+	public void save() throws IOException {
+		if (!dirty) {
+			return;
+		}
+		StringBuilder contents = new StringBuilder();
+		for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+			Entry value = entry.getValue();
+			String fileKey = value.stat.fileKey;
+			contents.append(value.version).append(' ')
+				.append(value.stat.size).append(' ')
+				.append(value.stat.lastModified).append(' ')
+				.append(fileKey == null ? NO_FILE_KEY : fileKey).append(' ')
+				.append(value.indexed).append(' ')
+				.append(entry.getKey()).append('\n');
+		}
+		File tempFile = new File(indexFile.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tempFile);
+		try {
+			out.write(contents.toString().getBytes("UTF-8"));
+			out.getFD().sync();
+		} finally {
+			IOUtils.close(out);
+		}
+		if (!tempFile.renameTo(indexFile)) {
+			indexFile.delete();
+			if (!tempFile.renameTo(indexFile)) {
+				throw new IOException("Can't replace " + indexFile);
+			}
+		}
+		dirty = false;
+	}
+	
+	/**
+	 * Records the version of a resource, along with its state, which must be
+	 * taken before the resource was read.
+	 */
+	public void put(File resource, String version, FileStat stat) {
+		entries.put(resource.getAbsolutePath(),
+			new Entry(version, stat, System.currentTimeMillis()));
+		dirty = true;
+	}
+	
+	public void remove(File resource) {
+		if (entries.remove(resource.getAbsolutePath()) != null) {
+			dirty = true;
+		}
+	}
+	
+	/**
+	 * @return The version of the resource recorded in the index if the
+	 *     resource can be trusted to still hold it, or null.
+	 */
+	public String getTrustedVersion(File resource) {
+		Entry entry = entries.get(resource.getAbsolutePath());
+		if (entry == null ||
+			entry.indexed - entry.stat.lastModified < TIMESTAMP_RESOLUTION ||
+			!entry.stat.equals(FileStat.of(resource))) {
+			return null;
+		}
+		return entry.version;
+	}
+}
@@ -112,4 +112,11 @@ public interface ResourceManager {
 	 * @return A list of files corresponding to the resources being managed.
 	 */
 	public List<File> getManagedResources();
+	
+	/**
+	 * Releases the threads and files held by the resource manager, writing
+	 * out anything it batched.  This is called when the web application
+	 * stops, and the resource manager isn't used afterwards.
+	 */
+	public void shutdown();
 }
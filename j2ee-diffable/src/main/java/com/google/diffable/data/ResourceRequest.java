@@ -15,10 +15,15 @@
  */
 package com.google.diffable.data;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import com.google.diffable.Constants;
 import com.google.diffable.config.MessageProvider;
+import com.google.diffable.diff.JSONHelper;
 import com.google.diffable.exceptions.DiffableException;
 import com.google.diffable.exceptions.StackTracePrinter;
 import com.google.inject.Inject;
@@ -67,6 +72,12 @@ public class ResourceRequest {
 	private String oldVersion;
 	private String newVersion;
 	private String response;
+	private StoredArtifact artifact;
+	private String fallbackVersion;
+	private String fallbackContents;
+	private ContentEncoding contentEncoding;
+	private List<ContentEncoding> acceptedEncodings =
+		new ArrayList<ContentEncoding>();
 	private String basePath;
 	
 	/**
@@ -167,11 +178,117 @@ public class ResourceRequest {
 		return basePath;
 	}
 
+	/**
+	 * Returns the response.  If the response was set as a stored artifact,
+	 * it is read in as a string, which uses up the artifact.  A precompressed
+	 * variant is never read in, so this returns null for one.  A fallback is
+	 * quoted into a JSON array the first time it is asked for.
+	 * @return the response
+	 */
 	public String getResponse() {
+		if (this.response == null && this.fallbackContents != null) {
+			this.response = "[" + JSONHelper.quote(this.fallbackContents) + "]";
+			this.fallbackContents = null;
+		}
+		if (this.response == null && this.artifact != null &&
+			this.contentEncoding == null) {
+			try {
+				this.response = new String(this.artifact.getBytes(),
+						                   Constants.RESPONSE_CHARSET);
+			} catch (IOException exc) {
+				printer.print(exc);
+			}
+			this.artifact = null;
+		}
 		return this.response;
 	}
 	
 	public void setResponse(String response) {
 		this.response = response;
+		this.artifact = null;
+		this.fallbackVersion = null;
+		this.fallbackContents = null;
+		this.contentEncoding = null;
+	}
+	
+	/**
+	 * Answers a request for a delta that can't be found with the whole of a
+	 * version of the resource.  The contents are only quoted when the
+	 * response is asked for, so nothing is quoted when the rendered response
+	 * for the version is already cached.
+	 * @param version the version sent in place of the delta
+	 * @param contents the contents of that version
+	 */
+	public void setFallback(String version, String contents) {
+		this.fallbackVersion = version;
+		this.fallbackContents = contents;
+		this.response = null;
+		this.artifact = null;
+		this.contentEncoding = null;
+	}
+	
+	/**
+	 * Returns the version sent in place of the requested delta.
+	 * @return the version, or null if the response isn't a fallback
+	 */
+	public String getFallbackVersion() {
+		return this.fallbackVersion;
+	}
+	
+	/**
+	 * Returns the response if it was set as a stored artifact, so it can be
+	 * sent as is.
+	 * @return the artifact, or null if the response is a string
+	 */
+	public StoredArtifact getArtifact() {
+		return this.artifact;
+	}
+	
+	/**
+	 * Sets the response to a stored artifact encoded in
+	 * Constants.RESPONSE_CHARSET.
+	 * @param artifact the artifact
+	 */
+	public void setArtifact(StoredArtifact artifact) {
+		this.artifact = artifact;
+		this.response = null;
+		this.fallbackVersion = null;
+		this.fallbackContents = null;
+		this.contentEncoding = null;
+	}
+	
+	/**
+	 * Sets the response to a precompressed variant of the rendered
+	 * response, which must be sent as is.
+	 * @param variant the stored variant
+	 * @param encoding the encoding the variant is compressed in
+	 */
+	public void setEncodedArtifact(StoredArtifact variant,
+			                       ContentEncoding encoding) {
+		this.artifact = variant;
+		this.response = null;
+		this.fallbackVersion = null;
+		this.fallbackContents = null;
+		this.contentEncoding = encoding;
+	}
+	
+	/**
+	 * Returns the encoding of the artifact if it is a precompressed variant.
+	 * @return the content encoding, or null
+	 */
+	public ContentEncoding getContentEncoding() {
+		return this.contentEncoding;
+	}
+	
+	/**
+	 * Returns the encodings the client accepts, most preferred first.
+	 * @return the accepted encodings
+	 */
+	public List<ContentEncoding> getAcceptedEncodings() {
+		return this.acceptedEncodings;
+	}
+	
+	public void setAcceptedEncodings(List<ContentEncoding> acceptedEncodings) {
+		this.acceptedEncodings = acceptedEncodings;
 	}
 }
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.util.List;
+
+import com.google.inject.ImplementedBy;
+
+/**
+ * A RetentionPolicy decides which old versions of a managed resource are
+ * deleted when a new version is stored.  Deltas are only generated from the
+ * versions that are kept, and clients holding a deleted version receive the
+ * latest version in full.
+ * 
+ * @author joshua Harrison
+ */
+@ImplementedBy(LimitRetentionPolicy.class)
+public interface RetentionPolicy {
+	
+	/**
+	 * @param history The stored versions of a managed resource, from the
+	 *     oldest to the latest, which is last.
+	 * @param now The current time in milliseconds.
+	 * @return The versions to delete.  The latest version is never deleted,
+	 *     even if it is returned.
+	 */
+	public List<String> getExpiredVersions(List<VersionRecord> history,
+			                               long now);
+}
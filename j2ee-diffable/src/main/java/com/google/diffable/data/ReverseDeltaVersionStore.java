@@ -0,0 +1,335 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.diffable.diff.Differ;
+import com.google.diffable.diff.Patcher;
+import com.google.diffable.utils.IOUtils;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+/**
+ * A VersionStore which keeps only the latest version of a resource in full,
+ * as '[hash].version'.  Whenever a new version is stored, the version it
+ * replaces is rewritten as a reverse delta against it, named
+ * '[hash]_[successor hash].rdelta', so the history of a resource becomes a
+ * chain of deltas leading back from the latest version, as in RCS.  Older
+ * versions are only needed as diff dictionaries, so rebuilding them from the
+ * chain on demand costs little, and the most recently rebuilt versions are
+ * cached in memory.
+ * 
+ * Deltas are generated with the injected Differ over the bytes of each
+ * version read as ISO-8859-1, which maps every byte to a single char, so
+ * versions are rebuilt byte for byte whatever their encoding.  '.version'
+ * files left by the FileVersionStore are converted to deltas the next time
+ * a version of their resource is stored.
+ * 
+ * To use it, bind it in the Diffable config properties:
+ * com.google.diffable.data.VersionStore=com.google.diffable.data.ReverseDeltaVersionStore
+ * 
+ * @author joshua Harrison
+ */
+@Singleton
+public class ReverseDeltaVersionStore extends FileVersionStore
+implements VersionStore {
+	
+	private static final String DELTA_FILE_EXTENSION = ".rdelta";
+	
+	private static final String CONTENT_CHARSET = "ISO-8859-1";
+	
+	private static final String DELTA_CHARSET = "UTF-8";
+	
+	@Inject
+	private Differ differ;
+	
+	/** The number of rebuilt versions to keep in memory. */
+	@Inject(optional=true) @Named("ReverseDeltaCacheSize")
+	private int cacheSize = 16;
+	
+	/**
+	 * Recently rebuilt versions, keyed by resource folder and hash, in least
+	 * recently used order.
+	 */
+	private final LinkedHashMap<String, byte[]> cache =
+		new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, byte[]> e) {
+				return size() > cacheSize;
+			}
+		};
+	
+	@Override
+	public synchronized boolean hasVersion(File resourceFolder,
+			                               String version) {
+		return super.hasVersion(resourceFolder, version) ||
+			getDeltaFile(resourceFolder, version) != null;
+	}
+
+	/**
+	 * Stores the version in full and rewrites every other version stored in
+	 * full as a delta against it.
+	 */
+	@Override
+	public synchronized void putVersion(File resourceFolder, String version,
+			                            byte[] contents) throws IOException {
+		String newContents = decode(contents);
+		for (String previous : getFullVersions(resourceFolder)) {
+			if (!previous.equals(version)) {
+				File previousFile = getVersionFile(resourceFolder, previous);
+				writeDelta(resourceFolder, previous, version, newContents,
+					       IOUtils.read(previousFile));
+				previousFile.delete();
+			}
+		}
+		// If this version was stored as a delta before, e.g. because the
+		// resource was reverted, that delta now points the wrong way.
+		File oldDelta = getDeltaFile(resourceFolder, version);
+		if (oldDelta != null) {
+			oldDelta.delete();
+		}
+		super.putVersion(resourceFolder, version, contents);
+		cache.remove(getCacheKey(resourceFolder, version));
+	}
+
+	/**
+	 * Rebuilds the version by walking its delta chain up to the first cached
+	 * or full version, then applying the deltas back down.  The folder is
+	 * listed at most once, and the walk is bounded by the number of deltas
+	 * in it.
+	 */
+	@Override
+	public synchronized byte[] getVersion(File resourceFolder, String version)
+	throws IOException {
+		ArrayList<File> chain = new ArrayList<File>();
+		Map<String, File> deltas = null;
+		String current = version;
+		byte[] base = null;
+		while (base == null) {
+			base = cache.get(getCacheKey(resourceFolder, current));
+			if (base != null) {
+				break;
+			}
+			base = super.getVersion(resourceFolder, current);
+			if (base != null) {
+				break;
+			}
+			if (deltas == null) {
+				deltas = getDeltaFiles(resourceFolder);
+			}
+			File delta = deltas.get(current);
+			if (delta == null || chain.size() >= deltas.size()) {
+				// Missing version, or a broken chain.
+				return null;
+			}
+			chain.add(delta);
+			current = getSuccessor(delta);
+		}
+		String contents = decode(base);
+		for (int i = chain.size() - 1; i >= 0; i--) {
+			File delta = chain.get(i);
+			contents = Patcher.apply(
+				contents, new String(IOUtils.read(delta), DELTA_CHARSET));
+			byte[] rebuilt = encode(contents);
+			cache.put(getCacheKey(resourceFolder, getVersionName(delta)),
+				      rebuilt);
+			if (i == 0) {
+				return rebuilt;
+			}
+		}
+		return base;
+	}
+
+	@Override
+	public synchronized List<String> getVersions(File resourceFolder) {
+		List<String> versions = getFullVersions(resourceFolder);
+		String[] names = resourceFolder.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.endsWith(DELTA_FILE_EXTENSION)) {
+					versions.add(name.substring(0, name.indexOf('_')));
+				}
+			}
+		}
+		return versions;
+	}
+
+	/**
+	 * Deletes the version.  Versions stored as deltas against it are first
+	 * rebased onto its successor, or stored in full if it has none.
+	 */
+	@Override
+	public synchronized void deleteVersion(File resourceFolder,
+			                               String version) {
+		File delta = getDeltaFile(resourceFolder, version);
+		String successor = delta == null ? null : getSuccessor(delta);
+		try {
+			String successorContents = successor == null ? null :
+				decode(getVersion(resourceFolder, successor));
+			for (File dependent : getDependentDeltas(resourceFolder, version)) {
+				String name = getVersionName(dependent);
+				byte[] contents = getVersion(resourceFolder, name);
+				if (successorContents == null) {
+					super.putVersion(resourceFolder, name, contents);
+				} else {
+					writeDelta(resourceFolder, name, successor,
+						       successorContents, contents);
+				}
+				dependent.delete();
+			}
+		} catch (IOException exc) {
+			// Leave the version in place rather than orphaning its
+			// dependents.
+			return;
+		}
+		super.deleteVersion(resourceFolder, version);
+		if (delta != null) {
+			delta.delete();
+		}
+		cache.remove(getCacheKey(resourceFolder, version));
+	}
+
+	@Override
+	public synchronized void deleteResource(File resourceFolder) {
+		String prefix = resourceFolder.getAbsolutePath() + File.separator;
+		Iterator<String> keys = cache.keySet().iterator();
+		while (keys.hasNext()) {
+			if (keys.next().startsWith(prefix)) {
+				keys.remove();
+			}
+		}
+		super.deleteResource(resourceFolder);
+	}
+
+	@Override
+	protected boolean isVersionFile(String name) {
+		return super.isVersionFile(name) ||
+			name.endsWith(DELTA_FILE_EXTENSION);
+	}
+	
+	/**
+	 * Writes the delta rebuilding target from the successor's contents.
+	 */
+	private void writeDelta(File resourceFolder, String target,
+			                String successor, String successorContents,
+			                byte[] targetContents) throws IOException {
+		String delta = differ.getDiffAsString(
+			successorContents, decode(targetContents));
+		if (delta == null) {
+			// Identical contents under two hashes; keep it whole.
+			super.putVersion(resourceFolder, target, targetContents);
+			return;
+		}
+		IOUtils.writeAtomically(
+			new File(resourceFolder,
+				     target + "_" + successor + DELTA_FILE_EXTENSION),
+			delta.getBytes(DELTA_CHARSET));
+	}
+	
+	private List<String> getFullVersions(File resourceFolder) {
+		return super.getVersions(resourceFolder);
+	}
+	
+	/**
+	 * @return The delta files in the folder, by the version each rebuilds.
+	 */
+	private Map<String, File> getDeltaFiles(File resourceFolder) {
+		Map<String, File> deltas = new HashMap<String, File>();
+		String[] names = resourceFolder.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.endsWith(DELTA_FILE_EXTENSION)) {
+					File delta = new File(resourceFolder, name);
+					deltas.put(getVersionName(delta), delta);
+				}
+			}
+		}
+		return deltas;
+	}
+	
+	/**
+	 * @return The delta file rebuilding the version, or null if the version
+	 *     isn't stored as a delta.
+	 */
+	private File getDeltaFile(File resourceFolder, String version) {
+		String prefix = version + "_";
+		String[] names = resourceFolder.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(prefix) &&
+					name.endsWith(DELTA_FILE_EXTENSION)) {
+					return new File(resourceFolder, name);
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * @return The delta files of versions stored against the given version.
+	 */
+	private List<File> getDependentDeltas(File resourceFolder,
+			                              String version) {
+		ArrayList<File> dependents = new ArrayList<File>();
+		String suffix = "_" + version + DELTA_FILE_EXTENSION;
+		File[] files = resourceFolder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().endsWith(suffix)) {
+					dependents.add(file);
+				}
+			}
+		}
+		return dependents;
+	}
+	
+	private String getVersionName(File deltaFile) {
+		String name = deltaFile.getName();
+		return name.substring(0, name.indexOf('_'));
+	}
+	
+	private String getSuccessor(File deltaFile) {
+		String name = deltaFile.getName();
+		return name.substring(name.indexOf('_') + 1,
+			name.length() - DELTA_FILE_EXTENSION.length());
+	}
+	
+	private String getCacheKey(File resourceFolder, String version) {
+		return resourceFolder.getAbsolutePath() + File.separator + version;
+	}
+	
+	private static String decode(byte[] contents)
+	throws UnsupportedEncodingException {
+		return new String(contents, CONTENT_CHARSET);
+	}
+	
+	private static byte[] encode(String contents)
+	throws UnsupportedEncodingException {
+		return contents.getBytes(CONTENT_CHARSET);
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.google.diffable.utils.IOUtils;
+
+/**
+ * Named locks held across every server sharing a resource store, so that
+ * only one of them writes a given resource's versions and artifacts at a
+ * time.  Each lock is an operating system lock on a file in the store's
+ * 'locks' folder, which is released when its holder releases it or dies.
+ * On NFS this relies on the mount supporting locks (NFSv4, or NFSv3 with
+ * lockd), where a dead server's locks are freed once its lease expires.
+ * 
+ * File locks are held on behalf of the whole JVM, so locks are also
+ * tracked here by path to keep two threads, or two managers, in one JVM
+ * from holding the same lock.
+ * 
+ * @author joshua Harrison
+ */
+class StoreLocks {
+	
+	/** The folder in the resource store holding the lock files. */
+	static final String LOCK_FOLDER = "locks";
+	
+	private static final String LOCK_FILE_EXTENSION = ".lock";
+	
+	/** The paths of the lock files held in this JVM. */
+	private static final Set<String> held = new HashSet<String>();
+	
+	private final File lockFolder;
+	
+	/**
+	 * @param resourceStore The root folder of the shared resource store.
+	 */
+	public StoreLocks(File resourceStore) {
+		this.lockFolder = new File(resourceStore, LOCK_FOLDER);
+	}
+	
+	/**
+	 * Acquires a lock.
+	 * 
+	 * @param name The name of the lock, which must be a valid file name.
+	 * @param wait If true, waits for the lock to be released if it is held,
+	 *     otherwise gives up right away.
+	 * @return The lease on the lock, or null if wait is false and the lock
+	 *     is held by another thread or server.
+	 */
+	public Lease acquire(String name, boolean wait) throws IOException {
+		File lockFile = new File(lockFolder, name + LOCK_FILE_EXTENSION);
+		String path = lockFile.getAbsolutePath();
+		synchronized (held) {
+			while (held.contains(path)) {
+				if (!wait) {
+					return null;
+				}
+				try {
+					held.wait();
+				} catch (InterruptedException exc) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			held.add(path);
+		}
+		RandomAccessFile file = null;
+		FileLock lock = null;
+		try {
+			lockFolder.mkdirs();
+			file = new RandomAccessFile(lockFile, "rw");
+			lock = wait ? file.getChannel().lock() :
+				file.getChannel().tryLock();
+		} finally {
+			if (lock == null) {
+				IOUtils.close(file);
+				release(path);
+			}
+		}
+		return lock == null ? null : new Lease(path, file, lock);
+	}
+	
+	private static void release(String path) {
+		synchronized (held) {
+			held.remove(path);
+			held.notifyAll();
+		}
+	}
+	
+	/**
+	 * A held lock.  The lock files themselves are left in place, since
+	 * deleting one could let a server waiting on the old file and a server
+	 * creating a new one both take the lock.
+	 */
+	public static class Lease {
+		private final String path;
+		private final RandomAccessFile file;
+		private final FileLock lock;
+		private boolean released = false;
+		
+		private Lease(String path, RandomAccessFile file, FileLock lock) {
+			this.path = path;
+			this.file = file;
+			this.lock = lock;
+		}
+		
+		/**
+		 * Releases the lock.  Releasing it again has no effect.
+		 */
+		public void release() {
+			if (released) {
+				return;
+			}
+			released = true;
+			try {
+				lock.release();
+			} catch (IOException exc) {
+				// Closing the file releases the lock anyway.
+			} finally {
+				IOUtils.close(file);
+				StoreLocks.release(path);
+			}
+		}
+	}
+}
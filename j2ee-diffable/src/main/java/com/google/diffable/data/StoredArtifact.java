@@ -0,0 +1,47 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A handle on an artifact in a VersionStore which lets it be sent to a
+ * client as stored, without reading it into a String first.  A handle is
+ * good for a single use: once the artifact has been written or read, any
+ * underlying file is closed.
+ * 
+ * @author joshua Harrison
+ */
+public interface StoredArtifact {
+	
+	/**
+	 * @return The length of the artifact in bytes.
+	 */
+	public long getLength();
+	
+	/**
+	 * Writes the whole artifact to the channel.
+	 * 
+	 * @param channel The channel to write to.
+	 */
+	public void writeTo(WritableByteChannel channel) throws IOException;
+	
+	/**
+	 * @return The contents of the artifact.
+	 */
+	public byte[] getBytes() throws IOException;
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+/**
+ * Describes a stored version of a managed resource for the purpose of
+ * deciding how long to retain it.
+ * 
+ * @author joshua Harrison
+ */
+public class VersionRecord {
+	
+	private final String version;
+	private final long storedTime;
+	private final long size;
+	
+	/**
+	 * @param version The hash of the version.
+	 * @param storedTime The time in milliseconds at which the version was
+	 *     last stored as the latest version of the resource.
+	 * @param size The size of the version in bytes.
+	 */
+	public VersionRecord(String version, long storedTime, long size) {
+		this.version = version;
+		this.storedTime = storedTime;
+		this.size = size;
+	}
+	
+	public String getVersion() {
+		return version;
+	}
+	
+	public long getStoredTime() {
+		return storedTime;
+	}
+	
+	public long getSize() {
+		return size;
+	}
+}
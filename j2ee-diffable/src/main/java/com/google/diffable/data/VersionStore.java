@@ -0,0 +1,149 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import com.google.inject.ImplementedBy;
+
+/**
+ * A VersionStore persists the versions of managed resources, and the
+ * artifacts such as deltas generated from them, on behalf of the
+ * FileResourceManager.  Every managed resource has its own folder in the
+ * resource store, which is passed to each call; how a store lays out its
+ * data within (or outside of) that folder is up to the implementation.
+ * 
+ * Versions are identified by the hash of their contents. Artifacts are
+ * identified by name, e.g. 'oldhash_newhash.diff' for a delta.
+ * 
+ * @author joshua Harrison
+ */
+@ImplementedBy(FileVersionStore.class)
+public interface VersionStore {
+	
+	/**
+	 * Called once the resource store folder is known and before any other
+	 * method is called.
+	 * 
+	 * @param resourceStore The root folder of the resource store.
+	 */
+	public void initialize(File resourceStore) throws IOException;
+	
+	/**
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param version The hash of the version.
+	 * @return True if the version is stored.
+	 */
+	public boolean hasVersion(File resourceFolder, String version);
+	
+	/**
+	 * Stores a version of a managed resource, replacing any existing copy.
+	 * 
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param version The hash of the version.
+	 * @param contents The contents of the version.
+	 */
+	public void putVersion(File resourceFolder, String version,
+			               byte[] contents) throws IOException;
+	
+	/**
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param version The hash of the version.
+	 * @return The contents of the version or null if it isn't stored.
+	 */
+	public byte[] getVersion(File resourceFolder, String version)
+	throws IOException;
+	
+	/**
+	 * @param resourceFolder The folder of the managed resource.
+	 * @return The hashes of all stored versions of the resource.
+	 */
+	public List<String> getVersions(File resourceFolder);
+	
+	/**
+	 * Deletes a stored version. Artifacts generated from it are left alone.
+	 * 
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param version The hash of the version.
+	 */
+	public void deleteVersion(File resourceFolder, String version);
+	
+	/**
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param name The name of the artifact.
+	 * @return True if the artifact is stored.
+	 */
+	public boolean hasArtifact(File resourceFolder, String name);
+	
+	/**
+	 * Stores an artifact, replacing any existing one with the same name.
+	 * 
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param name The name of the artifact.
+	 * @param contents The contents of the artifact.
+	 */
+	public void putArtifact(File resourceFolder, String name,
+			                byte[] contents) throws IOException;
+	
+	/**
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param name The name of the artifact.
+	 * @return The contents of the artifact or null if it isn't stored.
+	 */
+	public byte[] getArtifact(File resourceFolder, String name)
+	throws IOException;
+	
+	/**
+	 * Opens an artifact so that it can be sent without being copied into
+	 * memory first.
+	 * 
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param name The name of the artifact.
+	 * @return A handle on the artifact or null if it isn't stored.
+	 */
+	public StoredArtifact openArtifact(File resourceFolder, String name)
+	throws IOException;
+	
+	/**
+	 * @param resourceFolder The folder of the managed resource.
+	 * @return The names of the artifacts stored for the resource.
+	 */
+	public List<String> getArtifacts(File resourceFolder);
+	
+	/**
+	 * Deletes an artifact, if it is stored.
+	 * 
+	 * @param resourceFolder The folder of the managed resource.
+	 * @param name The name of the artifact.
+	 */
+	public void deleteArtifact(File resourceFolder, String name);
+	
+	/**
+	 * Deletes all artifacts of a managed resource, keeping its versions.
+	 * 
+	 * @param resourceFolder The folder of the managed resource.
+	 */
+	public void deleteArtifacts(File resourceFolder);
+	
+	/**
+	 * Deletes everything stored for a managed resource, including its folder.
+	 * 
+	 * @param resourceFolder The folder of the managed resource.
+	 */
+	public void deleteResource(File resourceFolder);
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.diff;
+
+/**
+ * A Differ which indexes the dictionary text before matching the target
+ * against it.  Since every version of a resource becomes a dictionary once
+ * a newer version arrives, its index can be built once as a fingerprint
+ * when the version is first read, and handed back for every later diff
+ * instead of indexing the text again.
+ * 
+ * @author joshua Harrison
+ */
+public interface FingerprintDiffer extends Differ {
+	
+	/**
+	 * @param text The text of a version which may later be diffed against.
+	 * @return The fingerprint of the text.
+	 */
+	byte[] getFingerprint(String text);
+	
+	/**
+	 * Diffs the target against the dictionary as getDiffAsString(String,
+	 * String) does, using the dictionary's fingerprint.  A fingerprint which
+	 * doesn't belong to the dictionary text, for instance because it was
+	 * built with different settings, is ignored.
+	 * 
+	 * @param dict The dictionary text.
+	 * @param dictFingerprint The fingerprint of the dictionary text, or null.
+	 * @param target The target text.
+	 * @return The diff, or null if the texts are the same.
+	 */
+	String getDiffAsString(String dict, byte[] dictFingerprint, String target);
+}
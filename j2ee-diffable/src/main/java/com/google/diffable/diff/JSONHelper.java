@@ -23,12 +23,99 @@ SOFTWARE.
 */
 
 package com.google.diffable.diff;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
 /**
  * @author JSON.org
  * @version 2009-03-06
  */
 public class JSONHelper {
 
+    /**
+     * The escape sequence for each ASCII character, or null if the character
+     * can be copied as is.  '/' is handled separately since it is only
+     * escaped after '<'.
+     */
+    private static final String[] ESCAPES = new String[128];
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    static {
+        for (char c = 0; c < ' '; c++) {
+            ESCAPES[c] = unicodeEscape(c);
+        }
+        ESCAPES['\b'] = "\\b";
+        ESCAPES['\t'] = "\\t";
+        ESCAPES['\n'] = "\\n";
+        ESCAPES['\f'] = "\\f";
+        ESCAPES['\r'] = "\\r";
+        ESCAPES['"'] = "\\\"";
+        ESCAPES['\\'] = "\\\\";
+    }
+
+    private static String unicodeEscape(char c) {
+        return new String(new char[] {'\\', 'u', HEX[(c >> 12) & 0xf],
+            HEX[(c >> 8) & 0xf], HEX[(c >> 4) & 0xf], HEX[c & 0xf]});
+    }
+
+    /**
+     * An unsynchronized Writer over a growable char array, so quote(String)
+     * can share the escaping loop with the streaming variants.  Runs are
+     * copied with String.getChars rather than char by char.
+     */
+    private static class BufferWriter extends Writer {
+        private char[] buf;
+        private int count = 0;
+
+        BufferWriter(int capacity) {
+            buf = new char[capacity];
+        }
+
+        private void ensureCapacity(int needed) {
+            if (count + needed > buf.length) {
+                char[] grown =
+                    new char[Math.max(buf.length * 2, count + needed)];
+                System.arraycopy(buf, 0, grown, 0, count);
+                buf = grown;
+            }
+        }
+
+        @Override
+        public void write(int c) {
+            ensureCapacity(1);
+            buf[count++] = (char) c;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            ensureCapacity(len);
+            str.getChars(off, off + len, buf, count);
+            count += len;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            ensureCapacity(len);
+            System.arraycopy(cbuf, off, buf, count, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+
+        @Override
+        public String toString() {
+            return new String(buf, 0, count);
+        }
+    }
+
     /**
      * Produce a string in double quotes with backslash sequences in all the
      * right places. A backslash will be inserted within </, allowing JSON
@@ -41,56 +128,86 @@ public class JSONHelper {
         if (string == null || string.length() == 0) {
             return "\"\"";
         }
+        BufferWriter writer =
+            new BufferWriter(string.length() + string.length() / 8 + 16);
+        try {
+            quote(string, writer);
+        } catch (IOException exc) {
+            // BufferWriter never throws.
+        }
+        return writer.toString();
+    }
 
-        char         b;
-        char         c = 0;
-        int          i;
-        int          len = string.length();
-        StringBuffer sb = new StringBuffer(len + 4);
-        String       t;
-
-        sb.append('"');
-        for (i = 0; i < len; i += 1) {
-            b = c;
-            c = string.charAt(i);
-            switch (c) {
-            case '\\':
-            case '"':
-                sb.append('\\');
-                sb.append(c);
-                break;
-            case '/':
-                if (b == '<') {
-                    sb.append('\\');
+    /**
+     * Writes the quoted form of a string, as produced by quote(String), to a
+     * Writer without building it in memory first.  Runs of characters that
+     * need no escaping are written in bulk.
+     * @param string A String
+     * @param writer The Writer to write the quoted string to.
+     * @throws IOException If the writer fails.
+     */
+    public static void quote(String string, Writer writer)
+    throws IOException {
+        writer.write('"');
+        if (string == null) {
+            writer.write('"');
+            return;
+        }
+        int len = string.length();
+        int runStart = 0;
+        char[] unicode = null;
+        for (int i = 0; i < len; i++) {
+            char c = string.charAt(i);
+            String escape = null;
+            if (c < 128) {
+                escape = ESCAPES[c];
+                if (escape == null) {
+                    if (c != '/' || i == 0 || string.charAt(i - 1) != '<') {
+                        continue;
+                    }
+                    escape = "\\/";
                 }
-                sb.append(c);
-                break;
-            case '\b':
-                sb.append("\\b");
-                break;
-            case '\t':
-                sb.append("\\t");
-                break;
-            case '\n':
-                sb.append("\\n");
-                break;
-            case '\f':
-                sb.append("\\f");
-                break;
-            case '\r':
-                sb.append("\\r");
-                break;
-            default:
-                if (c < ' ' || (c >= '\u0080' && c < '\u00a0') ||
-                               (c >= '\u2000' && c < '\u2100')) {
-                    t = "000" + Integer.toHexString(c);
-                    sb.append("\\u" + t.substring(t.length() - 4));
-                } else {
-                    sb.append(c);
+            } else if (!((c >= '\u0080' && c < '\u00a0') ||
+                         (c >= '\u2000' && c < '\u2100'))) {
+                continue;
+            }
+            if (i > runStart) {
+                writer.write(string, runStart, i - runStart);
+            }
+            if (escape != null) {
+                writer.write(escape);
+            } else {
+                if (unicode == null) {
+                    unicode = new char[] {'\\', 'u', '0', '0', '0', '0'};
                 }
+                unicode[2] = HEX[(c >> 12) & 0xf];
+                unicode[3] = HEX[(c >> 8) & 0xf];
+                unicode[4] = HEX[(c >> 4) & 0xf];
+                unicode[5] = HEX[c & 0xf];
+                writer.write(unicode, 0, 6);
             }
+            runStart = i + 1;
+        }
+        if (len > runStart) {
+            writer.write(string, runStart, len - runStart);
         }
-        sb.append('"');
-        return sb.toString();
+        writer.write('"');
+    }
+
+    /**
+     * Writes the quoted form of a string, as produced by quote(String), to an
+     * OutputStream using the given character encoding.  The stream is
+     * flushed but not closed.
+     * @param string A String
+     * @param out The stream to write the quoted string to.
+     * @param charsetName The name of the encoding to write with.
+     * @throws IOException If the stream fails.
+     */
+    public static void quote(String string, OutputStream out,
+                             String charsetName)
+    throws IOException {
+        Writer writer = new OutputStreamWriter(out, charsetName);
+        quote(string, writer);
+        writer.flush();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.diff;
+
+/**
+ * Applies a delta produced by a Differ to its dictionary, the same way the
+ * Javascript client does.  A delta is a JSON array in which a pair of
+ * numbers copies a substring of the dictionary (offset, then length) and a
+ * string is added as is.
+ * 
+ * @author joshua Harrison
+ */
+public class Patcher {
+
+	/**
+	 * Applies a delta to a dictionary.
+	 * 
+	 * @param dict The dictionary the delta was generated against.
+	 * @param delta The delta as returned by Differ.getDiffAsString.
+	 * @return The target text the delta encodes.
+	 * @throws IllegalArgumentException If the delta is malformed or copies
+	 *     outside of the dictionary.
+	 */
+	public static String apply(String dict, String delta) {
+		StringBuilder output = new StringBuilder(dict.length());
+		int length = delta.length();
+		int i = skipSeparators(delta, 0, length);
+		applyDelta(dict, delta, i, length, output);
+		return output.toString();
+	}
+
+	/**
+	 * Applies a chain of deltas, each generated against the target of the
+	 * one before it, as served to clients several versions behind.  A
+	 * single delta is accepted as a chain of one.
+	 * 
+	 * @param dict The dictionary the first delta was generated against.
+	 * @param chain A JSON array of deltas, or a single delta.
+	 * @return The target text of the last delta.
+	 * @throws IllegalArgumentException If a delta is malformed or copies
+	 *     outside of its dictionary.
+	 */
+	public static String applyChain(String dict, String chain) {
+		int length = chain.length();
+		int i = skipSeparators(chain, 0, length);
+		if (i >= length || chain.charAt(i) != '[') {
+			throw new IllegalArgumentException("Chain is not an array.");
+		}
+		i = skipSeparators(chain, i + 1, length);
+		if (i >= length || chain.charAt(i) != '[') {
+			return apply(dict, chain);
+		}
+		while (i < length && chain.charAt(i) != ']') {
+			StringBuilder output = new StringBuilder(dict.length());
+			i = applyDelta(dict, chain, i, length, output);
+			dict = output.toString();
+			i = skipSeparators(chain, i, length);
+		}
+		if (i >= length) {
+			throw new IllegalArgumentException("Chain is not terminated.");
+		}
+		return dict;
+	}
+
+	/**
+	 * Appends the target of the delta starting at i to the output,
+	 * returning the index after its closing bracket.
+	 */
+	private static int applyDelta(String dict, String delta, int i,
+			                      int length, StringBuilder output) {
+		if (i >= length || delta.charAt(i) != '[') {
+			throw new IllegalArgumentException("Delta is not an array.");
+		}
+		i = skipSeparators(delta, i + 1, length);
+		while (i < length && delta.charAt(i) != ']') {
+			if (delta.charAt(i) == '"') {
+				i = unquote(delta, i + 1, length, output);
+			} else {
+				int end = numberEnd(delta, i, length);
+				int offset = Integer.parseInt(delta.substring(i, end));
+				i = skipSeparators(delta, end, length);
+				int copyEnd = numberEnd(delta, i, length);
+				int copyLength = Integer.parseInt(delta.substring(i, copyEnd));
+				i = copyEnd;
+				if (offset < 0 || copyLength < 0 ||
+					offset + copyLength > dict.length()) {
+					throw new IllegalArgumentException(
+						"Invalid copy " + offset + "," + copyLength + ".");
+				}
+				output.append(dict, offset, offset + copyLength);
+			}
+			i = skipSeparators(delta, i, length);
+		}
+		if (i >= length) {
+			throw new IllegalArgumentException("Delta is not terminated.");
+		}
+		return i + 1;
+	}
+
+	private static int skipSeparators(String delta, int i, int length) {
+		while (i < length &&
+			   (delta.charAt(i) == ',' ||
+			    Character.isWhitespace(delta.charAt(i)))) {
+			i++;
+		}
+		return i;
+	}
+
+	private static int numberEnd(String delta, int i, int length) {
+		int end = i;
+		while (end < length &&
+			   (Character.isDigit(delta.charAt(end)) ||
+			    delta.charAt(end) == '-')) {
+			end++;
+		}
+		if (end == i) {
+			throw new IllegalArgumentException(
+				"Expected a number at " + i + ".");
+		}
+		return end;
+	}
+
+	/**
+	 * Appends the JSON string starting after the opening quote at i to the
+	 * output, returning the index after the closing quote.
+	 */
+	private static int unquote(String delta, int i, int length,
+			                   StringBuilder output) {
+		int runStart = i;
+		while (i < length) {
+			char c = delta.charAt(i);
+			if (c == '"') {
+				output.append(delta, runStart, i);
+				return i + 1;
+			} else if (c == '\\') {
+				output.append(delta, runStart, i);
+				if (i + 1 >= length) {
+					break;
+				}
+				char escaped = delta.charAt(i + 1);
+				i += 2;
+				switch (escaped) {
+				case 'b':
+					output.append('\b');
+					break;
+				case 't':
+					output.append('\t');
+					break;
+				case 'n':
+					output.append('\n');
+					break;
+				case 'f':
+					output.append('\f');
+					break;
+				case 'r':
+					output.append('\r');
+					break;
+				case 'u':
+					if (i + 4 > length) {
+						throw new IllegalArgumentException(
+							"Truncated unicode escape.");
+					}
+					output.append(
+						(char) Integer.parseInt(delta.substring(i, i + 4), 16));
+					i += 4;
+					break;
+				default:
+					output.append(escaped);
+				}
+				runStart = i;
+			} else {
+				i++;
+			}
+		}
+		throw new IllegalArgumentException("Unterminated string in delta.");
+	}
+}
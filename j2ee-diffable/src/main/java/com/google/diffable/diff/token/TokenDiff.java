@@ -0,0 +1,100 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.diff.token;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.google.diffable.diff.Differ;
+import com.google.diffable.diff.JSONHelper;
+import com.google.inject.Inject;
+import com.google.inject.name.Named;
+
+/**
+ * This class defines a Differ which matches Javascript and CSS resources
+ * token by token rather than block by block, so that identifiers and string
+ * literals are never split between a copy and an add.  The output uses the
+ * same copy/add instruction format as VCDiff, with copies expressed as
+ * character offsets into the dictionary, so the Javascript client applies it
+ * unchanged.
+ *
+ * @author joshua Harrison
+ */
+public class TokenDiff implements Differ {
+
+	/**
+	 * Matched runs shorter than this many characters are sent as adds, since
+	 * the offset and length of a copy would take about as much space.
+	 */
+	@Inject(optional=true) @Named("MinCopyLength")
+	public int minCopyLength = 8;
+
+	public String getDiffAsString(String dict, String target) {
+		// If the strings are the exact same, return null for no diff.
+		if (dict.equals(target)) {
+			return null;
+		}
+		HashMap<String, Integer> symbols = new HashMap<String, Integer>();
+		TokenText dictTokens = new TokenText(dict, symbols);
+		TokenText targetTokens = new TokenText(target, symbols);
+		int[] matches = new TokenMatcher(dictTokens, targetTokens).getMatches();
+
+		ArrayList<String> diffString = new ArrayList<String>();
+		StringBuilder addBuffer = new StringBuilder();
+		int tokenCount = targetTokens.size();
+		int index = 0;
+		while (index < tokenCount) {
+			if (matches[index] < 0) {
+				addBuffer.append(targetTokens.getToken(index++));
+				continue;
+			}
+			// Extend the copy for as long as the matched dictionary tokens
+			// are contiguous.
+			int start = index;
+			while (index + 1 < tokenCount &&
+				   matches[index + 1] == matches[index] + 1) {
+				index++;
+			}
+			index++;
+			int offset = dictTokens.getOffset(matches[start]);
+			int length =
+				dictTokens.getOffset(matches[index - 1] + 1) - offset;
+			if (length < minCopyLength) {
+				addBuffer.append(
+					target.substring(targetTokens.getOffset(start),
+							         targetTokens.getOffset(index)));
+			} else {
+				if (addBuffer.length() > 0) {
+					diffString.add(JSONHelper.quote(addBuffer.toString()));
+					addBuffer = new StringBuilder();
+				}
+				diffString.add(Integer.toString(offset));
+				diffString.add(Integer.toString(length));
+			}
+		}
+		if (addBuffer.length() > 0) {
+			diffString.add(JSONHelper.quote(addBuffer.toString()));
+		}
+
+		StringBuilder buffer = new StringBuilder();
+		buffer.append("[");
+		for (String data : diffString) {
+			buffer.append(data).append(",");
+		}
+		buffer.append("]");
+		return buffer.toString();
+	}
+}
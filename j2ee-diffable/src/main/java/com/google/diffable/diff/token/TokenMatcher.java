@@ -0,0 +1,239 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.diff.token;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Aligns two token sequences.  The alignment is computed patience style:
+ * common prefixes and suffixes are matched first, then tokens occurring
+ * exactly once in both ranges are used as anchors (keeping the longest
+ * increasing run of them) and the ranges between anchors are aligned the
+ * same way.  Ranges without any unique tokens are aligned using Myers'
+ * O(ND) algorithm, which gives up and leaves the range unmatched once the
+ * edit distance gets too expensive to trace.
+ *
+ * @author joshua Harrison
+ */
+class TokenMatcher {
+
+	/** The maximum number of ints the Myers trace may use for one range. */
+	private static final int MAX_TRACE_SIZE = 1 << 22;
+
+	private final TokenText dict;
+	private final TokenText target;
+	private final int[] matches;
+
+	public TokenMatcher(TokenText dict, TokenText target) {
+		this.dict = dict;
+		this.target = target;
+		this.matches = new int[target.size()];
+		Arrays.fill(matches, -1);
+
+		// Ranges are processed from an explicit stack rather than by
+		// recursion since each level of anchors may only peel off a few
+		// tokens.
+		ArrayList<int[]> ranges = new ArrayList<int[]>();
+		ranges.add(new int[] {0, dict.size(), 0, target.size()});
+		while (!ranges.isEmpty()) {
+			int[] range = ranges.remove(ranges.size() - 1);
+			align(range[0], range[1], range[2], range[3], ranges);
+		}
+	}
+
+	/**
+	 * @return An array indexed by target token containing the index of the
+	 *     matching dictionary token, or -1 for target tokens without a match.
+	 *     Matched dictionary indexes are strictly increasing.
+	 */
+	public int[] getMatches() {
+		return matches;
+	}
+
+	private void align(int aLo, int aHi, int bLo, int bHi,
+			           ArrayList<int[]> ranges) {
+		while (aLo < aHi && bLo < bHi &&
+			   dict.getId(aLo) == target.getId(bLo)) {
+			matches[bLo++] = aLo++;
+		}
+		while (aLo < aHi && bLo < bHi &&
+			   dict.getId(aHi - 1) == target.getId(bHi - 1)) {
+			matches[--bHi] = --aHi;
+		}
+		if (aLo == aHi || bLo == bHi) {
+			return;
+		}
+
+		int[] anchors = uniqueAnchors(aLo, aHi, bLo, bHi);
+		if (anchors.length == 0) {
+			myers(aLo, aHi, bLo, bHi);
+			return;
+		}
+		int a = aLo;
+		int b = bLo;
+		for (int i = 0; i < anchors.length; i += 2) {
+			ranges.add(new int[] {a, anchors[i], b, anchors[i + 1]});
+			matches[anchors[i + 1]] = anchors[i];
+			a = anchors[i] + 1;
+			b = anchors[i + 1] + 1;
+		}
+		ranges.add(new int[] {a, aHi, b, bHi});
+	}
+
+	/**
+	 * Finds the tokens that occur exactly once in each range and returns the
+	 * longest sequence of them that appears in the same order in both, as
+	 * pairs of dictionary and target indexes.
+	 */
+	private int[] uniqueAnchors(int aLo, int aHi, int bLo, int bHi) {
+		// Each entry holds {count in dict, count in target, dict index,
+		// target index}.
+		HashMap<Integer, int[]> counts = new HashMap<Integer, int[]>();
+		for (int i = aLo; i < aHi; i++) {
+			int[] entry = counts.get(dict.getId(i));
+			if (entry == null) {
+				entry = new int[] {0, 0, i, -1};
+				counts.put(dict.getId(i), entry);
+			}
+			entry[0]++;
+		}
+		for (int i = bLo; i < bHi; i++) {
+			int[] entry = counts.get(target.getId(i));
+			if (entry != null) {
+				entry[1]++;
+				entry[3] = i;
+			}
+		}
+		int candidates = 0;
+		int[] candidateA = new int[Math.min(aHi - aLo, bHi - bLo)];
+		int[] candidateB = new int[candidateA.length];
+		for (int i = aLo; i < aHi; i++) {
+			int[] entry = counts.get(dict.getId(i));
+			if (entry[0] == 1 && entry[1] == 1) {
+				candidateA[candidates] = entry[2];
+				candidateB[candidates] = entry[3];
+				candidates++;
+			}
+		}
+		if (candidates == 0) {
+			return new int[0];
+		}
+
+		// Patience sort the target indexes to find the longest increasing
+		// subsequence. tails[k] holds the candidate ending the best run of
+		// length k + 1, and previous links each candidate to its predecessor.
+		int[] tails = new int[candidates];
+		int[] previous = new int[candidates];
+		int longest = 0;
+		for (int i = 0; i < candidates; i++) {
+			int low = 0;
+			int high = longest;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (candidateB[tails[mid]] < candidateB[i]) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			previous[i] = low > 0 ? tails[low - 1] : -1;
+			tails[low] = i;
+			if (low == longest) {
+				longest++;
+			}
+		}
+		int[] anchors = new int[longest * 2];
+		int current = tails[longest - 1];
+		for (int k = longest - 1; k >= 0; k--) {
+			anchors[k * 2] = candidateA[current];
+			anchors[k * 2 + 1] = candidateB[current];
+			current = previous[current];
+		}
+		return anchors;
+	}
+
+	/**
+	 * Myers' greedy shortest edit script algorithm, recording the furthest
+	 * reaching paths so matches can be recovered by walking back through
+	 * them.
+	 */
+	private void myers(int aLo, int aHi, int bLo, int bHi) {
+		int n = aHi - aLo;
+		int m = bHi - bLo;
+		int max = n + m;
+		int width = 2 * max + 1;
+		int maxD = Math.min(max, MAX_TRACE_SIZE / width - 1);
+		int[] v = new int[width];
+		ArrayList<int[]> trace = new ArrayList<int[]>();
+		int found = -1;
+		for (int d = 0; d <= maxD && found < 0; d++) {
+			trace.add(v.clone());
+			for (int k = -d; k <= d; k += 2) {
+				int x;
+				if (k == -d || (k != d && v[max + k - 1] < v[max + k + 1])) {
+					x = v[max + k + 1];
+				} else {
+					x = v[max + k - 1] + 1;
+				}
+				int y = x - k;
+				while (x < n && y < m &&
+					   dict.getId(aLo + x) == target.getId(bLo + y)) {
+					x++;
+					y++;
+				}
+				v[max + k] = x;
+				if (x >= n && y >= m) {
+					found = d;
+					break;
+				}
+			}
+		}
+		if (found < 0) {
+			// Too different to be worth tracing; leave the range unmatched.
+			return;
+		}
+
+		int x = n;
+		int y = m;
+		for (int d = found; d > 0; d--) {
+			int[] previousV = trace.get(d);
+			int k = x - y;
+			int previousK;
+			if (k == -d || (k != d &&
+				previousV[max + k - 1] < previousV[max + k + 1])) {
+				previousK = k + 1;
+			} else {
+				previousK = k - 1;
+			}
+			int previousX = previousV[max + previousK];
+			int previousY = previousX - previousK;
+			while (x > previousX && y > previousY) {
+				x--;
+				y--;
+				matches[bLo + y] = aLo + x;
+			}
+			x = previousX;
+			y = previousY;
+		}
+		while (x > 0 && y > 0) {
+			x--;
+			y--;
+			matches[bLo + y] = aLo + x;
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.diff.token;
+
+import java.util.Map;
+
+/**
+ * Turns a string of Javascript or CSS into a sequence of lexical tokens.  The
+ * lexer is deliberately lightweight: it only needs to find boundaries that
+ * a human would consider atomic (identifiers, numbers, string literals,
+ * block comments, whitespace runs and punctuation) so that the matcher never
+ * splits them.  It never fails; any character it doesn't recognize becomes
+ * a single character token.  Line comments are not recognized since '//'
+ * also appears in CSS urls.
+ *
+ * Each token is identified by an integer id, shared with other TokenTexts
+ * through the passed in symbol table, so that tokens can be compared without
+ * comparing their text.
+ *
+ * @author joshua Harrison
+ */
+class TokenText {
+	private final String originalText;
+	private int[] starts;
+	private int[] ids;
+	private int size = 0;
+
+	/**
+	 * The constructor tokenizes the passed in text.
+	 *
+	 * @param originalText The text to tokenize.
+	 * @param symbols The symbol table mapping token text to token ids.  Texts
+	 *     that are going to be compared must share the same symbol table.
+	 */
+	public TokenText(String originalText, Map<String, Integer> symbols) {
+		this.originalText = originalText;
+		int capacity = Math.max(16, originalText.length() / 4);
+		this.starts = new int[capacity];
+		this.ids = new int[capacity];
+
+		int length = originalText.length();
+		int i = 0;
+		while (i < length) {
+			int end = nextTokenEnd(originalText, i, length);
+			add(i, symbols, originalText.substring(i, end));
+			i = end;
+		}
+	}
+
+	private void add(int start, Map<String, Integer> symbols, String token) {
+		if (size == starts.length) {
+			int[] newStarts = new int[size * 2];
+			int[] newIds = new int[size * 2];
+			System.arraycopy(starts, 0, newStarts, 0, size);
+			System.arraycopy(ids, 0, newIds, 0, size);
+			starts = newStarts;
+			ids = newIds;
+		}
+		Integer id = symbols.get(token);
+		if (id == null) {
+			id = symbols.size();
+			symbols.put(token, id);
+		}
+		starts[size] = start;
+		ids[size] = id;
+		size++;
+	}
+
+	/**
+	 * Returns the index just past the end of the token starting at start.
+	 */
+	static int nextTokenEnd(String text, int start, int length) {
+		char c = text.charAt(start);
+		int i = start + 1;
+		if (Character.isWhitespace(c)) {
+			while (i < length && Character.isWhitespace(text.charAt(i))) {
+				i++;
+			}
+		} else if (isWordChar(c)) {
+			while (i < length && isWordChar(text.charAt(i))) {
+				i++;
+			}
+		} else if (c == '"' || c == '\'' || c == '`') {
+			// String literal. An unterminated literal runs to the end of the
+			// line, which is as far as a lexer could sensibly take it.
+			while (i < length) {
+				char current = text.charAt(i);
+				if (current == '\\' && i + 1 < length) {
+					i += 2;
+					continue;
+				}
+				i++;
+				if (current == c || current == '\n') {
+					break;
+				}
+			}
+		} else if (c == '/' && i < length && text.charAt(i) == '*') {
+			int close = text.indexOf("*/", i + 1);
+			i = close < 0 ? length : close + 2;
+		}
+		return i;
+	}
+
+	private static boolean isWordChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+	}
+
+	public String getOriginalText() {
+		return originalText;
+	}
+
+	/**
+	 * @return The number of tokens in the text.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The symbol id of the token at the given index.
+	 */
+	public int getId(int index) {
+		return ids[index];
+	}
+
+	/**
+	 * @return The offset in the original text of the token at the given
+	 *     index.  Passing size() returns the length of the text.
+	 */
+	public int getOffset(int index) {
+		return index == size ? originalText.length() : starts[index];
+	}
+
+	/**
+	 * @return The text of the token at the given index.
+	 */
+	public String getToken(int index) {
+		return originalText.substring(getOffset(index), getOffset(index + 1));
+	}
+}
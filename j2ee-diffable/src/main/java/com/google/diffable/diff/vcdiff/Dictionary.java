@@ -77,6 +77,19 @@ class Dictionary {
 		}
 	}
 	
+	/**
+	 * Populates the dictionary from block hashes computed earlier, in the
+	 * order of the blocks of the dictionary text.
+	 */
+	public void populateDictionary(BlockText dictText, long[] blockHashes) {
+		dictionary.clear();
+		this.dictionaryText = dictText;
+		int index = 0;
+		for(Block b : dictText) {
+			put(blockHashes[index++], b);
+		}
+	}
+	
 	/**
 	 * Returns the longest possible matching block from the dictionary or null
 	 * if no match is found. The passed in hash is checked against stored finger
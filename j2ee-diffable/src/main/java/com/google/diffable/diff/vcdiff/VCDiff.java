@@ -15,42 +15,73 @@
  */
 package com.google.diffable.diff.vcdiff;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
-import com.google.diffable.diff.Differ;
+import com.google.diffable.diff.FingerprintDiffer;
 import com.google.diffable.diff.JSONHelper;
 import com.google.diffable.diff.vcdiff.hash.Hasher;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 import com.google.inject.name.Named;
 
 /**
- * This class defines the Differ which use the VCDiff algorithm.
+ * This class defines the Differ which use the VCDiff algorithm.  The
+ * fingerprint of a dictionary text is the hash of each of its blocks, which
+ * is most of the work of populating the dictionary.
  *  
  * @author joshua Harrison
  */
-public class VCDiff implements Differ {
+public class VCDiff implements FingerprintDiffer {
 	
 	@Inject(optional=true) @Named("BlockSize")
 	public int blockSize = 20;
 	
-	private Hasher hash;
-	private Dictionary dictText;
+	/**
+	 * Hashers keep the state of the rolling hash, so each diff uses its own,
+	 * allowing deltas to be generated concurrently.
+	 */
+	private Provider<Hasher> hashers;
 	
 	@Inject
-	public VCDiff(Hasher hash,
-			      Dictionary dictText) {
-		this.hash = hash;
-		this.dictText = dictText;
+	public VCDiff(Provider<Hasher> hashers) {
+		this.hashers = hashers;
+	}
+	
+	public byte[] getFingerprint(String text) {
+		Hasher hash = hashers.get();
+		BlockText blocks = new BlockText(text, blockSize);
+		// The block size and text length, followed by the block hashes.
+		ByteBuffer fingerprint =
+			ByteBuffer.allocate(8 + 8 * blocks.getBlocks().size());
+		fingerprint.putInt(blockSize).putInt(text.length());
+		for (Block block : blocks) {
+			fingerprint.putLong(hash.hash(block.getText()));
+		}
+		return fingerprint.array();
 	}
 	
 	public String getDiffAsString(String dict, String target) {
+		return getDiffAsString(dict, null, target);
+	}
+	
+	public String getDiffAsString(String dict, byte[] dictFingerprint,
+			                      String target) {
 		// If the strings are the exact same, return null for no diff.
 		if (dict.equals(target)) {
 			return null;
 		}
 		ArrayList<String> diffString = new ArrayList<String>(); 
 
-		dictText.populateDictionary(new BlockText(dict, blockSize), hash);
+		Hasher hash = hashers.get();
+		Dictionary dictText = new Dictionary();
+		BlockText dictBlocks = new BlockText(dict, blockSize);
+		long[] blockHashes = readFingerprint(dictFingerprint, dictBlocks);
+		if (blockHashes != null) {
+			dictText.populateDictionary(dictBlocks, blockHashes);
+		} else {
+			dictText.populateDictionary(dictBlocks, hash);
+		}
 		//StringBuilder targetBuffer = new StringBuilder(target);
 		int targetLength = target.length();
 		int targetIndex = 0;
@@ -122,4 +153,23 @@ public class VCDiff implements Differ {
 		buffer.append("]");
 		return buffer.toString();
 	}
+	
+	/**
+	 * @return The block hashes in the fingerprint, or null if there's no
+	 *     fingerprint or it doesn't match the blocks of the dictionary.
+	 */
+	private long[] readFingerprint(byte[] fingerprint, BlockText dictBlocks) {
+		int blockCount = dictBlocks.getBlocks().size();
+		if (fingerprint == null || fingerprint.length != 8 + 8 * blockCount) {
+			return null;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(fingerprint);
+		if (buffer.getInt() != blockSize ||
+			buffer.getInt() != dictBlocks.getOriginalText().length()) {
+			return null;
+		}
+		long[] hashes = new long[blockCount];
+		buffer.asLongBuffer().get(hashes);
+		return hashes;
+	}
 }
@@ -16,20 +16,24 @@
 package com.google.diffable.handler;
 
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.util.Calendar;
-import java.util.HashMap;
-import java.util.Locale;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.google.diffable.Constants;
+import com.google.diffable.data.BufferArtifact;
+import com.google.diffable.data.ContentCache;
+import com.google.diffable.data.ContentEncoding;
 import com.google.diffable.data.ResourceManager;
 import com.google.diffable.data.ResourceRequest;
-import com.google.diffable.diff.JSONHelper;
+import com.google.diffable.data.StoredArtifact;
 import com.google.diffable.exceptions.ResourceManagerException;
-import com.google.diffable.scripts.DeltaBootstrapTemplate;
-import com.google.diffable.scripts.DictionaryBootstrapTemplate;
+import com.google.diffable.scripts.ResponseRenderer;
 import com.google.inject.Inject;
+import com.google.inject.name.Named;
 
 /**
  * This class will handle the diffable request.
@@ -42,18 +46,67 @@ public class DiffableResourceHandler {
 	private ResourceManager mgr;
 	
 	@Inject
-	private DictionaryBootstrapTemplate jsDictWrapper;
+	private ResponseRenderer renderer;
 	
+	/** Holds rendered responses, alongside the resource manager's content. */
 	@Inject
-	private DeltaBootstrapTemplate bootstrapWrapper;
+	private ContentCache cache;
+	
+	/**
+	 * If true, the rendered responses for full resources, and for deltas
+	 * that had to be sent as the whole resource, are cached so the resource
+	 * is only quoted and wrapped in its template once per version.
+	 */
+	@Inject(optional=true) @Named(value="CacheRenderedResponses")
+	private boolean cacheRenderedResponses = true;
 	
 	private Calendar jan2000 = Calendar.getInstance();
 	
+	/** The content type of all Diffable responses. */
+	private static final String CONTENT_TYPE =
+		"text/javascript; charset=" + Constants.RESPONSE_CHARSET;
+	
+	/**
+	 * Appended to the name of a response to form its key in the content
+	 * cache, which is prefixed by the resource hash so a new version of the
+	 * resource drops it.
+	 */
+	private static final String RENDERED_SUFFIX = ".response";
+	
+	/**
+	 * Appended to the version sent in place of a missing delta to name its
+	 * rendered response.
+	 */
+	private static final String FALLBACK_SUFFIX = ".fallback";
+	
+	/** The number of milliseconds in the two years responses expire in. */
+	private static final long EXPIRES_MILLIS = 2L * 365 * 24 * 60 * 60 * 1000;
+	
 	public DiffableResourceHandler() {
 		// Set the 2000 calendar.
 		jan2000.set(2000, 1, 1);
 	}
 	
+	/**
+	 * Handle the diff resource request, serving a precompressed variant of
+	 * the response if the client accepts one and it is stored.
+	 * @param request the request
+	 * @param req the servlet request, used for its Accept-Encoding header
+	 * @param resp the response
+	 * @throws IOException if an IO exception occurs
+	 * @throws ResourceManagerException if a resource manager exception occurs
+	 */
+	public boolean handleResourceRequest(
+		ResourceRequest request,
+		HttpServletRequest req,
+		HttpServletResponse resp) throws IOException, ResourceManagerException{
+		
+		request.setAcceptedEncodings(
+			ContentEncoding.parseAcceptEncoding(
+				req.getHeader("Accept-Encoding")));
+		return handleResourceRequest(request, resp);
+	}
+	
 	/**
 	 * Handle the diff resource request
 	 * @param request the request
@@ -67,37 +120,88 @@ public class DiffableResourceHandler {
 		
 		boolean processed = false;
 		mgr.getResource(request);
-		if (request.getResponse() != null) {
+		// Check for an artifact first, since getResponse reads it in.
+		StoredArtifact artifact = request.getArtifact();
+		if (artifact != null || request.getFallbackVersion() != null ||
+			request.getResponse() != null) {
 			resp.setStatus(200);
-			Calendar now = Calendar.getInstance();
-			now.set(Calendar.YEAR, now.get(Calendar.YEAR) + 2);
 			// All responses are denoted as last being modified on Jan 1,
-			// 2000 to allow for very agressive caching.
-			resp.setHeader("Last-Modified",
-				new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss z", Locale.US).format(
-					jan2000.getTime()));
+			// 2000 to allow for very agressive caching.  The container
+			// formats the dates, so no formatter is built per request.
+			resp.setDateHeader("Last-Modified", jan2000.getTimeInMillis());
 			resp.setHeader("Cache-Control", "public, max-age=63072000");
-			resp.setHeader("Expires", 
-				new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss z", Locale.US).format(
-					now.getTime()));
-			HashMap<String, String> values = new HashMap<String, String>();
-			values.put("{{DJS_RESOURCE_IDENTIFIER}}", request.getResourceHash());
-			if (request.isDiff()) {
-				values.put("{{DJS_DIFF_CONTENT}}", request.getResponse());
-				String response = bootstrapWrapper.render(values);
-				resp.setContentLength(response.length());
-				resp.getWriter().print(response);
+			resp.setDateHeader("Expires",
+				System.currentTimeMillis() + EXPIRES_MILLIS);
+			resp.setContentType(CONTENT_TYPE);
+			// The body depends on Accept-Encoding whenever a precompressed
+			// variant is stored, so caches must key on it.
+			resp.setHeader("Vary", "Accept-Encoding");
+			String resourceHash = request.getResourceHash();
+			if (request.getContentEncoding() != null) {
+				// A precompressed variant is the whole rendered response.
+				resp.setHeader("Content-Encoding",
+					request.getContentEncoding().getName());
+				resp.setContentLength((int) artifact.getLength());
+				artifact.writeTo(Channels.newChannel(resp.getOutputStream()));
+				processed = true;
+			} else if (artifact != null) {
+				resp.setContentLength((int) renderer.getDeltaLength(
+					resourceHash, artifact.getLength()));
+				renderer.writeDelta(
+					resourceHash, artifact, resp.getOutputStream());
 				processed = true;
 			} else {
-				values.put("{{DJS_CODE}}", JSONHelper.quote(request.getResponse()));
-				values.put("{{DJS_BOOTSTRAP_VERSION}}", request.getNewVersionHash());
-				String response = jsDictWrapper.render(values);
-				resp.setContentLength(response.length());
-				resp.getWriter().print(response);
+				write(getRenderedResponse(request), resp);
 				processed = true;
 			}
 		}
 
 		return processed;
 	}
+	
+	/**
+	 * Renders the response for a request whose resource manager returned a
+	 * string, or takes it from the content cache when it was already
+	 * rendered.  Requests are identified by the resource hash and the
+	 * version, or pair of retained versions, they ask for.  A fallback for a
+	 * missing delta is the same whatever old version the client sent, so it
+	 * is only identified by the version sent in its place.
+	 */
+	private ByteBuffer getRenderedResponse(ResourceRequest request)
+	throws IOException {
+		String resourceHash = request.getResourceHash();
+		String name;
+		if (request.getFallbackVersion() != null) {
+			name = request.getFallbackVersion() + FALLBACK_SUFFIX;
+		} else if (request.isDiff()) {
+			name = request.getOldVersionHash() + "_" +
+				request.getNewVersionHash() + ".diff";
+		} else {
+			name = request.getNewVersionHash();
+		}
+		String key = resourceHash + "/" + name + RENDERED_SUFFIX;
+		ByteBuffer response =
+			cacheRenderedResponses ? cache.getBuffer(key) : null;
+		if (response == null) {
+			byte[] rendered = request.isDiff() ?
+				renderer.renderDelta(resourceHash, request.getResponse()) :
+				renderer.renderResource(resourceHash, request.getResponse(),
+					                    request.getNewVersionHash());
+			if (cacheRenderedResponses) {
+				cache.put(key, rendered);
+			}
+			response = ByteBuffer.wrap(rendered);
+		}
+		return response;
+	}
+	
+	/**
+	 * Writes a rendered response, with its length in bytes.
+	 */
+	private void write(ByteBuffer response, HttpServletResponse resp)
+	throws IOException {
+		resp.setContentLength(response.remaining());
+		new BufferArtifact(response).writeTo(
+			Channels.newChannel(resp.getOutputStream()));
+	}
 }
@@ -76,6 +76,9 @@ public class DiffableListener implements ServletContextListener {
 	
 	public void contextDestroyed(ServletContextEvent ctxEvent) {
 		timer.cancel();
+		if (mgr != null) {
+			mgr.shutdown();
+		}
 	}
 	
 	public void contextInitialized(ServletContextEvent ctxEvent) {
@@ -102,15 +105,6 @@ public class DiffableListener implements ServletContextListener {
 			mgr = inj.getInstance(ResourceManager.class);
 		}
 		
-		// Initialize the resource.
-		try {
-			String webAppBaseDir = ctx.getRealPath("/");
-			mgr.initialize(webAppBaseDir, diffableCtx);
-		} catch (ResourceManagerException exc) {
-			provider.error(logger, "resourcestore.problem");
-			printer.print(exc);
-		}
-		
 		// Retrieve the directories containing resources to be managed and
 		// crawl them for resources, adding them to the resource manager as
 		// they are found.  If the path begins with a slash, it will be
@@ -145,7 +139,20 @@ public class DiffableListener implements ServletContextListener {
 			// Set the folders on the DiffableTag so it can locate resources.
 			//DiffableResourceTag.setFolder(foundFolders);
 			diffableCtx.setFolder(foundFolders);
-			
+		}
+		
+		// Initialize the resource.  This happens once the resource folders
+		// are known, since managed resources are keyed by their path
+		// relative to them.
+		try {
+			String webAppBaseDir = ctx.getRealPath("/");
+			mgr.initialize(webAppBaseDir, diffableCtx);
+		} catch (ResourceManagerException exc) {
+			provider.error(logger, "resourcestore.problem");
+			printer.print(exc);
+		}
+		
+		if (resourceFolders != null) {
 			// Start up the monitoring thread.
 			monitor.setFolderAndManager(foundFolders, mgr);
 			timer.schedule(monitor, 0, interval);
@@ -16,6 +16,7 @@
 package com.google.diffable.scripts;
 
 import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
@@ -100,4 +101,38 @@ public abstract class DiffableTemplate {
 		}
 		return rendered;
 	}
+	
+	/**
+	 * Splits the template around place-holders so that the values can be
+	 * written between the pieces without rendering the template as a
+	 * string first.
+	 * 
+	 * @param charsetName The charset to encode the pieces in.
+	 * @param placeHolders The place-holders, in the order in which they
+	 *     appear in the template.  Each must appear exactly once.
+	 * @return The encoded pieces of the template, one more than the number
+	 *     of place-holders.
+	 * @throws IllegalArgumentException If a place-holder is missing, repeated
+	 *     or out of order.
+	 */
+	public byte[][] split(String charsetName, String... placeHolders)
+	throws UnsupportedEncodingException {
+		byte[][] pieces = new byte[placeHolders.length + 1][];
+		int start = 0;
+		for (int i = 0; i < placeHolders.length; i++) {
+			int index = resourceString.indexOf(placeHolders[i], start);
+			if (index < 0 || resourceString.indexOf(
+					placeHolders[i], index + placeHolders[i].length()) >= 0) {
+				throw new IllegalArgumentException(
+					"Place-holder " + placeHolders[i] +
+					" must appear once, after the previous place-holder.");
+			}
+			pieces[i] =
+				resourceString.substring(start, index).getBytes(charsetName);
+			start = index + placeHolders[i].length();
+		}
+		pieces[placeHolders.length] =
+			resourceString.substring(start).getBytes(charsetName);
+		return pieces;
+	}
 }
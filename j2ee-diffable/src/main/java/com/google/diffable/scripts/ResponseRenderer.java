@@ -0,0 +1,136 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.scripts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+
+import com.google.diffable.Constants;
+import com.google.diffable.data.StoredArtifact;
+import com.google.diffable.diff.JSONHelper;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Renders the bodies of Diffable responses by wrapping resources and deltas
+ * in their bootstrap templates.  It is shared by the resource handler, which
+ * renders responses as they are requested, and the resource manager, which
+ * renders them ahead of time to store precompressed variants, so both
+ * produce exactly the same bytes.
+ * 
+ * @author joshua Harrison
+ */
+@Singleton
+public class ResponseRenderer {
+	
+	@Inject
+	private DictionaryBootstrapTemplate jsDictWrapper;
+	
+	@Inject
+	private DeltaBootstrapTemplate bootstrapWrapper;
+	
+	/**
+	 * The delta bootstrap template split around the resource identifier
+	 * and the diff content, encoded once so stored diffs can be sent
+	 * between the pieces as they are.
+	 */
+	private byte[][] deltaPieces = null;
+	
+	/**
+	 * Renders the response for the full contents of a resource.
+	 * 
+	 * @param resourceHash The hash identifying the resource.
+	 * @param contents The contents of the resource.
+	 * @param version The hash of the version of the contents.
+	 * @return The response, encoded in Constants.RESPONSE_CHARSET.
+	 */
+	public byte[] renderResource(String resourceHash, String contents,
+			                     String version) throws IOException {
+		HashMap<String, String> values = new HashMap<String, String>();
+		values.put("{{DJS_RESOURCE_IDENTIFIER}}", resourceHash);
+		values.put("{{DJS_CODE}}", JSONHelper.quote(contents));
+		values.put("{{DJS_BOOTSTRAP_VERSION}}", version);
+		return jsDictWrapper.render(values).getBytes(
+			Constants.RESPONSE_CHARSET);
+	}
+	
+	/**
+	 * Renders the response for a delta held as a string.
+	 * 
+	 * @param resourceHash The hash identifying the resource.
+	 * @param diff The delta.
+	 * @return The response, encoded in Constants.RESPONSE_CHARSET.
+	 */
+	public byte[] renderDelta(String resourceHash, String diff)
+	throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeDelta(resourceHash,
+			diff.getBytes(Constants.RESPONSE_CHARSET), out);
+		return out.toByteArray();
+	}
+	
+	/**
+	 * @param resourceHash The hash identifying the resource.
+	 * @param diffLength The length of the encoded delta.
+	 * @return The length of the response for the delta.
+	 */
+	public long getDeltaLength(String resourceHash, long diffLength)
+	throws IOException {
+		byte[][] pieces = getDeltaPieces();
+		return pieces[0].length +
+			resourceHash.getBytes(Constants.RESPONSE_CHARSET).length +
+			pieces[1].length + diffLength + pieces[2].length;
+	}
+	
+	/**
+	 * Writes the response for a stored delta.  The artifact is copied to
+	 * the stream as is, so it is never decoded.
+	 * 
+	 * @param resourceHash The hash identifying the resource.
+	 * @param diff The stored delta.
+	 * @param out The stream to write the response to.
+	 */
+	public void writeDelta(String resourceHash, StoredArtifact diff,
+			               OutputStream out) throws IOException {
+		byte[][] pieces = getDeltaPieces();
+		out.write(pieces[0]);
+		out.write(resourceHash.getBytes(Constants.RESPONSE_CHARSET));
+		out.write(pieces[1]);
+		diff.writeTo(Channels.newChannel(out));
+		out.write(pieces[2]);
+	}
+	
+	private void writeDelta(String resourceHash, byte[] diff,
+			                OutputStream out) throws IOException {
+		byte[][] pieces = getDeltaPieces();
+		out.write(pieces[0]);
+		out.write(resourceHash.getBytes(Constants.RESPONSE_CHARSET));
+		out.write(pieces[1]);
+		out.write(diff);
+		out.write(pieces[2]);
+	}
+	
+	private byte[][] getDeltaPieces() throws IOException {
+		if (deltaPieces == null) {
+			deltaPieces = bootstrapWrapper.split(Constants.RESPONSE_CHARSET,
+				"{{DJS_RESOURCE_IDENTIFIER}}", "{{DJS_DIFF_CONTENT}}");
+		}
+		return deltaPieces;
+	}
+}
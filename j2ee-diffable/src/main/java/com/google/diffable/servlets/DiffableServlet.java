@@ -15,7 +15,12 @@
  */
 package com.google.diffable.servlets;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Map;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -27,11 +32,18 @@ import org.apache.log4j.Logger;
 
 import com.google.diffable.Constants;
 import com.google.diffable.config.MessageProvider;
+import com.google.diffable.data.DeltaPopularity;
+import com.google.diffable.data.FileResourceManager;
+import com.google.diffable.data.PeerReplicator;
+import com.google.diffable.data.ResourceManager;
 import com.google.diffable.data.ResourceRequest;
+import com.google.diffable.exceptions.ResourceManagerException;
 import com.google.diffable.exceptions.StackTracePrinter;
 import com.google.diffable.handler.DiffableResourceHandler;
+import com.google.diffable.utils.IOUtils;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import com.google.inject.name.Named;
 
 /**
  * This class defines the servlet which will handle the request for the diffable resources.
@@ -39,6 +51,13 @@ import com.google.inject.Injector;
  * @author joshua Harrison
  */
 public class DiffableServlet extends HttpServlet {
+	
+	/** Prefixes the requests that stage and commit releases. */
+	public static final String RELEASE_PATH_PREFIX = "release/";
+	
+	/** The header holding the ReleaseAdminSecret. */
+	public static final String RELEASE_SECRET_HEADER =
+		"X-Diffable-Admin-Secret";
 
 	/** The serial version UID */
 	private static final long serialVersionUID = -5774775375357121469L;
@@ -59,6 +78,26 @@ public class DiffableServlet extends HttpServlet {
 	/** The diffable resource handler*/
 	private DiffableResourceHandler handler;
 	
+	@Inject
+	/** Replicates artifacts to and from the other servers */
+	private PeerReplicator replicator;
+	
+	@Inject
+	/** The resource manager */
+	private ResourceManager mgr;
+	
+	@Inject
+	/** Counts the old versions clients request deltas from */
+	private DeltaPopularity popularity;
+	
+	@Inject(optional=true) @Named(value="ReplicationMaxRequestBytes")
+	/** The largest replication request body read, in bytes */
+	private int maxReplicationBytes = 1024 * 1024;
+	
+	@Inject(optional=true) @Named(value="ReleaseAdminSecret")
+	/** The secret release requests must carry, or null to refuse them */
+	private String releaseSecret = null;
+	
 	/** The Guice injector */
 	private Injector inj;
 	
@@ -74,22 +113,28 @@ public class DiffableServlet extends HttpServlet {
 	@Override
 	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
 			throws ServletException, IOException {
-		// Strip the servlet path information, leaving just the resource 
-		// name, which includes all information after the servlet path.
 		String basePath = req.getContextPath() + req.getServletPath() + "/";
-		String requestString = req.getRequestURI().replace(basePath, "");
-		// Remove any preceding slashes as these would correspond to empty
-		// paths, i.e. path/to//resource would separate into path/to and
-		// /resource.  This will fix /resource to be resource.
-		while (requestString.startsWith("/")) {
-			requestString = requestString.substring(1);
+		String requestString = getRequestString(req, basePath);
+		if (requestString.startsWith(PeerReplicator.PATH_PREFIX)) {
+			handleReplication(requestString, req, resp);
+			return;
+		}
+		if (requestString.startsWith(RELEASE_PATH_PREFIX)) {
+			handleRelease(
+				requestString.substring(RELEASE_PATH_PREFIX.length()),
+				req, resp);
+			return;
 		}
 		provider.debug(logger, "servlet.resourcerequest", requestString);
 		resp.setStatus(500);
 		try {
 			ResourceRequest request = inj.getInstance(ResourceRequest.class); 
 			request.setRequest(basePath, requestString);
-			if(handler.handleResourceRequest(request, resp)){
+			if (request.isDiff()) {
+				popularity.record(request.getResourceHash(),
+					              request.getOldVersionHash());
+			}
+			if(handler.handleResourceRequest(request, req, resp)){
 				resp.setStatus(200);
 			}
 		} catch (Exception exc) {
@@ -105,4 +150,151 @@ public class DiffableServlet extends HttpServlet {
 		doGet(req, resp);
 	}
 	
+	/**
+	 * Strips the servlet path information, leaving just the resource name,
+	 * which includes all information after the servlet path.
+	 */
+	private String getRequestString(HttpServletRequest req, String basePath) {
+		String requestString = req.getRequestURI().replace(basePath, "");
+		// Remove any preceding slashes as these would correspond to empty
+		// paths, i.e. path/to//resource would separate into path/to and
+		// /resource.  This will fix /resource to be resource.
+		while (requestString.startsWith("/")) {
+			requestString = requestString.substring(1);
+		}
+		return requestString;
+	}
+	
+	/**
+	 * Hands a request from another server to the PeerReplicator.  Requests
+	 * are refused before their body is read if replication is disabled,
+	 * they aren't signed, or their body is larger than
+	 * ReplicationMaxRequestBytes.
+	 */
+	private void handleReplication(String requestString,
+			                       HttpServletRequest req,
+			                       HttpServletResponse resp)
+	throws IOException {
+		if (!replicator.isEnabled()) {
+			resp.sendError(404);
+			return;
+		}
+		String path =
+			requestString.substring(PeerReplicator.PATH_PREFIX.length());
+		String time = req.getHeader(PeerReplicator.TIME_HEADER);
+		String signature = req.getHeader(PeerReplicator.SIGNATURE_HEADER);
+		if (time == null || signature == null) {
+			provider.error(logger, "replication.unauthorized", path);
+			resp.sendError(403);
+			return;
+		}
+		byte[] body = req.getContentLength() > maxReplicationBytes ? null :
+			readBody(req, maxReplicationBytes);
+		if (body == null) {
+			provider.error(logger, "replication.toolarge", path,
+				           Integer.toString(maxReplicationBytes));
+			resp.sendError(413);
+			return;
+		}
+		PeerReplicator.Response response = replicator.handle(
+			req.getMethod(), path, time, signature, body);
+		resp.setStatus(response.getStatus());
+		resp.setContentType("application/octet-stream");
+		resp.setContentLength(response.getBody().length);
+		resp.getOutputStream().write(response.getBody());
+	}
+	
+	/**
+	 * Reads the body of a request, as long as it isn't longer than a limit,
+	 * whatever its Content-Length says.
+	 * 
+	 * @return The body, or null if it is longer than the limit.
+	 */
+	private byte[] readBody(HttpServletRequest req, int limit)
+	throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		InputStream in = req.getInputStream();
+		try {
+			byte[] buf = new byte[IOUtils.BUFFER_SIZE];
+			int num = 0;
+			while ((num = in.read(buf, 0, buf.length)) != -1) {
+				if (body.size() + num > limit) {
+					return null;
+				}
+				body.write(buf, 0, num);
+			}
+		} finally {
+			IOUtils.close(in);
+		}
+		return body.toByteArray();
+	}
+	
+	/**
+	 * Stages, commits or aborts a release, or reports the state of the
+	 * staged release.  The commands are 'stage', which takes the release
+	 * folder as its 'folder' parameter, 'commit', 'abort' and 'status'.
+	 * Every command but 'status' must be posted, and all of them must carry
+	 * the ReleaseAdminSecret in the RELEASE_SECRET_HEADER.
+	 */
+	private void handleRelease(String command, HttpServletRequest req,
+			                   HttpServletResponse resp)
+	throws IOException {
+		if (releaseSecret == null || !(mgr instanceof FileResourceManager)) {
+			resp.sendError(404);
+			return;
+		}
+		String secret = req.getHeader(RELEASE_SECRET_HEADER);
+		if (secret == null || !MessageDigest.isEqual(
+				releaseSecret.getBytes("UTF-8"), secret.getBytes("UTF-8"))) {
+			provider.error(logger, "servlet.releaseunauthorized", command);
+			resp.sendError(403);
+			return;
+		}
+		FileResourceManager fileMgr = (FileResourceManager) mgr;
+		StringBuilder body = new StringBuilder();
+		if ("status".equals(command)) {
+			Map<File, String> staged = fileMgr.getStagedVersions();
+			body.append(fileMgr.isReleaseStaged() ? "staged" :
+				staged.isEmpty() ? "none" : "staging").append('\n');
+			for (Map.Entry<File, String> version : staged.entrySet()) {
+				body.append(version.getValue()).append(' ')
+					.append(version.getKey().getAbsolutePath()).append('\n');
+			}
+		} else if (!"POST".equals(req.getMethod())) {
+			resp.sendError(405);
+			return;
+		} else {
+			try {
+				if ("stage".equals(command)) {
+					String folder = req.getParameter("folder");
+					if (folder == null) {
+						resp.sendError(400);
+						return;
+					}
+					// As with the resource folders, a path not starting with
+					// a slash is relative to the web app directory.
+					fileMgr.stageRelease(folder.startsWith("/") ?
+						new File(folder) : new File(getServletContext()
+							.getRealPath(""), folder));
+				} else if ("commit".equals(command)) {
+					fileMgr.commitRelease();
+				} else if ("abort".equals(command)) {
+					fileMgr.abortRelease();
+				} else {
+					resp.sendError(404);
+					return;
+				}
+			} catch (ResourceManagerException exc) {
+				resp.sendError(409, exc.getMessage());
+				return;
+			}
+			body.append("ok\n");
+		}
+		byte[] contents = body.toString().getBytes("UTF-8");
+		resp.setStatus(200);
+		resp.setContentType("text/plain; charset=UTF-8");
+		resp.setContentLength(contents.length);
+		resp.getOutputStream().write(contents);
+	}
+	
 }
@@ -17,8 +17,6 @@ package com.google.diffable.tags;
 
 import java.io.File;
 import java.io.IOException;
-import java.math.BigInteger;
-import java.security.MessageDigest;
 import java.util.Map;
 
 import javax.servlet.jsp.JspException;
@@ -52,14 +50,6 @@ public class DiffableResourceTag extends TagSupport {
 		this.type = type;
 	}
 	
-	private String hashPath(File resource) 
-	throws Exception {
-		byte[] filePathBytes = resource.getAbsolutePath().getBytes();
-		MessageDigest md5 = MessageDigest.getInstance("MD5");
-		md5.update(filePathBytes, 0, filePathBytes.length);
-		return new BigInteger(1, md5.digest()).toString(16);
-	}
-	
 	@Override
 	public int doStartTag() throws JspException {
 		if (inj == null) {
@@ -97,13 +87,15 @@ public class DiffableResourceTag extends TagSupport {
 			    resource + " referenced in DiffableTag");
 		} else {
 			Map<File, String> currentVersions = ctx.getCurrentVersions();
-			if(!currentVersions.containsKey(found)) {
+			// The identifier is assigned by the resource manager, which keys
+			// resources relative to the resource folders.
+			String resourceHash = ctx.getResourceHash(found);
+			if(!currentVersions.containsKey(found) || resourceHash == null) {
 				throw new JspException(
 					"Cannot find current version of resource '" +
 					found.getAbsolutePath() + ".'");
 			} else {
 				try {
-					String resourceHash = hashPath(found);
 					pageContext.getOut().println("<script type='text/javascript'>");
 					pageContext.getOut().println(
 						"window['diffable']['" + resourceHash + "']={};");
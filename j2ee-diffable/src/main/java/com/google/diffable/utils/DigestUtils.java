@@ -0,0 +1,68 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.utils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digest utilities methods.
+ * 
+ * @author joshua Harrison
+ */
+public class DigestUtils {
+	
+	/**
+	 * The name of the non-cryptographic MurmurHash3 digest, which is much
+	 * faster than MD5 but offers no protection against deliberately
+	 * colliding inputs.
+	 */
+	public static final String MURMUR3 = "MURMUR3";
+	
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	
+	/**
+	 * Returns a new digest for the given algorithm, which is either MURMUR3
+	 * or any algorithm supported by MessageDigest.
+	 * 
+	 * @param algorithm the name of the algorithm
+	 * @return a new digest
+	 * @throws NoSuchAlgorithmException if the algorithm isn't supported
+	 */
+	public static MessageDigest getDigest(String algorithm)
+	throws NoSuchAlgorithmException {
+		if (MURMUR3.equalsIgnoreCase(algorithm)) {
+			return new Murmur3Digest();
+		}
+		return MessageDigest.getInstance(algorithm);
+	}
+	
+	/**
+	 * Encodes bytes as lower case hex, two digits per byte, so leading zeros
+	 * are kept.
+	 * 
+	 * @param bytes the bytes to encode
+	 * @return the hex string
+	 */
+	public static String toHex(byte[] bytes) {
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+}
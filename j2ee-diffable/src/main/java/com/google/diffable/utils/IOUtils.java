@@ -15,10 +15,14 @@
  */
 package com.google.diffable.utils;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.io.Writer;
 import java.nio.ByteBuffer;
@@ -156,6 +160,79 @@ public class IOUtils {
 		}
 	}
 
+	/**
+	 * Reads the whole contents of a file.
+	 * 
+	 * @param file the file to read
+	 * @return the bytes of the file
+	 * @throws IOException if an IOException occurs.
+	 */
+	public static byte[] read(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			byte[] contents = new byte[(int) file.length()];
+			int offset = 0;
+			int num = 0;
+			while (offset < contents.length &&
+				   (num = in.read(contents, offset,
+						          contents.length - offset)) != -1) {
+				offset += num;
+			}
+			if (offset < contents.length) {
+				throw new IOException("Unexpected end of file " + file);
+			}
+			return contents;
+		} finally {
+			close(in);
+		}
+	}
+	
+	/**
+	 * Writes the given bytes to a file, replacing its contents.
+	 * 
+	 * @param file the file to write
+	 * @param contents the bytes to write
+	 * @throws IOException if an IOException occurs.
+	 */
+	public static void write(File file, byte[] contents) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents);
+		} finally {
+			close(out);
+		}
+	}
+	
+	/**
+	 * Writes the given bytes to a file by writing them to a temporary file
+	 * in the same folder and renaming it over the file, so that readers,
+	 * including other processes sharing the folder, see either the old
+	 * contents or the new ones but never a partial write.  The temporary
+	 * file's name starts with a '.' and ends with '.tmp'.
+	 * 
+	 * @param file the file to write
+	 * @param contents the bytes to write
+	 * @throws IOException if an IOException occurs.
+	 */
+	public static void writeAtomically(File file, byte[] contents)
+	throws IOException {
+		File temp = File.createTempFile(
+			"." + file.getName(), ".tmp", file.getParentFile());
+		try {
+			write(temp, contents);
+			// Renaming over an existing file fails on some platforms, in
+			// which case the file is briefly missing rather than partial.
+			if (!temp.renameTo(file)) {
+				file.delete();
+				if (!temp.renameTo(file)) {
+					throw new IOException("Can't replace " + file);
+				}
+			}
+		} finally {
+			temp.delete();
+		}
+	}
+
 	/**
 	 * Close the input stream
 	 * 
@@ -206,6 +283,22 @@ public class IOUtils {
 		}
 	}
 
+	/**
+	 * Close the random access file
+	 * 
+	 * @param file the random access file to close
+	 */
+	public static void close(RandomAccessFile file) {
+		if (file != null) {
+
+			try {
+				file.close();
+			} catch (IOException e) {
+				// Nothing to do
+			}
+		}
+	}
+
 	/**
 	 * Close the reader
 	 * @param reader the reader to close
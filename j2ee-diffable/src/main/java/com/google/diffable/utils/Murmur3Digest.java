@@ -0,0 +1,160 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.utils;
+
+import java.security.MessageDigest;
+
+/**
+ * The 128 bit x64 variant of MurmurHash3 with a seed of zero, as a
+ * MessageDigest.  The digest is h1 followed by h2, both little endian, the
+ * same bytes other MurmurHash3 implementations produce.
+ * 
+ * @author joshua Harrison
+ */
+class Murmur3Digest extends MessageDigest {
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+	
+	private final byte[] tail = new byte[16];
+	private int tailLength;
+	private long length;
+	private long h1;
+	private long h2;
+	
+	public Murmur3Digest() {
+		super(DigestUtils.MURMUR3);
+	}
+	
+	@Override
+	protected int engineGetDigestLength() {
+		return 16;
+	}
+	
+	@Override
+	protected void engineUpdate(byte input) {
+		engineUpdate(new byte[] {input}, 0, 1);
+	}
+	
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int len) {
+		length += len;
+		int end = offset + len;
+		// Complete a block left over from the previous update first.
+		if (tailLength > 0) {
+			int count = Math.min(16 - tailLength, len);
+			System.arraycopy(input, offset, tail, tailLength, count);
+			tailLength += count;
+			offset += count;
+			if (tailLength < 16) {
+				return;
+			}
+			mixBlock(getLong(tail, 0), getLong(tail, 8));
+			tailLength = 0;
+		}
+		while (end - offset >= 16) {
+			mixBlock(getLong(input, offset), getLong(input, offset + 8));
+			offset += 16;
+		}
+		tailLength = end - offset;
+		System.arraycopy(input, offset, tail, 0, tailLength);
+	}
+	
+	@Override
+	protected byte[] engineDigest() {
+		long k1 = 0;
+		long k2 = 0;
+		for (int i = tailLength - 1; i >= 8; i--) {
+			k2 = (k2 << 8) | (tail[i] & 0xffL);
+		}
+		for (int i = Math.min(tailLength, 8) - 1; i >= 0; i--) {
+			k1 = (k1 << 8) | (tail[i] & 0xffL);
+		}
+		if (tailLength > 8) {
+			k2 *= C2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= C1;
+			h2 ^= k2;
+		}
+		if (tailLength > 0) {
+			k1 *= C1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= C2;
+			h1 ^= k1;
+		}
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		h2 += h1;
+		
+		byte[] digest = new byte[16];
+		for (int i = 0; i < 8; i++) {
+			digest[i] = (byte) (h1 >>> (i * 8));
+			digest[i + 8] = (byte) (h2 >>> (i * 8));
+		}
+		engineReset();
+		return digest;
+	}
+	
+	@Override
+	protected void engineReset() {
+		tailLength = 0;
+		length = 0;
+		h1 = 0;
+		h2 = 0;
+	}
+	
+	private void mixBlock(long k1, long k2) {
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		k1 *= C2;
+		h1 ^= k1;
+		h1 = Long.rotateLeft(h1, 27);
+		h1 += h2;
+		h1 = h1 * 5 + 0x52dce729;
+		
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		k2 *= C1;
+		h2 ^= k2;
+		h2 = Long.rotateLeft(h2, 31);
+		h2 += h1;
+		h2 = h2 * 5 + 0x38495ab5;
+	}
+	
+	private static long getLong(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xffL) |
+			((bytes[offset + 1] & 0xffL) << 8) |
+			((bytes[offset + 2] & 0xffL) << 16) |
+			((bytes[offset + 3] & 0xffL) << 24) |
+			((bytes[offset + 4] & 0xffL) << 32) |
+			((bytes[offset + 5] & 0xffL) << 40) |
+			((bytes[offset + 6] & 0xffL) << 48) |
+			((bytes[offset + 7] & 0xffL) << 56);
+	}
+	
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
@@ -187,12 +187,17 @@ DiffableBootstrap.prototype.globalEval_ = function(identifier) {
  * @param {string} identifier The identifier of the resource whose code should
  *     be patched if necessary, and eval'd.
  * @param {Object} opt_diff An optional Diffable JSON diff as generated by
- *     VCDiff.
+ *     VCDiff, or a chain of them sent to a client several releases behind,
+ *     which are applied one after the other.
  */
 DiffableBootstrap.prototype.applyAndExecute = function(identifier, opt_diff) {
 	try {
 		if (opt_diff) {
-			this.apply_(identifier, opt_diff);
+			var chain = opt_diff.length && typeof opt_diff[0] == 'object' ?
+				opt_diff : [opt_diff];
+			for (var i = 0; i < chain.length; i++) {
+				this.apply_(identifier, chain[i]);
+			}
 		}
         if (localStorageAvailable_() &&
             (opt_diff || !localStorage['identifier'])) {
@@ -1,4 +1,4 @@
 function e(b){var a=document.getElementsByTagName("head")[0],c=document.createElement("script");c.src=b;a.appendChild(c)}function g(){try{return"localStorage"in window&&window.localStorage!==null}catch(b){return false}}function h(){this.a={}}h.prototype.c=function(b){var a=b.split("/");a=a[a.length-1];if(g()){var c=localStorage.getItem(a+".cv");if(c){this.a[a]=localStorage[a+".code"];c==window.diffable[a].cv?this.b(a):e(k(this,a,c))}else e(b)}};
 h.prototype.d=function(b,a,c){this.a[b]=a;if(window.diffable[b].cv==c)this.b(b);else{a=k(this,b,c);window.diffable[b].sync?document.write('<SCRIPT src="'+a+'"><\/SCRIPT>'):e(a)}};function k(b,a,c){return window.diffable[a].diff_url+a+"_"+c+"_"+window.diffable[a].cv+".diff"}
-h.prototype.b=function(b,a){try{if(a){for(var c=[],i=this.a[b],f=0,m=a.length;f<m;f++){var d=a[f];if(typeof d=="number"){var j=a[f+1];if(d<0||d>=i.length)throw b+": Invalid start index: "+d;else if(d+j>i.length)throw b+": Invalid end index: "+(d+j);c.push(i.substring(d,d+j));f++}else typeof d=="string"&&c.push(d)}c=c.join("");this.a[b]=c}if(g()&&(a||!localStorage.identifier)){localStorage[b+".cv"]=window.diffable[b].cv;localStorage[b+".code"]=this.a[b]}c=null;c=this.a[b];window.execScript?window.execScript(c):
+h.prototype.b=function(b,a){try{if(a)for(var n=a.length&&typeof a[0]=="object"?a:[a],o=0;o<n.length;o++){a=n[o];for(var c=[],i=this.a[b],f=0,m=a.length;f<m;f++){var d=a[f];if(typeof d=="number"){var j=a[f+1];if(d<0||d>=i.length)throw b+": Invalid start index: "+d;else if(d+j>i.length)throw b+": Invalid end index: "+(d+j);c.push(i.substring(d,d+j));f++}else typeof d=="string"&&c.push(d)}c=c.join("");this.a[b]=c}if(g()&&(a||!localStorage.identifier)){localStorage[b+".cv"]=window.diffable[b].cv;localStorage[b+".code"]=this.a[b]}c=null;c=this.a[b];window.execScript?window.execScript(c):
 window.eval.call(window,c)}finally{delete this.a[b]}};var l=new h;window.diffable={};window.diffable.addResource=function(){l.c.apply(l,arguments)};window.diffable.bootstrap=function(){l.d.apply(l,arguments)};window.diffable.applyAndExecute=function(){l.b.apply(l,arguments)};
@@ -21,23 +21,61 @@ import org.junit.runners.Suite;
 
 import com.google.diffable.config.TestBaseModule;
 import com.google.diffable.config.TestMessageProvider;
+import com.google.diffable.data.TestChunkVersionStore;
+import com.google.diffable.data.TestContentCache;
+import com.google.diffable.data.TestContentEncoding;
+import com.google.diffable.data.TestDeltaPopularity;
+import com.google.diffable.data.TestDiffableContext;
 import com.google.diffable.data.TestFileResourceManager;
+import com.google.diffable.data.TestLimitRetentionPolicy;
+import com.google.diffable.data.TestManifestJournal;
+import com.google.diffable.data.TestMemoryResourceManager;
+import com.google.diffable.data.TestPackVersionStore;
+import com.google.diffable.data.TestPeerReplicator;
+import com.google.diffable.data.TestRemoteArtifactCache;
+import com.google.diffable.data.TestResourceIndex;
+import com.google.diffable.data.TestReverseDeltaVersionStore;
+import com.google.diffable.diff.TestJSONHelper;
+import com.google.diffable.diff.TestPatcher;
+import com.google.diffable.diff.token.TestTokenDiff;
+import com.google.diffable.diff.token.TestTokenText;
 import com.google.diffable.diff.vcdiff.TestBlockText;
 import com.google.diffable.diff.vcdiff.TestDictionary;
 import com.google.diffable.diff.vcdiff.TestVCDiff;
 import com.google.diffable.diff.vcdiff.hash.TestRollingHash;
 import com.google.diffable.exceptions.TestStackTracePrinter;
+import com.google.diffable.handler.TestDiffableResourceHandler;
+import com.google.diffable.utils.TestDigestUtils;
  
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
   TestBaseModule.class,
   TestMessageProvider.class,
+  TestChunkVersionStore.class,
+  TestContentCache.class,
+  TestContentEncoding.class,
+  TestDeltaPopularity.class,
+  TestDiffableContext.class,
   TestFileResourceManager.class,
+  TestLimitRetentionPolicy.class,
+  TestManifestJournal.class,
+  TestMemoryResourceManager.class,
+  TestPackVersionStore.class,
+  TestPeerReplicator.class,
+  TestRemoteArtifactCache.class,
+  TestResourceIndex.class,
+  TestReverseDeltaVersionStore.class,
+  TestJSONHelper.class,
+  TestPatcher.class,
   TestBlockText.class,
   TestDictionary.class,
   TestVCDiff.class,
   TestRollingHash.class,
-  TestStackTracePrinter.class
+  TestTokenDiff.class,
+  TestTokenText.class,
+  TestStackTracePrinter.class,
+  TestDiffableResourceHandler.class,
+  TestDigestUtils.class
 })
 
 public class AllTests {}
\ No newline at end of file
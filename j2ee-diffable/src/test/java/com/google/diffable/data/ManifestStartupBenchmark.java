@@ -0,0 +1,116 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Properties;
+
+import com.google.diffable.config.BaseModule;
+import com.google.diffable.utils.IOUtils;
+import com.google.inject.Guice;
+
+/**
+ * Times the startup of the FileResourceManager over a store with many
+ * managed resources: first replaying a manifest journal holding a record
+ * for every resource, then loading the checkpoint it was folded into.
+ * It isn't named like a test, so it is only run by hand from the test
+ * classpath.
+ * 
+ * Usage: ManifestStartupBenchmark [resources [runs [folder]]]
+ * 
+ * The resources default to 10000 and the runs to 5.  The folder, which is
+ * emptied first, defaults to one in java.io.tmpdir.
+ * 
+ * @author joshua Harrison
+ */
+public class ManifestStartupBenchmark {
+	
+	public static void main(String[] args) throws Exception {
+		int resources = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		File baseDir = args.length > 2 ? new File(args[2]) :
+			new File(System.getProperty("java.io.tmpdir"), "diffable-benchmark");
+		deleteDir(baseDir);
+		File scripts = new File(baseDir, "scripts");
+		scripts.mkdirs();
+		long modified = System.currentTimeMillis() - 60000;
+		for (int i = 0; i < resources; i++) {
+			File resource = new File(scripts, "r" + i + ".js");
+			IOUtils.write(resource, ("var r" + i + " = 1;").getBytes());
+			resource.setLastModified(modified);
+		}
+		
+		// Leave every put in the journal, so the first startup replays it.
+		FileResourceManager mgr = createManager(baseDir, scripts);
+		long start = System.nanoTime();
+		for (int i = 0; i < resources; i++) {
+			mgr.putResource(new File(scripts, "r" + i + ".js"));
+		}
+		mgr.shutdown();
+		report("put", resources, start);
+		
+		start = System.nanoTime();
+		createManager(baseDir, scripts).shutdown();
+		report("journal startup", resources, start);
+		
+		long[] times = new long[runs];
+		for (int run = 0; run < runs; run++) {
+			start = System.nanoTime();
+			createManager(baseDir, scripts).shutdown();
+			times[run] = System.nanoTime() - start;
+		}
+		Arrays.sort(times);
+		System.out.println("checkpoint startup: median " +
+			times[runs / 2] / 1000000 + " ms, best " + times[0] / 1000000 +
+			" ms over " + runs + " runs");
+		deleteDir(baseDir);
+	}
+	
+	private static FileResourceManager createManager(File baseDir,
+			                                         File scripts)
+	throws Exception {
+		Properties props = new Properties();
+		props.put("ManifestCheckpointRecords",
+			Integer.toString(Integer.MAX_VALUE));
+		FileResourceManager mgr = Guice.createInjector(new BaseModule(props))
+			.getInstance(FileResourceManager.class);
+		DiffableContext ctx = new DiffableContext();
+		ctx.setFolder(Arrays.asList(scripts));
+		mgr.initialize(baseDir.getAbsolutePath(), ctx);
+		return mgr;
+	}
+	
+	private static void report(String phase, int resources, long start) {
+		long millis = (System.nanoTime() - start) / 1000000;
+		System.out.println(phase + ": " + millis + " ms for " + resources +
+			" resources");
+	}
+	
+	private static void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					deleteDir(file);
+				} else {
+					file.delete();
+				}
+			}
+		}
+		dir.delete();
+	}
+}
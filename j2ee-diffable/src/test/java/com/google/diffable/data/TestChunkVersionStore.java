@@ -0,0 +1,188 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.diffable.config.DiffableModule;
+import com.google.diffable.utils.IOUtils;
+import com.google.inject.Guice;
+
+public class TestChunkVersionStore {
+	private File tempDir;
+	private File first;
+	private File second;
+	private ChunkVersionStore store;
+	
+	@Before
+	public void setUp() throws Throwable {
+		tempDir = new File(System.getProperty("user.dir"), "temp");
+		if (tempDir.exists()) {
+			deleteDir(tempDir);
+		}
+		tempDir.mkdir();
+		first = new File(tempDir, "first");
+		first.mkdir();
+		second = new File(tempDir, "second");
+		second.mkdir();
+		store = createStore();
+	}
+	
+	private ChunkVersionStore createStore() throws Throwable {
+		Properties props = new Properties();
+		props.put("ChunkAverageSize", "1024");
+		ChunkVersionStore store = Guice.createInjector(
+			new DiffableModule(props)).getInstance(ChunkVersionStore.class);
+		store.initialize(tempDir);
+		return store;
+	}
+	
+	@After
+	public void tearDown() {
+		deleteDir(tempDir);
+	}
+	
+	private void deleteDir(File dir) {
+		for (File tempFile : dir.listFiles()) {
+			if (tempFile.isDirectory()) {
+				deleteDir(tempFile);
+			} else {
+				tempFile.delete();
+			}
+		}
+		dir.delete();
+	}
+	
+	private byte[] randomBytes(long seed, int length) {
+		byte[] bytes = new byte[length];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+	
+	@Test
+	public void testPutAndGetVersion() throws Throwable {
+		byte[] contents = randomBytes(1, 50000);
+		store.putVersion(first, "v1", contents);
+		assertTrue(store.hasVersion(first, "v1"));
+		assertFalse(store.hasVersion(first, "v2"));
+		assertTrue(Arrays.equals(contents, store.getVersion(first, "v1")));
+		assertNull(store.getVersion(first, "v2"));
+		assertEquals(1, store.getVersions(first).size());
+		assertTrue(new File(first, "v1.chunks").exists());
+		assertTrue(store.getChunkCount() > 1);
+	}
+	
+	@Test
+	public void testEmptyVersion() throws Throwable {
+		store.putVersion(first, "empty", new byte[0]);
+		assertEquals(0, store.getVersion(first, "empty").length);
+	}
+	
+	@Test
+	public void testDedupAcrossVersions() throws Throwable {
+		byte[] original = randomBytes(2, 100000);
+		store.putVersion(first, "v1", original);
+		int chunks = store.getChunkCount();
+		
+		// Change a few bytes in the middle; only the chunks around the edit
+		// should be new.
+		byte[] edited = original.clone();
+		for (int i = 50000; i < 50010; i++) {
+			edited[i] = 0;
+		}
+		store.putVersion(first, "v2", edited);
+		assertTrue(store.getChunkCount() - chunks <= 3);
+		assertTrue(Arrays.equals(original, store.getVersion(first, "v1")));
+		assertTrue(Arrays.equals(edited, store.getVersion(first, "v2")));
+	}
+	
+	@Test
+	public void testDedupAcrossResources() throws Throwable {
+		byte[] contents = randomBytes(3, 100000);
+		store.putVersion(first, "v1", contents);
+		int chunks = store.getChunkCount();
+		store.putVersion(second, "v1", contents);
+		assertEquals(chunks, store.getChunkCount());
+		assertTrue(Arrays.equals(contents, store.getVersion(second, "v1")));
+	}
+	
+	@Test
+	public void testReadsFullVersionFiles() throws Throwable {
+		byte[] contents = randomBytes(4, 1000);
+		IOUtils.write(new File(first, "legacy.version"), contents);
+		assertTrue(store.hasVersion(first, "legacy"));
+		assertEquals(1, store.getVersions(first).size());
+		assertTrue(Arrays.equals(contents, store.getVersion(first, "legacy")));
+		
+		// Rewriting the version moves it into chunks.
+		store.putVersion(first, "legacy", contents);
+		assertFalse(new File(first, "legacy.version").exists());
+		assertTrue(Arrays.equals(contents, store.getVersion(first, "legacy")));
+	}
+	
+	@Test
+	public void testArtifactsKeepVersions() throws Throwable {
+		store.putVersion(first, "v1", randomBytes(5, 1000));
+		store.putArtifact(first, "a_b.diff", "[0,1,]".getBytes());
+		assertTrue(store.hasArtifact(first, "a_b.diff"));
+		assertEquals("[0,1,]",
+			new String(store.getArtifact(first, "a_b.diff")));
+		store.deleteArtifacts(first);
+		assertFalse(store.hasArtifact(first, "a_b.diff"));
+		assertTrue(store.hasVersion(first, "v1"));
+	}
+	
+	@Test
+	public void testUnreferencedChunksCollected() throws Throwable {
+		byte[] shared = randomBytes(6, 20000);
+		store.putVersion(first, "v1", shared);
+		store.putVersion(second, "v1", shared);
+		store.putVersion(second, "v2", randomBytes(7, 20000));
+		int chunks = store.getChunkCount();
+		
+		store.deleteResource(first);
+		store.deleteVersion(second, "v2");
+		// Chunks are only collected when the store is initialized.
+		assertEquals(chunks, store.getChunkCount());
+		store = createStore();
+		assertTrue(store.getChunkCount() < chunks);
+		assertTrue(Arrays.equals(shared, store.getVersion(second, "v1")));
+	}
+	
+	@Test
+	public void testChunksInShardedFoldersKept() throws Throwable {
+		File sharded = new File(tempDir, "ab" + File.separator + "abcdef");
+		sharded.mkdirs();
+		byte[] contents = randomBytes(8, 20000);
+		store.putVersion(sharded, "v1", contents);
+		int chunks = store.getChunkCount();
+		store = createStore();
+		assertEquals(chunks, store.getChunkCount());
+		assertTrue(Arrays.equals(contents, store.getVersion(sharded, "v1")));
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestContentCache {
+	
+	/** The estimated size of an entry with a one character key. */
+	private long weight(int valueSize) {
+		return 2 + valueSize + 64;
+	}
+	
+	@Test
+	public void testGetAndPut() {
+		ContentCache cache = new ContentCache(1000);
+		cache.put("a", "contents");
+		cache.put("b", new byte[] {1, 2, 3});
+		assertEquals("contents", cache.getString("a"));
+		assertEquals(3, cache.getBuffer("b").remaining());
+		assertNull(cache.getString("c"));
+		assertEquals(2L, cache.getHits());
+		assertEquals(1L, cache.getMisses());
+		assertEquals(weight(16) + weight(3), cache.getSize());
+		
+		cache.put("a", "x");
+		assertEquals(weight(2) + weight(3), cache.getSize());
+		cache.remove("b");
+		assertEquals(weight(2), cache.getSize());
+		assertEquals(1, cache.getEntryCount());
+	}
+	
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		ContentCache cache = new ContentCache(weight(100) * 3);
+		cache.put("a", new byte[100]);
+		cache.put("b", new byte[100]);
+		cache.put("c", new byte[100]);
+		assertNotNull(cache.getBuffer("a"));
+		cache.put("d", new byte[100]);
+		assertNull(cache.getBuffer("b"));
+		assertNotNull(cache.getBuffer("a"));
+		assertNotNull(cache.getBuffer("c"));
+		assertNotNull(cache.getBuffer("d"));
+		assertEquals(1L, cache.getEvictions());
+		assertTrue(cache.getSize() <= cache.getCapacity());
+		
+		// A large entry evicts as many as needed.
+		cache.put("e", new byte[400]);
+		assertEquals(1, cache.getEntryCount());
+		assertEquals(4L, cache.getEvictions());
+	}
+	
+	@Test
+	public void testOversizedValuesNotCached() {
+		ContentCache cache = new ContentCache(200);
+		cache.put("a", new byte[10]);
+		cache.put("b", new byte[500]);
+		assertNull(cache.getBuffer("b"));
+		assertNotNull(cache.getBuffer("a"));
+		assertEquals(0L, cache.getEvictions());
+	}
+	
+	@Test
+	public void testRemoveResource() {
+		ContentCache cache = new ContentCache(10000);
+		cache.put("abc/v1", "one");
+		cache.put("abc/v1_v2.diff", new byte[5]);
+		cache.put("abcd/v1", "two");
+		cache.removeResource("abc");
+		assertNull(cache.getString("abc/v1"));
+		assertNull(cache.getBuffer("abc/v1_v2.diff"));
+		assertEquals("two", cache.getString("abcd/v1"));
+		assertEquals(2L * 7 + 6 + 64, cache.getSize());
+	}
+	
+	@Test
+	public void testOffHeap() {
+		ContentCache cache = new ContentCache(10000, true);
+		cache.put("a", "caf\u00e9");
+		cache.put("b", new byte[] {1, 2, 3});
+		assertEquals("caf\u00e9", cache.getString("a"));
+		ByteBuffer buffer = cache.getBuffer("b");
+		assertTrue(buffer.isDirect());
+		assertTrue(buffer.isReadOnly());
+		assertEquals(3, buffer.remaining());
+		assertEquals((byte) 2, buffer.get(1));
+		// The string is held as its five UTF-8 bytes.
+		assertEquals(8L, cache.getOffHeapSize());
+		assertEquals(weight(5) + weight(3), cache.getSize());
+		
+		cache.remove("a");
+		assertEquals(3L, cache.getOffHeapSize());
+		cache.put("c", new byte[10000]);
+		assertEquals(3L, cache.getOffHeapSize());
+		cache.clear();
+		assertEquals(0L, cache.getOffHeapSize());
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.Test;
+
+import com.google.diffable.utils.IOUtils;
+
+import static org.junit.Assert.*;
+
+public class TestContentEncoding {
+	
+	private byte[] decode(InputStream in) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		IOUtils.copy(in, out, true);
+		return out.toByteArray();
+	}
+	
+	@Test
+	public void testEncodeRoundTrip() throws Throwable {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			text.append("function f").append(i).append("(){return ")
+				.append(i).append(";}\n");
+		}
+		byte[] contents = text.toString().getBytes("UTF-8");
+		byte[] gzipped = ContentEncoding.GZIP.encode(contents);
+		assertTrue(gzipped.length < contents.length / 4);
+		assertTrue(Arrays.equals(contents, decode(
+			new GZIPInputStream(new ByteArrayInputStream(gzipped)))));
+		byte[] deflated = ContentEncoding.DEFLATE.encode(contents);
+		assertTrue(Arrays.equals(contents, decode(
+			new InflaterInputStream(new ByteArrayInputStream(deflated)))));
+	}
+	
+	@Test
+	public void testNoHeader() {
+		assertTrue(ContentEncoding.parseAcceptEncoding(null).isEmpty());
+		assertTrue(ContentEncoding.parseAcceptEncoding("identity").isEmpty());
+	}
+	
+	@Test
+	public void testGzipPreferredOnTie() {
+		List<ContentEncoding> accepted =
+			ContentEncoding.parseAcceptEncoding("deflate, gzip");
+		assertEquals(2, accepted.size());
+		assertEquals(ContentEncoding.GZIP, accepted.get(0));
+		assertEquals(ContentEncoding.DEFLATE, accepted.get(1));
+	}
+	
+	@Test
+	public void testQualityValues() {
+		List<ContentEncoding> accepted = ContentEncoding.parseAcceptEncoding(
+			"gzip;q=0.5, deflate;q=0.8, br");
+		assertEquals(ContentEncoding.DEFLATE, accepted.get(0));
+		assertEquals(ContentEncoding.GZIP, accepted.get(1));
+		
+		accepted = ContentEncoding.parseAcceptEncoding("gzip;q=0, deflate");
+		assertEquals(1, accepted.size());
+		assertEquals(ContentEncoding.DEFLATE, accepted.get(0));
+	}
+	
+	@Test
+	public void testWildcard() {
+		List<ContentEncoding> accepted =
+			ContentEncoding.parseAcceptEncoding("*;q=0.1, deflate;q=0");
+		assertEquals(1, accepted.size());
+		assertEquals(ContentEncoding.GZIP, accepted.get(0));
+		accepted = ContentEncoding.parseAcceptEncoding("x-gzip");
+		assertEquals(ContentEncoding.GZIP, accepted.get(0));
+	}
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2010 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.diffable.utils.IOUtils;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+
+public class TestDeltaPopularity {
+	private File tempDir;
+	private FileResourceManager mgr;
+	
+	@Before
+	public void setUp() throws Exception {
+		tempDir = new File(System.getProperty("user.dir"), "temp");
+		deleteDir(tempDir);
+		tempDir.mkdir();
+	}
+	
+	@After
+	public void tearDown() {
+		if (mgr != null) {
+			mgr.shutdown();
+		}
+		deleteDir(tempDir);
+	}
+	
+	private void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					deleteDir(file);
+				} else {
+					file.delete();
+				}
+			}
+		}
+		dir.delete();
+	}
+	
+	private String hash(String input) throws Exception {
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		return String.format("%032x",
+			new BigInteger(1, md5.digest(input.getBytes("UTF-8"))));
+	}
+	
+	private Injector injector(final int decayRequests) {
+		return Guice.createInjector(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bindConstant().annotatedWith(
+					Names.named("HotDeltaVersions")).to(1);
+				bindConstant().annotatedWith(
+					Names.named("PopularityDecayRequests")).to(decayRequests);
+				bindConstant().annotatedWith(
+					Names.named("PopularitySaveInterval")).to(0L);
+			}
+		});
+	}
+	
+	@Test
+	public void testDisabledByDefault() {
+		DeltaPopularity popularity =
+			Guice.createInjector().getInstance(DeltaPopularity.class);
+		assertFalse(popularity.isEnabled());
+		popularity.record("r", "a");
+		assertEquals(0, popularity.estimate("r", "a"));
+		assertEquals(Arrays.asList("a", "b", "c"),
+			popularity.getHotVersions("r", Arrays.asList("a", "b", "c")));
+	}
+	
+	@Test
+	public void testCountsDecay() {
+		DeltaPopularity popularity =
+			injector(4).getInstance(DeltaPopularity.class);
+		popularity.record("r", "a");
+		popularity.record("r", "a");
+		popularity.record("r", "a");
+		assertEquals(3, popularity.estimate("r", "a"));
+		assertEquals(0, popularity.estimate("s", "a"));
+		// The fourth request halves every count.
+		popularity.record("r", "b");
+		assertEquals(1, popularity.estimate("r", "a"));
+		assertEquals(0, popularity.estimate("r", "b"));
+	}
+	
+	@Test
+	public void testHotVersions() {
+		DeltaPopularity popularity =
+			injector(1000).getInstance(DeltaPopularity.class);
+		popularity.record("r", "a");
+		popularity.record("r", "b");
+		popularity.record("r", "b");
+		// The version being replaced is picked even if it was never asked
+		// for, followed by the most requested of the others.
+		assertEquals(Arrays.asList("d", "b"), popularity.getHotVersions("r",
+			Arrays.asList("a", "b", "c", "d")));
+		assertEquals(Arrays.asList("d"),
+			popularity.getHotVersions("s", Arrays.asList("a", "b", "d")));
+	}
+	
+	@Test
+	public void testHotDeltasGeneratedAhead() throws Exception {
+		Injector inj = injector(1000);
+		mgr = inj.getInstance(FileResourceManager.class);
+		DeltaPopularity popularity = inj.getInstance(DeltaPopularity.class);
+		File scripts = new File(tempDir, "scripts");
+		scripts.mkdirs();
+		File resource = new File(scripts, "a.js");
+		DiffableContext ctx = new DiffableContext();
+		ctx.setFolder(Arrays.asList(scripts));
+		mgr.initialize(tempDir.getAbsolutePath(), ctx);
+		long now = System.currentTimeMillis();
+		for (int i = 1; i <= 3; i++) {
+			IOUtils.write(resource, ("var a = " + i + ";").getBytes());
+			resource.setLastModified(now - 60000 + i * 1000);
+			mgr.putResource(resource);
+		}
+		String resourceHash = hash("a.js");
+		popularity.record(resourceHash, hash("var a = 1;"));
+		popularity.record(resourceHash, hash("var a = 1;"));
+		popularity.record(resourceHash, hash("var a = 2;"));
+		IOUtils.write(resource, "var a = 4;".getBytes());
+		resource.setLastModified(now - 60000 + 4000);
+		mgr.putResource(resource);
+		
+		File resourceFolder = new File(tempDir, ".diffable" + File.separator +
+			resourceHash);
+		String latest = hash("var a = 4;");
+		assertTrue(new File(resourceFolder,
+			hash("var a = 3;") + "_" + latest + ".diff").exists());
+		assertTrue(new File(resourceFolder,
+			hash("var a = 1;") + "_" + latest + ".diff").exists());
+		assertFalse(new File(resourceFolder,
+			hash("var a = 2;") + "_" + latest + ".diff").exists());
+		
+		// The others are generated when they are first requested.
+		ResourceRequest req = new ResourceRequest();
+		req.setRequest(null, resourceHash + "_" + hash("var a = 2;") + "_" +
+			latest + ".diff");
+		mgr.getResource(req);
+		assertNotNull(req.getArtifact());
+		
+		// The counts are saved with the manifest and loaded on startup.
+		mgr.flushManifest();
+		DeltaPopularity restored =
+			injector(1000).getInstance(DeltaPopularity.class);
+		restored.load(new File(tempDir, ".diffable" + File.separator +
+			"diffable.popularity"));
+		assertEquals(2, restored.estimate(resourceHash, hash("var a = 1;")));
+		assertEquals(1, restored.estimate(resourceHash, hash("var a = 2;")));
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestDiffableContext {
+	private File tempDir;
+	private File first;
+	private File second;
+	private DiffableContext ctx;
+	
+	@Before
+	public void setUp() throws Throwable {
+		tempDir = new File(System.getProperty("user.dir"), "temp");
+		deleteDir(tempDir);
+		first = new File(tempDir, "first");
+		second = new File(tempDir, "second");
+		new File(first, "js").mkdirs();
+		new File(second, "js").mkdirs();
+		ctx = new DiffableContext();
+		ctx.setFolder(Arrays.asList(first, second));
+	}
+	
+	@After
+	public void tearDown() {
+		deleteDir(tempDir);
+	}
+	
+	private void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				deleteDir(file);
+			}
+		}
+		dir.delete();
+	}
+	
+	@Test
+	public void testResourceKeyRelativeToFolder() throws Throwable {
+		File resource = new File(second, "js" + File.separator + "a.js");
+		resource.createNewFile();
+		assertEquals("js/a.js", ctx.getResourceKey(resource));
+		assertEquals(resource, ctx.getResource("js/a.js"));
+	}
+	
+	@Test
+	public void testShadowedResourceKeyedByAbsolutePath() throws Throwable {
+		File shadowing = new File(first, "js" + File.separator + "a.js");
+		File shadowed = new File(second, "js" + File.separator + "a.js");
+		shadowing.createNewFile();
+		shadowed.createNewFile();
+		assertEquals("js/a.js", ctx.getResourceKey(shadowing));
+		assertEquals(shadowed.getAbsolutePath(),
+			ctx.getResourceKey(shadowed));
+		assertEquals(shadowing, ctx.getResource("js/a.js"));
+		assertEquals(shadowed, ctx.getResource(shadowed.getAbsolutePath()));
+	}
+	
+	@Test
+	public void testResourceOutsideFolders() throws Throwable {
+		File outside = new File(tempDir, "b.js");
+		assertEquals(outside.getAbsolutePath(), ctx.getResourceKey(outside));
+		assertEquals(outside.getAbsolutePath(),
+			new DiffableContext().getResourceKey(outside));
+		// A missing resource resolves to the first folder.
+		assertEquals(new File(first, "c.js"), ctx.getResource("c.js"));
+	}
+}
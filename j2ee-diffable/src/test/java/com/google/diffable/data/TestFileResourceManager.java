@@ -18,23 +18,38 @@ package com.google.diffable.data;
 import static org.easymock.EasyMock.createMock;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.math.BigInteger;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.log4j.Logger;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.diffable.diff.Differ;
+import com.google.diffable.diff.FingerprintDiffer;
+import com.google.diffable.diff.JSONHelper;
+import com.google.diffable.diff.Patcher;
 import com.google.diffable.diff.vcdiff.VCDiff;
 import com.google.diffable.exceptions.ResourceManagerException;
 import com.google.diffable.exceptions.StackTracePrinter;
+import com.google.diffable.scripts.ResponseRenderer;
+import com.google.diffable.utils.IOUtils;
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
@@ -50,6 +65,10 @@ public class TestFileResourceManager {
 	private String fileSeparator = File.separator;
 	private DiffableContext diffableCtx;
 	
+	/** The managers besides mgr a test created, shut down after it. */
+	private List<FileResourceManager> managers =
+		new ArrayList<FileResourceManager>();
+	
 	@Before
 	public void setUp() throws Throwable {
 		
@@ -90,9 +109,20 @@ public class TestFileResourceManager {
 	
 	@After
 	public void tearDown() {
+		mgr.shutdown();
+		for (FileResourceManager manager : managers) {
+			manager.shutdown();
+		}
 		deleteDir(tempDir);
 	}
 	
+	private FileResourceManager newManager() {
+		FileResourceManager manager =
+			Guice.createInjector().getInstance(FileResourceManager.class);
+		managers.add(manager);
+		return manager;
+	}
+	
 	private void deleteDir(File dir) {
 		for (File tempFile : dir.listFiles()) {
 			if (tempFile.isDirectory()) {
@@ -108,8 +138,27 @@ public class TestFileResourceManager {
 	throws Exception {
 		byte[] bytes = input.getBytes();
 		MessageDigest md5 = MessageDigest.getInstance("MD5");
-		md5.update(bytes, 0, bytes.length);
-		return new BigInteger(1, md5.digest()).toString(16);
+		return String.format("%032x", new BigInteger(1, md5.digest(bytes)));
+	}
+	
+	private String hashPath(String path)
+	throws Exception {
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		return String.format("%032x",
+			new BigInteger(1, md5.digest(path.getBytes("UTF-8"))));
+	}
+	
+	private void copyDir(File from, File to) throws Exception {
+		to.mkdirs();
+		for (File file : from.listFiles()) {
+			File target = new File(to, file.getName());
+			if (file.isDirectory()) {
+				copyDir(file, target);
+			} else {
+				IOUtils.write(target, IOUtils.read(file));
+				target.setLastModified(file.lastModified());
+			}
+		}
 	}
 	
 	@Test
@@ -216,9 +265,6 @@ public class TestFileResourceManager {
 		assertEquals(managedFile, mgr.getManagedResources().get(0));
 		assertTrue(new File(
 			resourceStore.getAbsolutePath() + "/fakehash").exists());
-		assertEquals(new File(
-			resourceStore.getAbsolutePath() + "/fakehash").lastModified(),
-			managedFile.lastModified());
 	}
 	
 	@Test
@@ -247,9 +293,6 @@ public class TestFileResourceManager {
 		assertEquals(managedFile, mgr.getManagedResources().get(0));
 		assertTrue(new File(
 			resourceStore.getAbsolutePath() + "/fakehash").exists());
-		assertEquals(new File(
-			resourceStore.getAbsolutePath() + "/fakehash").lastModified(),
-			managedFile.lastModified());
 	}
 	
 	@Test
@@ -291,11 +334,10 @@ public class TestFileResourceManager {
 	    
 	    mgr.putResource(managedFile);
 	    assertEquals(1, mgr.getManagedResources().size());
-	    String pathHash = hashString(managedFile.getAbsolutePath());
+	    String pathHash = hashPath(managedFile.getAbsolutePath());
 	    File resourceFolder =
 	    	new File(store.getAbsolutePath() + "/" + pathHash);
 	    assertTrue(resourceFolder.exists());
-	    assertEquals(resourceFolder.lastModified(), managedFile.lastModified());
 	    assertEquals(1, resourceFolder.listFiles().length);
 	    
 	    String contentHash = hashString("Hello World!");
@@ -306,7 +348,6 @@ public class TestFileResourceManager {
 	    
 	    mgr.putResource(managedFile);
 	    assertEquals(1, resourceFolder.listFiles().length);
-	    assertEquals(resourceFolder.lastModified(), managedFile.lastModified());
 	}
 	
 	@Test
@@ -325,7 +366,7 @@ public class TestFileResourceManager {
 	    	new File(store.getAbsolutePath() + "/diffable.manifest");
 	    
 	    mgr.putResource(managedFile);
-	    String pathHash = hashString(managedFile.getAbsolutePath());
+	    String pathHash = hashPath(managedFile.getAbsolutePath());
 	    File resourceFolder =
 	    	new File(store.getAbsolutePath() + "/" + pathHash);
 	    String firstContentHash = hashString("Hello World!");
@@ -337,7 +378,7 @@ public class TestFileResourceManager {
 	    out.write("Goodbye World!".getBytes());
 	    out.close();
 	    
-	    assertTrue(managedFile.lastModified() != resourceFolder.lastModified());
+	    assertTrue(mgr.hasResourceChanged(managedFile));
 	    String secondContentHash = hashString("Goodbye World!");
 	    File secondVersion =
 	    	new File(resourceFolder.getAbsolutePath() + "/" +
@@ -347,24 +388,24 @@ public class TestFileResourceManager {
 	    			 firstContentHash + "_" + secondContentHash + ".diff");
 	    mgr.putResource(managedFile);
 	    
-	    assertEquals(3, resourceFolder.listFiles().length);
+	    // Two versions, the delta between them and the version history.
+	    assertEquals(4, resourceFolder.listFiles().length);
 	    assertTrue(firstVersion.exists());
 	    assertTrue(secondVersion.exists());
 	    assertTrue(diffFile.exists());
-	    assertEquals(resourceFolder.lastModified(), managedFile.lastModified());
 	    
 	    Thread.sleep(1000);
 	    out = new FileOutputStream(managedFile);
 	    out.write("Hello Heaven!".getBytes());
 	    out.close();
 	    
-	    assertTrue(managedFile.lastModified() != resourceFolder.lastModified());
+	    assertTrue(mgr.hasResourceChanged(managedFile));
 	    String thirdContentHash = hashString("Hello Heaven!");
 	    File thirdVersion =
 	    	new File(resourceFolder.getAbsolutePath() + "/" +
 	    			 secondContentHash + ".version");
 	    mgr.putResource(managedFile);
-	    assertEquals(5, resourceFolder.listFiles().length);
+	    assertEquals(6, resourceFolder.listFiles().length);
 	    assertTrue(firstVersion.exists());
 	    assertTrue(secondVersion.exists());
 	    assertTrue(thirdVersion.exists());
@@ -393,7 +434,7 @@ public class TestFileResourceManager {
 	    File store = new File(tmp + ".diffable");
 	    mgr.putResource(managedFile);
 	    assertEquals(1, mgr.getManagedResources().size());
-	    String pathHash = hashString(managedFile.getAbsolutePath());
+	    String pathHash = hashPath(managedFile.getAbsolutePath());
 	    File resourceFolder =
 	    	new File(store.getAbsolutePath() + "/" + pathHash);
 	    assertTrue(resourceFolder.exists());
@@ -428,10 +469,64 @@ public class TestFileResourceManager {
 							"file://"+resourceStore.getAbsolutePath());
 			}
 		}).getMembersInjector(FileResourceManager.class).injectMembers(mgr);
+		long lastModified = System.currentTimeMillis() - 60000;
+		managedFile.setLastModified(lastModified);
 		mgr.initialize(tmp, diffableCtx);
 		assertFalse(mgr.hasResourceChanged(managedFile));
-		managedResourceFolder.setLastModified(0);
+		// Writing to the resource folder doesn't count as a change.
+		new File(managedResourceFolder, "unrelated").createNewFile();
+		assertFalse(mgr.hasResourceChanged(managedFile));
+		managedFile.setLastModified(lastModified - 10000);
 		assertTrue(mgr.hasResourceChanged(managedFile));
+		mgr.putResource(managedFile);
+		assertFalse(mgr.hasResourceChanged(managedFile));
+		
+		// Replacing the resource with a file of the same size and last
+		// modified time is a change, on platforms with file keys.
+		File replacement = new File(tmp + "replacement");
+		replacement.createNewFile();
+		replacement.setLastModified(managedFile.lastModified());
+		assertTrue(replacement.renameTo(managedFile));
+		assertEquals(
+			FileStat.of(managedFile).fileKey != null,
+			mgr.hasResourceChanged(managedFile));
+	}
+	
+	@Test
+	public void testHasResourceChangedRecentlyModified()
+	throws Throwable {
+		File managedFile = new File(tmp + "tempFile");
+	    FileOutputStream out = new FileOutputStream(managedFile);
+	    out.write("Hello World!".getBytes());
+	    out.close();
+	    mgr.initialize(tmp, diffableCtx);
+	    mgr.putResource(managedFile);
+	    // The resource was read within the resolution of its timestamp, so it
+	    // could change again without its last modified time changing.
+	    assertTrue(mgr.hasResourceChanged(managedFile));
+	    managedFile.setLastModified(System.currentTimeMillis() - 60000);
+	    mgr.putResource(managedFile);
+	    assertFalse(mgr.hasResourceChanged(managedFile));
+	}
+	
+	@Test
+	public void testContentDigest()
+	throws Throwable {
+		inj.createChildInjector(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bindConstant().annotatedWith(
+					Names.named("ContentDigest")).to("MURMUR3");
+			}
+		}).getMembersInjector(FileResourceManager.class).injectMembers(mgr);
+		File managedFile = new File(tmp + "tempFile");
+	    FileOutputStream out = new FileOutputStream(managedFile);
+	    out.write("The quick brown fox jumps over the lazy dog".getBytes());
+	    out.close();
+	    mgr.initialize(tmp, diffableCtx);
+	    mgr.putResource(managedFile);
+	    assertEquals("6c1b07bc7bbc4be347939ac4a93c437a",
+	    	diffableCtx.getCurrentVersion(managedFile));
 	}
 	
 	@Test(expected=ResourceManagerException.class)
@@ -473,7 +568,7 @@ public class TestFileResourceManager {
 	    mgr.initialize(tmp, diffableCtx);
 	    mgr.putResource(managedFile);
 	    
-	    String resourceHash = hashString(managedFile.getAbsolutePath());
+	    String resourceHash = hashPath(managedFile.getAbsolutePath());
 	    
 	    ResourceRequest req = new ResourceRequest();
 	    req.setRequest(null, resourceHash);
@@ -496,7 +591,10 @@ public class TestFileResourceManager {
 	    req.setRequest(null, resourceHash + "_" + oldVersion + "_" +
 								   newVersion + ".diff");
 	    mgr.getResource(req);
+	    // Stored diffs are handed over as raw bytes.
+	    assertEquals(25L, req.getArtifact().getLength());
 	    assertEquals("[\"bbbbbbbbbbbbbbb\",0,15,]", req.getResponse());
+	    assertNull(req.getArtifact());
 	}
 	
 	private ResourceRequest noDiffHelper(FileResourceManager mgr,
@@ -510,7 +608,7 @@ public class TestFileResourceManager {
 	    mgr.initialize(tmp, diffableCtx);
 	    mgr.putResource(managedFile);
 	    
-	    String resourceHash = hashString(managedFile.getAbsolutePath());
+	    String resourceHash = hashPath(managedFile.getAbsolutePath());
 	    
 	    ResourceRequest req = new ResourceRequest();
 	    String hash = resourceHash + (isDiff ? "_aa_bb.diff" : "");
@@ -582,4 +680,1234 @@ public class TestFileResourceManager {
 		ResourceRequest req = noDiffHelper(mgr, false);
 	    assertEquals("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaa", req.getResponse());
 	}
+	
+	@Test
+	public void testTokenDiffTypes()
+	throws Throwable {
+		inj.createChildInjector(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bindConstant().annotatedWith(
+					Names.named("TokenDiffTypes")).to("JAVASCRIPT");
+			}
+		}).getMembersInjector(FileResourceManager.class).injectMembers(mgr);
+		
+		File managedFile = new File(tmp + "tempFile.js");
+	    FileOutputStream out = new FileOutputStream(managedFile);
+	    out.write("function getValue(){return value;}".getBytes());
+	    out.close();
+	    mgr.initialize(tmp, diffableCtx);
+	    mgr.putResource(managedFile);
+	    
+	    Thread.sleep(1000);
+	    out = new FileOutputStream(managedFile);
+	    out.write("function getValues(){return value;}".getBytes());
+	    out.close();
+	    mgr.putResource(managedFile);
+	    
+	    String oldVersion = hashString("function getValue(){return value;}");
+	    String newVersion = hashString("function getValues(){return value;}");
+	    ResourceRequest req = new ResourceRequest();
+	    req.setRequest(null, hashPath(managedFile.getAbsolutePath()) + "_" +
+	    		       oldVersion + "_" + newVersion + ".diff");
+	    mgr.getResource(req);
+	    assertEquals("[0,9,\"getValues\",17,17,]", req.getResponse());
+	}
+	
+	private FileResourceManager createShardedManager(final int depth) {
+		FileResourceManager sharded =
+			inj.getInstance(FileResourceManager.class);
+		inj.createChildInjector(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bindConstant().annotatedWith(
+					Names.named("ResourceStoreShardDepth")).to(depth);
+			}
+		}).getMembersInjector(FileResourceManager.class)
+			.injectMembers(sharded);
+		managers.add(sharded);
+		return sharded;
+	}
+	
+	@Test
+	public void testShardedResourceStoreMigration()
+	throws Throwable {
+		File managedFile = new File(tmp + "tempFile");
+	    FileOutputStream out = new FileOutputStream(managedFile);
+	    out.write("Hello World!".getBytes());
+	    out.close();
+	    mgr.initialize(tmp, diffableCtx);
+	    mgr.putResource(managedFile);
+	    
+	    File store = new File(tmp + ".diffable");
+	    String pathHash = hashPath(managedFile.getAbsolutePath());
+	    String version = hashString("Hello World!") + ".version";
+	    File flatFolder = new File(store, pathHash);
+	    assertTrue(new File(flatFolder, version).exists());
+	    
+	    // Raising the shard depth moves the folder into its shards.
+	    createShardedManager(2).initialize(tmp, new DiffableContext());
+	    File shardedFolder = new File(store, pathHash.substring(0, 2) +
+	    	File.separator + pathHash.substring(2, 4) + File.separator +
+	    	pathHash);
+	    assertFalse(flatFolder.exists());
+	    assertTrue(new File(shardedFolder, version).exists());
+	    
+	    // New resources go straight into their shards.
+	    File otherFile = new File(tmp + "otherFile");
+	    out = new FileOutputStream(otherFile);
+	    out.write("Goodbye World!".getBytes());
+	    out.close();
+	    FileResourceManager sharded = createShardedManager(2);
+	    sharded.initialize(tmp, new DiffableContext());
+	    sharded.putResource(otherFile);
+	    String otherHash = hashPath(otherFile.getAbsolutePath());
+	    assertTrue(new File(store, otherHash.substring(0, 2) +
+	    	File.separator + otherHash.substring(2, 4) + File.separator +
+	    	otherHash).exists());
+	    
+	    // Lowering it again flattens the store and removes the shards.
+	    createShardedManager(0).initialize(tmp, new DiffableContext());
+	    assertTrue(new File(flatFolder, version).exists());
+	    assertTrue(new File(store, otherHash).exists());
+	    assertFalse(new File(store, pathHash.substring(0, 2)).exists());
+	}
+	
+	private byte[] gunzip(byte[] gzipped) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		IOUtils.copy(new GZIPInputStream(new ByteArrayInputStream(gzipped)),
+			         out, true);
+		return out.toByteArray();
+	}
+	
+	@Test
+	public void testPrecompressedResponses()
+	throws Throwable {
+		inj.createChildInjector(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bindConstant().annotatedWith(
+					Names.named("PrecompressResponses")).to(true);
+			}
+		}).getMembersInjector(FileResourceManager.class).injectMembers(mgr);
+		ResponseRenderer renderer = inj.getInstance(ResponseRenderer.class);
+		
+		File managedFile = new File(tmp + "tempFile.js");
+	    FileOutputStream out = new FileOutputStream(managedFile);
+	    out.write("var a = 1;".getBytes());
+	    out.close();
+	    mgr.initialize(tmp, diffableCtx);
+	    mgr.putResource(managedFile);
+	    Thread.sleep(1000);
+	    out = new FileOutputStream(managedFile);
+	    out.write("var a = 2;".getBytes());
+	    out.close();
+	    mgr.putResource(managedFile);
+	    
+	    String resourceHash = hashPath(managedFile.getAbsolutePath());
+	    String oldVersion = hashString("var a = 1;");
+	    String newVersion = hashString("var a = 2;");
+	    ResourceRequest req = new ResourceRequest();
+	    req.setRequest(null, resourceHash);
+	    req.setAcceptedEncodings(ContentEncoding.parseAcceptEncoding("gzip"));
+	    mgr.getResource(req);
+	    assertEquals(ContentEncoding.GZIP, req.getContentEncoding());
+	    assertEquals(newVersion, req.getNewVersionHash());
+	    assertTrue(Arrays.equals(
+	    	renderer.renderResource(resourceHash, "var a = 2;", newVersion),
+	    	gunzip(req.getArtifact().getBytes())));
+	    
+	    req = new ResourceRequest();
+	    req.setRequest(null, resourceHash + "_" + oldVersion + "_" +
+	    		       newVersion + ".diff");
+	    req.setAcceptedEncodings(ContentEncoding.parseAcceptEncoding("gzip"));
+	    mgr.getResource(req);
+	    assertEquals(ContentEncoding.GZIP, req.getContentEncoding());
+	    String diff = new String(store(resourceHash, oldVersion + "_" +
+	    	newVersion + ".diff"), "UTF-8");
+	    assertTrue(Arrays.equals(renderer.renderDelta(resourceHash, diff),
+	    	gunzip(req.getArtifact().getBytes())));
+	    
+	    // Clients that don't accept any encoding get the plain delta.
+	    req = new ResourceRequest();
+	    req.setRequest(null, resourceHash + "_" + oldVersion + "_" +
+	    		       newVersion + ".diff");
+	    mgr.getResource(req);
+	    assertNull(req.getContentEncoding());
+	    assertEquals(diff, req.getResponse());
+	}
+	
+	private byte[] store(String resourceHash, String name) throws Exception {
+		return IOUtils.read(new File(tmp + ".diffable" + File.separator +
+			resourceHash + File.separator + name));
+	}
+	
+	@Test
+	public void testContentCache()
+	throws Throwable {
+		ContentCache cache = inj.getInstance(ContentCache.class);
+		File managedFile = new File(tmp + "tempFile");
+	    FileOutputStream out = new FileOutputStream(managedFile);
+	    out.write("var a = 1;".getBytes());
+	    out.close();
+	    mgr.initialize(tmp, diffableCtx);
+	    mgr.putResource(managedFile);
+	    Thread.sleep(1000);
+	    out = new FileOutputStream(managedFile);
+	    out.write("var a = 2;".getBytes());
+	    out.close();
+	    mgr.putResource(managedFile);
+	    
+	    String resourceHash = hashPath(managedFile.getAbsolutePath());
+	    String oldVersion = hashString("var a = 1;");
+	    String newVersion = hashString("var a = 2;");
+	    String diffRequest = resourceHash + "_" + oldVersion + "_" +
+	    	newVersion + ".diff";
+	    // Only the latest version of the resource is cached, along with the
+	    // fingerprints of both versions.
+	    assertEquals(3, cache.getEntryCount());
+	    assertNotNull(cache.getBuffer(
+	    	"fingerprint/" + resourceHash + "/" + oldVersion));
+	    long hits = cache.getHits();
+	    ResourceRequest req = new ResourceRequest();
+	    req.setRequest(null, resourceHash);
+	    mgr.getResource(req);
+	    assertEquals("var a = 2;", req.getResponse());
+	    assertEquals(hits + 1, cache.getHits());
+	    
+	    req = new ResourceRequest();
+	    req.setRequest(null, diffRequest);
+	    mgr.getResource(req);
+	    String diff = req.getResponse();
+	    assertEquals(4, cache.getEntryCount());
+	    req = new ResourceRequest();
+	    req.setRequest(null, diffRequest);
+	    mgr.getResource(req);
+	    assertEquals(diff, req.getResponse());
+	    assertEquals(hits + 2, cache.getHits());
+	    
+	    // A new version drops the cached deltas that it deprecates.
+	    Thread.sleep(1000);
+	    out = new FileOutputStream(managedFile);
+	    out.write("var a = 3;".getBytes());
+	    out.close();
+	    mgr.putResource(managedFile);
+	    assertEquals(4, cache.getEntryCount());
+	    assertEquals("var a = 3;", cache.getString(
+	    	resourceHash + "/" + hashString("var a = 3;")));
+	    
+	    mgr.deleteResource(managedFile);
+	    assertEquals(0, cache.getEntryCount());
+	}
+	
+	@Test
+	public void testOffHeapContentCache()
+	throws Throwable {
+		final ContentCache cache = new ContentCache(1024 * 1024, true);
+		inj.createChildInjector(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(ContentCache.class).toInstance(cache);
+			}
+		}).getMembersInjector(FileResourceManager.class).injectMembers(mgr);
+		File managedFile = new File(tmp + "tempFile");
+	    FileOutputStream out = new FileOutputStream(managedFile);
+	    out.write("var a = 1;".getBytes());
+	    out.close();
+	    mgr.initialize(tmp, diffableCtx);
+	    mgr.putResource(managedFile);
+	    Thread.sleep(1000);
+	    out = new FileOutputStream(managedFile);
+	    out.write("var a = 2;".getBytes());
+	    out.close();
+	    mgr.putResource(managedFile);
+	    // The latest version and a 16 byte fingerprint for each version.
+	    assertEquals(42L, cache.getOffHeapSize());
+	    
+	    String resourceHash = hashPath(managedFile.getAbsolutePath());
+	    ResourceRequest req = new ResourceRequest();
+	    req.setRequest(null, resourceHash);
+	    mgr.getResource(req);
+	    assertEquals("var a = 2;", req.getResponse());
+	    
+	    String diffRequest = resourceHash + "_" + hashString("var a = 1;") +
+	    	"_" + hashString("var a = 2;") + ".diff";
+	    req = new ResourceRequest();
+	    req.setRequest(null, diffRequest);
+	    mgr.getResource(req);
+	    String diff = req.getResponse();
+	    req = new ResourceRequest();
+	    req.setRequest(null, diffRequest);
+	    mgr.getResource(req);
+	    assertEquals(42L + diff.length(), cache.getOffHeapSize());
+	    assertEquals(diff, req.getResponse());
+	}
+	
+	/**
+	 * A Differ that counts its calls and takes its time, standing in for
+	 * an expensive delta.
+	 */
+	private static class SlowDiffer implements Differ {
+		private final AtomicInteger calls = new AtomicInteger();
+		private final AtomicInteger running = new AtomicInteger();
+		private volatile boolean overlapped = false;
+		private final long delay;
+		
+		public SlowDiffer(long delay) {
+			this.delay = delay;
+		}
+		
+		public String getDiffAsString(String dict, String target) {
+			calls.incrementAndGet();
+			if (running.incrementAndGet() > 1) {
+				overlapped = true;
+			}
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+			} finally {
+				running.decrementAndGet();
+			}
+			return "[" + JSONHelper.quote(target) + ",]";
+		}
+	}
+	
+	/**
+	 * A FingerprintDiffer counting the fingerprints it builds and the diffs
+	 * it makes with a fingerprint.
+	 */
+	private static class CountingDiffer implements FingerprintDiffer {
+		private final FingerprintDiffer differ;
+		private int fingerprints = 0;
+		private int diffs = 0;
+		
+		public CountingDiffer(FingerprintDiffer differ) {
+			this.differ = differ;
+		}
+		
+		public byte[] getFingerprint(String text) {
+			fingerprints++;
+			return differ.getFingerprint(text);
+		}
+		
+		public String getDiffAsString(String dict, byte[] dictFingerprint,
+				                      String target) {
+			assertNotNull(dictFingerprint);
+			diffs++;
+			return differ.getDiffAsString(dict, dictFingerprint, target);
+		}
+		
+		public String getDiffAsString(String dict, String target) {
+			return getDiffAsString(dict, getFingerprint(dict), target);
+		}
+	}
+	
+	@Test
+	public void testSinglePassIngestion()
+	throws Throwable {
+		CountingDiffer differ =
+			new CountingDiffer(inj.getInstance(VCDiff.class));
+		mgr.setDiffer(differ);
+		File managedFile = new File(tmp + "tempFile");
+		mgr.initialize(tmp, diffableCtx);
+		String resourceHash = hashPath(managedFile.getAbsolutePath());
+		for (int i = 1; i <= 3; i++) {
+			// A byte that isn't valid UTF-8 is stored as it was read.
+			byte[] contents = ("var a = " + i + "; // \u00e9").getBytes(
+				"ISO-8859-1");
+			FileOutputStream out = new FileOutputStream(managedFile);
+		    out.write(contents);
+		    out.close();
+		    managedFile.setLastModified(System.currentTimeMillis() - 60000 + i);
+		    mgr.putResource(managedFile);
+		    MessageDigest md5 = MessageDigest.getInstance("MD5");
+		    String version = String.format(
+		    	"%032x", new BigInteger(1, md5.digest(contents)));
+		    assertTrue(Arrays.equals(contents,
+		    	store(resourceHash, version + ".version")));
+		}
+		// Each version was fingerprinted once, when it was read, although
+		// the first version was diffed against twice.
+		assertEquals(3, differ.fingerprints);
+		assertEquals(3, differ.diffs);
+	}
+	
+	/**
+	 * Manages a resource with two versions and deletes the delta between
+	 * them, returning the request for that delta.
+	 */
+	private String missingDeltaHelper() throws Throwable {
+		File managedFile = new File(tmp + "tempFile");
+	    FileOutputStream out = new FileOutputStream(managedFile);
+	    out.write("var a = 1;".getBytes());
+	    out.close();
+	    mgr.initialize(tmp, diffableCtx);
+	    mgr.putResource(managedFile);
+	    Thread.sleep(1000);
+	    out = new FileOutputStream(managedFile);
+	    out.write("var a = 2;".getBytes());
+	    out.close();
+	    mgr.putResource(managedFile);
+	    
+	    String resourceHash = hashPath(managedFile.getAbsolutePath());
+	    String deltaName = hashString("var a = 1;") + "_" +
+	    	hashString("var a = 2;") + ".diff";
+	    assertTrue(deltaFile(resourceHash, deltaName).delete());
+	    return resourceHash + "_" + deltaName;
+	}
+	
+	private File deltaFile(String resourceHash, String deltaName) {
+		return new File(tmp + ".diffable" + File.separator + resourceHash +
+			File.separator + deltaName);
+	}
+	
+	@Test
+	public void testOnDemandDelta()
+	throws Throwable {
+		String request = missingDeltaHelper();
+		ResourceRequest req = new ResourceRequest();
+	    req.setRequest(null, request);
+	    mgr.getResource(req);
+	    assertNotNull(req.getArtifact());
+	    String diff = req.getResponse();
+	    assertFalse(diff.equals("[\"var a = 2;\"]"));
+	    assertTrue(deltaFile(req.getResourceHash(), request.substring(
+	    	req.getResourceHash().length() + 1)).exists());
+	    
+	    // Deltas from versions that were never stored aren't generated.
+	    req = new ResourceRequest();
+	    req.setRequest(null, request.substring(0, request.indexOf('_')) +
+	    	"_aa_" + hashString("var a = 2;") + ".diff");
+	    mgr.getResource(req);
+	    assertNull(req.getArtifact());
+	    assertEquals("[\"var a = 2;\"]", req.getResponse());
+	}
+	
+	@Test
+	public void testOnDemandDeltaCoalesced()
+	throws Throwable {
+		String request = missingDeltaHelper();
+		SlowDiffer differ = new SlowDiffer(500);
+		mgr.setDiffer(differ);
+		final String[] responses = new String[4];
+		Thread[] threads = new Thread[responses.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			final ResourceRequest req = new ResourceRequest();
+			req.setRequest(null, request);
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						mgr.getResource(req);
+						responses[index] = req.getResponse();
+					} catch (Exception exc) {
+						exc.printStackTrace();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(1, differ.calls.get());
+		for (String response : responses) {
+			assertEquals("[\"var a = 2;\",]", response);
+		}
+	}
+	
+	/**
+	 * Manages several resources with two versions each and deletes the
+	 * deltas between them, returning the requests for those deltas.
+	 */
+	private String[] missingDeltasHelper(int count) throws Throwable {
+		mgr.initialize(tmp, diffableCtx);
+		File[] files = new File[count];
+		for (int i = 0; i < count; i++) {
+			files[i] = new File(tmp + "tempFile" + i);
+			IOUtils.write(files[i], ("var a" + i + " = 1;").getBytes());
+			mgr.putResource(files[i]);
+		}
+		Thread.sleep(1000);
+		String[] requests = new String[count];
+		for (int i = 0; i < count; i++) {
+			IOUtils.write(files[i],
+				("var a" + i + " = 1;\nvar b = 2;").getBytes());
+			mgr.putResource(files[i]);
+			String resourceHash = hashPath(files[i].getAbsolutePath());
+			String deltaName = hashString("var a" + i + " = 1;") + "_" +
+				hashString("var a" + i + " = 1;\nvar b = 2;") + ".diff";
+			assertTrue(deltaFile(resourceHash, deltaName).delete());
+			requests[i] = resourceHash + "_" + deltaName;
+		}
+		return requests;
+	}
+	
+	/**
+	 * Requests deltas all at once, each from its own thread.
+	 */
+	private String[] requestConcurrently(String[] requests) throws Throwable {
+		final String[] responses = new String[requests.length];
+		Thread[] threads = new Thread[requests.length];
+		for (int i = 0; i < threads.length; i++) {
+			final int index = i;
+			final ResourceRequest req = new ResourceRequest();
+			req.setRequest(null, requests[i]);
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						mgr.getResource(req);
+						responses[index] = req.getResponse();
+					} catch (Exception exc) {
+						exc.printStackTrace();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return responses;
+	}
+	
+	@Test
+	public void testOnDemandDeltasConcurrent()
+	throws Throwable {
+		String[] requests = missingDeltasHelper(8);
+		String[] responses = requestConcurrently(requests);
+		// The deltas generated on the two threads match those of a differ
+		// used by a single thread.
+		VCDiff differ = inj.getInstance(VCDiff.class);
+		for (int i = 0; i < responses.length; i++) {
+			assertEquals(differ.getDiffAsString("var a" + i + " = 1;",
+				"var a" + i + " = 1;\nvar b = 2;"), responses[i]);
+		}
+	}
+	
+	@Test
+	public void testOnDemandDeltasSerializedForOtherDiffers()
+	throws Throwable {
+		String[] requests = missingDeltasHelper(4);
+		SlowDiffer differ = new SlowDiffer(200);
+		mgr.setDiffer(differ);
+		String[] responses = requestConcurrently(requests);
+		assertEquals(4, differ.calls.get());
+		assertFalse(differ.overlapped);
+		for (int i = 0; i < responses.length; i++) {
+			assertEquals("[" + JSONHelper.quote(
+				"var a" + i + " = 1;\nvar b = 2;") + ",]", responses[i]);
+		}
+	}
+	
+	@Test
+	public void testShutdownStopsDeltaThreads()
+	throws Throwable {
+		String request = missingDeltaHelper();
+		List<Thread> before = getDeltaThreads();
+		ResourceRequest req = new ResourceRequest();
+		req.setRequest(null, request);
+		mgr.getResource(req);
+		List<Thread> started = getDeltaThreads();
+		started.removeAll(before);
+		assertFalse(started.isEmpty());
+		mgr.shutdown();
+		for (Thread thread : started) {
+			thread.join(1000);
+			assertFalse(thread.isAlive());
+		}
+	}
+	
+	private List<Thread> getDeltaThreads() {
+		Thread[] threads = new Thread[Thread.activeCount() * 2 + 10];
+		int count = Thread.enumerate(threads);
+		List<Thread> deltaThreads = new ArrayList<Thread>();
+		for (int i = 0; i < count; i++) {
+			if (threads[i].getName().equals("deltaGenerator")) {
+				deltaThreads.add(threads[i]);
+			}
+		}
+		return deltaThreads;
+	}
+	
+	@Test
+	public void testShutdownFlushesManifest()
+	throws Throwable {
+		inj.createChildInjector(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bindConstant().annotatedWith(
+					Names.named("ManifestFlushInterval")).to(3600000L);
+			}
+		}).getMembersInjector(FileResourceManager.class).injectMembers(mgr);
+		File managedFile = new File(tmp + "tempFile");
+		IOUtils.write(managedFile, "var a = 1;".getBytes());
+		mgr.initialize(tmp, diffableCtx);
+		mgr.putResource(managedFile);
+		File journalFile = new File(tmp + ".diffable" + File.separator +
+			"diffable.manifest.journal");
+		long length = journalFile.length();
+		mgr.shutdown();
+		assertTrue(journalFile.length() > length);
+		FileResourceManager restarted = newManager();
+		restarted.initialize(tmp, new DiffableContext());
+		assertTrue(restarted.isManaged(managedFile));
+	}
+	
+	@Test
+	public void testOnDemandDeltaDeadline()
+	throws Throwable {
+		inj.createChildInjector(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bindConstant().annotatedWith(
+					Names.named("DeltaWaitMillis")).to(100L);
+			}
+		}).getMembersInjector(FileResourceManager.class).injectMembers(mgr);
+		String request = missingDeltaHelper();
+		mgr.setDiffer(new SlowDiffer(1000));
+		ResourceRequest req = new ResourceRequest();
+	    req.setRequest(null, request);
+	    mgr.getResource(req);
+	    // The latest version is sent rather than waiting for the delta...
+	    assertEquals("[\"var a = 2;\"]", req.getResponse());
+	    
+	    // ...which is stored for later requests once it's generated.
+	    File delta = deltaFile(req.getResourceHash(),
+	    	request.substring(req.getResourceHash().length() + 1));
+	    for (int i = 0; i < 50 && !delta.exists(); i++) {
+	    	Thread.sleep(100);
+	    }
+	    assertTrue(delta.exists());
+	    req = new ResourceRequest();
+	    req.setRequest(null, request);
+	    mgr.getResource(req);
+	    assertEquals("[\"var a = 2;\",]", req.getResponse());
+	}
+	
+	@Test
+	public void testRetentionPolicy()
+	throws Throwable {
+		inj.createChildInjector(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(RetentionPolicy.class).toInstance(
+					new LimitRetentionPolicy(2, 0, 0));
+			}
+		}).getMembersInjector(FileResourceManager.class).injectMembers(mgr);
+		File managedFile = new File(tmp + "tempFile");
+	    mgr.initialize(tmp, diffableCtx);
+	    String[] contents = {"var a = 1;", "var a = 2;", "var a = 3;"};
+	    for (String content : contents) {
+	    	FileOutputStream out = new FileOutputStream(managedFile);
+	    	out.write(content.getBytes());
+	    	out.close();
+	    	mgr.putResource(managedFile);
+	    	Thread.sleep(1000);
+	    }
+	    
+	    String resourceHash = hashPath(managedFile.getAbsolutePath());
+	    File resourceFolder = new File(tmp + ".diffable" + File.separator +
+	    	resourceHash);
+	    String first = hashString(contents[0]);
+	    String second = hashString(contents[1]);
+	    String third = hashString(contents[2]);
+	    assertFalse(new File(resourceFolder, first + ".version").exists());
+	    assertTrue(new File(resourceFolder, second + ".version").exists());
+	    assertTrue(new File(resourceFolder, third + ".version").exists());
+	    assertFalse(new File(resourceFolder,
+	    	first + "_" + third + ".diff").exists());
+	    assertTrue(new File(resourceFolder,
+	    	second + "_" + third + ".diff").exists());
+	    String history = new String(IOUtils.read(
+	    	new File(resourceFolder, "versions.history")), "UTF-8");
+	    assertTrue(history.startsWith(second + " "));
+	    assertTrue(history.contains("\n" + third + " "));
+	    
+	    // Clients on an expired version get the latest version in full.
+	    ResourceRequest req = new ResourceRequest();
+	    req.setRequest(null, resourceHash + "_" + first + "_" + third +
+	    	".diff");
+	    mgr.getResource(req);
+	    assertEquals("[\"var a = 3;\"]", req.getResponse());
+	}
+	
+	@Test
+	public void testManifestJournal()
+	throws Throwable {
+		File managedFile = new File(tmp + "tempFile");
+	    FileOutputStream out = new FileOutputStream(managedFile);
+	    out.write("var a = 1;".getBytes());
+	    out.close();
+	    File otherFile = new File(tmp + "otherFile");
+	    out = new FileOutputStream(otherFile);
+	    out.write("var b = 1;".getBytes());
+	    out.close();
+	    mgr.initialize(tmp, diffableCtx);
+	    mgr.putResource(managedFile);
+	    mgr.putResource(otherFile);
+	    mgr.deleteResource(otherFile);
+	    mgr.flushManifest();
+	    
+	    // A new manager recovers the manifest from the journal.
+	    FileResourceManager recovered =
+	    	newManager();
+	    recovered.initialize(tmp, new DiffableContext());
+	    assertTrue(recovered.isManaged(managedFile));
+	    assertFalse(recovered.isManaged(otherFile));
+	    // Initializing checkpoints the recovered manifest.
+	    assertEquals(0L, new File(tmp + ".diffable" + File.separator +
+	    	"diffable.manifest.journal").length());
+	}
+	
+	@Test
+	public void testWarmStartFromIndex()
+	throws Throwable {
+		File managedFile = new File(tmp + "tempFile");
+	    FileOutputStream out = new FileOutputStream(managedFile);
+	    out.write("var a = 1;".getBytes());
+	    out.close();
+	    long lastModified = System.currentTimeMillis() - 60000;
+	    managedFile.setLastModified(lastModified);
+	    mgr.initialize(tmp, diffableCtx);
+	    mgr.putResource(managedFile);
+	    mgr.flushManifest();
+	    String first = hashString("var a = 1;");
+	    
+	    // Change the contents without changing the size or last modified
+	    // time, so a resource trusted from the index keeps its old version.
+	    out = new FileOutputStream(managedFile);
+	    out.write("var a = 2;".getBytes());
+	    out.close();
+	    managedFile.setLastModified(lastModified);
+	    DiffableContext ctx = new DiffableContext();
+	    newManager().initialize(tmp, ctx);
+	    assertEquals(first, ctx.getCurrentVersion(managedFile));
+	    
+	    // A resource whose size changed is read again.
+	    out = new FileOutputStream(managedFile);
+	    out.write("var a = 20;".getBytes());
+	    out.close();
+	    ctx = new DiffableContext();
+	    FileResourceManager restarted =
+	    	newManager();
+	    restarted.initialize(tmp, ctx);
+	    String second = hashString("var a = 20;");
+	    assertEquals(second, ctx.getCurrentVersion(managedFile));
+	    assertTrue(new File(tmp + ".diffable" + File.separator +
+	    	hashPath(managedFile.getAbsolutePath()) + File.separator +
+	    	first + "_" + second + ".diff").exists());
+	}
+	
+	@Test
+	public void testRelativeResourceKeys()
+	throws Throwable {
+		File app = new File(tmp + "app");
+		File scripts = new File(app, "scripts");
+		new File(scripts, "lib").mkdirs();
+		File managedFile = new File(scripts, "lib" + File.separator + "a.js");
+	    FileOutputStream out = new FileOutputStream(managedFile);
+	    out.write("var a = 1;".getBytes());
+	    out.close();
+	    diffableCtx.setFolder(Arrays.asList(scripts));
+	    String appPath = app.getAbsolutePath() + File.separator;
+	    mgr.initialize(appPath, diffableCtx);
+	    mgr.putResource(managedFile);
+	    Thread.sleep(1000);
+	    out = new FileOutputStream(managedFile);
+	    out.write("var a = 2;".getBytes());
+	    out.close();
+	    mgr.putResource(managedFile);
+	    mgr.flushManifest();
+	    
+	    String resourceHash = hashPath("lib/a.js");
+	    assertEquals(resourceHash, diffableCtx.getResourceHash(managedFile));
+	    assertTrue(new File(appPath + ".diffable" + File.separator +
+	    	resourceHash).exists());
+	    
+	    // The whole web app, store included, is deployed somewhere else.
+	    File moved = new File(tmp + "moved");
+	    copyDir(app, moved);
+	    File movedFile = new File(moved, "scripts" + File.separator + "lib" +
+	    	File.separator + "a.js");
+	    DiffableContext ctx = new DiffableContext();
+	    ctx.setFolder(Arrays.asList(new File(moved, "scripts")));
+	    FileResourceManager relocated =
+	    	newManager();
+	    relocated.initialize(moved.getAbsolutePath() + File.separator, ctx);
+	    assertTrue(relocated.isManaged(movedFile));
+	    assertEquals(movedFile, relocated.getManagedResources().get(0));
+	    assertEquals(resourceHash, ctx.getResourceHash(movedFile));
+	    assertEquals(hashString("var a = 2;"), ctx.getCurrentVersion(movedFile));
+	    ResourceRequest req = new ResourceRequest();
+	    req.setRequest(null, resourceHash + "_" + hashString("var a = 1;") +
+	    	"_" + hashString("var a = 2;") + ".diff");
+	    relocated.getResource(req);
+	    assertNotNull(req.getArtifact());
+	}
+	
+	@Test
+	public void testManifestMigratedToRelativeKeys()
+	throws Throwable {
+		File scripts = new File(tmp + "scripts");
+		scripts.mkdir();
+		File managedFile = new File(scripts, "a.js");
+	    FileOutputStream out = new FileOutputStream(managedFile);
+	    out.write("var a = 1;".getBytes());
+	    out.close();
+	    // Without resource folders, resources are keyed by absolute path.
+	    mgr.initialize(tmp, diffableCtx);
+	    mgr.putResource(managedFile);
+	    mgr.flushManifest();
+	    String resourceHash = hashPath(managedFile.getAbsolutePath());
+	    assertEquals(resourceHash, diffableCtx.getResourceHash(managedFile));
+	    
+	    DiffableContext ctx = new DiffableContext();
+	    ctx.setFolder(Arrays.asList(scripts));
+	    FileResourceManager restarted =
+	    	newManager();
+	    restarted.initialize(tmp, ctx);
+	    assertTrue(restarted.isManaged(managedFile));
+	    // The resource keeps its identifier, so clients' caches stay valid.
+	    assertEquals(resourceHash, ctx.getResourceHash(managedFile));
+	    assertEquals(hashString("var a = 1;"),
+	    	ctx.getCurrentVersion(managedFile));
+	    Properties manifestProps = new Properties();
+	    manifestProps.load(new FileInputStream(
+	    	tmp + ".diffable" + File.separator + "diffable.manifest"));
+	    assertEquals(resourceHash, manifestProps.getProperty("a.js"));
+	    assertEquals(1, manifestProps.size());
+	    
+	    restarted.deleteResource(managedFile);
+	    assertFalse(new File(
+	    	tmp + ".diffable" + File.separator + resourceHash).exists());
+	}
+	
+	@Test
+	public void testManifestMovedToAnotherHost()
+	throws Throwable {
+		File oldScripts = new File(tmp + "old" + File.separator + "scripts");
+		oldScripts.mkdirs();
+		File oldFile = new File(oldScripts, "a.js");
+		IOUtils.write(oldFile, "var a = 1;".getBytes());
+	    // Without resource folders, resources are keyed by absolute path.
+	    mgr.initialize(tmp, diffableCtx);
+	    mgr.putResource(oldFile);
+	    mgr.shutdown();
+	    String resourceHash = hashPath(oldFile.getAbsolutePath());
+	    
+	    // The store is moved along with the resources, which end up under
+	    // another path.
+	    File scripts = new File(tmp + "new" + File.separator + "scripts");
+	    copyDir(oldScripts, scripts);
+	    deleteDir(new File(tmp + "old"));
+	    File movedFile = new File(scripts, "a.js");
+	    DiffableContext ctx = new DiffableContext();
+	    ctx.setFolder(Arrays.asList(scripts));
+	    FileResourceManager moved = newManager();
+	    moved.initialize(tmp, ctx);
+	    assertTrue(moved.isManaged(movedFile));
+	    assertEquals(resourceHash, ctx.getResourceHash(movedFile));
+	    assertEquals(hashString("var a = 1;"), ctx.getCurrentVersion(movedFile));
+	    assertTrue(new File(tmp + ".diffable" + File.separator + resourceHash +
+	    	File.separator + hashString("var a = 1;") + ".version").exists());
+	}
+	
+	/**
+	 * Creates a manager sharing the resource store in tmp/shared, managing
+	 * a.js in the scripts folder of its own copy of the web app.
+	 */
+	private FileResourceManager sharedManager(final String node,
+			                                  DiffableContext ctx)
+	throws Throwable {
+		FileResourceManager shared = Guice.createInjector(
+			new AbstractModule() {
+				@Override
+				protected void configure() {
+					bindConstant().annotatedWith(
+						Names.named("ResourceStorePath")).to(
+							"file://" + tmp + "shared");
+					bindConstant().annotatedWith(
+						Names.named("SharedResourceStore")).to(true);
+					bindConstant().annotatedWith(
+						Names.named("StoreNodeName")).to(node);
+				}
+			}).getInstance(FileResourceManager.class);
+		managers.add(shared);
+		File scripts = new File(tmp + node + File.separator + "scripts");
+		scripts.mkdirs();
+		ctx.setFolder(Arrays.asList(scripts));
+		shared.initialize(tmp + node, ctx);
+		return shared;
+	}
+	
+	private File writeShared(String node, String contents, int tick)
+	throws Throwable {
+		File resource = new File(tmp + node + File.separator + "scripts" +
+			File.separator + "a.js");
+		FileOutputStream out = new FileOutputStream(resource);
+	    out.write(contents.getBytes());
+	    out.close();
+	    resource.setLastModified(System.currentTimeMillis() - 60000 + tick);
+	    return resource;
+	}
+	
+	@Test
+	public void testSharedResourceStore()
+	throws Throwable {
+		DiffableContext ctx1 = new DiffableContext();
+		DiffableContext ctx2 = new DiffableContext();
+		FileResourceManager mgr1 = sharedManager("web1", ctx1);
+		FileResourceManager mgr2 = sharedManager("web2", ctx2);
+		CountingDiffer differ1 =
+			new CountingDiffer(inj.getInstance(VCDiff.class));
+		CountingDiffer differ2 =
+			new CountingDiffer(inj.getInstance(VCDiff.class));
+		mgr1.setDiffer(differ1);
+		mgr2.setDiffer(differ2);
+		
+		for (int i = 1; i <= 2; i++) {
+			String contents = "var a = " + i + ";";
+			mgr1.putResource(writeShared("web1", contents, i));
+			File resource2 = writeShared("web2", contents, i);
+			mgr2.putResource(resource2);
+			assertTrue(mgr2.isManaged(resource2));
+			assertEquals(hashString(contents),
+				ctx2.getCurrentVersion(resource2));
+		}
+		// The second server used the delta the first one published.
+		assertEquals(1, differ1.diffs);
+		assertEquals(0, differ2.diffs);
+		assertEquals(0, differ2.fingerprints);
+		File storeFolder = new File(tmp + "shared");
+		assertTrue(new File(storeFolder, "diffable.web1.manifest").exists());
+		assertTrue(new File(storeFolder, "diffable.web2.manifest").exists());
+		String resourceHash = hashPath("a.js");
+		ResourceRequest req = new ResourceRequest();
+	    req.setRequest(null, resourceHash + "_" + hashString("var a = 1;") +
+	    	"_" + hashString("var a = 2;") + ".diff");
+	    mgr2.getResource(req);
+	    assertNotNull(req.getArtifact());
+		
+		// A resource locked by another server is left for it to publish.
+		File resource1 = writeShared("web1", "var a = 3;", 3);
+		StoreLocks.Lease lease =
+			new StoreLocks(storeFolder).acquire(resourceHash, false);
+		mgr1.putResource(resource1);
+		assertEquals(hashString("var a = 2;"),
+			ctx1.getCurrentVersion(resource1));
+		assertTrue(mgr1.hasResourceChanged(resource1));
+		lease.release();
+		mgr1.putResource(resource1);
+		assertEquals(hashString("var a = 3;"),
+			ctx1.getCurrentVersion(resource1));
+		
+		// Versions are written under a temporary name and renamed.
+		for (File file : new File(storeFolder, resourceHash).listFiles()) {
+			assertFalse(file.getName().endsWith(".tmp"));
+		}
+	}
+	
+	@Test
+	public void testStagedRelease()
+	throws Throwable {
+		File app = new File(tmp + "app");
+		File scripts = new File(app, "scripts");
+		scripts.mkdirs();
+		File a = new File(scripts, "a.js");
+		File b = new File(scripts, "b.js");
+		IOUtils.write(a, "var a = 1;".getBytes());
+		IOUtils.write(b, "var b = 1;".getBytes());
+		a.setLastModified(System.currentTimeMillis() - 60000);
+		b.setLastModified(System.currentTimeMillis() - 60000);
+		diffableCtx.setFolder(Arrays.asList(scripts));
+		String appPath = app.getAbsolutePath() + File.separator;
+		mgr.initialize(appPath, diffableCtx);
+		mgr.putResource(a);
+		mgr.putResource(b);
+		try {
+			mgr.commitRelease();
+			assertTrue(false);
+		} catch (ResourceManagerException exc) {
+			// Expected, since nothing is staged.
+		}
+		
+		File release = new File(tmp + "release");
+		release.mkdirs();
+		IOUtils.write(new File(release, "a.js"), "var a = 2;".getBytes());
+		IOUtils.write(new File(release, "b.js"), "var b = 2;".getBytes());
+		IOUtils.write(new File(release, "c.js"), "var c = 1;".getBytes());
+		mgr.stageRelease(release);
+		for (int i = 0; i < 100 && !mgr.isReleaseStaged(); i++) {
+			Thread.sleep(50);
+		}
+		assertTrue(mgr.isReleaseStaged());
+		assertEquals(2, mgr.getStagedVersions().size());
+		
+		// The deltas are ready, but the current versions are unchanged.
+		String deltaName = hashString("var a = 1;") + "_" +
+			hashString("var a = 2;") + ".diff";
+		File resourceFolder = new File(appPath + ".diffable" +
+			File.separator + hashPath("a.js"));
+		assertTrue(new File(resourceFolder, deltaName).exists());
+		assertTrue(new File(new File(appPath + ".diffable" + File.separator +
+			hashPath("b.js")), hashString("var b = 1;") + "_" +
+			hashString("var b = 2;") + ".diff").exists());
+		assertEquals(hashString("var a = 1;"), diffableCtx.getCurrentVersion(a));
+		assertFalse(mgr.hasResourceChanged(a));
+		ResourceRequest req = new ResourceRequest();
+		req.setRequest(null, hashPath("a.js"));
+		mgr.getResource(req);
+		assertEquals("var a = 1;", req.getResponse());
+		
+		mgr.commitRelease();
+		assertEquals(hashString("var a = 2;"), diffableCtx.getCurrentVersion(a));
+		assertEquals(hashString("var b = 2;"), diffableCtx.getCurrentVersion(b));
+		assertFalse(mgr.isReleaseStaged());
+		req = new ResourceRequest();
+		req.setRequest(null, hashPath("a.js"));
+		mgr.getResource(req);
+		assertEquals("var a = 2;", req.getResponse());
+		req = new ResourceRequest();
+		req.setRequest(null, hashPath("a.js") + "_" + deltaName);
+		mgr.getResource(req);
+		assertNotNull(req.getArtifact());
+		
+		// Deploying the release's files afterwards changes nothing.
+		long modified = new File(resourceFolder, deltaName).lastModified();
+		IOUtils.write(a, "var a = 2;".getBytes());
+		a.setLastModified(System.currentTimeMillis() - 30000);
+		assertTrue(mgr.hasResourceChanged(a));
+		mgr.putResource(a);
+		assertEquals(hashString("var a = 2;"), diffableCtx.getCurrentVersion(a));
+		assertEquals(modified,
+			new File(resourceFolder, deltaName).lastModified());
+		
+		// An aborted release is never committed.
+		IOUtils.write(new File(release, "a.js"), "var a = 3;".getBytes());
+		mgr.stageRelease(release);
+		mgr.abortRelease();
+		assertTrue(mgr.getStagedVersions().isEmpty());
+		try {
+			mgr.commitRelease();
+			assertTrue(false);
+		} catch (ResourceManagerException exc) {
+			// Expected.
+		}
+		assertEquals(hashString("var a = 2;"), diffableCtx.getCurrentVersion(a));
+	}
+	
+	@Test
+	public void testAbortedReleaseDeployed()
+	throws Throwable {
+		File app = new File(tmp + "app");
+		File scripts = new File(app, "scripts");
+		scripts.mkdirs();
+		File a = new File(scripts, "a.js");
+		File b = new File(scripts, "b.js");
+		IOUtils.write(a, "var a = 1;".getBytes());
+		IOUtils.write(b, "var b = 1;".getBytes());
+		a.setLastModified(System.currentTimeMillis() - 60000);
+		b.setLastModified(System.currentTimeMillis() - 60000);
+		diffableCtx.setFolder(Arrays.asList(scripts));
+		String appPath = app.getAbsolutePath() + File.separator;
+		mgr.initialize(appPath, diffableCtx);
+		mgr.putResource(a);
+		mgr.putResource(b);
+		
+		File release = new File(tmp + "release");
+		release.mkdirs();
+		IOUtils.write(new File(release, "a.js"), "var a = 2;".getBytes());
+		IOUtils.write(new File(release, "b.js"), "var b = 2;".getBytes());
+		mgr.stageRelease(release);
+		for (int i = 0; i < 100 && !mgr.isReleaseStaged(); i++) {
+			Thread.sleep(50);
+		}
+		assertTrue(mgr.isReleaseStaged());
+		
+		// A file of the release deployed before the abort becomes current.
+		IOUtils.write(b, "var b = 2;".getBytes());
+		b.setLastModified(System.currentTimeMillis() - 30000);
+		mgr.putResource(b);
+		assertEquals(hashString("var b = 2;"), diffableCtx.getCurrentVersion(b));
+		
+		// The versions the aborted release stored are deleted, except the
+		// one already current, along with the deltas to them.
+		mgr.abortRelease();
+		File resourceFolder = new File(appPath + ".diffable" +
+			File.separator + hashPath("a.js"));
+		assertFalse(new File(resourceFolder,
+			hashString("var a = 2;") + ".version").exists());
+		assertFalse(new File(resourceFolder, hashString("var a = 1;") + "_" +
+			hashString("var a = 2;") + ".diff").exists());
+		assertTrue(new File(new File(appPath + ".diffable" + File.separator +
+			hashPath("b.js")), hashString("var b = 2;") + ".version").exists());
+		
+		// Deploying one of them later ingests it as a new version.
+		IOUtils.write(a, "var a = 2;".getBytes());
+		a.setLastModified(System.currentTimeMillis() - 30000);
+		mgr.putResource(a);
+		assertEquals(hashString("var a = 2;"), diffableCtx.getCurrentVersion(a));
+		ResourceRequest req = new ResourceRequest();
+		req.setRequest(null, hashPath("a.js"));
+		mgr.getResource(req);
+		assertEquals("var a = 2;", req.getResponse());
+		assertTrue(new File(resourceFolder, hashString("var a = 1;") + "_" +
+			hashString("var a = 2;") + ".diff").exists());
+		req = new ResourceRequest();
+		req.setRequest(null, hashPath("b.js"));
+		mgr.getResource(req);
+		assertEquals("var b = 2;", req.getResponse());
+	}
+	
+	@Test
+	public void testSharedAbortKeepsPublishedVersion()
+	throws Throwable {
+		DiffableContext ctx1 = new DiffableContext();
+		DiffableContext ctx2 = new DiffableContext();
+		FileResourceManager mgr1 = sharedManager("web1", ctx1);
+		FileResourceManager mgr2 = sharedManager("web2", ctx2);
+		mgr1.putResource(writeShared("web1", "var a = 1;", 1));
+		mgr2.putResource(writeShared("web2", "var a = 1;", 1));
+		
+		File release = new File(tmp + "release");
+		release.mkdirs();
+		IOUtils.write(new File(release, "a.js"), "var a = 2;".getBytes());
+		mgr1.stageRelease(release);
+		for (int i = 0; i < 100 && !mgr1.isReleaseStaged(); i++) {
+			Thread.sleep(50);
+		}
+		assertTrue(mgr1.isReleaseStaged());
+		
+		// Another server deploys the staged version and publishes it, so
+		// aborting the release here leaves it stored.
+		File resource2 = writeShared("web2", "var a = 2;", 2);
+		mgr2.putResource(resource2);
+		assertEquals(hashString("var a = 2;"),
+			ctx2.getCurrentVersion(resource2));
+		mgr1.abortRelease();
+		File version = new File(tmp + "shared" + File.separator +
+			hashPath("a.js") + File.separator + hashString("var a = 2;") +
+			".version");
+		assertTrue(version.exists());
+		File resource1 = writeShared("web1", "var a = 2;", 2);
+		mgr1.putResource(resource1);
+		assertEquals(hashString("var a = 2;"),
+			ctx1.getCurrentVersion(resource1));
+	}
+	
+	@Test
+	public void testSharedDeleteWaitsOutsideManagerLock()
+	throws Throwable {
+		DiffableContext ctx1 = new DiffableContext();
+		final FileResourceManager mgr1 = sharedManager("web1", ctx1);
+		final File resource1 = writeShared("web1", "var a = 1;", 1);
+		mgr1.putResource(resource1);
+		String resourceHash = hashPath("a.js");
+		StoreLocks.Lease lease = new StoreLocks(new File(tmp + "shared"))
+			.acquire(resourceHash, false);
+		Thread deleter = new Thread() {
+			@Override
+			public void run() {
+				mgr1.deleteResource(resource1);
+			}
+		};
+		try {
+			deleter.start();
+			Thread.sleep(200);
+			
+			// Requests are served while the delete waits for the lock.
+			ResourceRequest req = new ResourceRequest();
+			req.setRequest(null, resourceHash);
+			mgr1.getResource(req);
+			assertEquals("var a = 1;", req.getResponse());
+			assertTrue(mgr1.isManaged(resource1));
+		} finally {
+			lease.release();
+		}
+		deleter.join(5000);
+		assertFalse(mgr1.isManaged(resource1));
+	}
+	
+	@Test
+	public void testSharedStoreRefusesSingleWriterStores()
+	throws Throwable {
+		FileResourceManager shared = Guice.createInjector(
+			new AbstractModule() {
+				@Override
+				protected void configure() {
+					bindConstant().annotatedWith(
+						Names.named("SharedResourceStore")).to(true);
+					bind(VersionStore.class).to(PackVersionStore.class);
+				}
+			}).getInstance(FileResourceManager.class);
+		managers.add(shared);
+		try {
+			shared.initialize(tmp, new DiffableContext());
+			assertTrue(false);
+		} catch (ResourceManagerException exc) {
+			assertTrue(exc.getMessage().contains("PackVersionStore"));
+		}
+	}
+	
+	@Test
+	public void testSkipDeltaChain()
+	throws Throwable {
+		inj.createChildInjector(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bindConstant().annotatedWith(
+					Names.named("SkipDeltas")).to(true);
+				bindConstant().annotatedWith(
+					Names.named("OnDemandDeltas")).to(false);
+			}
+		}).getMembersInjector(FileResourceManager.class).injectMembers(mgr);
+		File managedFile = new File(tmp + "tempFile");
+		mgr.initialize(tmp, diffableCtx);
+		long now = System.currentTimeMillis();
+		for (int i = 1; i <= 6; i++) {
+			IOUtils.write(managedFile, ("var a = " + i + ";").getBytes());
+			managedFile.setLastModified(now - 60000 + i * 1000);
+			mgr.putResource(managedFile);
+		}
+		String resourceHash = hashPath(managedFile.getAbsolutePath());
+		
+		// The latest version only has deltas from 1, 2 and 4 versions back,
+		// and the skip deltas to earlier versions are kept.
+		int deltas = 0;
+		for (String name : new File(tmp + ".diffable" + File.separator +
+				resourceHash).list()) {
+			if (name.endsWith(".diff")) {
+				deltas++;
+			}
+		}
+		assertEquals(11, deltas);
+		assertTrue(deltaFile(resourceHash, hashString("var a = 2;") + "_" +
+			hashString("var a = 6;") + ".diff").exists());
+		assertFalse(deltaFile(resourceHash, hashString("var a = 3;") + "_" +
+			hashString("var a = 6;") + ".diff").exists());
+		assertTrue(deltaFile(resourceHash, hashString("var a = 4;") + "_" +
+			hashString("var a = 5;") + ".diff").exists());
+		
+		// A client five versions behind is sent the deltas to the fifth
+		// version and then to the sixth.
+		ResourceRequest req = new ResourceRequest();
+		req.setRequest(null, resourceHash + "_" + hashString("var a = 1;") +
+			"_" + hashString("var a = 6;") + ".diff");
+		mgr.getResource(req);
+		assertNull(req.getArtifact());
+		assertTrue(req.getResponse().startsWith("[["));
+		assertEquals("var a = 6;",
+			Patcher.applyChain("var a = 1;", req.getResponse()));
+		
+		// Versions that were never stored still get the latest version.
+		req = new ResourceRequest();
+		req.setRequest(null, resourceHash + "_aa_" +
+			hashString("var a = 6;") + ".diff");
+		mgr.getResource(req);
+		assertEquals("[\"var a = 6;\"]", req.getResponse());
+	}
 }
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestLimitRetentionPolicy {
+	
+	private static final long DAY = 24L * 60 * 60 * 1000;
+	private static final long NOW = 100 * DAY;
+	
+	/**
+	 * Builds a history of versions 'a', 'b', ... each a day newer and 100
+	 * bytes larger than the previous, the last stored now.
+	 */
+	private List<VersionRecord> history(int versions) {
+		List<VersionRecord> history = new ArrayList<VersionRecord>();
+		for (int i = 0; i < versions; i++) {
+			history.add(new VersionRecord(String.valueOf((char) ('a' + i)),
+				NOW - (versions - 1 - i) * DAY, 100 * (i + 1)));
+		}
+		return history;
+	}
+	
+	@Test
+	public void testKeepsEverythingByDefault() {
+		assertTrue(new LimitRetentionPolicy()
+			.getExpiredVersions(history(5), NOW).isEmpty());
+	}
+	
+	@Test
+	public void testVersionLimit() {
+		assertEquals(Arrays.asList("b", "a"), new LimitRetentionPolicy(3, 0, 0)
+			.getExpiredVersions(history(5), NOW));
+		assertTrue(new LimitRetentionPolicy(5, 0, 0)
+			.getExpiredVersions(history(5), NOW).isEmpty());
+	}
+	
+	@Test
+	public void testAgeLimit() {
+		// 'c' was stored exactly two days ago.
+		assertEquals(Arrays.asList("b", "a"), new LimitRetentionPolicy(0, 2, 0)
+			.getExpiredVersions(history(5), NOW));
+	}
+	
+	@Test
+	public void testByteLimit() {
+		// 'e' and 'd' take 900 bytes, 'c' would bring them to 1200.
+		assertEquals(Arrays.asList("c", "b", "a"),
+			new LimitRetentionPolicy(0, 0, 1000)
+				.getExpiredVersions(history(5), NOW));
+	}
+	
+	@Test
+	public void testLatestNeverExpires() {
+		assertTrue(new LimitRetentionPolicy(1, 1, 1)
+			.getExpiredVersions(history(1), NOW + 10 * DAY).isEmpty());
+		assertEquals(Arrays.asList("a"), new LimitRetentionPolicy(0, 0, 1)
+			.getExpiredVersions(history(2), NOW));
+	}
+	
+	@Test
+	public void testOldestEvictedFirst() {
+		// A version within the limits is still expired if an older one is
+		// kept past them, so a newer version never goes before an older one.
+		List<VersionRecord> history = history(3);
+		history.set(0, new VersionRecord("a", NOW, 1));
+		assertEquals(Arrays.asList("b", "a"), new LimitRetentionPolicy(0, 0, 350)
+			.getExpiredVersions(history, NOW));
+	}
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestManifestJournal {
+	private File tempDir;
+	private File manifestFile;
+	private File journalFile;
+	
+	@Before
+	public void setUp() {
+		tempDir = new File(System.getProperty("user.dir"), "temp");
+		deleteDir(tempDir);
+		tempDir.mkdir();
+		manifestFile = new File(tempDir, "diffable.manifest");
+		journalFile = new File(tempDir, "diffable.manifest.journal");
+	}
+	
+	@After
+	public void tearDown() {
+		deleteDir(tempDir);
+	}
+	
+	private void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+	
+	private Properties reload() throws Exception {
+		ManifestJournal journal = new ManifestJournal(manifestFile, 1000);
+		Properties manifest = journal.load();
+		journal.close();
+		return manifest;
+	}
+	
+	@Test
+	public void testReplay() throws Throwable {
+		ManifestJournal journal = new ManifestJournal(manifestFile, 1000);
+		assertTrue(journal.isNew());
+		Properties manifest = journal.load();
+		manifest.setProperty("/a.js", "aa");
+		journal.put("/a.js", "aa");
+		manifest.setProperty("/b.js", "bb");
+		journal.put("/b.js", "bb");
+		manifest.remove("/a.js");
+		journal.remove("/a.js");
+		assertEquals(3, journal.getPendingRecords());
+		// Nothing is written until the batch is flushed.
+		assertFalse(journalFile.exists());
+		journal.flush();
+		journal.close();
+		assertFalse(manifestFile.exists());
+		
+		Properties reloaded = reload();
+		assertEquals(1, reloaded.size());
+		assertEquals("bb", reloaded.getProperty("/b.js"));
+	}
+	
+	@Test
+	public void testTornRecordDropped() throws Throwable {
+		ManifestJournal journal = new ManifestJournal(manifestFile, 1000);
+		journal.load();
+		journal.put("/a.js", "aa");
+		journal.flush();
+		long firstLength = journalFile.length();
+		journal.put("/b.js", "bb");
+		journal.flush();
+		journal.close();
+		
+		// Cut the second record short, as a crash mid-write would.
+		RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+		file.setLength(journalFile.length() - 3);
+		file.close();
+		Properties reloaded = reload();
+		assertEquals(1, reloaded.size());
+		assertEquals("aa", reloaded.getProperty("/a.js"));
+		
+		// Corrupt the contents of the first record.
+		file = new RandomAccessFile(journalFile, "rw");
+		file.seek(firstLength - 1);
+		file.write('x');
+		file.close();
+		assertTrue(reload().isEmpty());
+	}
+	
+	@Test
+	public void testCheckpoint() throws Throwable {
+		ManifestJournal journal = new ManifestJournal(manifestFile, 4);
+		Properties manifest = journal.load();
+		for (int i = 0; i < 3; i++) {
+			manifest.setProperty("/" + i + ".js", "h" + i);
+			journal.put("/" + i + ".js", "h" + i);
+			journal.flush();
+		}
+		assertFalse(manifestFile.exists());
+		manifest.setProperty("/3.js", "h3");
+		journal.put("/3.js", "h3");
+		journal.flush();
+		journal.close();
+		// The fourth record folds the journal into the checkpoint.
+		assertEquals(0L, journalFile.length());
+		Properties checkpoint = new Properties();
+		FileInputStream in = new FileInputStream(manifestFile);
+		checkpoint.load(in);
+		in.close();
+		assertEquals(4, checkpoint.size());
+		assertEquals(4, reload().size());
+		assertFalse(new File(tempDir, "diffable.manifest.tmp").exists());
+	}
+	
+	@Test
+	public void testLoadsPropertiesManifest() throws Throwable {
+		// Manifests written before the journal are plain Properties files.
+		Properties old = new Properties();
+		old.setProperty("/a.js", "aa");
+		FileOutputStream out = new FileOutputStream(manifestFile);
+		old.store(out, null);
+		out.close();
+		
+		ManifestJournal journal = new ManifestJournal(manifestFile, 1000);
+		assertFalse(journal.isNew());
+		Properties manifest = journal.load();
+		assertEquals("aa", manifest.getProperty("/a.js"));
+		manifest.setProperty("/b.js", "bb");
+		journal.put("/b.js", "bb");
+		journal.flush();
+		journal.close();
+		assertEquals(2, reload().size());
+	}
+}
@@ -0,0 +1,247 @@
+/**
+ * Copyright 2010 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.diffable.config.BaseModule;
+import com.google.diffable.diff.vcdiff.VCDiff;
+import com.google.diffable.utils.IOUtils;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+
+public class TestMemoryResourceManager {
+	private File tempDir;
+	private File scripts;
+	private File resource;
+	private Injector inj;
+	private MemoryResourceManager mgr;
+	private DiffableContext ctx;
+	
+	@Before
+	public void setUp() throws Exception {
+		tempDir = new File(System.getProperty("user.dir"), "temp");
+		deleteDir(tempDir);
+		scripts = new File(tempDir, "scripts");
+		scripts.mkdirs();
+		resource = new File(scripts, "a.js");
+		inj = Guice.createInjector();
+		mgr = inj.getInstance(MemoryResourceManager.class);
+		ctx = new DiffableContext();
+		ctx.setFolder(Arrays.asList(scripts));
+		mgr.initialize(tempDir.getAbsolutePath(), ctx);
+	}
+	
+	@After
+	public void tearDown() {
+		deleteDir(tempDir);
+	}
+	
+	private void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					deleteDir(file);
+				} else {
+					file.delete();
+				}
+			}
+		}
+		dir.delete();
+	}
+	
+	private String hash(String input) throws Exception {
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		return String.format("%032x",
+			new BigInteger(1, md5.digest(input.getBytes("UTF-8"))));
+	}
+	
+	private void write(String contents, int tick) throws IOException {
+		FileOutputStream out = new FileOutputStream(resource);
+		out.write(contents.getBytes());
+		out.close();
+		resource.setLastModified(System.currentTimeMillis() - 60000 + tick);
+	}
+	
+	private ResourceRequest request(String request) throws Exception {
+		ResourceRequest req = new ResourceRequest();
+		req.setRequest(null, request);
+		return req;
+	}
+	
+	@Test
+	public void testPutAndGetResource() throws Exception {
+		write("var a = 1;", 1);
+		mgr.putResource(resource);
+		assertTrue(mgr.isManaged(resource));
+		assertFalse(mgr.hasResourceChanged(resource));
+		assertEquals(hash("a.js"), ctx.getResourceHash(resource));
+		assertEquals(hash("var a = 1;"), ctx.getCurrentVersion(resource));
+		
+		write("var a = 2;", 2);
+		assertTrue(mgr.hasResourceChanged(resource));
+		mgr.putResource(resource);
+		assertEquals(hash("var a = 2;"), ctx.getCurrentVersion(resource));
+		
+		ResourceRequest req = request(hash("a.js") + "_" +
+			hash("var a = 1;") + "_" + hash("var a = 2;") + ".diff");
+		mgr.getResource(req);
+		assertNotNull(req.getArtifact());
+		assertEquals(inj.getInstance(VCDiff.class).getDiffAsString(
+			"var a = 1;", "var a = 2;"), req.getResponse());
+		
+		// Deltas that aren't stored are answered with the latest version.
+		req = request(hash("a.js") + "_aa_" + hash("var a = 2;") + ".diff");
+		mgr.getResource(req);
+		assertNull(req.getArtifact());
+		assertEquals("[\"var a = 2;\"]", req.getResponse());
+		
+		req = request(hash("a.js"));
+		mgr.getResource(req);
+		assertEquals("var a = 2;", req.getResponse());
+		assertEquals(hash("var a = 2;"), req.getNewVersionHash());
+		
+		mgr.deleteResource(resource);
+		assertFalse(mgr.isManaged(resource));
+		assertTrue(mgr.getManagedResources().isEmpty());
+	}
+	
+	@Test
+	public void testSnapshot() throws Exception {
+		write("var a = 1;", 1);
+		mgr.putResource(resource);
+		write("var a = 2;", 2);
+		mgr.putResource(resource);
+		ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+		mgr.exportSnapshot(snapshot);
+		File snapshotFile = new File(tempDir, "diffable.snapshot");
+		IOUtils.write(snapshotFile, snapshot.toByteArray());
+		
+		// A new manager loads the snapshot when it is initialized.
+		DiffableContext restoredCtx = new DiffableContext();
+		restoredCtx.setFolder(Arrays.asList(scripts));
+		MemoryResourceManager restored = Guice.createInjector(
+			new AbstractModule() {
+				@Override
+				protected void configure() {
+					bindConstant().annotatedWith(
+						Names.named("ResourceSnapshotPath")).to(
+							"diffable.snapshot");
+				}
+			}).getInstance(MemoryResourceManager.class);
+		restored.initialize(tempDir.getAbsolutePath(), restoredCtx);
+		assertTrue(restored.isManaged(resource));
+		assertEquals(hash("var a = 2;"),
+			restoredCtx.getCurrentVersion(resource));
+		// The resource is compared with its imported version once.
+		assertFalse(restored.hasResourceChanged(resource));
+		ResourceRequest req = request(hash("a.js") + "_" +
+			hash("var a = 1;") + "_" + hash("var a = 2;") + ".diff");
+		restored.getResource(req);
+		assertNotNull(req.getArtifact());
+		
+		// Exporting the imported snapshot gives the same bytes.
+		ByteArrayOutputStream exported = new ByteArrayOutputStream();
+		restored.exportSnapshot(exported);
+		assertTrue(Arrays.equals(snapshot.toByteArray(),
+			exported.toByteArray()));
+		
+		try {
+			restored.importSnapshot(
+				new ByteArrayInputStream("not a snapshot".getBytes()));
+			fail();
+		} catch (IOException exc) {
+			// Expected.
+		}
+		assertTrue(restored.isManaged(resource));
+	}
+	
+	@Test
+	public void testSnapshotRecordsCharset() throws Exception {
+		IOUtils.write(resource, "var a = '\u00e9';".getBytes("UTF-8"));
+		mgr.putResource(resource);
+		ResourceRequest req = request(hash("a.js"));
+		mgr.getResource(req);
+		assertEquals("var a = '\u00e9';", req.getResponse());
+		
+		// A snapshot is decoded with the charset it records, whatever the
+		// platform's.
+		ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+		mgr.exportSnapshot(snapshot);
+		byte[] exported = snapshot.toByteArray();
+		ByteArrayOutputStream recoded = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(recoded);
+		data.write(exported, 0, 8);
+		data.writeUTF("ISO-8859-1");
+		int header = 8 + 2 + "UTF-8".length();
+		data.write(exported, header, exported.length - header);
+		data.flush();
+		mgr.importSnapshot(new ByteArrayInputStream(recoded.toByteArray()));
+		req = request(hash("a.js"));
+		mgr.getResource(req);
+		assertEquals("var a = '\u00c3\u00a9';", req.getResponse());
+	}
+	
+	@Test
+	public void testBakeSnapshot() throws Exception {
+		write("var a = 1;", 1);
+		File snapshot = new File(tempDir, "baked.snapshot");
+		MemoryResourceManager.main(new String[] {
+			snapshot.getAbsolutePath(), scripts.getAbsolutePath()});
+		write("var a = 2;", 2);
+		MemoryResourceManager.main(new String[] {
+			snapshot.getAbsolutePath(), scripts.getAbsolutePath()});
+		
+		mgr.importSnapshot(new ByteArrayInputStream(IOUtils.read(snapshot)));
+		assertEquals(hash("var a = 2;"), ctx.getCurrentVersion(resource));
+		ResourceRequest req = request(hash("a.js") + "_" +
+			hash("var a = 1;") + "_" + hash("var a = 2;") + ".diff");
+		mgr.getResource(req);
+		assertNotNull(req.getArtifact());
+	}
+	
+	@Test
+	public void testSelectedByBaseModule() {
+		Properties props = new Properties();
+		props.put(ResourceManager.class.getName(),
+			MemoryResourceManager.class.getName());
+		assertTrue(Guice.createInjector(new BaseModule(props)).getInstance(
+			ResourceManager.class) instanceof MemoryResourceManager);
+	}
+}
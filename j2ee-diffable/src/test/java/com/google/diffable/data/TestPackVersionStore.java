@@ -0,0 +1,275 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.diffable.config.DiffableModule;
+import com.google.diffable.utils.IOUtils;
+import com.google.inject.Guice;
+
+public class TestPackVersionStore {
+	private File tempDir;
+	private File folder;
+	private PackVersionStore store;
+	
+	@Before
+	public void setUp() throws Throwable {
+		tempDir = new File(System.getProperty("user.dir"), "temp");
+		if (tempDir.exists()) {
+			deleteDir(tempDir);
+		}
+		tempDir.mkdir();
+		folder = new File(tempDir, "resource");
+		folder.mkdir();
+		store = createStore();
+	}
+	
+	private PackVersionStore createStore() throws Throwable {
+		return createStore(new Properties());
+	}
+	
+	private PackVersionStore createStore(Properties props) throws Throwable {
+		props.put("PackMinDeadBytes", "1000");
+		PackVersionStore store = Guice.createInjector(
+			new DiffableModule(props)).getInstance(PackVersionStore.class);
+		store.initialize(tempDir);
+		return store;
+	}
+	
+	@After
+	public void tearDown() {
+		deleteDir(tempDir);
+	}
+	
+	private void deleteDir(File dir) {
+		for (File tempFile : dir.listFiles()) {
+			if (tempFile.isDirectory()) {
+				deleteDir(tempFile);
+			} else {
+				tempFile.delete();
+			}
+		}
+		dir.delete();
+	}
+	
+	private byte[] randomBytes(long seed, int length) {
+		byte[] bytes = new byte[length];
+		new Random(seed).nextBytes(bytes);
+		return bytes;
+	}
+	
+	@Test
+	public void testPutAndGet() throws Throwable {
+		byte[] v1 = randomBytes(1, 5000);
+		byte[] v2 = randomBytes(2, 3000);
+		store.putVersion(folder, "v1", v1);
+		store.putVersion(folder, "v2", v2);
+		store.putArtifact(folder, "v1_v2.diff", "[0,1,]".getBytes());
+		assertTrue(store.hasVersion(folder, "v1"));
+		assertFalse(store.hasVersion(folder, "v1_v2.diff"));
+		assertTrue(store.hasArtifact(folder, "v1_v2.diff"));
+		assertTrue(Arrays.equals(v1, store.getVersion(folder, "v1")));
+		assertTrue(Arrays.equals(v2, store.getVersion(folder, "v2")));
+		assertNull(store.getVersion(folder, "v3"));
+		assertEquals(2, store.getVersions(folder).size());
+		assertEquals(2, folder.list().length);
+		
+		// Everything is read back from the pack by a new store.
+		store = createStore();
+		assertTrue(Arrays.equals(v1, store.getVersion(folder, "v1")));
+		assertTrue(Arrays.equals(v2, store.getVersion(folder, "v2")));
+		assertEquals("[0,1,]",
+			new String(store.getArtifact(folder, "v1_v2.diff")));
+	}
+	
+	@Test
+	public void testManyEntries() throws Throwable {
+		// Enough to grow both the mapped index and the table of keys.
+		for (int i = 0; i < 200; i++) {
+			store.putArtifact(folder, i + ".diff", randomBytes(i, 10));
+		}
+		store.deleteArtifact(folder, "7.diff");
+		store = createStore();
+		assertEquals(199, store.getArtifacts(folder).size());
+		assertFalse(store.hasArtifact(folder, "7.diff"));
+		assertTrue(Arrays.equals(randomBytes(150, 10),
+			store.getArtifact(folder, "150.diff")));
+	}
+	
+	@Test
+	public void testEmptyEntry() throws Throwable {
+		store.putVersion(folder, "empty", new byte[0]);
+		assertEquals(0, store.getVersion(folder, "empty").length);
+	}
+	
+	@Test
+	public void testReplaceAndDelete() throws Throwable {
+		store.putVersion(folder, "v1", randomBytes(1, 100));
+		byte[] replaced = randomBytes(2, 100);
+		store.putVersion(folder, "v1", replaced);
+		store.putVersion(folder, "v2", randomBytes(3, 100));
+		store.deleteVersion(folder, "v2");
+		assertFalse(store.hasVersion(folder, "v2"));
+		store = createStore();
+		assertTrue(Arrays.equals(replaced, store.getVersion(folder, "v1")));
+		assertFalse(store.hasVersion(folder, "v2"));
+		assertEquals(1, store.getVersions(folder).size());
+	}
+	
+	@Test
+	public void testDeleteArtifactsCompacts() throws Throwable {
+		byte[] version = randomBytes(1, 500);
+		store.putVersion(folder, "v1", version);
+		for (int i = 0; i < 10; i++) {
+			store.putArtifact(folder, i + ".diff", randomBytes(i, 500));
+		}
+		long size = store.getPackSize(folder);
+		store.deleteArtifacts(folder);
+		assertFalse(store.hasArtifact(folder, "0.diff"));
+		assertTrue(store.getPackSize(folder) < size / 5);
+		assertTrue(new File(folder, "pack.1.data").exists());
+		assertFalse(new File(folder, "pack.0.data").exists());
+		store = createStore();
+		assertTrue(Arrays.equals(version, store.getVersion(folder, "v1")));
+		assertFalse(store.hasArtifact(folder, "0.diff"));
+	}
+	
+	@Test
+	public void testTornRecordIgnored() throws Throwable {
+		byte[] version = randomBytes(1, 500);
+		store.putVersion(folder, "v1", version);
+		store.putVersion(folder, "v2", randomBytes(2, 500));
+		// Cut the data of the last version and half its index record.
+		RandomAccessFile data =
+			new RandomAccessFile(new File(folder, "pack.0.data"), "rw");
+		data.setLength(700);
+		data.close();
+		File indexFile = new File(folder, "pack.0.idx");
+		RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+		index.setLength(PackVersionStore.INDEX_HEADER_SIZE +
+			store.getRecordSize() * 3 / 2);
+		index.close();
+		
+		store = createStore();
+		assertTrue(Arrays.equals(version, store.getVersion(folder, "v1")));
+		assertFalse(store.hasVersion(folder, "v2"));
+		byte[] v3 = randomBytes(3, 500);
+		store.putVersion(folder, "v3", v3);
+		store = createStore();
+		assertTrue(Arrays.equals(v3, store.getVersion(folder, "v3")));
+	}
+	
+	@Test
+	public void testImportsLooseFiles() throws Throwable {
+		byte[] version = randomBytes(1, 500);
+		IOUtils.write(new File(folder, "v1.version"), version);
+		IOUtils.write(new File(folder, "v0_v1.diff"), "[0,1,]".getBytes());
+		assertTrue(Arrays.equals(version, store.getVersion(folder, "v1")));
+		assertTrue(store.hasArtifact(folder, "v0_v1.diff"));
+		assertFalse(new File(folder, "v1.version").exists());
+		assertFalse(new File(folder, "v0_v1.diff").exists());
+	}
+	
+	@Test(expected=IOException.class)
+	public void testKeyTooLong() throws Throwable {
+		char[] name = new char[store.getMaxKeyLength() + 1];
+		Arrays.fill(name, 'a');
+		store.putArtifact(folder, new String(name), new byte[1]);
+	}
+	
+	private String getDeltaName(int hashLength) {
+		char[] hash = new char[hashLength];
+		Arrays.fill(hash, 'f');
+		return new String(hash) + "_" + new String(hash) + ".diff.deflate";
+	}
+	
+	@Test
+	public void testKeysSizedForDigest() throws Throwable {
+		Properties props = new Properties();
+		props.put("ContentDigest", "SHA-256");
+		store = createStore(props);
+		String name = getDeltaName(64);
+		assertTrue(name.length() <= store.getMaxKeyLength());
+		store.putArtifact(folder, name, "[0,1,]".getBytes());
+		store = createStore(props);
+		assertEquals("[0,1,]", new String(store.getArtifact(folder, name)));
+		
+		// The key length is read from the index, whatever the digest.
+		store = createStore();
+		assertTrue(store.hasArtifact(folder, name));
+	}
+	
+	@Test
+	public void testIndexForAnotherDigest() throws Throwable {
+		store.putVersion(folder, "v1", "var a".getBytes());
+		assertTrue(new File(folder, "pack.0.idx").exists());
+		
+		// A key too long for the MD5 index compacts it first.
+		Properties props = new Properties();
+		props.put("ContentDigest", "SHA-256");
+		store = createStore(props);
+		String name = getDeltaName(64);
+		store.putArtifact(folder, name, "[0,1,]".getBytes());
+		assertFalse(new File(folder, "pack.0.idx").exists());
+		store = createStore(props);
+		assertEquals("var a", new String(store.getVersion(folder, "v1")));
+		assertEquals("[0,1,]", new String(store.getArtifact(folder, name)));
+	}
+	
+	@Test
+	public void testDeleteResource() throws Throwable {
+		store.putVersion(folder, "v1", randomBytes(1, 500));
+		store.deleteResource(folder);
+		assertFalse(folder.exists());
+		assertFalse(store.hasVersion(folder, "v1"));
+		assertFalse(folder.exists());
+	}
+	
+	@Test
+	public void testOpenArtifact() throws Throwable {
+		byte[] diff = randomBytes(1, 500);
+		store.putArtifact(folder, "v1_v2.diff", diff);
+		assertNull(store.openArtifact(folder, "v2_v3.diff"));
+		StoredArtifact artifact = store.openArtifact(folder, "v1_v2.diff");
+		assertEquals(500L, artifact.getLength());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		artifact.writeTo(Channels.newChannel(out));
+		assertTrue(Arrays.equals(diff, out.toByteArray()));
+		
+		// The handle still reads the old contents after a compaction.
+		artifact = store.openArtifact(folder, "v1_v2.diff");
+		store.putArtifact(folder, "v1_v2.diff", randomBytes(2, 5000));
+		store.compact(folder);
+		assertTrue(Arrays.equals(diff, artifact.getBytes()));
+	}
+}
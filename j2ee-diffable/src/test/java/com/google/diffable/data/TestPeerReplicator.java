@@ -0,0 +1,327 @@
+/**
+ * Copyright 2010 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.diffable.diff.Differ;
+import com.google.diffable.diff.vcdiff.VCDiff;
+import com.google.diffable.utils.IOUtils;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestPeerReplicator {
+	private static final String SECRET = "secret";
+	
+	private File tempDir;
+	private HttpServer[] servers = new HttpServer[2];
+	private PeerReplicator[] replicators = new PeerReplicator[2];
+	private FileResourceManager[] managers = new FileResourceManager[2];
+	private CountingDiffer[] differs = new CountingDiffer[2];
+	private DiffableContext[] contexts = new DiffableContext[2];
+	private int[] fetches = new int[2];
+	private boolean[] failing = new boolean[2];
+	
+	/**
+	 * Counts the deltas a manager generates itself.
+	 */
+	private static class CountingDiffer implements Differ {
+		private final Differ differ;
+		private int diffs = 0;
+		
+		public CountingDiffer(Differ differ) {
+			this.differ = differ;
+		}
+		
+		public String getDiffAsString(String dict, String target) {
+			diffs++;
+			return differ.getDiffAsString(dict, target);
+		}
+	}
+	
+	@Before
+	public void setUp() throws Exception {
+		tempDir = new File(System.getProperty("user.dir"), "temp");
+		deleteDir(tempDir);
+		tempDir.mkdir();
+		// Each node serves its replicator over HTTP on localhost, standing
+		// in for its DiffableServlet.
+		String[] urls = new String[servers.length];
+		for (int i = 0; i < servers.length; i++) {
+			final int node = i;
+			servers[i] = HttpServer.create(
+				new InetSocketAddress("localhost", 0), 0);
+			servers[i].createContext("/diffable/", new HttpHandler() {
+				@Override
+				public void handle(HttpExchange exchange) throws IOException {
+					ByteArrayOutputStream body = new ByteArrayOutputStream();
+					IOUtils.copy(exchange.getRequestBody(), body, true);
+					if (exchange.getRequestURI().getPath().contains(
+							PeerReplicator.ARTIFACTS_PATH)) {
+						fetches[node]++;
+					}
+					if (failing[node]) {
+						exchange.sendResponseHeaders(500, -1);
+						exchange.close();
+						return;
+					}
+					PeerReplicator.Response response = replicators[node].handle(
+						exchange.getRequestMethod(),
+						exchange.getRequestURI().getPath().substring(
+							("/diffable/" + PeerReplicator.PATH_PREFIX)
+							.length()),
+						exchange.getRequestHeaders().getFirst(
+							PeerReplicator.TIME_HEADER),
+						exchange.getRequestHeaders().getFirst(
+							PeerReplicator.SIGNATURE_HEADER),
+						body.toByteArray());
+					byte[] contents = response.getBody();
+					exchange.sendResponseHeaders(response.getStatus(),
+						contents.length == 0 ? -1 : contents.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(contents);
+					out.close();
+				}
+			});
+			servers[i].start();
+			urls[i] = "http://localhost:" +
+				servers[i].getAddress().getPort() + "/diffable";
+		}
+		for (int i = 0; i < servers.length; i++) {
+			final String url = urls[i];
+			final String peer = urls[(i + 1) % urls.length];
+			Injector inj = Guice.createInjector(new AbstractModule() {
+				@Override
+				protected void configure() {
+					bindConstant().annotatedWith(
+						Names.named("ReplicationPeers")).to(peer);
+					bindConstant().annotatedWith(
+						Names.named("ReplicationUrl")).to(url);
+					bindConstant().annotatedWith(
+						Names.named("ReplicationSecret")).to(SECRET);
+				}
+			});
+			replicators[i] = inj.getInstance(PeerReplicator.class);
+			managers[i] = inj.getInstance(FileResourceManager.class);
+			differs[i] = new CountingDiffer(inj.getInstance(VCDiff.class));
+			managers[i].setDiffer(differs[i]);
+			contexts[i] = new DiffableContext();
+			File scripts = scripts(i);
+			scripts.mkdirs();
+			contexts[i].setFolder(Arrays.asList(scripts));
+			managers[i].initialize(
+				new File(tempDir, "web" + i).getAbsolutePath(), contexts[i]);
+		}
+	}
+	
+	@After
+	public void tearDown() {
+		for (FileResourceManager manager : managers) {
+			if (manager != null) {
+				manager.shutdown();
+			}
+		}
+		for (HttpServer server : servers) {
+			if (server != null) {
+				server.stop(0);
+			}
+		}
+		deleteDir(tempDir);
+	}
+	
+	private void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					deleteDir(file);
+				} else {
+					file.delete();
+				}
+			}
+		}
+		dir.delete();
+	}
+	
+	private File scripts(int node) {
+		return new File(tempDir, "web" + node + File.separator + "scripts");
+	}
+	
+	private File deltaFile(int node, String deltaName) throws Exception {
+		return new File(tempDir, "web" + node + File.separator +
+			".diffable" + File.separator + hash("a.js") + File.separator +
+			deltaName);
+	}
+	
+	private String hash(String input) throws Exception {
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		return String.format("%032x",
+			new BigInteger(1, md5.digest(input.getBytes("UTF-8"))));
+	}
+	
+	/**
+	 * Writes the resource on a node and has its manager put it.
+	 */
+	private void put(int node, String contents, int tick) throws Exception {
+		File resource = new File(scripts(node), "a.js");
+		FileOutputStream out = new FileOutputStream(resource);
+		out.write(contents.getBytes());
+		out.close();
+		resource.setLastModified(System.currentTimeMillis() - 60000 + tick);
+		managers[node].putResource(resource);
+	}
+	
+	/**
+	 * Waits for a node to receive the advertisement of a version.
+	 */
+	private void awaitAdvertisement(int node, String version)
+	throws Exception {
+		for (int i = 0; i < 100 && replicators[node].getAdvertisedArtifacts(
+			hash("a.js"), version) == null; i++) {
+			Thread.sleep(50);
+		}
+		assertNotNull(replicators[node].getAdvertisedArtifacts(
+			hash("a.js"), version));
+	}
+	
+	@Test
+	public void testDeltasFetchedFromPeer() throws Exception {
+		put(0, "var a = 1;", 1);
+		put(1, "var a = 1;", 1);
+		put(0, "var a = 2;", 2);
+		assertEquals(1, differs[0].diffs);
+		String version = hash("var a = 2;");
+		awaitAdvertisement(1, version);
+		
+		put(1, "var a = 2;", 2);
+		assertEquals(0, differs[1].diffs);
+		assertEquals(version,
+			contexts[1].getCurrentVersion(new File(scripts(1), "a.js")));
+		String deltaName = hash("var a = 1;") + "_" + version + ".diff";
+		assertTrue(Arrays.equals(IOUtils.read(deltaFile(0, deltaName)),
+			IOUtils.read(deltaFile(1, deltaName))));
+	}
+	
+	@Test
+	public void testCorruptArtifactGeneratedLocally() throws Exception {
+		put(0, "var a = 1;", 1);
+		put(1, "var a = 1;", 1);
+		put(0, "var a = 2;", 2);
+		String version = hash("var a = 2;");
+		awaitAdvertisement(1, version);
+		String deltaName = hash("var a = 1;") + "_" + version + ".diff";
+		IOUtils.write(deltaFile(0, deltaName), "[\"tampered\"]".getBytes());
+		
+		put(1, "var a = 2;", 2);
+		assertEquals(1, differs[1].diffs);
+		assertFalse(Arrays.equals(IOUtils.read(deltaFile(0, deltaName)),
+			IOUtils.read(deltaFile(1, deltaName))));
+	}
+	
+	@Test
+	public void testDeltasFetchedInOneRequest() throws Exception {
+		put(0, "var a = 1;", 1);
+		put(0, "var a = 2;", 2);
+		put(1, "var a = 1;", 1);
+		put(1, "var a = 2;", 2);
+		put(0, "var a = 3;", 3);
+		String version = hash("var a = 3;");
+		awaitAdvertisement(1, version);
+		
+		// Both deltas to the new version come in the same request.
+		int diffs = differs[1].diffs;
+		int served = fetches[0];
+		put(1, "var a = 3;", 3);
+		assertEquals(diffs, differs[1].diffs);
+		assertEquals(served + 1, fetches[0]);
+	}
+	
+	@Test
+	public void testFailedPeerSkipped() throws Exception {
+		put(0, "var a = 1;", 1);
+		put(1, "var a = 1;", 1);
+		put(0, "var a = 2;", 2);
+		String version = hash("var a = 2;");
+		awaitAdvertisement(1, version);
+		
+		// Once the peer fails, it isn't asked again for a while.
+		failing[0] = true;
+		String deltaName = hash("var a = 1;") + "_" + version + ".diff";
+		assertTrue(replicators[1].fetchAll(hash("a.js"), version,
+			Arrays.asList(deltaName)).isEmpty());
+		int served = fetches[0];
+		put(1, "var a = 2;", 2);
+		assertEquals(1, differs[1].diffs);
+		assertEquals(served, fetches[0]);
+	}
+	
+	@Test
+	public void testRequestsAuthenticated() throws Exception {
+		put(0, "var a = 1;", 1);
+		put(0, "var a = 2;", 2);
+		String path = PeerReplicator.ARTIFACTS_PATH + hash("a.js");
+		String deltaName = hash("var a = 1;") + "_" + hash("var a = 2;") +
+			".diff";
+		byte[] names = (deltaName + "\n").getBytes("UTF-8");
+		String time = Long.toString(System.currentTimeMillis());
+		String signature = replicators[0].sign("POST", path, time, names);
+		PeerReplicator.Response response =
+			replicators[0].handle("POST", path, time, signature, names);
+		assertEquals(200, response.getStatus());
+		assertTrue(new String(response.getBody(), "UTF-8").contains(deltaName));
+		assertEquals(403, replicators[0].handle("POST", path, time,
+			replicators[0].sign("GET", path, time, names), names)
+			.getStatus());
+		assertEquals(403, replicators[0].handle(
+			"POST", path, null, signature, names).getStatus());
+		
+		// Stale requests are refused even if they are signed.
+		String stale = Long.toString(System.currentTimeMillis() -
+			PeerReplicator.MAX_CLOCK_SKEW - 60000);
+		assertEquals(403, replicators[0].handle("POST", path, stale,
+			replicators[0].sign("POST", path, stale, names), names)
+			.getStatus());
+		
+		// Only advertised artifacts are served.
+		byte[] manifest = "versions.history\n".getBytes("UTF-8");
+		response = replicators[0].handle("POST", path, time,
+			replicators[0].sign("POST", path, time, manifest), manifest);
+		assertEquals(200, response.getStatus());
+		assertEquals(0, response.getBody().length);
+	}
+}
@@ -0,0 +1,339 @@
+/**
+ * Copyright 2010 Google Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.diffable.diff.Differ;
+import com.google.diffable.diff.vcdiff.VCDiff;
+import com.google.diffable.utils.IOUtils;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.name.Names;
+
+public class TestRemoteArtifactCache {
+	private File tempDir;
+	private StandInServer server;
+	private FileResourceManager[] managers = new FileResourceManager[2];
+	private CountingDiffer[] differs = new CountingDiffer[2];
+	private DiffableContext[] contexts = new DiffableContext[2];
+	
+	/**
+	 * Counts the deltas a manager generates itself.
+	 */
+	private static class CountingDiffer implements Differ {
+		private final Differ differ;
+		private int diffs = 0;
+		
+		public CountingDiffer(Differ differ) {
+			this.differ = differ;
+		}
+		
+		public String getDiffAsString(String dict, String target) {
+			diffs++;
+			return differ.getDiffAsString(dict, target);
+		}
+	}
+	
+	/**
+	 * Answers the get and set commands of the memcached text protocol,
+	 * standing in for a cache server.  A silent server accepts connections
+	 * but never replies.
+	 */
+	private static class StandInServer implements Runnable {
+		private final ServerSocket socket;
+		private final boolean silent;
+		final Map<String, byte[]> values =
+			new ConcurrentHashMap<String, byte[]>();
+		final AtomicInteger connections = new AtomicInteger();
+		final AtomicInteger gets = new AtomicInteger();
+		
+		StandInServer(boolean silent) throws IOException {
+			this.silent = silent;
+			socket = new ServerSocket(0, 50, InetAddress.getByName("localhost"));
+			Thread thread = new Thread(this, "standInCache");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		
+		String getAddress() {
+			return "localhost:" + socket.getLocalPort();
+		}
+		
+		void close() throws IOException {
+			socket.close();
+		}
+		
+		@Override
+		public void run() {
+			while (true) {
+				final Socket client;
+				try {
+					client = socket.accept();
+				} catch (IOException exc) {
+					return;
+				}
+				connections.incrementAndGet();
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							serve(client);
+						} catch (IOException exc) {
+							// The client went away.
+						} finally {
+							try {
+								client.close();
+							} catch (IOException exc) {
+								// Ignored.
+							}
+						}
+					}
+				});
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+		
+		private void serve(Socket client) throws IOException {
+			InputStream in = new BufferedInputStream(client.getInputStream());
+			OutputStream out = client.getOutputStream();
+			String line;
+			while ((line = readLine(in)) != null) {
+				if (silent) {
+					continue;
+				}
+				String[] parts = line.split(" ");
+				ByteArrayOutputStream reply = new ByteArrayOutputStream();
+				if ("get".equals(parts[0])) {
+					gets.incrementAndGet();
+					for (int i = 1; i < parts.length; i++) {
+						byte[] value = values.get(parts[i]);
+						if (value != null) {
+							reply.write(("VALUE " + parts[i] + " 0 " +
+								value.length + "\r\n").getBytes());
+							reply.write(value);
+							reply.write("\r\n".getBytes());
+						}
+					}
+					reply.write("END\r\n".getBytes());
+				} else if ("set".equals(parts[0])) {
+					byte[] value = new byte[Integer.parseInt(parts[4])];
+					for (int read = 0; read < value.length;) {
+						read += in.read(value, read, value.length - read);
+					}
+					readLine(in);
+					values.put(parts[1], value);
+					reply.write("STORED\r\n".getBytes());
+				} else {
+					reply.write("ERROR\r\n".getBytes());
+				}
+				out.write(reply.toByteArray());
+				out.flush();
+			}
+		}
+		
+		private static String readLine(InputStream in) throws IOException {
+			StringBuilder line = new StringBuilder();
+			int next;
+			while ((next = in.read()) >= 0) {
+				if (next == '\n') {
+					return line.substring(0, line.length() - 1);
+				}
+				line.append((char) next);
+			}
+			return null;
+		}
+	}
+	
+	@Before
+	public void setUp() throws Exception {
+		tempDir = new File(System.getProperty("user.dir"), "temp");
+		deleteDir(tempDir);
+		tempDir.mkdir();
+	}
+	
+	@After
+	public void tearDown() throws Exception {
+		for (FileResourceManager manager : managers) {
+			if (manager != null) {
+				manager.shutdown();
+			}
+		}
+		if (server != null) {
+			server.close();
+		}
+		deleteDir(tempDir);
+	}
+	
+	private void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					deleteDir(file);
+				} else {
+					file.delete();
+				}
+			}
+		}
+		dir.delete();
+	}
+	
+	private Injector injector(final String servers) {
+		return Guice.createInjector(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bindConstant().annotatedWith(
+					Names.named("RemoteCacheServers")).to(servers);
+				bindConstant().annotatedWith(
+					Names.named("RemoteCacheTimeout")).to(200);
+			}
+		});
+	}
+	
+	/**
+	 * Creates a manager for each node, sharing the cache servers.
+	 */
+	private void createManagers(String servers) throws Exception {
+		for (int i = 0; i < managers.length; i++) {
+			Injector inj = injector(servers);
+			managers[i] = inj.getInstance(FileResourceManager.class);
+			differs[i] = new CountingDiffer(inj.getInstance(VCDiff.class));
+			managers[i].setDiffer(differs[i]);
+			contexts[i] = new DiffableContext();
+			File scripts = scripts(i);
+			scripts.mkdirs();
+			contexts[i].setFolder(Arrays.asList(scripts));
+			managers[i].initialize(
+				new File(tempDir, "web" + i).getAbsolutePath(), contexts[i]);
+		}
+	}
+	
+	private File scripts(int node) {
+		return new File(tempDir, "web" + node + File.separator + "scripts");
+	}
+	
+	private File deltaFile(int node, String deltaName) throws Exception {
+		return new File(tempDir, "web" + node + File.separator +
+			".diffable" + File.separator + hash("a.js") + File.separator +
+			deltaName);
+	}
+	
+	private String hash(String input) throws Exception {
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		return String.format("%032x",
+			new BigInteger(1, md5.digest(input.getBytes("UTF-8"))));
+	}
+	
+	/**
+	 * Writes the resource on a node and has its manager put it.
+	 */
+	private void put(int node, String contents, int tick) throws Exception {
+		File resource = new File(scripts(node), "a.js");
+		FileOutputStream out = new FileOutputStream(resource);
+		out.write(contents.getBytes());
+		out.close();
+		resource.setLastModified(System.currentTimeMillis() - 60000 + tick);
+		managers[node].putResource(resource);
+	}
+	
+	@Test
+	public void testDeltasSharedThroughCache() throws Exception {
+		server = new StandInServer(false);
+		createManagers(server.getAddress());
+		put(0, "var a = 1;", 1);
+		put(0, "var a = 2;", 2);
+		assertEquals(1, differs[0].diffs);
+		String deltaName = hash("var a = 1;") + "_" +
+			hash("var a = 2;") + ".diff";
+		assertTrue(server.values.containsKey(RemoteArtifactCache.KEY_PREFIX +
+			hash("a.js") + "/" + deltaName));
+		
+		put(1, "var a = 1;", 1);
+		put(1, "var a = 2;", 2);
+		assertEquals(0, differs[1].diffs);
+		assertTrue(Arrays.equals(IOUtils.read(deltaFile(0, deltaName)),
+			IOUtils.read(deltaFile(1, deltaName))));
+	}
+	
+	@Test
+	public void testMultiGetAndNearCache() throws Exception {
+		server = new StandInServer(false);
+		RemoteArtifactCache cache =
+			injector(server.getAddress()).getInstance(RemoteArtifactCache.class);
+		Map<String, byte[]> artifacts = new LinkedHashMap<String, byte[]>();
+		artifacts.put("a_c.diff", "a".getBytes());
+		artifacts.put("b_c.diff", "b".getBytes());
+		cache.putAll("r", artifacts);
+		assertEquals(2, server.values.size());
+		
+		// A second server finds both artifacts with a single request.
+		RemoteArtifactCache other =
+			injector(server.getAddress()).getInstance(RemoteArtifactCache.class);
+		Map<String, byte[]> found = other.getAll("r",
+			Arrays.asList("a_c.diff", "b_c.diff", "d_c.diff"));
+		assertEquals(2, found.size());
+		assertTrue(Arrays.equals("b".getBytes(), found.get("b_c.diff")));
+		assertEquals(1, server.gets.get());
+		
+		// Artifacts it fetched are then found in its near-cache.
+		found = other.getAll("r", Arrays.asList("a_c.diff", "b_c.diff"));
+		assertEquals(2, found.size());
+		assertEquals(1, server.gets.get());
+	}
+	
+	@Test
+	public void testUnresponsiveServerFallsBack() throws Exception {
+		server = new StandInServer(true);
+		createManagers(server.getAddress());
+		put(0, "var a = 1;", 1);
+		put(0, "var a = 2;", 2);
+		assertEquals(1, differs[0].diffs);
+		assertTrue(deltaFile(0, hash("var a = 1;") + "_" +
+			hash("var a = 2;") + ".diff").exists());
+		int connections = server.connections.get();
+		
+		// The server is skipped until it may be retried.
+		put(0, "var a = 3;", 3);
+		assertEquals(3, differs[0].diffs);
+		assertEquals(connections, server.connections.get());
+	}
+}
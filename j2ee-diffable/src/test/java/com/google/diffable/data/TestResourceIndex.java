@@ -0,0 +1,113 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.diffable.utils.IOUtils;
+
+import static org.junit.Assert.*;
+
+public class TestResourceIndex {
+	private File tempDir;
+	private File indexFile;
+	private File resource;
+	
+	@Before
+	public void setUp() throws Throwable {
+		tempDir = new File(System.getProperty("user.dir"), "temp");
+		deleteDir(tempDir);
+		tempDir.mkdir();
+		indexFile = new File(tempDir, "diffable.index");
+		resource = new File(tempDir, "a b.js");
+		FileOutputStream out = new FileOutputStream(resource);
+		out.write("var a = 1;".getBytes());
+		out.close();
+		resource.setLastModified(System.currentTimeMillis() - 60000);
+	}
+	
+	@After
+	public void tearDown() {
+		deleteDir(tempDir);
+	}
+	
+	private void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+	
+	private ResourceIndex reload() throws Exception {
+		ResourceIndex index = new ResourceIndex(indexFile);
+		index.load();
+		return index;
+	}
+	
+	@Test
+	public void testSaveAndLoad() throws Throwable {
+		ResourceIndex index = new ResourceIndex(indexFile);
+		index.load();
+		index.put(resource, "abc", FileStat.of(resource));
+		index.save();
+		assertEquals("abc", reload().getTrustedVersion(resource));
+		
+		index.remove(resource);
+		index.save();
+		assertNull(reload().getTrustedVersion(resource));
+	}
+	
+	@Test
+	public void testChangedResourceNotTrusted() throws Throwable {
+		ResourceIndex index = new ResourceIndex(indexFile);
+		index.put(resource, "abc", FileStat.of(resource));
+		resource.setLastModified(resource.lastModified() + 10000);
+		assertNull(index.getTrustedVersion(resource));
+		
+		index.put(resource, "abc", new FileStat(resource.length() + 1,
+			resource.lastModified(), FileStat.of(resource).fileKey));
+		assertNull(index.getTrustedVersion(resource));
+	}
+	
+	@Test
+	public void testRecentlyModifiedNotTrusted() throws Throwable {
+		// A resource indexed right after being modified could change again
+		// without its last modified time changing.
+		resource.setLastModified(System.currentTimeMillis());
+		ResourceIndex index = new ResourceIndex(indexFile);
+		index.put(resource, "abc", FileStat.of(resource));
+		assertNull(index.getTrustedVersion(resource));
+	}
+	
+	@Test
+	public void testCorruptLinesSkipped() throws Throwable {
+		ResourceIndex index = new ResourceIndex(indexFile);
+		index.put(resource, "abc", FileStat.of(resource));
+		index.save();
+		String contents = new String(IOUtils.read(indexFile), "UTF-8");
+		IOUtils.write(indexFile,
+			("garbage\nabc x 1 - 2 /other.js\n" + contents).getBytes("UTF-8"));
+		assertEquals("abc", reload().getTrustedVersion(resource));
+	}
+}
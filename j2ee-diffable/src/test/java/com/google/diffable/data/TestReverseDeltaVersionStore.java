@@ -0,0 +1,203 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.diffable.config.DiffableModule;
+import com.google.diffable.utils.IOUtils;
+import com.google.inject.Guice;
+
+public class TestReverseDeltaVersionStore {
+	private File tempDir;
+	private File folder;
+	private ReverseDeltaVersionStore store;
+	
+	@Before
+	public void setUp() throws Throwable {
+		tempDir = new File(System.getProperty("user.dir"), "temp");
+		if (tempDir.exists()) {
+			deleteDir(tempDir);
+		}
+		tempDir.mkdir();
+		folder = new File(tempDir, "resource");
+		folder.mkdir();
+		store = createStore();
+	}
+	
+	private ReverseDeltaVersionStore createStore() throws Throwable {
+		Properties props = new Properties();
+		props.put("ReverseDeltaCacheSize", "2");
+		ReverseDeltaVersionStore store = Guice.createInjector(
+			new DiffableModule(props))
+				.getInstance(ReverseDeltaVersionStore.class);
+		store.initialize(tempDir);
+		return store;
+	}
+	
+	@After
+	public void tearDown() {
+		deleteDir(tempDir);
+	}
+	
+	private void deleteDir(File dir) {
+		for (File tempFile : dir.listFiles()) {
+			if (tempFile.isDirectory()) {
+				deleteDir(tempFile);
+			} else {
+				tempFile.delete();
+			}
+		}
+		dir.delete();
+	}
+	
+	/**
+	 * Builds a history of versions, each a small edit of the one before.
+	 */
+	private byte[][] history(int count) {
+		Random random = new Random(1);
+		byte[][] versions = new byte[count][];
+		versions[0] = new byte[20000];
+		random.nextBytes(versions[0]);
+		for (int i = 1; i < count; i++) {
+			versions[i] = versions[i - 1].clone();
+			for (int j = 0; j < 10; j++) {
+				versions[i][random.nextInt(versions[i].length)] =
+					(byte) random.nextInt();
+			}
+		}
+		return versions;
+	}
+	
+	private int countFiles(String extension) {
+		int count = 0;
+		for (String name : folder.list()) {
+			if (name.endsWith(extension)) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	@Test
+	public void testOnlyLatestKeptInFull() throws Throwable {
+		byte[][] versions = history(5);
+		for (int i = 0; i < versions.length; i++) {
+			store.putVersion(folder, "v" + i, versions[i]);
+		}
+		assertEquals(1, countFiles(".version"));
+		assertTrue(new File(folder, "v4.version").exists());
+		assertTrue(new File(folder, "v0_v1.rdelta").exists());
+		assertEquals(5, store.getVersions(folder).size());
+		
+		long total = 0;
+		for (File file : folder.listFiles()) {
+			total += file.length();
+		}
+		assertTrue(total < versions[0].length * 2);
+		
+		// Read through a fresh store so nothing comes from the cache.
+		store = createStore();
+		for (int i = 0; i < versions.length; i++) {
+			assertTrue(store.hasVersion(folder, "v" + i));
+			assertTrue(Arrays.equals(versions[i],
+				store.getVersion(folder, "v" + i)));
+		}
+		assertFalse(store.hasVersion(folder, "v5"));
+		assertNull(store.getVersion(folder, "v5"));
+	}
+	
+	@Test
+	public void testBrokenChain() throws Throwable {
+		byte[][] versions = history(2);
+		store.putVersion(folder, "v0", versions[0]);
+		store.putVersion(folder, "v1", versions[1]);
+		
+		// A chain that loops back on itself ends the walk.
+		File delta = new File(folder, "v0_v1.rdelta");
+		new File(folder, "v1.version").delete();
+		IOUtils.write(new File(folder, "v1_v0.rdelta"), IOUtils.read(delta));
+		store = createStore();
+		assertNull(store.getVersion(folder, "v0"));
+		assertNull(store.getVersion(folder, "v1"));
+	}
+	
+	@Test
+	public void testRevertToOlderVersion() throws Throwable {
+		byte[][] versions = history(3);
+		for (int i = 0; i < versions.length; i++) {
+			store.putVersion(folder, "v" + i, versions[i]);
+		}
+		store.putVersion(folder, "v1", versions[1]);
+		assertTrue(new File(folder, "v1.version").exists());
+		assertFalse(new File(folder, "v1_v2.rdelta").exists());
+		assertTrue(new File(folder, "v2_v1.rdelta").exists());
+		store = createStore();
+		for (int i = 0; i < versions.length; i++) {
+			assertTrue(Arrays.equals(versions[i],
+				store.getVersion(folder, "v" + i)));
+		}
+	}
+	
+	@Test
+	public void testDeleteRebasesDependents() throws Throwable {
+		byte[][] versions = history(4);
+		for (int i = 0; i < versions.length; i++) {
+			store.putVersion(folder, "v" + i, versions[i]);
+		}
+		store.deleteVersion(folder, "v2");
+		assertFalse(store.hasVersion(folder, "v2"));
+		assertTrue(new File(folder, "v1_v3.rdelta").exists());
+		store.deleteVersion(folder, "v3");
+		assertTrue(new File(folder, "v1.version").exists());
+		store = createStore();
+		assertTrue(Arrays.equals(versions[0], store.getVersion(folder, "v0")));
+		assertTrue(Arrays.equals(versions[1], store.getVersion(folder, "v1")));
+		assertEquals(2, store.getVersions(folder).size());
+	}
+	
+	@Test
+	public void testConvertsFullVersionFiles() throws Throwable {
+		byte[][] versions = history(2);
+		IOUtils.write(new File(folder, "v0.version"), versions[0]);
+		store.putVersion(folder, "v1", versions[1]);
+		assertFalse(new File(folder, "v0.version").exists());
+		assertTrue(Arrays.equals(versions[0], store.getVersion(folder, "v0")));
+	}
+	
+	@Test
+	public void testArtifactsKeepVersions() throws Throwable {
+		byte[][] versions = history(2);
+		store.putVersion(folder, "v0", versions[0]);
+		store.putVersion(folder, "v1", versions[1]);
+		store.putArtifact(folder, "v0_v1.diff", "[0,1,]".getBytes());
+		store.deleteArtifacts(folder);
+		assertFalse(store.hasArtifact(folder, "v0_v1.diff"));
+		assertTrue(Arrays.equals(versions[0], store.getVersion(folder, "v0")));
+	}
+}
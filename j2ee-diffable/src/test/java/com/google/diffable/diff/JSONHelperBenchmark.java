@@ -0,0 +1,95 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.diff;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Times quoting a minified-style script with JSONHelper against the
+ * original character at a time implementation kept in TestJSONHelper,
+ * and streaming the quoted text to a discarding UTF-8 writer.  It isn't
+ * named like a test, so it is only run by hand from the test classpath.
+ * 
+ * Usage: JSONHelperBenchmark [kilobytes [iterations]]
+ * 
+ * The script quoted defaults to 4096 kilobytes, and each path is timed
+ * over 10 iterations after as many to warm up.
+ * 
+ * @author joshua Harrison
+ */
+public class JSONHelperBenchmark {
+	
+	public static void main(String[] args) throws Exception {
+		int kilobytes = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; builder.length() < kilobytes * 1024; i++) {
+			builder.append("function f" + i + "(a,b){var s=\"<p>\"+a+" +
+				"\"</p>\";return s.replace(/\\s/g,'\u00e9')+b*" + i + "}");
+			if (i % 8 == 0) {
+				builder.append('\n');
+			}
+		}
+		final String script = builder.toString();
+		
+		time("legacy quote", iterations, new Path() {
+			public void quote() throws Exception {
+				TestJSONHelper.referenceQuote(script);
+			}
+		});
+		time("quote(String)", iterations, new Path() {
+			public void quote() throws Exception {
+				JSONHelper.quote(script);
+			}
+		});
+		final Writer writer = new OutputStreamWriter(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}, "UTF-8");
+		time("quote(String, Writer)", iterations, new Path() {
+			public void quote() throws Exception {
+				JSONHelper.quote(script, writer);
+				writer.flush();
+			}
+		});
+	}
+	
+	/** A way of quoting the script. */
+	private interface Path {
+		void quote() throws Exception;
+	}
+	
+	private static void time(String name, int iterations, Path path)
+	throws Exception {
+		for (int i = 0; i < iterations; i++) {
+			path.quote();
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			path.quote();
+		}
+		double millis = (System.nanoTime() - start) / 1e6 / iterations;
+		System.out.println(name + ": " +
+			String.format("%.2f", millis) + " ms per call");
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.diff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestJSONHelper {
+	
+	/**
+	 * The original character at a time implementation, kept as the reference
+	 * for the escaping rules.
+	 */
+	static String referenceQuote(String string) {
+		if (string == null || string.length() == 0) {
+			return "\"\"";
+		}
+		char b;
+		char c = 0;
+		StringBuffer sb = new StringBuffer();
+		sb.append('"');
+		for (int i = 0; i < string.length(); i++) {
+			b = c;
+			c = string.charAt(i);
+			switch (c) {
+			case '\\':
+			case '"':
+				sb.append('\\');
+				sb.append(c);
+				break;
+			case '/':
+				if (b == '<') {
+					sb.append('\\');
+				}
+				sb.append(c);
+				break;
+			case '\b':
+				sb.append("\\b");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\f':
+				sb.append("\\f");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			default:
+				if (c < ' ' || (c >= '\u0080' && c < '\u00a0') ||
+				               (c >= '\u2000' && c < '\u2100')) {
+					String t = "000" + Integer.toHexString(c);
+					sb.append("\\u" + t.substring(t.length() - 4));
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+		sb.append('"');
+		return sb.toString();
+	}
+	
+	private String randomString(Random random, int length) {
+		char[] interesting = {'<', '/', '"', '\\', '\b', '\t', '\n', '\f',
+			'\r', '\u0000', '\u001f', '\u0080', '\u009f', '\u00a0', '\u00e9',
+			'\u2000', '\u2028', '\u20ff', '\u2100', 'a', ' '};
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = random.nextInt(4) == 0 ?
+				(char) random.nextInt(0x2200) :
+				interesting[random.nextInt(interesting.length)];
+		}
+		return new String(chars);
+	}
+	
+	@Test
+	public void testEmptyAndNull() {
+		assertEquals("\"\"", JSONHelper.quote(null));
+		assertEquals("\"\"", JSONHelper.quote(""));
+	}
+	
+	@Test
+	public void testEscapes() {
+		assertEquals("\"a\\\"b\\\\c\"", JSONHelper.quote("a\"b\\c"));
+		assertEquals("\"<\\/script>/\"", JSONHelper.quote("</script>/"));
+		assertEquals("\"\\b\\t\\n\\f\\r\\u0001\"",
+			         JSONHelper.quote("\b\t\n\f\r\u0001"));
+		assertEquals("\"\\u0085\u00a0\\u2028\u2100\"",
+			         JSONHelper.quote("\u0085\u00a0\u2028\u2100"));
+	}
+	
+	@Test
+	public void testMatchesReference() {
+		Random random = new Random(42);
+		for (int i = 0; i < 500; i++) {
+			String input = randomString(random, random.nextInt(200));
+			assertEquals(referenceQuote(input), JSONHelper.quote(input));
+		}
+	}
+	
+	@Test
+	public void testStreamingMatchesQuote() throws Exception {
+		Random random = new Random(7);
+		String input = randomString(random, 1 << 20);
+		String expected = JSONHelper.quote(input);
+		assertEquals(referenceQuote(input), expected);
+		
+		StringWriter writer = new StringWriter();
+		JSONHelper.quote(input, writer);
+		assertEquals(expected, writer.toString());
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JSONHelper.quote(input, out, "UTF-8");
+		assertEquals(expected, new String(out.toByteArray(), "UTF-8"));
+	}
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.diff;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.diffable.config.DiffableModule;
+import com.google.diffable.diff.vcdiff.VCDiff;
+import com.google.inject.Guice;
+
+import static org.junit.Assert.*;
+
+public class TestPatcher {
+	
+	@Test
+	public void testCopiesAndAdds() {
+		assertEquals("cdXab",
+			Patcher.apply("abcd", "[2,2,\"X\",0,2,]"));
+	}
+	
+	@Test
+	public void testEmptyDelta() {
+		assertEquals("", Patcher.apply("abcd", "[]"));
+	}
+	
+	@Test
+	public void testEscapes() {
+		assertEquals("a\"\\/\b\f\n\r\t\u0085",
+			Patcher.apply("", "[\"a\\\"\\\\\\/\\b\\f\\n\\r\\t\\u0085\",]"));
+	}
+	
+	@Test
+	public void testFallbackDelta() {
+		String content = "var s = '</script>';\n";
+		assertEquals(content,
+			Patcher.apply("", "[" + JSONHelper.quote(content) + "]"));
+	}
+	
+	@Test
+	public void testChain() {
+		assertEquals("cdXY",
+			Patcher.applyChain("abcd", "[[2,2,\"X\",0,2,],[0,3,\"Y\"]]"));
+		assertEquals("cdXab",
+			Patcher.applyChain("abcd", "[2,2,\"X\",0,2,]"));
+		assertEquals("X", Patcher.applyChain("abcd", "[[],[\"X\"]]"));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testCopyOutsideDictionary() {
+		Patcher.apply("abcd", "[2,3,]");
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnterminatedString() {
+		Patcher.apply("abcd", "[\"abc]");
+	}
+	
+	@Test
+	public void testAppliesVCDiff() {
+		Random random = new Random(1);
+		StringBuilder dict = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			dict.append((char) (random.nextInt(0x300) + 1));
+		}
+		StringBuilder target = new StringBuilder(dict);
+		target.insert(1000, "inserted");
+		target.delete(3000, 3100);
+		String delta = Guice.createInjector(new DiffableModule())
+			.getInstance(VCDiff.class)
+			.getDiffAsString(dict.toString(), target.toString());
+		assertEquals(target.toString(),
+			Patcher.apply(dict.toString(), delta));
+	}
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.diff.token;
+
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.diffable.config.DiffableModule;
+import com.google.diffable.diff.Differ;
+import com.google.diffable.diff.Patcher;
+import com.google.inject.Guice;
+
+import static org.junit.Assert.*;
+
+public class TestTokenDiff {
+	private Differ differ;
+	private Properties props;
+	
+	@Before
+	public void setUp() {
+		this.props = new Properties();
+		createDiffer();
+	}
+	
+	private void createDiffer() {
+		differ = 
+			Guice.createInjector(new DiffableModule(this.props))
+				.getInstance(TokenDiff.class);
+	}
+	
+	@Test
+	public void testSameTextNoDiff() {
+		assertNull(differ.getDiffAsString("var a = 1;", "var a = 1;"));
+	}
+	
+	@Test
+	public void testNoMatchOnlyAdd() {
+		assertEquals("[\"d\",]", differ.getDiffAsString("abc", "d"));
+	}
+	
+	@Test
+	public void testRenamedIdentifierNotSplit() {
+		props.put("MinCopyLength", "1");
+		createDiffer();
+		String diff = differ.getDiffAsString(
+			"function getValue(){return value;}",
+			"function getValues(){return value;}");
+		// The renamed identifier is added whole rather than as a copy of
+		// 'getValue' followed by an add of 's'.
+		assertEquals("[0,9,\"getValues\",17,17,]", diff);
+	}
+	
+	@Test
+	public void testShortCopiesBecomeAdds() {
+		String diff = differ.getDiffAsString("a.b(c);", "a.d(c);");
+		assertEquals("[\"a.d(c);\",]", diff);
+	}
+	
+	@Test
+	public void testInsertedStatement() {
+		String dict = "var first = 1;\nvar second = 2;\n";
+		String target = "var first = 1;\nvar inserted = 3;\nvar second = 2;\n";
+		String diff = differ.getDiffAsString(dict, target);
+		assertEquals("[0,19,\"inserted = 3;\\nvar \",19,12,]", diff);
+		assertEquals(target, Patcher.apply(dict, diff));
+	}
+	
+	@Test
+	public void testRoundTripCss() {
+		String dict = ".header { color: red; font-size: 12px; }\n" +
+		              ".footer { background: url(http://a/b.png); }\n";
+		String target = ".header { color: blue; font-size: 12px; }\n" +
+		                ".nav { margin: 0; }\n" +
+		                ".footer { background: url(http://a/c.png); }\n";
+		assertEquals(target,
+			Patcher.apply(dict, differ.getDiffAsString(dict, target)));
+	}
+	
+	@Test
+	public void testRoundTripRepeatedTokens() {
+		// Without any unique tokens the Myers fallback aligns the text.
+		String dict = "a;a;a;b;b;a;a;";
+		String target = "a;b;a;a;b;b;a;";
+		props.put("MinCopyLength", "1");
+		createDiffer();
+		assertEquals(target,
+			Patcher.apply(dict, differ.getDiffAsString(dict, target)));
+	}
+	
+	@Test
+	public void testRoundTripLarge() {
+		StringBuilder dict = new StringBuilder();
+		StringBuilder target = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			String line = "function f" + i + "(a,b){return a+b*" + i + ";}\n";
+			dict.append(line);
+			if (i % 97 == 0) {
+				target.append("/* changed */ var x" + i + "='</" + i + "';\n");
+			} else if (i % 89 != 0) {
+				target.append(line);
+			}
+		}
+		String diff = differ.getDiffAsString(dict.toString(),
+				                             target.toString());
+		assertEquals(target.toString(), Patcher.apply(dict.toString(), diff));
+		assertTrue(diff.length() < target.length() / 10);
+	}
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.diff.token;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestTokenText {
+	
+	private TokenText tokenize(String text) {
+		return new TokenText(text, new HashMap<String, Integer>());
+	}
+	
+	@Test
+	public void testEmpty() {
+		TokenText tokens = tokenize("");
+		assertEquals(0, tokens.size());
+		assertEquals(0, tokens.getOffset(0));
+	}
+	
+	@Test
+	public void testIdentifiersWhitespaceAndPunctuation() {
+		TokenText tokens = tokenize("var foo_1 =  $bar;");
+		assertEquals(8, tokens.size());
+		assertEquals("var", tokens.getToken(0));
+		assertEquals(" ", tokens.getToken(1));
+		assertEquals("foo_1", tokens.getToken(2));
+		assertEquals(" ", tokens.getToken(3));
+		assertEquals("=", tokens.getToken(4));
+		assertEquals("  ", tokens.getToken(5));
+		assertEquals("$bar", tokens.getToken(6));
+		assertEquals(";", tokens.getToken(7));
+		assertEquals(4, tokens.getOffset(2));
+	}
+	
+	@Test
+	public void testStringLiterals() {
+		TokenText tokens = tokenize("a('it\\'s',\"x y\")");
+		assertEquals(6, tokens.size());
+		assertEquals("'it\\'s'", tokens.getToken(2));
+		assertEquals("\"x y\"", tokens.getToken(4));
+	}
+	
+	@Test
+	public void testUnterminatedStringEndsAtLine() {
+		TokenText tokens = tokenize("'abc\nd");
+		assertEquals(2, tokens.size());
+		assertEquals("'abc\n", tokens.getToken(0));
+		assertEquals("d", tokens.getToken(1));
+	}
+	
+	@Test
+	public void testBlockComment() {
+		TokenText tokens = tokenize("a/* b c */d");
+		assertEquals(3, tokens.size());
+		assertEquals("/* b c */", tokens.getToken(1));
+	}
+	
+	@Test
+	public void testSharedSymbols() {
+		HashMap<String, Integer> symbols = new HashMap<String, Integer>();
+		TokenText first = new TokenText("foo bar", symbols);
+		TokenText second = new TokenText("bar foo", symbols);
+		assertEquals(first.getId(0), second.getId(2));
+		assertEquals(first.getId(2), second.getId(0));
+		assertEquals(first.getId(1), second.getId(1));
+		assertEquals(3, symbols.size());
+	}
+}
@@ -22,6 +22,7 @@ import org.junit.Test;
 
 import com.google.diffable.config.DiffableModule;
 import com.google.diffable.diff.Differ;
+import com.google.diffable.diff.FingerprintDiffer;
 import com.google.inject.Guice;
 
 import static org.junit.Assert.*;
@@ -79,4 +80,23 @@ public class TestVCDiff {
 		String diff = vcdiff.getDiffAsString("abcdef", "defghiabc");
 		assertEquals("[3,3,\"ghi\",0,3,]", diff);
 	}
+	
+	@Test
+	public void testFingerprint() {
+		props.put("BlockSize", "3");
+		createDiffer();
+		FingerprintDiffer differ = (FingerprintDiffer) vcdiff;
+		byte[] fingerprint = differ.getFingerprint("abcdef");
+		assertEquals(8 + 2 * 8, fingerprint.length);
+		assertEquals("[3,3,\"ghi\",0,3,]",
+			differ.getDiffAsString("abcdef", fingerprint, "defghiabc"));
+		
+		// A fingerprint of other text or another block size is ignored.
+		assertEquals("[3,3,\"ghi\",0,3,]", differ.getDiffAsString(
+			"abcdef", differ.getFingerprint("abcdefg"), "defghiabc"));
+		byte[] otherBlockSize = fingerprint.clone();
+		otherBlockSize[3] = 4;
+		assertEquals("[3,3,\"ghi\",0,3,]", differ.getDiffAsString(
+			"abcdef", otherBlockSize, "defghiabc"));
+	}
 }
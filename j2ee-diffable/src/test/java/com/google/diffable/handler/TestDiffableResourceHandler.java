@@ -0,0 +1,248 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.handler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.diffable.data.BufferArtifact;
+import com.google.diffable.data.ContentCache;
+import com.google.diffable.data.ContentEncoding;
+import com.google.diffable.data.ResourceManager;
+import com.google.diffable.data.ResourceRequest;
+import com.google.diffable.diff.JSONHelper;
+import com.google.diffable.scripts.DeltaBootstrapTemplate;
+import com.google.diffable.scripts.DictionaryBootstrapTemplate;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class TestDiffableResourceHandler {
+	private ResourceManager mgr;
+	private HttpServletResponse resp;
+	private ByteArrayOutputStream body;
+	private Injector inj;
+	
+	@Before
+	public void setUp() throws Throwable {
+		mgr = createMock(ResourceManager.class);
+		resp = createNiceMock(HttpServletResponse.class);
+		body = new ByteArrayOutputStream();
+		expect(resp.getOutputStream()).andReturn(new ServletOutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				body.write(b);
+			}
+		}).anyTimes();
+		inj = Guice.createInjector(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(ResourceManager.class).toInstance(mgr);
+			}
+		});
+	}
+	
+	private void respondWith(final ResourceRequest request,
+			                 final String response, final boolean asArtifact)
+	throws Throwable {
+		mgr.getResource(request);
+		expectLastCall().andAnswer(new IAnswer<Object>() {
+			@Override
+			public Object answer() throws Throwable {
+				if (asArtifact) {
+					request.setArtifact(new BufferArtifact(
+						ByteBuffer.wrap(response.getBytes("UTF-8"))));
+				} else {
+					request.setResponse(response);
+				}
+				return null;
+			}
+		});
+	}
+	
+	@Test
+	public void testStoredDeltaSentAsBytes() throws Throwable {
+		ResourceRequest request = inj.getInstance(ResourceRequest.class);
+		request.setRequest("", "aa_bb_cc.diff");
+		String diff = "[0,4,\"caf\u00e9 \u2603\",]";
+		respondWith(request, diff, true);
+		
+		HashMap<String, String> values = new HashMap<String, String>();
+		values.put("{{DJS_RESOURCE_IDENTIFIER}}", "aa");
+		values.put("{{DJS_DIFF_CONTENT}}", diff);
+		byte[] expected = inj.getInstance(DeltaBootstrapTemplate.class)
+			.render(values).getBytes("UTF-8");
+		resp.setContentLength(expected.length);
+		resp.setContentType("text/javascript; charset=UTF-8");
+		replay(mgr, resp);
+		
+		DiffableResourceHandler handler =
+			inj.getInstance(DiffableResourceHandler.class);
+		assertTrue(handler.handleResourceRequest(request, resp));
+		verify(mgr, resp);
+		assertEquals(new String(expected, "UTF-8"), body.toString("UTF-8"));
+	}
+	
+	@Test
+	public void testFullResourceLengthInBytes() throws Throwable {
+		ResourceRequest request = inj.getInstance(ResourceRequest.class);
+		request.setRequest("", "aa");
+		request.setNewVersionHash("cc");
+		String contents = "var s = '\u00e9';";
+		respondWith(request, contents, false);
+		
+		HashMap<String, String> values = new HashMap<String, String>();
+		values.put("{{DJS_RESOURCE_IDENTIFIER}}", "aa");
+		values.put("{{DJS_CODE}}", JSONHelper.quote(contents));
+		values.put("{{DJS_BOOTSTRAP_VERSION}}", "cc");
+		byte[] expected = inj.getInstance(DictionaryBootstrapTemplate.class)
+			.render(values).getBytes("UTF-8");
+		resp.setContentLength(expected.length);
+		replay(mgr, resp);
+		
+		DiffableResourceHandler handler =
+			inj.getInstance(DiffableResourceHandler.class);
+		assertTrue(handler.handleResourceRequest(request, resp));
+		verify(mgr, resp);
+		assertEquals(new String(expected, "UTF-8"), body.toString("UTF-8"));
+	}
+	
+	@Test
+	public void testUnknownResourceNotProcessed() throws Throwable {
+		ResourceRequest request = inj.getInstance(ResourceRequest.class);
+		request.setRequest("", "aa");
+		mgr.getResource(request);
+		replay(mgr, resp);
+		
+		DiffableResourceHandler handler =
+			inj.getInstance(DiffableResourceHandler.class);
+		assertFalse(handler.handleResourceRequest(request, resp));
+		assertEquals(0, body.size());
+	}
+	
+	@Test
+	public void testPrecompressedVariantNegotiated() throws Throwable {
+		final ResourceRequest request =
+			inj.getInstance(ResourceRequest.class);
+		request.setRequest("", "aa_bb_cc.diff");
+		final byte[] variant = ContentEncoding.GZIP.encode(
+			"precompressed".getBytes("UTF-8"));
+		mgr.getResource(request);
+		expectLastCall().andAnswer(new IAnswer<Object>() {
+			@Override
+			public Object answer() throws Throwable {
+				assertEquals(ContentEncoding.GZIP,
+					request.getAcceptedEncodings().get(0));
+				request.setEncodedArtifact(new BufferArtifact(
+					ByteBuffer.wrap(variant)), ContentEncoding.GZIP);
+				return null;
+			}
+		});
+		HttpServletRequest req = createMock(HttpServletRequest.class);
+		expect(req.getHeader("Accept-Encoding")).andReturn("gzip, deflate");
+		resp.setHeader("Content-Encoding", "gzip");
+		resp.setHeader("Vary", "Accept-Encoding");
+		resp.setContentLength(variant.length);
+		replay(mgr, req, resp);
+		
+		DiffableResourceHandler handler =
+			inj.getInstance(DiffableResourceHandler.class);
+		assertTrue(handler.handleResourceRequest(request, req, resp));
+		verify(mgr, req, resp);
+		assertTrue(Arrays.equals(variant, body.toByteArray()));
+	}
+	
+	private String handle(DiffableResourceHandler handler, String contents)
+	throws Throwable {
+		ResourceRequest request = inj.getInstance(ResourceRequest.class);
+		request.setRequest("", "aa");
+		request.setNewVersionHash("cc");
+		respondWith(request, contents, false);
+		replay(mgr);
+		body.reset();
+		assertTrue(handler.handleResourceRequest(request, resp));
+		verify(mgr);
+		reset(mgr);
+		return body.toString("UTF-8");
+	}
+	
+	@Test
+	public void testRenderedResponsesCached() throws Throwable {
+		replay(resp);
+		DiffableResourceHandler handler =
+			inj.getInstance(DiffableResourceHandler.class);
+		String first = handle(handler, "var a = 1;");
+		assertTrue(first.contains(JSONHelper.quote("var a = 1;")));
+		// The response for a version never changes, so it isn't rendered
+		// again.
+		assertEquals(first, handle(handler, "var a = 2;"));
+		
+		// A new version of the resource drops its rendered responses.
+		inj.getInstance(ContentCache.class).removeResource("aa");
+		assertTrue(handle(handler, "var a = 2;").contains(
+			JSONHelper.quote("var a = 2;")));
+	}
+	
+	private String handleFallback(DiffableResourceHandler handler,
+			                      String requested, final String contents)
+	throws Throwable {
+		final ResourceRequest request = inj.getInstance(ResourceRequest.class);
+		request.setRequest("", requested);
+		mgr.getResource(request);
+		expectLastCall().andAnswer(new IAnswer<Object>() {
+			@Override
+			public Object answer() throws Throwable {
+				request.setFallback("cc", contents);
+				return null;
+			}
+		});
+		replay(mgr);
+		body.reset();
+		assertTrue(handler.handleResourceRequest(request, resp));
+		verify(mgr);
+		reset(mgr);
+		return body.toString("UTF-8");
+	}
+	
+	@Test
+	public void testFallbackCachedByVersion() throws Throwable {
+		replay(resp);
+		DiffableResourceHandler handler =
+			inj.getInstance(DiffableResourceHandler.class);
+		ContentCache cache = inj.getInstance(ContentCache.class);
+		String first = handleFallback(handler, "aa_b1_cc.diff", "var a = 1;");
+		assertTrue(first.contains(JSONHelper.quote("var a = 1;")));
+		int entries = cache.getEntryCount();
+		// Old versions the client makes up don't add responses to the cache.
+		assertEquals(first,
+			handleFallback(handler, "aa_b2_cc.diff", "var a = 2;"));
+		assertEquals(entries, cache.getEntryCount());
+	}
+}
@@ -22,6 +22,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.google.diffable.config.BaseModule;
+import com.google.diffable.data.ResourceManager;
 import com.google.diffable.exceptions.StackTracePrinter;
 import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
@@ -75,4 +76,19 @@ public class TestDiffableListener {
 		listener.initializeInjectedProperties(ctx, mod);
 		verify(ctx);
 	}
+	
+	@Test
+	public void testContextDestroyedShutsDownManager() {
+		final ResourceManager mgr = createMock(ResourceManager.class);
+		listener = Guice.createInjector(new AbstractModule() {
+			@Override
+			protected void configure() {
+				bind(ResourceManager.class).toInstance(mgr);
+			}
+		}).getInstance(DiffableListener.class);
+		mgr.shutdown();
+		replay(mgr);
+		listener.contextDestroyed(null);
+		verify(mgr);
+	}
 }
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
+/**
+ * Times reading and hashing a resource the way the FileResourceManager
+ * does, against the decode-then-digest path it replaced, and the digests
+ * on their own.  It isn't named like a test, so it is only run by hand
+ * from the test classpath.
+ * 
+ * Usage: DigestBenchmark [kilobytes [iterations]]
+ * 
+ * The script hashed defaults to 1024 kilobytes, and each path is timed
+ * over 200 iterations after as many to warm up.
+ * 
+ * @author joshua Harrison
+ */
+public class DigestBenchmark {
+	
+	public static void main(String[] args) throws Exception {
+		int kilobytes = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		StringBuilder script = new StringBuilder();
+		for (int i = 0; script.length() < kilobytes * 1024; i++) {
+			script.append("function f" + i + "(a, b) { return a * " + i +
+				" + b; }\n");
+		}
+		File file = File.createTempFile("diffable", ".js");
+		file.deleteOnExit();
+		IOUtils.write(file, script.toString().getBytes());
+		
+		time("old decode+MD5 path", file, iterations, new Path() {
+			public String hash(File file) throws Exception {
+				return decodeAndDigest(file);
+			}
+		});
+		for (final String algorithm :
+			 new String[] {"MD5", DigestUtils.MURMUR3}) {
+			time("raw bytes, " + algorithm, file, iterations, new Path() {
+				public String hash(File file) throws Exception {
+					byte[] contents = IOUtils.read(file);
+					String checksum = DigestUtils.toHex(
+						DigestUtils.getDigest(algorithm).digest(contents));
+					new String(contents);
+					return checksum;
+				}
+			});
+		}
+		byte[] contents = IOUtils.read(file);
+		for (String algorithm : new String[] {"MD5", DigestUtils.MURMUR3}) {
+			for (int i = 0; i < iterations; i++) {
+				DigestUtils.getDigest(algorithm).digest(contents);
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				DigestUtils.getDigest(algorithm).digest(contents);
+			}
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.println(algorithm + " digest alone: " + Math.round(
+				(double) contents.length * iterations / (1 << 20) / seconds) +
+				" MB/s");
+		}
+	}
+	
+	/** A way of reading and hashing a resource. */
+	private interface Path {
+		String hash(File file) throws Exception;
+	}
+	
+	private static void time(String name, File file, int iterations,
+			                 Path path) throws Exception {
+		for (int i = 0; i < iterations; i++) {
+			path.hash(file);
+		}
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			path.hash(file);
+		}
+		double millis = (System.nanoTime() - start) / 1e6 / iterations;
+		System.out.println(name + ": " +
+			String.format("%.2f", millis) + " ms per file");
+	}
+	
+	/**
+	 * Hashes a resource the way the FileResourceManager did before it
+	 * hashed raw bytes: through a DigestInputStream under the decoder.
+	 */
+	private static String decodeAndDigest(File file) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		InputStream in = new DigestInputStream(new FileInputStream(file), md);
+		StringBuilder contents = new StringBuilder();
+		try {
+			Reader rd = new InputStreamReader(in);
+			char[] buf = new char[IOUtils.BUFFER_SIZE];
+			int num = 0;
+			while ((num = rd.read(buf, 0, buf.length)) != -1) {
+				contents.append(buf, 0, num);
+			}
+		} finally {
+			IOUtils.close(in);
+		}
+		return new BigInteger(1, md.digest()).toString(16);
+	}
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2010 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.diffable.utils;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestDigestUtils {
+	
+	@Test
+	public void testToHexKeepsLeadingZeros() {
+		assertEquals("", DigestUtils.toHex(new byte[0]));
+		assertEquals("000fa0ff",
+			DigestUtils.toHex(new byte[] {0, 15, (byte) 160, (byte) 255}));
+	}
+	
+	@Test
+	public void testMessageDigestAlgorithm() throws Throwable {
+		assertEquals("ed076287532e86365e841e92bfc50d8c", DigestUtils.toHex(
+			DigestUtils.getDigest("MD5").digest("Hello World!".getBytes())));
+	}
+	
+	@Test
+	public void testMurmur3() throws Throwable {
+		MessageDigest digest = DigestUtils.getDigest("murmur3");
+		assertEquals(16, digest.getDigestLength());
+		assertEquals("00000000000000000000000000000000",
+			DigestUtils.toHex(digest.digest(new byte[0])));
+		assertEquals("6c1b07bc7bbc4be347939ac4a93c437a", DigestUtils.toHex(
+			digest.digest(
+				"The quick brown fox jumps over the lazy dog".getBytes())));
+	}
+	
+	@Test
+	public void testMurmur3Incremental() throws Throwable {
+		byte[] input = new byte[1000];
+		new Random(42).nextBytes(input);
+		MessageDigest digest = DigestUtils.getDigest(DigestUtils.MURMUR3);
+		String expected = DigestUtils.toHex(digest.digest(input));
+		
+		for (int chunk = 1; chunk < 40; chunk += 3) {
+			for (int i = 0; i < input.length; i += chunk) {
+				digest.update(input, i, Math.min(chunk, input.length - i));
+			}
+			assertEquals(expected, DigestUtils.toHex(digest.digest()));
+		}
+		for (byte b : input) {
+			digest.update(b);
+		}
+		assertEquals(expected, DigestUtils.toHex(digest.digest()));
+	}
+}